@@ -0,0 +1,33 @@
+package net.thewe.bench;
+
+/**
+ * One measured operation. {@link #run()} is called repeatedly between
+ * {@link #setUp()} and {@link #tearDown()}; whatever it returns is consumed
+ * so that the work cannot be optimised away.
+ */
+public abstract class Benchmark {
+
+	private final String name;
+
+	protected Benchmark(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Prepares the fixtures. Not measured.
+	 */
+	public void setUp() throws Exception {
+	}
+
+	/**
+	 * Performs the measured operation once.
+	 */
+	public abstract Object run() throws Exception;
+
+	public void tearDown() throws Exception {
+	}
+}
@@ -0,0 +1,174 @@
+package net.thewe.bench;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Runs the serialization, text view and relay benchmarks and reports the time
+ * per operation.
+ *
+ * Each benchmark is warmed up, then measured over several rounds of fixed
+ * duration; the mean and the spread of the rounds are reported. Usage:
+ *
+ * <pre>
+ * java net.thewe.bench.BenchmarkRunner [-warmup ms] [-round ms] [-rounds n]
+ *     [-json file] [pattern]
+ * </pre>
+ *
+ * Only benchmarks whose name contains a match of {@code pattern} are run. With
+ * {@code -json}, the results are also written to {@code file} for regression
+ * tracking.
+ */
+public class BenchmarkRunner {
+
+	private static final long DEFAULT_WARMUP_MILLIS = 2000;
+	private static final long DEFAULT_ROUND_MILLIS = 1000;
+	private static final int DEFAULT_ROUNDS = 5;
+
+	/**
+	 * Consumes benchmark results so the JIT cannot drop the work.
+	 */
+	private static volatile int sink;
+
+	private final long warmupMillis;
+	private final long roundMillis;
+	private final int rounds;
+
+	public BenchmarkRunner(long warmupMillis, long roundMillis, int rounds) {
+		this.warmupMillis = warmupMillis;
+		this.roundMillis = roundMillis;
+		this.rounds = rounds;
+	}
+
+	public static void main(String[] args) throws Exception {
+		long warmup = DEFAULT_WARMUP_MILLIS;
+		long round = DEFAULT_ROUND_MILLIS;
+		int rounds = DEFAULT_ROUNDS;
+		String json = null;
+		Pattern filter = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-warmup")) {
+				warmup = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-round")) {
+				round = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-rounds")) {
+				rounds = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-json")) {
+				json = args[++i];
+			} else {
+				filter = Pattern.compile(args[i]);
+			}
+		}
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.addAll(SerializationBenchmarks.create());
+		benchmarks.addAll(TextViewBenchmarks.create());
+		benchmarks.addAll(RelayBenchmarks.create());
+
+		BenchmarkRunner runner = new BenchmarkRunner(warmup, round, rounds);
+		JSONArray results = new JSONArray();
+		for (Benchmark benchmark : benchmarks) {
+			if (filter == null || filter.matcher(benchmark.getName()).find()) {
+				results.put(runner.run(benchmark));
+			}
+		}
+		if (json != null) {
+			write(results, json);
+		}
+		RelayBenchmarks.shutdown();
+	}
+
+	/**
+	 * Measures one benchmark and prints a line for it.
+	 *
+	 * @return the result, as written to the JSON report.
+	 */
+	public JSONObject run(Benchmark benchmark) throws Exception {
+		benchmark.setUp();
+		double[] nanosPerOp = new double[rounds];
+		try {
+			measure(benchmark, warmupMillis);
+			for (int i = 0; i < rounds; i++) {
+				nanosPerOp[i] = measure(benchmark, roundMillis);
+			}
+		} finally {
+			benchmark.tearDown();
+		}
+
+		double mean = 0;
+		for (double value : nanosPerOp) {
+			mean += value;
+		}
+		mean /= rounds;
+		double variance = 0;
+		for (double value : nanosPerOp) {
+			variance += (value - mean) * (value - mean);
+		}
+		double stddev = rounds > 1 ? Math.sqrt(variance / (rounds - 1)) : 0;
+
+		System.out.println(String.format("%-40s %14.1f ns/op  +- %5.1f%%",
+				benchmark.getName(), mean, mean == 0 ? 0 : 100 * stddev / mean));
+
+		JSONObject result = new JSONObject();
+		try {
+			result.put("benchmark", benchmark.getName());
+			result.put("nsPerOp", mean);
+			result.put("stddev", stddev);
+			JSONArray raw = new JSONArray();
+			for (double value : nanosPerOp) {
+				raw.put(value);
+			}
+			result.put("rounds", raw);
+		} catch (JSONException e) {
+			throw new IllegalStateException(e);
+		}
+		return result;
+	}
+
+	/**
+	 * Runs the benchmark for about {@code millis} and returns the mean time
+	 * per operation in nanoseconds.
+	 */
+	private static double measure(Benchmark benchmark, long millis)
+			throws Exception {
+		long budget = millis * 1000000L;
+		long operations = 0;
+		int hash = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			Object result = benchmark.run();
+			hash += result == null ? 0 : System.identityHashCode(result);
+			operations++;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < budget);
+		sink += hash;
+		return (double) elapsed / operations;
+	}
+
+	private static void write(JSONArray results, String file)
+			throws IOException {
+		JSONObject report = new JSONObject();
+		try {
+			report.put("timestamp", System.currentTimeMillis());
+			report.put("java", System.getProperty("java.version"));
+			report.put("results", results);
+		} catch (JSONException e) {
+			throw new IllegalStateException(e);
+		}
+		Writer out = new FileWriter(file);
+		try {
+			out.write(report.toString());
+		} finally {
+			out.close();
+		}
+	}
+}
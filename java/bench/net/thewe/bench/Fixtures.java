@@ -0,0 +1,199 @@
+package net.thewe.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import com.google.wave.api.Annotation;
+import com.google.wave.api.ElementType;
+import com.google.wave.api.EventType;
+import com.google.wave.api.FormElement;
+import com.google.wave.api.Gadget;
+import com.google.wave.api.Image;
+import com.google.wave.api.Range;
+import com.google.wave.api.impl.BlipData;
+import com.google.wave.api.impl.EventData;
+import com.google.wave.api.impl.EventMessageBundle;
+import com.google.wave.api.impl.OperationImpl;
+import com.google.wave.api.impl.OperationMessageBundle;
+import com.google.wave.api.impl.OperationType;
+import com.google.wave.api.impl.WaveBinaryCodec;
+import com.google.wave.api.impl.WaveJsonCodec;
+import com.google.wave.api.impl.WaveletData;
+
+/**
+ * Deterministic event and operation bundles in three sizes.
+ */
+public class Fixtures {
+
+	public static final String WAVE_ID = "thewe.net!w+bench";
+	public static final String WAVELET_ID = "thewe.net!conv+root";
+	public static final String ROOT_BLIP_ID = "b+0";
+
+	/**
+	 * The sizes fixtures come in.
+	 */
+	public enum Size {
+		SMALL(1, 5, 200), TYPICAL(20, 100, 2000), LARGE(500, 5000, 50000);
+
+		private final int blips;
+		private final int operations;
+		private final int contentLength;
+
+		private Size(int blips, int operations, int contentLength) {
+			this.blips = blips;
+			this.operations = operations;
+			this.contentLength = contentLength;
+		}
+
+		public int getBlips() {
+			return blips;
+		}
+
+		public int getOperations() {
+			return operations;
+		}
+
+		/**
+		 * The length of the blip content text view benchmarks edit.
+		 */
+		public int getContentLength() {
+			return contentLength;
+		}
+
+		@Override
+		public String toString() {
+			return name().toLowerCase();
+		}
+	}
+
+	private Fixtures() {
+	}
+
+	/**
+	 * Returns an event bundle with the number of blips of {@code size}, as
+	 * Wave would send it to the robot, including the {@code proxyingFor}
+	 * field the relay routes on.
+	 */
+	public static String eventsJson(Size size) throws IOException {
+		StringWriter json = new StringWriter();
+		WaveJsonCodec.writeEventMessageBundle(events(size), json);
+		String text = json.toString();
+		return text.substring(0, text.length() - 1)
+				+ ",\"proxyingFor\":\"{\\\"port\\\":\\\"31337\\\","
+				+ "\\\"action\\\":\\\"bench\\\"}\"}";
+	}
+
+	public static byte[] eventsBinary(Size size) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		WaveBinaryCodec.writeEventMessageBundle(events(size), out);
+		return out.toByteArray();
+	}
+
+	public static EventMessageBundle events(Size size) {
+		EventMessageBundle bundle = new EventMessageBundle();
+		WaveletData wavelet = new WaveletData();
+		wavelet.setWaveId(WAVE_ID);
+		wavelet.setWaveletId(WAVELET_ID);
+		wavelet.setRootBlipId(ROOT_BLIP_ID);
+		wavelet.setTitle("Benchmark wave");
+		wavelet.setCreator("alice@thewe.net");
+		wavelet.setCreationTime(1250000000000L);
+		wavelet.setLastModifiedTime(1250000100000L);
+		wavelet.setVersion(size.getBlips() * 3);
+		for (int i = 0; i < 5; i++) {
+			wavelet.getParticipants().add(participant(i));
+		}
+		wavelet.setDataDocument("thewe/state", "{\"rev\":1}");
+		bundle.setWaveletData(wavelet);
+
+		for (int i = 0; i < size.getBlips(); i++) {
+			BlipData blip = blip(i, 200);
+			if (i == 0) {
+				for (int j = 1; j < size.getBlips(); j++) {
+					blip.getChildBlipIds().add("b+" + j);
+				}
+			} else {
+				blip.setParentBlipId(ROOT_BLIP_ID);
+			}
+			bundle.addBlip(blip.getBlipId(), blip);
+		}
+
+		EventData submitted = new EventData(EventType.BLIP_SUBMITTED,
+				participant(1), 1250000100000L);
+		submitted.put("blipId", ROOT_BLIP_ID);
+		bundle.addEvent(submitted);
+		EventData changed = new EventData(EventType.DOCUMENT_CHANGED,
+				participant(2), 1250000100001L);
+		changed.put("blipId", "b+" + (size.getBlips() - 1));
+		bundle.addEvent(changed);
+		return bundle;
+	}
+
+	/**
+	 * Returns a blip with about {@code contentLength} characters of content,
+	 * one annotation per line and a few elements.
+	 */
+	public static BlipData blip(int index, int contentLength) {
+		BlipData blip = new BlipData();
+		blip.setBlipId("b+" + index);
+		blip.setWaveId(WAVE_ID);
+		blip.setWaveletId(WAVELET_ID);
+		blip.setCreator(participant(index));
+		blip.getContributors().add(participant(index));
+		blip.getContributors().add(participant(index + 1));
+		blip.setLastModifiedTime(1250000000000L + index);
+		blip.setVersion(index);
+
+		StringBuilder content = new StringBuilder("\n");
+		int line = 0;
+		while (content.length() < contentLength) {
+			int start = content.length();
+			content.append("Line ").append(line).append(" of blip ").append(
+					index).append(", with some \"quoted\" text.\n");
+			blip.addAnnotation(new Annotation(line % 2 == 0
+					? "style/fontWeight" : "lang", line % 2 == 0 ? "bold"
+					: "en", new Range(start, content.length() - 1)));
+			line++;
+		}
+		blip.setContent(content.toString());
+		blip.addElement(1, new Gadget("http://thewe.net/gadget.xml"));
+		blip.addElement(2, new FormElement(ElementType.BUTTON, "ok", "OK"));
+		blip.addElement(3, new Image("attachment+" + index, "Caption"));
+		return blip;
+	}
+
+	/**
+	 * Returns the operations a robot typically sends back: inserts,
+	 * annotations and the odd append.
+	 */
+	public static OperationMessageBundle operations(Size size) {
+		OperationMessageBundle bundle = new OperationMessageBundle();
+		bundle.setVersion("bench");
+		for (int i = 0; i < size.getOperations(); i++) {
+			String blipId = "b+" + (i % size.getBlips());
+			switch (i % 4) {
+			case 0:
+			case 1:
+				bundle.add(new OperationImpl(OperationType.DOCUMENT_INSERT,
+						WAVE_ID, WAVELET_ID, blipId, i, "inserted text " + i));
+				break;
+			case 2:
+				bundle.add(new OperationImpl(
+						OperationType.DOCUMENT_ANNOTATION_SET, WAVE_ID,
+						WAVELET_ID, blipId, 0, new Annotation(
+								"style/fontStyle", "italic", new Range(i,
+										i + 10))));
+				break;
+			default:
+				bundle.add(new OperationImpl(OperationType.DOCUMENT_APPEND,
+						WAVE_ID, WAVELET_ID, blipId, 0, "\nappended " + i));
+			}
+		}
+		return bundle;
+	}
+
+	private static String participant(int index) {
+		return "user" + (index % 5) + "@thewe.net";
+	}
+}
@@ -0,0 +1,184 @@
+package net.thewe.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import com.google.wave.api.impl.OperationMessageBundle;
+import com.google.wave.api.impl.WaveBinaryCodec;
+import com.google.wave.api.impl.WaveJsonCodec;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import net.thewe.bench.Fixtures.Size;
+import net.thewe.relay.BackendCall;
+import net.thewe.relay.BackendEndpoint;
+import net.thewe.relay.BackendRouter;
+import net.thewe.relay.LoadBalancingPolicy;
+import net.thewe.relay.PooledRelayTransport;
+import net.thewe.relay.RelayBuffer;
+import net.thewe.relay.RelayWireFormat;
+import net.thewe.relay.RoutingKey;
+import net.thewe.relay.RoutingKeyExtractor;
+
+/**
+ * The relay forward path, from reading the events to copying the answer
+ * back, against a stub backend on the loopback interface. The stub reads the
+ * request and answers with a typical operation bundle, so the numbers cover
+ * the relay and the local network stack but no backend work.
+ */
+public class RelayBenchmarks {
+
+	private static final String PORT = "31337";
+
+	private static HttpServer backend;
+	private static ExecutorService executor;
+
+	private RelayBenchmarks() {
+	}
+
+	public static List<Benchmark> create() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (final RelayWireFormat format : RelayWireFormat.values()) {
+			for (final Size size : Size.values()) {
+				benchmarks.add(new ForwardBenchmark(format, size));
+			}
+		}
+		return benchmarks;
+	}
+
+	/**
+	 * Stops the stub backend, if it was started.
+	 */
+	public static synchronized void shutdown() {
+		if (backend != null) {
+			backend.stop(0);
+			executor.shutdown();
+			backend = null;
+		}
+	}
+
+	private static synchronized int startBackend() throws IOException {
+		if (backend != null) {
+			return backend.getAddress().getPort();
+		}
+		StringWriter json = new StringWriter();
+		OperationMessageBundle operations = Fixtures.operations(Size.TYPICAL);
+		WaveJsonCodec.writeOperationMessageBundle(operations, json);
+		final byte[] jsonAnswer = json.toString().getBytes("UTF-8");
+		ByteArrayOutputStream binary = new ByteArrayOutputStream();
+		WaveBinaryCodec.writeOperationMessageBundle(operations, binary);
+		final byte[] binaryAnswer = binary.toByteArray();
+
+		// Without this, delayed acknowledgements dominate every round trip.
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		backend = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		backend.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				InputStream in = exchange.getRequestBody();
+				if ("gzip".equals(exchange.getRequestHeaders().getFirst(
+						"Content-Encoding"))) {
+					in = new GZIPInputStream(in);
+				}
+				byte[] buffer = new byte[8192];
+				while (in.read(buffer) != -1) {
+					// Discard.
+				}
+				String accept = exchange.getRequestHeaders().getFirst("Accept");
+				byte[] answer = jsonAnswer;
+				if (accept != null
+						&& accept.contains(WaveBinaryCodec.CONTENT_TYPE)) {
+					exchange.getResponseHeaders().set("Content-Type",
+							WaveBinaryCodec.CONTENT_TYPE);
+					answer = binaryAnswer;
+				} else {
+					exchange.getResponseHeaders().set("Content-Type",
+							"application/json");
+				}
+				exchange.sendResponseHeaders(200, answer.length);
+				exchange.getResponseBody().write(answer);
+				exchange.close();
+			}
+		});
+		executor = Executors.newFixedThreadPool(4);
+		backend.setExecutor(executor);
+		backend.start();
+		return backend.getAddress().getPort();
+	}
+
+	private static class ForwardBenchmark extends Benchmark {
+
+		private static final OutputStream NULL_OUTPUT = new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		};
+
+		private final RelayWireFormat format;
+		private final Size size;
+		private byte[] events;
+		private PooledRelayTransport transport;
+		private BackendRouter router;
+
+		ForwardBenchmark(RelayWireFormat format, Size size) {
+			super("relay.forward." + format + "." + size);
+			this.format = format;
+			this.size = size;
+		}
+
+		@Override
+		public void setUp() throws Exception {
+			events = Fixtures.eventsJson(size).getBytes("UTF-8");
+			String base = "http://127.0.0.1:" + startBackend() + "/";
+			transport = new PooledRelayTransport();
+			router = new BackendRouter(PORT + " = " + format + ":" + base
+					+ PORT + "/wave", base, "/wave",
+					LoadBalancingPolicy.LEAST_OUTSTANDING, RelayWireFormat.FORM,
+					BackendRouter.DEFAULT_EJECT_AFTER_FAILURES,
+					BackendRouter.DEFAULT_EJECT_MILLIS);
+		}
+
+		@Override
+		public Object run() throws Exception {
+			RelayBuffer buffer = RelayBuffer.forCurrentThread();
+			buffer.readFrom(new ByteArrayInputStream(events));
+			RoutingKey key = RoutingKeyExtractor.extract(buffer.getBytes(), 0,
+					buffer.length());
+			BackendEndpoint endpoint = router.route(key);
+			BackendCall call = new BackendCall(transport, router, endpoint,
+					buffer, System.currentTimeMillis() + 10000);
+			call.run();
+			boolean success = false;
+			try {
+				InputStream answer = RelayWireFormat.readResponse(call
+						.getConnection());
+				long length = RelayWireFormat.copyResponse(
+						call.getConnection(), answer, buffer, NULL_OUTPUT);
+				success = true;
+				return Long.valueOf(length);
+			} finally {
+				call.finish(success);
+			}
+		}
+
+		@Override
+		public void tearDown() {
+			transport.shutdown();
+		}
+	}
+}
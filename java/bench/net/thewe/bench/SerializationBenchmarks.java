@@ -0,0 +1,139 @@
+package net.thewe.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+
+import com.google.wave.api.impl.EventMessageBundle;
+import com.google.wave.api.impl.OperationMessageBundle;
+import com.google.wave.api.impl.OperationStreamWriter;
+import com.google.wave.api.impl.WaveBinaryCodec;
+import com.google.wave.api.impl.WaveJsonCodec;
+import com.google.wave.api.impl.WaveSerializers;
+
+import net.thewe.bench.Fixtures.Size;
+
+/**
+ * Event bundle unmarshalling and operation bundle marshalling, through the
+ * reflective serializers and through the streaming and binary codecs.
+ */
+public class SerializationBenchmarks {
+
+	private SerializationBenchmarks() {
+	}
+
+	public static List<Benchmark> create() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (final Size size : Size.values()) {
+			benchmarks.add(new EventsBenchmark("events.read.reflective", size) {
+				@Override
+				public Object run() throws Exception {
+					return WaveSerializers.unmarshall(EventMessageBundle.class,
+							new JSONObject(json));
+				}
+			});
+			benchmarks.add(new EventsBenchmark("events.read.codec", size) {
+				@Override
+				public Object run() throws Exception {
+					return WaveJsonCodec.readEventMessageBundle(new StringReader(
+							json));
+				}
+			});
+			benchmarks.add(new EventsBenchmark("events.read.lazy", size) {
+				@Override
+				public Object run() throws Exception {
+					// A robot typically only looks at the blip of the event.
+					char[] chars = json.toCharArray();
+					EventMessageBundle bundle = WaveJsonCodec
+							.readEventMessageBundle(chars, 0, chars.length, true);
+					return bundle.getBlipData().get(Fixtures.ROOT_BLIP_ID);
+				}
+			});
+			benchmarks.add(new EventsBenchmark("events.read.binary", size) {
+				@Override
+				public Object run() throws Exception {
+					return WaveBinaryCodec
+							.readEventMessageBundle(new ByteArrayInputStream(
+									binary));
+				}
+			});
+
+			benchmarks.add(new OperationsBenchmark("operations.write.reflective",
+					size) {
+				@Override
+				public Object run() throws Exception {
+					return WaveSerializers.toJSON(operations);
+				}
+			});
+			benchmarks.add(new OperationsBenchmark("operations.write.codec",
+					size) {
+				@Override
+				public Object run() throws Exception {
+					chars.reset();
+					WaveJsonCodec.writeOperationMessageBundle(operations, chars);
+					return chars;
+				}
+			});
+			benchmarks.add(new OperationsBenchmark("operations.write.stream",
+					size) {
+				@Override
+				public Object run() throws Exception {
+					chars.reset();
+					new OperationStreamWriter(chars, 8192).write(operations);
+					return chars;
+				}
+			});
+			benchmarks.add(new OperationsBenchmark("operations.write.binary",
+					size) {
+				@Override
+				public Object run() throws Exception {
+					bytes.reset();
+					WaveBinaryCodec.writeOperationMessageBundle(operations, bytes);
+					return bytes;
+				}
+			});
+		}
+		return benchmarks;
+	}
+
+	private abstract static class EventsBenchmark extends Benchmark {
+
+		private final Size size;
+		protected String json;
+		protected byte[] binary;
+
+		EventsBenchmark(String name, Size size) {
+			super(name + "." + size);
+			this.size = size;
+		}
+
+		@Override
+		public void setUp() throws Exception {
+			json = Fixtures.eventsJson(size);
+			binary = Fixtures.eventsBinary(size);
+		}
+	}
+
+	private abstract static class OperationsBenchmark extends Benchmark {
+
+		private final Size size;
+		protected OperationMessageBundle operations;
+		protected final CharArrayWriter chars = new CharArrayWriter();
+		protected final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		OperationsBenchmark(String name, Size size) {
+			super(name + "." + size);
+			this.size = size;
+		}
+
+		@Override
+		public void setUp() {
+			operations = Fixtures.operations(size);
+		}
+	}
+}
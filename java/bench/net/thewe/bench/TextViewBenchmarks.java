@@ -0,0 +1,83 @@
+package net.thewe.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.wave.api.Range;
+import com.google.wave.api.TextView;
+import com.google.wave.api.impl.BlipData;
+import com.google.wave.api.impl.EventMessageBundle;
+import com.google.wave.api.impl.RobotMessageBundleImpl;
+import com.google.wave.api.impl.TextViewImpl;
+
+import net.thewe.bench.Fixtures.Size;
+
+/**
+ * Edit sequences on a {@link TextViewImpl}, on blips of the content lengths
+ * of {@link Size}. Every operation starts from a fresh blip, whose creation
+ * is part of the measured time.
+ */
+public class TextViewBenchmarks {
+
+	private static final int EDITS = 50;
+
+	private TextViewBenchmarks() {
+	}
+
+	public static List<Benchmark> create() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (final Size size : Size.values()) {
+			benchmarks.add(new Benchmark("textview.typing." + size) {
+				@Override
+				public Object run() {
+					TextView view = newView(size);
+					// Characters typed one by one in the middle of the blip.
+					int position = view.getText().length() / 2;
+					for (int i = 0; i < EDITS; i++) {
+						view.insert(position++, "x");
+					}
+					return view;
+				}
+			});
+			benchmarks.add(new Benchmark("textview.typing.batch." + size) {
+				@Override
+				public Object run() {
+					// The same, as one batch, which sends a single insert.
+					TextView view = newView(size);
+					int position = view.getText().length() / 2;
+					view.beginBatch();
+					for (int i = 0; i < EDITS; i++) {
+						view.insert(position++, "x");
+					}
+					view.commitBatch();
+					return view;
+				}
+			});
+			benchmarks.add(new Benchmark("textview.edit." + size) {
+				@Override
+				public Object run() {
+					TextView view = newView(size);
+					int length = view.getText().length();
+					for (int i = 0; i < EDITS / 5; i++) {
+						int start = (i * 37) % (length / 2);
+						view.insert(start, "inserted ");
+						view.delete(new Range(start, start + 4));
+						view.replace(new Range(start, start + 3), "new");
+						view.setAnnotation(new Range(start, start + 10),
+								"style/fontStyle", "italic");
+						view.getAnnotations(new Range(start, start + 20));
+					}
+					return view;
+				}
+			});
+		}
+		return benchmarks;
+	}
+
+	private static TextView newView(Size size) {
+		BlipData blip = Fixtures.blip(0, size.getContentLength());
+		RobotMessageBundleImpl bundle = new RobotMessageBundleImpl(
+				new EventMessageBundle(), "bench@thewe.net");
+		return new TextViewImpl(blip, bundle);
+	}
+}
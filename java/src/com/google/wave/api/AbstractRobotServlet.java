@@ -15,16 +15,23 @@
 
 package com.google.wave.api;
 
-import java.io.BufferedReader;
+import java.io.CharArrayWriter;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.net.URL;
-import java.net.URLConnection;
-import java.net.URLEncoder;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -39,17 +46,32 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
-import com.google.wave.api.impl.ElementSerializer;
-import com.google.wave.api.impl.EventDataSerializer;
-import com.google.wave.api.impl.EventMessageBundle;
-import com.google.wave.api.impl.EventMessageBundleSerializer;
+import com.google.wave.api.impl.MalformedJsonException;
 import com.google.wave.api.impl.OperationMessageBundle;
-import com.google.wave.api.impl.OperationSerializer;
+import com.google.wave.api.impl.OperationStreamWriter;
 import com.google.wave.api.impl.RobotMessageBundleImpl;
-import com.metaparadigm.jsonrpc.JSONSerializer;
-import com.metaparadigm.jsonrpc.MarshallException;
-import com.metaparadigm.jsonrpc.SerializerState;
-import com.metaparadigm.jsonrpc.UnmarshallException;
+import com.google.wave.api.impl.WaveJsonCodec;
+
+import net.thewe.relay.BackendCall;
+import net.thewe.relay.BackendEndpoint;
+import net.thewe.relay.BackendGroup;
+import net.thewe.relay.BackendRouter;
+import net.thewe.relay.BundleDigest;
+import net.thewe.relay.CapturingOutputStream;
+import net.thewe.relay.DeadlinePolicy;
+import net.thewe.relay.InFlightLimiter;
+import net.thewe.relay.LoadBalancingPolicy;
+import net.thewe.relay.PayloadLogger;
+import net.thewe.relay.PooledRelayTransport;
+import net.thewe.relay.RelayBuffer;
+import net.thewe.relay.RelayMetrics;
+import net.thewe.relay.RelayPoolStats;
+import net.thewe.relay.RelayTransport;
+import net.thewe.relay.RelayWireFormat;
+import net.thewe.relay.RequestHedger;
+import net.thewe.relay.ResponseCache;
+import net.thewe.relay.RoutingKey;
+import net.thewe.relay.RoutingKeyExtractor;
 
 /**
  * An abstract implementation of a Robot Servlet that handles deserialization of
@@ -63,6 +85,53 @@ public abstract class AbstractRobotServlet extends HttpServlet implements
 	private static final String CAPABILITIES_XML_VERSION_TAG_NAME = "w:version";
 	private static final String WAVE_CAPABILITIES_XML_FILE_PATH = "_wave/capabilities.xml";
 
+	private static final String STATS_PATH = "/_wave/robot/stats";
+
+	private static final String RELAY_URL_PREFIX = "http://jem.thewe.net/";
+	private static final String RELAY_URL_SUFFIX = "/wave";
+
+	/**
+	 * Servlet init parameters used to configure the relay transport.
+	 */
+	private static final String PARAM_RELAY_MAX_CONNECTIONS = "relay.maxConnections";
+	private static final String PARAM_RELAY_CONNECT_TIMEOUT = "relay.connectTimeout";
+	private static final String PARAM_RELAY_READ_TIMEOUT = "relay.readTimeout";
+	private static final String PARAM_RELAY_ACQUIRE_TIMEOUT = "relay.acquireTimeout";
+	private static final String PARAM_RELAY_MAX_IN_FLIGHT = "relay.maxInFlightPerPort";
+	private static final String PARAM_RELAY_BACKENDS = "relay.backends";
+	private static final String PARAM_RELAY_BALANCER = "relay.balancer";
+	private static final String PARAM_RELAY_EJECT_AFTER_FAILURES = "relay.ejectAfterFailures";
+	private static final String PARAM_RELAY_EJECT_MILLIS = "relay.ejectMillis";
+	private static final String PARAM_RELAY_WIRE_FORMAT = "relay.wireFormat";
+	private static final String PARAM_RELAY_CACHE_MAX_ENTRIES = "relay.cache.maxEntries";
+	private static final String PARAM_RELAY_CACHE_MAX_BYTES = "relay.cache.maxBytes";
+	private static final String PARAM_RELAY_CACHE_TTL = "relay.cache.ttl";
+	private static final String PARAM_RELAY_METRICS = "relay.metrics";
+	private static final String PARAM_RELAY_DEADLINE = "relay.deadline";
+	private static final String PARAM_RELAY_DEADLINES = "relay.deadlines";
+	private static final String PARAM_RELAY_HEDGE_ACTIONS = "relay.hedge.actions";
+	private static final String PARAM_RELAY_HEDGE_MIN_DELAY = "relay.hedge.minDelay";
+	private static final String PARAM_RELAY_HEDGE_MAX_THREADS = "relay.hedge.maxThreads";
+	private static final String PARAM_RELAY_LOG_SAMPLE_RATE = "relay.log.sampleRate";
+	private static final String PARAM_RELAY_LOG_WAVES = "relay.log.waves";
+	private static final String PARAM_RELAY_LOG_MAX_CHARS = "relay.log.maxChars";
+	private static final String PARAM_RELAY_LOG_BUFFER_SIZE = "relay.log.bufferSize";
+
+	/**
+	 * Servlet init parameters used to configure how operations are written
+	 * back to Wave.
+	 */
+	private static final String PARAM_OPERATIONS_FLUSH_THRESHOLD = "operations.flushThreshold";
+	private static final String PARAM_OPERATIONS_GZIP = "operations.gzip";
+	private static final String PARAM_OPERATIONS_COMPACT = "operations.compact";
+
+	private static final int DEFAULT_MAX_IN_FLIGHT = 50;
+	private static final int DEFAULT_CACHE_MAX_BYTES = 4 * 1024 * 1024;
+	private static final int DEFAULT_CACHE_TTL = 5000;
+	private static final int DEFAULT_LOG_MAX_CHARS = 2000;
+	private static final int DEFAULT_LOG_BUFFER_SIZE = 256;
+	private static final int DEFAULT_OPERATIONS_FLUSH_THRESHOLD = 8192;
+
 	private static final Logger log = Logger
 			.getLogger(AbstractRobotServlet.class.getName());
 
@@ -71,12 +140,297 @@ public abstract class AbstractRobotServlet extends HttpServlet implements
 		parseVersionIdentifier();
 	}
 
-	private JSONSerializer serializer;
 	private HttpServletRequest req;
+	private RelayTransport relayTransport;
+	private InFlightLimiter inFlightLimiter;
+	private BackendRouter backendRouter;
+	private ResponseCache responseCache;
+	private RelayMetrics relayMetrics;
+	private PayloadLogger payloadLogger;
+	private DeadlinePolicy deadlinePolicy;
+	private RequestHedger requestHedger;
 
+	@Override
+	public void init() throws ServletException {
+		super.init();
+		relayTransport = createRelayTransport();
+		inFlightLimiter = new InFlightLimiter(getIntParameter(
+				PARAM_RELAY_MAX_IN_FLIGHT, DEFAULT_MAX_IN_FLIGHT));
+		try {
+			backendRouter = createBackendRouter();
+		} catch (IllegalArgumentException e) {
+			throw new ServletException("Invalid relay backend configuration", e);
+		}
+		try {
+			deadlinePolicy = new DeadlinePolicy(getStringParameter(
+					PARAM_RELAY_DEADLINES, null), getIntParameter(
+					PARAM_RELAY_DEADLINE,
+					(int) DeadlinePolicy.DEFAULT_DEADLINE_MILLIS));
+		} catch (IllegalArgumentException e) {
+			throw new ServletException("Invalid relay deadline configuration", e);
+		}
+		requestHedger = createRequestHedger();
+		responseCache = createResponseCache();
+		relayMetrics = new RelayMetrics(Boolean.valueOf(getStringParameter(
+				PARAM_RELAY_METRICS, "false").trim()));
+		payloadLogger = createPayloadLogger();
+	}
+
+	@Override
+	public void destroy() {
+		if (relayTransport != null) {
+			relayTransport.shutdown();
+		}
+		if (payloadLogger != null) {
+			payloadLogger.shutdown();
+		}
+		if (requestHedger != null) {
+			requestHedger.shutdown();
+		}
+		super.destroy();
+	}
+
+	/**
+	 * Creates the transport used to forward events to the backend. Subclasses
+	 * may override this to plug in a different transport.
+	 * 
+	 * @return the relay transport.
+	 */
+	protected RelayTransport createRelayTransport() {
+		return new PooledRelayTransport(
+				getIntParameter(PARAM_RELAY_MAX_CONNECTIONS,
+						PooledRelayTransport.DEFAULT_MAX_CONNECTIONS),
+				getIntParameter(PARAM_RELAY_CONNECT_TIMEOUT,
+						PooledRelayTransport.DEFAULT_CONNECT_TIMEOUT),
+				getIntParameter(PARAM_RELAY_READ_TIMEOUT,
+						PooledRelayTransport.DEFAULT_READ_TIMEOUT),
+				getIntParameter(PARAM_RELAY_ACQUIRE_TIMEOUT,
+						PooledRelayTransport.DEFAULT_ACQUIRE_TIMEOUT));
+	}
+
+	/**
+	 * Returns the transport used to forward events to the backend.
+	 */
+	protected RelayTransport getRelayTransport() {
+		if (relayTransport == null) {
+			relayTransport = createRelayTransport();
+		}
+		return relayTransport;
+	}
+
+	/**
+	 * Creates the router that maps routing keys to backend endpoints.
+	 * 
+	 * @throws IllegalArgumentException if the configuration is malformed.
+	 */
+	protected BackendRouter createBackendRouter() {
+		String balancer = getStringParameter(PARAM_RELAY_BALANCER,
+				LoadBalancingPolicy.LEAST_OUTSTANDING.toString());
+		String wireFormat = getStringParameter(PARAM_RELAY_WIRE_FORMAT,
+				RelayWireFormat.FORM.toString());
+		return new BackendRouter(getStringParameter(PARAM_RELAY_BACKENDS, null),
+				RELAY_URL_PREFIX, RELAY_URL_SUFFIX, LoadBalancingPolicy
+						.fromText(balancer.trim()), RelayWireFormat
+						.fromText(wireFormat.trim()), getIntParameter(
+						PARAM_RELAY_EJECT_AFTER_FAILURES,
+						BackendRouter.DEFAULT_EJECT_AFTER_FAILURES),
+				getIntParameter(PARAM_RELAY_EJECT_MILLIS,
+						(int) BackendRouter.DEFAULT_EJECT_MILLIS));
+	}
+
+	/**
+	 * Returns the router that maps routing keys to backend endpoints.
+	 */
+	protected BackendRouter getBackendRouter() {
+		if (backendRouter == null) {
+			backendRouter = createBackendRouter();
+		}
+		return backendRouter;
+	}
+
+	/**
+	 * Returns the per-action deadlines of backend requests.
+	 */
+	protected DeadlinePolicy getDeadlinePolicy() {
+		if (deadlinePolicy == null) {
+			deadlinePolicy = new DeadlinePolicy(null,
+					DeadlinePolicy.DEFAULT_DEADLINE_MILLIS);
+		}
+		return deadlinePolicy;
+	}
+
+	/**
+	 * Creates the hedger of slow backend requests. Only the idempotent actions
+	 * listed in {@code relay.hedge.actions} are hedged; none are by default.
+	 */
+	protected RequestHedger createRequestHedger() {
+		Set<String> actions = new HashSet<String>();
+		for (String action : getStringParameter(PARAM_RELAY_HEDGE_ACTIONS, "")
+				.split(",")) {
+			if (action.trim().length() > 0) {
+				actions.add(action.trim());
+			}
+		}
+		return new RequestHedger(actions, getIntParameter(
+				PARAM_RELAY_HEDGE_MIN_DELAY,
+				(int) RequestHedger.DEFAULT_MIN_DELAY_MILLIS), getIntParameter(
+				PARAM_RELAY_HEDGE_MAX_THREADS,
+				RequestHedger.DEFAULT_MAX_THREADS));
+	}
+
+	/**
+	 * Returns the hedger of slow backend requests.
+	 */
+	protected RequestHedger getRequestHedger() {
+		if (requestHedger == null) {
+			requestHedger = new RequestHedger(Collections.<String> emptySet(),
+					RequestHedger.DEFAULT_MIN_DELAY_MILLIS, 1);
+		}
+		return requestHedger;
+	}
+
+	/**
+	 * Creates the cache of backend answers for duplicate event bundles.
+	 * 
+	 * @return the cache, or {@code null} if caching is disabled (the default).
+	 */
+	protected ResponseCache createResponseCache() {
+		int maxEntries = getIntParameter(PARAM_RELAY_CACHE_MAX_ENTRIES, 0);
+		if (maxEntries <= 0) {
+			return null;
+		}
+		return new ResponseCache(maxEntries, getIntParameter(
+				PARAM_RELAY_CACHE_MAX_BYTES, DEFAULT_CACHE_MAX_BYTES),
+				getIntParameter(PARAM_RELAY_CACHE_TTL, DEFAULT_CACHE_TTL));
+	}
+
+	/**
+	 * Returns the cache of backend answers, or {@code null} if caching is
+	 * disabled.
+	 */
+	protected ResponseCache getResponseCache() {
+		return responseCache;
+	}
+
+	/**
+	 * Creates the logger of sampled event and answer payloads. Nothing is
+	 * logged unless {@code relay.log.sampleRate} or {@code relay.log.waves} is
+	 * set.
+	 */
+	protected PayloadLogger createPayloadLogger() {
+		Set<String> waves = new HashSet<String>();
+		for (String waveId : getStringParameter(PARAM_RELAY_LOG_WAVES, "")
+				.split(",")) {
+			if (waveId.trim().length() > 0) {
+				waves.add(waveId.trim());
+			}
+		}
+		return new PayloadLogger(log, getDoubleParameter(
+				PARAM_RELAY_LOG_SAMPLE_RATE, 0), waves, getIntParameter(
+				PARAM_RELAY_LOG_MAX_CHARS, DEFAULT_LOG_MAX_CHARS),
+				getIntParameter(PARAM_RELAY_LOG_BUFFER_SIZE,
+						DEFAULT_LOG_BUFFER_SIZE));
+	}
+
+	/**
+	 * Returns the logger of sampled payloads.
+	 */
+	protected PayloadLogger getPayloadLogger() {
+		if (payloadLogger == null) {
+			payloadLogger = new PayloadLogger(log, 0,
+					Collections.<String> emptySet(), DEFAULT_LOG_MAX_CHARS, 1);
+		}
+		return payloadLogger;
+	}
+
+	/**
+	 * Returns the relay metrics registry.
+	 */
+	protected RelayMetrics getRelayMetrics() {
+		if (relayMetrics == null) {
+			relayMetrics = new RelayMetrics(false);
+		}
+		return relayMetrics;
+	}
+
+	/**
+	 * Returns the limiter that caps the relayed requests in flight per backend
+	 * port.
+	 */
+	protected InFlightLimiter getInFlightLimiter() {
+		if (inFlightLimiter == null) {
+			inFlightLimiter = new InFlightLimiter(DEFAULT_MAX_IN_FLIGHT);
+		}
+		return inFlightLimiter;
+	}
+
+	/**
+	 * Reads a servlet init parameter.
+	 * 
+	 * @param name the name of the init parameter.
+	 * @param defaultValue the value to use if the parameter is missing.
+	 * @return the parameter value.
+	 */
+	protected String getStringParameter(String name, String defaultValue) {
+		String value = getServletConfig() == null ? null
+				: getInitParameter(name);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * Reads an integer servlet init parameter.
+	 * 
+	 * @param name the name of the init parameter.
+	 * @param defaultValue the value to use if the parameter is missing or
+	 *            malformed.
+	 * @return the parameter value.
+	 */
+	protected int getIntParameter(String name, int defaultValue) {
+		String value = getStringParameter(name, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			log.warning("Invalid value for " + name + ": " + value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Reads a floating point servlet init parameter.
+	 * 
+	 * @param name the name of the init parameter.
+	 * @param defaultValue the value to use if the parameter is missing or
+	 *            malformed.
+	 * @return the parameter value.
+	 */
+	protected double getDoubleParameter(String name, double defaultValue) {
+		String value = getStringParameter(name, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			log.warning("Invalid value for " + name + ": " + value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Relays the events posted by Wave to the backend. POST requests to the
+	 * stats path, which is mapped to this servlet too, are refused.
+	 */
 	@Override
 	protected void doPost(HttpServletRequest req, HttpServletResponse resp)
 			throws IOException {
+		if (STATS_PATH.equals(req.getServletPath())) {
+			resp.setHeader("Allow", "GET");
+			resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+			return;
+		}
 		this.req = req;
 		// RobotMessageBundleImpl events = deserializeEvents(req);
 		//    
@@ -97,66 +451,309 @@ public abstract class AbstractRobotServlet extends HttpServlet implements
 		// events.getOperations().setVersion(getVersion());
 		// serializeOperations(events.getOperations(), resp);
 
-		String events = getRequestBody(req);
-		log("Events: " + events);
-		
-		JSONSerializer serializer = getJSONSerializer();
-		EventMessageBundle eventsBundle = null;
-		String proxyingFor = "";
-		
+		RelayMetrics metrics = getRelayMetrics();
+		metrics.beginRequest();
 		try {
-			JSONObject jsonObject = new JSONObject(events);
-			proxyingFor = jsonObject.getString("proxyingFor");
+			relayEvents(req, resp, metrics);
+		} finally {
+			metrics.endRequest();
+			RelayBuffer.releaseCurrentThread();
+		}
+	}
+
+	/**
+	 * Serves the relay statistics as JSON on {@code /_wave/robot/stats} when
+	 * metrics are enabled. GET requests to any other path are left to
+	 * {@link HttpServlet}, which refuses them.
+	 */
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+		if (!STATS_PATH.equals(req.getServletPath())) {
+			super.doGet(req, resp);
+			return;
+		}
+		RelayMetrics metrics = getRelayMetrics();
+		if (!metrics.isEnabled()) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		try {
+			JSONObject stats = metrics.toJSON();
+
+			JSONObject inFlight = new JSONObject();
+			JSONObject pools = new JSONObject();
+			JSONObject backends = new JSONObject();
+			for (Map.Entry<String, BackendGroup> entry : getBackendRouter()
+					.getGroups().entrySet()) {
+				inFlight.put(entry.getKey(), getInFlightLimiter().getInFlight(
+						entry.getKey()));
+				for (BackendEndpoint endpoint : entry.getValue().getEndpoints()) {
+					JSONObject backend = new JSONObject();
+					backend.put("outstanding", endpoint.getOutstanding());
+					backend.put("failures", endpoint.getFailureCount());
+					backend.put("available", endpoint.isAvailable(System
+							.currentTimeMillis()));
+					backend.put("wireFormat", endpoint.getWireFormat()
+							.toString());
+					backends.put(endpoint.toString(), backend);
+
+					RelayPoolStats pool = getRelayTransport().getStats(
+							endpoint.getUrl());
+					if (pool != null) {
+						JSONObject poolJson = new JSONObject();
+						poolJson.put("inUse", pool.getInUse());
+						poolJson.put("available", pool.getAvailable());
+						poolJson.put("borrows", pool.getBorrowCount());
+						poolJson.put("timeouts", pool.getTimeoutCount());
+						poolJson.put("averageWaitMillis", pool
+								.getAverageWaitMillis());
+						pools.put(endpoint.toString(), poolJson);
+					}
+				}
+			}
+			stats.put("inFlightByPort", inFlight);
+			stats.put("rejected", getInFlightLimiter().getRejectedCount());
+			stats.put("backends", backends);
+			stats.put("pools", pools);
+
+			JSONObject hedging = new JSONObject();
+			hedging.put("hedged", getRequestHedger().getHedgeCount());
+			hedging.put("hedgeWins", getRequestHedger().getHedgeWinCount());
+			stats.put("hedging", hedging);
+
+			ResponseCache cache = getResponseCache();
+			if (cache != null) {
+				JSONObject cacheJson = new JSONObject();
+				cacheJson.put("entries", cache.size());
+				cacheJson.put("bytes", cache.getBytes());
+				cacheJson.put("hits", cache.getHitCount());
+				cacheJson.put("misses", cache.getMissCount());
+				cacheJson.put("evictions", cache.getEvictionCount());
+				stats.put("cache", cacheJson);
+			}
+
+			resp.setContentType("application/json");
+			resp.setCharacterEncoding("utf-8");
+			resp.getWriter().write(stats.toString());
 		} catch (JSONException jsonx) {
 			jsonx.printStackTrace();
+			resp.setStatus(500);
+		}
+	}
+
+	private void relayEvents(HttpServletRequest req, HttpServletResponse resp,
+			RelayMetrics metrics) throws IOException {
+		long start = metrics.start();
+		RelayBuffer events = RelayBuffer.forCurrentThread();
+		events.readFrom(req.getInputStream());
+		metrics.recordReadTime(start);
+		metrics.recordRequestSize(events.length());
+
+		start = metrics.start();
+		RoutingKey routingKey = getRoutingKey(events);
+		metrics.recordRoutingTime(start);
+		if (routingKey == null) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+					"Invalid proxyingFor port");
+			return;
+		}
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("Events: " + events.length() + " bytes, routing: "
+					+ routingKey);
+		}
+
+		PayloadLogger payloadLogger = getPayloadLogger();
+		boolean sampled = payloadLogger.isSampled(routingKey);
+		if (sampled) {
+			payloadLogger.log("Events", routingKey, events.getBytes(), 0,
+					events.length());
 		}
-		
-		log(proxyingFor);
-		
-		String port = "";
 		try {
-			port = new JSONObject(proxyingFor).getString("port");
-		} catch (JSONException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-
-		
-		String data = "events=" + URLEncoder.encode(events, "UTF-8");
-		// Send the request
-		
-		log("port = " + port);
-		
-		URL url = new URL("http://jem.thewe.net/" + port + "/wave");
-		URLConnection conn = url.openConnection();
-		log ("no timeout");
-		//conn.setReadTimeout(10000);
-		//conn.setConnectTimeout(10000);
-		conn.setDoOutput(true);
-		OutputStreamWriter writer = new OutputStreamWriter(conn
-				.getOutputStream());
-
-		// write parameters
-		log ("Sending: " + data);
-		writer.write(data);
-		
-		writer.flush();
-
-		// Get the response
-		StringBuffer answer = new StringBuffer();
-		BufferedReader reader = new BufferedReader(new InputStreamReader(conn
-				.getInputStream()));
-		String line;
-		while ((line = reader.readLine()) != null) {
-			answer.append(line);
-		}
-		
-		writer.close();
-		reader.close();
-		
-		log ("Answer: " + answer.toString());
-		
-		serializeOperations(answer.toString(), resp);
+			relayEvents(events, routingKey, resp, metrics, sampled);
+		} finally {
+			if (sampled) {
+				payloadLogger.flush();
+			}
+		}
+	}
+
+	private void relayEvents(RelayBuffer events, RoutingKey routingKey,
+			HttpServletResponse resp, RelayMetrics metrics, boolean sampled)
+			throws IOException {
+		String port = routingKey.getPort();
+
+		// Answer duplicate deliveries of a bundle from the cache.
+		ResponseCache cache = getResponseCache();
+		String cacheKey = null;
+		if (cache != null) {
+			cacheKey = BundleDigest.digest(events.getBytes(), 0, events
+					.length(), routingKey.getAction());
+			byte[] cached = cacheKey == null ? null : cache.get(cacheKey);
+			if (cached != null) {
+				if (log.isLoggable(Level.FINE)) {
+					log.fine("Answer: " + cached.length + " bytes from cache");
+				}
+				if (sampled) {
+					getPayloadLogger().log("Answer", routingKey, cached, 0,
+							cached.length);
+				}
+				writeAnswer(resp, cached);
+				metrics.recordResponseSize(cached.length);
+				return;
+			}
+		}
+
+		// Reject right away rather than queue behind a backend that is
+		// already saturated.
+		InFlightLimiter limiter = getInFlightLimiter();
+		if (!limiter.tryAcquire(port)) {
+			log.warning("Too many requests in flight for port " + port);
+			metrics.recordError(port);
+			resp.setHeader("Retry-After", "1");
+			resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+		try {
+			OutputStream out = resp.getOutputStream();
+			CapturingOutputStream logged = null;
+			if (sampled) {
+				logged = new CapturingOutputStream(out, getPayloadLogger()
+						.getMaxBytes());
+				out = logged;
+			}
+			if (cacheKey == null) {
+				relay(events, routingKey, resp, out, metrics);
+			} else {
+				CapturingOutputStream capture = cache.capture(out);
+				boolean answered = relay(events, routingKey, resp, capture,
+						metrics);
+				if (answered && !capture.isTruncated()) {
+					cache.put(cacheKey, capture.toByteArray());
+				}
+			}
+			if (logged != null) {
+				byte[] answer = logged.toByteArray();
+				getPayloadLogger().log("Answer", routingKey, answer, 0,
+						answer.length);
+			}
+		} catch (IOException iox) {
+			metrics.recordError(port);
+			throw iox;
+		} finally {
+			limiter.release(port);
+		}
+	}
+
+	private void writeAnswer(HttpServletResponse resp, byte[] answer)
+			throws IOException {
+		resp.setContentType("application/json");
+		resp.setCharacterEncoding("utf-8");
+		resp.setStatus(200);
+		resp.getOutputStream().write(answer);
+	}
+
+	/**
+	 * Sends the events to the backend chosen for {@code routingKey} and
+	 * streams the answer straight back to Wave through {@code out}. The backend
+	 * must answer within the deadline of the action; slow requests for
+	 * idempotent actions are hedged to a second endpoint of the group.
+	 * 
+	 * @return false if the events were rejected with 400 Bad Request because
+	 *         they could not be converted to the wire format of the backend.
+	 */
+	private boolean relay(RelayBuffer events, RoutingKey routingKey,
+			HttpServletResponse resp, OutputStream out, RelayMetrics metrics)
+			throws IOException {
+		String action = routingKey.getAction();
+		long begin = System.currentTimeMillis();
+		long deadline = begin
+				+ getDeadlinePolicy().getDeadlineMillis(action);
+		BackendRouter router = getBackendRouter();
+		BackendGroup group = router.getGroup(routingKey);
+		BackendEndpoint endpoint = group.choose(routingKey);
+
+		long start = metrics.start();
+		RequestHedger hedger = getRequestHedger();
+		long delay = hedger.isHedged(action) ? hedger.getDelayMillis(action)
+				: -1;
+		BackendEndpoint alternate = delay < 0 ? null : group
+				.chooseAlternate(endpoint);
+		BackendCall call;
+		try {
+			if (alternate == null) {
+				call = new BackendCall(getRelayTransport(), router, endpoint,
+						events, deadline);
+				call.run();
+			} else {
+				// The losing attempt may still be writing its request after
+				// this one ends, so the attempts send a copy of the events.
+				RelayBuffer payload = events.snapshot();
+				call = hedger.call(new BackendCall(getRelayTransport(), router,
+						endpoint, payload, deadline), new BackendCall(
+						getRelayTransport(), router, alternate, payload,
+						deadline), delay, deadline);
+			}
+		} catch (MalformedJsonException e) {
+			log.warning("Malformed events: " + e.getMessage());
+			metrics.recordError(routingKey.getPort());
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return false;
+		}
+
+		boolean success = false;
+		try {
+			InputStream answer = RelayWireFormat.readResponse(call
+					.getConnection());
+			metrics.recordBackendTime(start);
+			hedger.recordLatency(action, System.currentTimeMillis() - begin);
+			success = true;
+
+			start = metrics.start();
+			resp.setContentType("application/json");
+			resp.setCharacterEncoding("utf-8");
+			resp.setStatus(200);
+			long length = RelayWireFormat.copyResponse(call.getConnection(),
+					answer, events, out);
+			metrics.recordWriteTime(start);
+			metrics.recordResponseSize(length);
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Answer: " + length + " bytes from "
+						+ call.getEndpoint());
+			}
+		} finally {
+			call.finish(success);
+		}
+		return true;
+	}
+
+	/**
+	 * Extracts the routing key from the {@code proxyingFor} field of the
+	 * events document.
+	 * 
+	 * @param events the raw events document.
+	 * @return the routing key, whose port is empty if it could not be found,
+	 *         or {@code null} if the port is not a number from 1 to 65535.
+	 */
+	private RoutingKey getRoutingKey(RelayBuffer events) {
+		RoutingKey key = RoutingKeyExtractor.extract(events.getBytes(), 0,
+				events.length());
+		if (key == null) {
+			log.warning("No proxyingFor field in events");
+			return new RoutingKey("", null, null);
+		}
+		if (key.getPort() == null) {
+			return new RoutingKey("", key.getAction(), key.getWaveId());
+		}
+		String port = RoutingKey.canonicalPort(key.getPort());
+		if (port == null) {
+			log.warning("Invalid proxyingFor port in events");
+			return null;
+		}
+		if (!port.equals(key.getPort())) {
+			return new RoutingKey(port, key.getAction(), key.getWaveId());
+		}
+		return key;
 	}
 
 	protected String getRobotAddress() {
@@ -201,25 +798,56 @@ public abstract class AbstractRobotServlet extends HttpServlet implements
 		}
 	}
 
+	/**
+	 * Streams the operations back to Wave, gzip compressed if enabled and
+	 * accepted, and compacted only if {@code operations.compact} is true.
+	 * This is a hook kept for the robot path that doPost has commented out and
+	 * has no caller: the servlet streams the answer of the backend instead.
+	 */
 	private void serializeOperations(OperationMessageBundle operations,
 			HttpServletResponse resp) {
+		if (Boolean.valueOf(getStringParameter(PARAM_OPERATIONS_COMPACT, "false")
+				.trim())) {
+			operations.compact();
+		}
 		try {
-			String json = serializer.toJSON(operations);
-			log.info("Outgoing operations: " + json);
-
 			resp.setContentType("application/json");
 			resp.setCharacterEncoding("utf-8");
-			resp.getWriter().write(json);
 			resp.setStatus(200);
+			Writer writer;
+			GZIPOutputStream gzip = null;
+			if (acceptsGzip()) {
+				resp.setHeader("Content-Encoding", "gzip");
+				gzip = new GZIPOutputStream(resp.getOutputStream());
+				writer = new OutputStreamWriter(gzip, "utf-8");
+			} else {
+				writer = resp.getWriter();
+			}
+			new OperationStreamWriter(writer, getIntParameter(
+					PARAM_OPERATIONS_FLUSH_THRESHOLD,
+					DEFAULT_OPERATIONS_FLUSH_THRESHOLD)).write(operations);
+			if (gzip != null) {
+				gzip.finish();
+			}
 		} catch (IOException iox) {
 			iox.printStackTrace();
 			resp.setStatus(500);
-		} catch (MarshallException mx) {
-			mx.printStackTrace();
-			resp.setStatus(500);
 		}
 	}
 	
+	/**
+	 * Whether operations should be gzip compressed: only if it is enabled and
+	 * the client accepts it.
+	 */
+	private boolean acceptsGzip() {
+		if (!Boolean.valueOf(getStringParameter(PARAM_OPERATIONS_GZIP, "false")
+				.trim())) {
+			return false;
+		}
+		String accepted = req == null ? null : req.getHeader("Accept-Encoding");
+		return accepted != null && accepted.toLowerCase().contains("gzip");
+	}
+
 	public void serializeOperations(String json, HttpServletResponse resp) {
 	    try {
 	      log("Outgoing operations from compjure: " + json);
@@ -238,27 +866,27 @@ public abstract class AbstractRobotServlet extends HttpServlet implements
 	  }
 
 
+	/**
+	 * Reads the bundle of events Wave sent. Only the robot path that doPost
+	 * has commented out calls this; the servlet relays events unread.
+	 */
 	private RobotMessageBundleImpl deserializeEvents(HttpServletRequest req)
 			throws IOException {
-		String json = getRequestBody(req);
-		log("Incoming events: " + json);
-
-		JSONSerializer serializer = getJSONSerializer();
-		RobotMessageBundleImpl events = null;
-
-		try {
-			JSONObject jsonObject = new JSONObject(json);
-			events = new RobotMessageBundleImpl((EventMessageBundle) serializer
-					.unmarshall(new SerializerState(),
-							EventMessageBundle.class, jsonObject),
-					getRobotAddress());
-		} catch (JSONException jsonx) {
-			jsonx.printStackTrace();
-		} catch (UnmarshallException e) {
-			e.printStackTrace();
+		// Keep the whole document, so that blips are only decoded when the
+		// robot looks them up.
+		CharArrayWriter json = new CharArrayWriter();
+		Reader reader = req.getReader();
+		char[] buffer = new char[4096];
+		int n;
+		while ((n = reader.read(buffer)) != -1) {
+			json.write(buffer, 0, n);
 		}
+		char[] chars = json.toCharArray();
 
-		return events;
+		// A malformed bundle fails here, with the path of the first bad value,
+		// rather than as a half-built bundle in the robot.
+		return new RobotMessageBundleImpl(WaveJsonCodec.readEventMessageBundle(
+				chars, 0, chars.length, true), getRobotAddress());
 	}
 
 	/*
@@ -269,33 +897,4 @@ public abstract class AbstractRobotServlet extends HttpServlet implements
 	 */
 	@Override
 	public abstract void processEvents(RobotMessageBundle events);
-
-	private String getRequestBody(HttpServletRequest req) throws IOException {
-		StringBuilder json = new StringBuilder();
-		BufferedReader reader = req.getReader();
-		String line;
-		while ((line = reader.readLine()) != null) {
-			json.append(line);
-		}
-		return json.toString();
-	}
-
-	private JSONSerializer getJSONSerializer() {
-		if (serializer != null) {
-			return serializer;
-		}
-
-		serializer = new JSONSerializer();
-		try {
-			serializer.registerDefaultSerializers();
-			serializer.registerSerializer(new EventMessageBundleSerializer());
-			serializer.registerSerializer(new EventDataSerializer());
-			serializer.registerSerializer(new ElementSerializer());
-			serializer.registerSerializer(new OperationSerializer());
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-
-		return serializer;
-	}
 }
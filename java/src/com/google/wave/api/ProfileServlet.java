@@ -15,7 +15,7 @@
 
 package com.google.wave.api;
 
-import com.metaparadigm.jsonrpc.JSONSerializer;
+import com.google.wave.api.impl.WaveSerializers;
 
 import java.net.HttpURLConnection;
 
@@ -124,9 +124,7 @@ public class ProfileServlet extends HttpServlet {
 
     try { 
       // Serialize profile into JSON.
-      JSONSerializer serializer = new JSONSerializer();
-      serializer.registerDefaultSerializers();
-      String profileAsJson = serializer.toJSON(profile);
+      String profileAsJson = WaveSerializers.toJSON(profile);
       
       // Write the result into the output stream.
       resp.setContentType(JSON_MIME_TYPE);
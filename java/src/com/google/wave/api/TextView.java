@@ -443,4 +443,21 @@ public interface TextView {
    * @param creationTime The creation time of the content, since epoch.
    */
   public void setCreationTime(long creationTime);
+
+  /**
+   * Starts a batch of edits. The edits still apply to the local document
+   * right away, but the operations they generate are only compacted when
+   * the batch is committed: consecutive appends, inserts into the text just
+   * inserted, touching deletes, and annotations of the same name and value
+   * on touching ranges become one operation each. Batches nest; only
+   * committing the outermost one compacts.
+   */
+  public void beginBatch();
+
+  /**
+   * Commits the batch started by the matching {@link #beginBatch()}.
+   * 
+   * @throws IllegalStateException if no batch was started.
+   */
+  public void commitBatch();
 }
@@ -0,0 +1,557 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.Annotation;
+import com.google.wave.api.Range;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Indexes the annotations of a blip by range and by name, so that a
+ * {@link TextViewImpl} can query them and keep them in step with edits
+ * without going through every annotation.
+ *
+ * The ranged annotations are kept in a treap ordered by start, where every
+ * node knows the largest end in its subtree, so stabbing queries prune
+ * everything that ends too early. Shifting the annotations after an edit
+ * point is a lazy offset on the subtree that starts after it; only the
+ * annotations that span the point are touched one by one.
+ *
+ * While the index is in use, it owns the positions: the {@link Range}s of
+ * the annotations are only brought up to date when they are returned from a
+ * query and when {@link #writeTo} copies the index back into a list. The
+ * position of any one annotation is found by adding up the offsets pending
+ * above it. Removed annotations stay in the tree, skipped, until they
+ * outnumber the live ones.
+ *
+ * Instances are not thread-safe.
+ */
+final class AnnotationIndex {
+
+  private static final class Node {
+    final Annotation annotation;
+    int order;
+    int priority;
+    int start;
+    int end;
+    int maxEnd;
+    /** An offset still to be added to both subtrees. */
+    int delta;
+    boolean removed;
+    Node parent;
+    Node left;
+    Node right;
+
+    Node(Annotation annotation, int order) {
+      this.annotation = annotation;
+      this.order = order;
+      Range range = annotation.getRange();
+      if (range != null) {
+        start = range.getStart();
+        end = range.getEnd();
+        maxEnd = end;
+      }
+    }
+  }
+
+  private static final Comparator<Node> BY_ORDER = new Comparator<Node>() {
+    @Override
+    public int compare(Node a, Node b) {
+      return a.order - b.order;
+    }
+  };
+
+  private static final Comparator<Node> BY_START = new Comparator<Node>() {
+    @Override
+    public int compare(Node a, Node b) {
+      return a.start < b.start ? -1 : (a.start == b.start ? 0 : 1);
+    }
+  };
+
+  /**
+   * Every annotation, removed ones included, in the order of the list.
+   */
+  private List<Node> nodes;
+  private Map<String, List<Node>> byName;
+  private int removed;
+
+  /**
+   * The root of the treap of the annotations that have a range.
+   */
+  private Node root;
+
+  private int seed = 0x6a09e667;
+
+  /**
+   * The two halves of the last {@link #split}.
+   */
+  private Node splitLeft;
+  private Node splitRight;
+
+  AnnotationIndex(List<Annotation> annotations) {
+    nodes = new ArrayList<Node>(annotations.size());
+    for (Annotation annotation : annotations) {
+      nodes.add(new Node(annotation, nodes.size()));
+    }
+    index();
+  }
+
+  /**
+   * Adds an annotation after all the others.
+   */
+  public void add(Annotation annotation) {
+    Node node = new Node(annotation, nodes.size());
+    nodes.add(node);
+    indexName(node);
+    if (annotation.getRange() != null) {
+      node.priority = nextPriority();
+      split(root, node.start);
+      Node right = splitRight;
+      setRoot(merge(merge(splitLeft, node), right));
+    }
+  }
+
+  /**
+   * Expands the annotations that cover {@code point} and shifts the ones
+   * that start at or after it, for text of {@code length} characters
+   * inserted there.
+   */
+  public void insert(int point, int length) {
+    split(root, point);
+    Node after = splitRight;
+    shift(after, length);
+    expand(splitLeft, point, length);
+    setRoot(merge(splitLeft, after));
+  }
+
+  /**
+   * Shrinks the annotations that overlap the {@code length} characters
+   * deleted at {@code point}, removes the ones that fall inside them and
+   * shifts the ones that start after.
+   */
+  public void delete(int point, int length) {
+    int end = point + length;
+    split(root, end);
+    Node after = splitRight;
+    split(splitLeft, point);
+    Node before = splitLeft;
+    Node inside = splitRight;
+    shift(after, -length);
+    shrinkBefore(before, point, length);
+    shrinkInside(inside, point, length);
+    setRoot(merge(merge(before, inside), after));
+    compactIfSparse();
+  }
+
+  /**
+   * Returns the annotations whose range covers {@code range}, in list
+   * order, optionally only those named {@code name}.
+   */
+  public List<Annotation> getCovering(Range range, String name) {
+    List<Node> found = new ArrayList<Node>();
+    collectCovering(root, range.getStart(), range.getEnd(), name, found);
+    return toAnnotations(found);
+  }
+
+  /**
+   * Returns the annotations named {@code name}, in list order.
+   */
+  public List<Annotation> getNamed(String name) {
+    List<Node> named = byName.get(name);
+    if (named == null) {
+      return new ArrayList<Annotation>(0);
+    }
+    List<Node> found = new ArrayList<Node>(named.size());
+    for (Node node : named) {
+      if (!node.removed) {
+        found.add(node);
+      }
+    }
+    return toAnnotations(found);
+  }
+
+  public boolean hasName(String name) {
+    List<Node> named = byName.get(name);
+    if (named != null) {
+      for (Node node : named) {
+        if (!node.removed) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Removes the annotations named {@code name}.
+   */
+  public void removeNamed(String name) {
+    List<Node> named = byName.remove(name);
+    if (named != null) {
+      for (Node node : named) {
+        remove(node);
+      }
+      compactIfSparse();
+    }
+  }
+
+  /**
+   * Removes the annotations whose range lies within {@code range}.
+   */
+  public void removeWithin(Range range) {
+    removeWithin(root, range.getStart(), range.getEnd());
+    compactIfSparse();
+  }
+
+  /**
+   * Returns whether every annotation has been removed, or there were none.
+   */
+  public boolean isEmpty() {
+    return removed == nodes.size();
+  }
+
+  /**
+   * Replaces the contents of {@code annotations} with the live annotations,
+   * in order, with their ranges up to date.
+   */
+  public void writeTo(List<Annotation> annotations) {
+    pushAll(root);
+    annotations.clear();
+    for (Node node : nodes) {
+      if (!node.removed) {
+        sync(node);
+        annotations.add(node.annotation);
+      }
+    }
+  }
+
+  private void index() {
+    byName = new HashMap<String, List<Node>>();
+    List<Node> ranged = new ArrayList<Node>(nodes.size());
+    for (Node node : nodes) {
+      indexName(node);
+      if (node.annotation.getRange() != null) {
+        ranged.add(node);
+      }
+    }
+    Collections.sort(ranged, BY_START);
+
+    // Build the treap in one pass over the sorted nodes, keeping the right
+    // spine on a stack: every node takes the spine it outranks as its left
+    // subtree.
+    Node[] spine = new Node[ranged.size()];
+    int top = 0;
+    for (Node node : ranged) {
+      node.priority = nextPriority();
+      node.delta = 0;
+      node.right = null;
+      Node last = null;
+      while (top > 0 && spine[top - 1].priority < node.priority) {
+        last = spine[--top];
+        update(last);
+      }
+      node.left = last;
+      if (top > 0) {
+        spine[top - 1].right = node;
+      }
+      spine[top++] = node;
+    }
+    while (top > 1) {
+      update(spine[--top]);
+    }
+    if (top > 0) {
+      update(spine[0]);
+    }
+    setRoot(top > 0 ? spine[0] : null);
+  }
+
+  private void setRoot(Node node) {
+    root = node;
+    if (node != null) {
+      node.parent = null;
+    }
+  }
+
+  private void indexName(Node node) {
+    List<Node> named = byName.get(node.annotation.getName());
+    if (named == null) {
+      named = new ArrayList<Node>(4);
+      byName.put(node.annotation.getName(), named);
+    }
+    named.add(node);
+  }
+
+  /**
+   * Drops the removed annotations from the index once they are the
+   * majority.
+   */
+  private void compactIfSparse() {
+    if (removed <= 32 || removed * 2 <= nodes.size()) {
+      return;
+    }
+    pushAll(root);
+    List<Node> live = new ArrayList<Node>(nodes.size() - removed);
+    for (Node node : nodes) {
+      if (!node.removed) {
+        node.order = live.size();
+        live.add(node);
+      }
+    }
+    nodes = live;
+    removed = 0;
+    index();
+  }
+
+  private void remove(Node node) {
+    if (!node.removed) {
+      node.removed = true;
+      removed++;
+      if (node.annotation.getRange() != null) {
+        // The largest end above the node may now be too large, which only
+        // makes queries prune a little less.
+        push(node);
+        node.maxEnd = maxEnd(node);
+      }
+    }
+  }
+
+  private void removeWithin(Node node, int start, int end) {
+    if (node == null) {
+      return;
+    }
+    push(node);
+    if (node.start >= start) {
+      removeWithin(node.left, start, end);
+    }
+    if (node.start <= end) {
+      if (node.start >= start && node.end <= end) {
+        remove(node);
+      }
+      removeWithin(node.right, start, end);
+    }
+    update(node);
+  }
+
+  private void collectCovering(Node node, int start, int end, String name, List<Node> found) {
+    if (node == null || node.maxEnd < end) {
+      return;
+    }
+    push(node);
+    collectCovering(node.left, start, end, name, found);
+    if (node.start <= start) {
+      if (!node.removed && node.end >= end
+          && (name == null || name.equals(node.annotation.getName()))) {
+        found.add(node);
+      }
+      collectCovering(node.right, start, end, name, found);
+    }
+  }
+
+  /**
+   * Moves the ends at or after {@code point} of the annotations under
+   * {@code node}, which all start before it.
+   */
+  private static void expand(Node node, int point, int length) {
+    if (node == null || node.maxEnd < point) {
+      return;
+    }
+    push(node);
+    expand(node.left, point, length);
+    expand(node.right, point, length);
+    if (node.end >= point) {
+      node.end += length;
+    }
+    update(node);
+  }
+
+  /**
+   * Cuts the deleted characters out of the annotations under {@code node},
+   * which all start before {@code point}.
+   */
+  private static void shrinkBefore(Node node, int point, int length) {
+    if (node == null || node.maxEnd < point) {
+      return;
+    }
+    push(node);
+    shrinkBefore(node.left, point, length);
+    shrinkBefore(node.right, point, length);
+    if (node.end >= point + length) {
+      node.end -= length;
+    } else if (node.end >= point) {
+      node.end = point;
+    }
+    update(node);
+  }
+
+  /**
+   * Moves the annotations under {@code node}, which all start within the
+   * deleted characters, to {@code point}, removing the ones that end within
+   * them too.
+   */
+  private void shrinkInside(Node node, int point, int length) {
+    if (node == null) {
+      return;
+    }
+    push(node);
+    shrinkInside(node.left, point, length);
+    shrinkInside(node.right, point, length);
+    // Removed annotations move too, to keep the tree in order.
+    node.start = point;
+    if (node.end > point + length) {
+      node.end -= length;
+    } else {
+      remove(node);
+    }
+    update(node);
+  }
+
+  /**
+   * Splits the tree under {@code node} into the annotations that start
+   * before {@code point}, in {@link #splitLeft}, and the others, in
+   * {@link #splitRight}.
+   */
+  private void split(Node node, int point) {
+    if (node == null) {
+      splitLeft = null;
+      splitRight = null;
+      return;
+    }
+    push(node);
+    if (node.start < point) {
+      split(node.right, point);
+      node.right = splitLeft;
+      update(node);
+      splitLeft = node;
+    } else {
+      split(node.left, point);
+      node.left = splitRight;
+      update(node);
+      splitRight = node;
+    }
+  }
+
+  private static Node merge(Node left, Node right) {
+    if (left == null) {
+      return right;
+    }
+    if (right == null) {
+      return left;
+    }
+    if (left.priority > right.priority) {
+      push(left);
+      left.right = merge(left.right, right);
+      update(left);
+      return left;
+    }
+    push(right);
+    right.left = merge(left, right.left);
+    update(right);
+    return right;
+  }
+
+  private static void shift(Node node, int delta) {
+    if (node != null) {
+      node.start += delta;
+      node.end += delta;
+      if (node.maxEnd != Integer.MIN_VALUE) {
+        node.maxEnd += delta;
+      }
+      node.delta += delta;
+    }
+  }
+
+  private static void push(Node node) {
+    if (node.delta != 0) {
+      shift(node.left, node.delta);
+      shift(node.right, node.delta);
+      node.delta = 0;
+    }
+  }
+
+  private static void pushAll(Node node) {
+    while (node != null) {
+      push(node);
+      pushAll(node.left);
+      node = node.right;
+    }
+  }
+
+  /**
+   * Recomputes what {@code node} knows of its subtree, after its children
+   * changed.
+   */
+  private static void update(Node node) {
+    node.maxEnd = maxEnd(node);
+    if (node.left != null) {
+      node.left.parent = node;
+    }
+    if (node.right != null) {
+      node.right.parent = node;
+    }
+  }
+
+  private static int maxEnd(Node node) {
+    int max = node.removed ? Integer.MIN_VALUE : node.end;
+    if (node.left != null && node.left.maxEnd > max) {
+      max = node.left.maxEnd;
+    }
+    if (node.right != null && node.right.maxEnd > max) {
+      max = node.right.maxEnd;
+    }
+    return max;
+  }
+
+  /**
+   * Copies the position of {@code node} to the range of its annotation.
+   */
+  private static void sync(Node node) {
+    Range range = node.annotation.getRange();
+    if (range != null) {
+      int delta = 0;
+      for (Node above = node.parent; above != null; above = above.parent) {
+        delta += above.delta;
+      }
+      range.setStart(node.start + delta);
+      range.setEnd(node.end + delta);
+    }
+  }
+
+  /**
+   * Returns the annotations of {@code found}, in list order.
+   */
+  private static List<Annotation> toAnnotations(List<Node> found) {
+    Collections.sort(found, BY_ORDER);
+    List<Annotation> annotations = new ArrayList<Annotation>(found.size());
+    for (Node node : found) {
+      sync(node);
+      annotations.add(node.annotation);
+    }
+    return annotations;
+  }
+
+  private int nextPriority() {
+    seed ^= seed << 13;
+    seed ^= seed >>> 17;
+    seed ^= seed << 5;
+    return seed;
+  }
+}
@@ -0,0 +1,397 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a document written by {@link BinaryJsonWriter}, token by token, so
+ * that every codec written against {@link JsonReader} can read it.
+ *
+ * Instances are not thread safe.
+ */
+public class BinaryJsonReader extends JsonReader {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final InputStream in;
+  private final byte[] buffer;
+  private int pos;
+  private int limit;
+
+  /**
+   * The number of bytes read before the start of the buffer.
+   */
+  private int consumed;
+
+  private final List<String> strings = new ArrayList<String>();
+
+  /**
+   * The containers the reader is in, with the current member name or element
+   * index of each, for error messages.
+   */
+  private boolean[] pathArrays = new boolean[32];
+  private String[] pathNames = new String[32];
+  private int[] pathIndices = new int[32];
+  private int pathDepth;
+
+  private Token peeked;
+  private String peekedText;
+  private long peekedInteger;
+  private boolean peekedBoolean;
+
+  public BinaryJsonReader(InputStream in) throws IOException {
+    this.in = in;
+    this.buffer = new byte[BUFFER_SIZE];
+    readMagic();
+  }
+
+  /**
+   * Creates a reader of a document held in memory. The bytes are read in
+   * place and must not change while the reader is in use.
+   */
+  public BinaryJsonReader(byte[] bytes, int offset, int length) throws IOException {
+    this.in = null;
+    this.buffer = bytes;
+    this.pos = offset;
+    this.limit = offset + length;
+    this.consumed = -offset;
+    readMagic();
+  }
+
+  @Override
+  public Token peek() throws IOException {
+    if (peeked != null) {
+      return peeked;
+    }
+    int tag = readTag();
+    switch (tag) {
+      case -1:
+        return peeked = Token.END_DOCUMENT;
+      case BinaryJsonWriter.BEGIN_OBJECT:
+        return peeked = Token.BEGIN_OBJECT;
+      case BinaryJsonWriter.END_OBJECT:
+        return peeked = Token.END_OBJECT;
+      case BinaryJsonWriter.BEGIN_ARRAY:
+        return peeked = Token.BEGIN_ARRAY;
+      case BinaryJsonWriter.END_ARRAY:
+        return peeked = Token.END_ARRAY;
+      case BinaryJsonWriter.NULL:
+        return peeked = Token.NULL;
+      case BinaryJsonWriter.FALSE:
+      case BinaryJsonWriter.TRUE:
+        peekedBoolean = tag == BinaryJsonWriter.TRUE;
+        return peeked = Token.BOOLEAN;
+      case BinaryJsonWriter.INTEGER: {
+        long value = readVarint();
+        peekedInteger = (value >>> 1) ^ -(value & 1);
+        peekedText = null;
+        return peeked = Token.NUMBER;
+      }
+      case BinaryJsonWriter.NUMBER:
+        peekedText = readString();
+        if (!JsonReader.isNumber(peekedText)) {
+          throw syntaxError("Malformed number " + peekedText);
+        }
+        return peeked = Token.NUMBER;
+      case BinaryJsonWriter.STRING:
+        peekedText = readString();
+        return peeked = Token.STRING;
+      case BinaryJsonWriter.NAME:
+        peekedText = readString();
+        return peeked = Token.NAME;
+      default:
+        throw syntaxError("Unknown tag " + tag);
+    }
+  }
+
+  @Override
+  public boolean hasNext() throws IOException {
+    Token token = peek();
+    return token != Token.END_OBJECT && token != Token.END_ARRAY
+        && token != Token.END_DOCUMENT;
+  }
+
+  @Override
+  public void beginObject() throws IOException {
+    expect(Token.BEGIN_OBJECT);
+    push(false);
+  }
+
+  @Override
+  public void endObject() throws IOException {
+    expect(Token.END_OBJECT);
+    pathDepth--;
+    endValue();
+  }
+
+  @Override
+  public void beginArray() throws IOException {
+    expect(Token.BEGIN_ARRAY);
+    push(true);
+  }
+
+  @Override
+  public void endArray() throws IOException {
+    expect(Token.END_ARRAY);
+    pathDepth--;
+    endValue();
+  }
+
+  @Override
+  public String nextName() throws IOException {
+    expect(Token.NAME);
+    if (pathDepth > 0) {
+      pathNames[pathDepth - 1] = peekedText;
+    }
+    return peekedText;
+  }
+
+  @Override
+  public String nextString() throws IOException {
+    if (peek() == Token.NULL) {
+      peeked = null;
+      endValue();
+      return null;
+    }
+    expect(Token.STRING);
+    endValue();
+    return peekedText;
+  }
+
+  @Override
+  public boolean nextBoolean() throws IOException {
+    expect(Token.BOOLEAN);
+    endValue();
+    return peekedBoolean;
+  }
+
+  @Override
+  public void nextNull() throws IOException {
+    expect(Token.NULL);
+    endValue();
+  }
+
+  @Override
+  public String nextNumber() throws IOException {
+    expect(Token.NUMBER);
+    endValue();
+    return peekedText != null ? peekedText : Long.toString(peekedInteger);
+  }
+
+  @Override
+  public long nextLong() throws IOException {
+    if (peek() == Token.NUMBER && peekedText == null) {
+      peeked = null;
+      endValue();
+      return peekedInteger;
+    }
+    String text = nextNumber();
+    double value = Double.parseDouble(text);
+    if (value != (long) value) {
+      throw syntaxError("Expected an integer but was " + text);
+    }
+    return (long) value;
+  }
+
+  @Override
+  public int nextInt() throws IOException {
+    long value = nextLong();
+    if (value != (int) value) {
+      throw syntaxError("Expected an int but was " + value);
+    }
+    return (int) value;
+  }
+
+  @Override
+  public double nextDouble() throws IOException {
+    if (peek() == Token.NUMBER && peekedText == null) {
+      peeked = null;
+      endValue();
+      return peekedInteger;
+    }
+    return Double.parseDouble(nextNumber());
+  }
+
+  @Override
+  public void skipValue() throws IOException {
+    int nesting = 0;
+    do {
+      switch (peek()) {
+        case BEGIN_OBJECT:
+        case BEGIN_ARRAY:
+          nesting++;
+          break;
+        case END_OBJECT:
+        case END_ARRAY:
+          nesting--;
+          break;
+        case END_DOCUMENT:
+          throw syntaxError("Unexpected end of document");
+        default:
+          break;
+      }
+      peeked = null;
+    } while (nesting > 0);
+    endValue();
+  }
+
+  @Override
+  public String getLocation() {
+    return "byte " + (consumed + pos);
+  }
+
+  @Override
+  public String getPath() {
+    StringBuilder path = new StringBuilder("$");
+    for (int i = 0; i < pathDepth; i++) {
+      if (pathArrays[i]) {
+        path.append('[').append(pathIndices[i]).append(']');
+      } else if (pathNames[i] != null) {
+        path.append('.').append(pathNames[i]);
+      }
+    }
+    return path.toString();
+  }
+
+  @Override
+  public MalformedJsonException syntaxError(String message) {
+    return new MalformedJsonException(message, getPath(), getLocation());
+  }
+
+  private void expect(Token token) throws IOException {
+    if (peek() != token) {
+      throw syntaxError("Expected " + token + " but was " + peeked);
+    }
+    peeked = null;
+  }
+
+  private void push(boolean array) {
+    if (pathDepth == pathArrays.length) {
+      boolean[] arrays = new boolean[pathDepth * 2];
+      System.arraycopy(pathArrays, 0, arrays, 0, pathDepth);
+      pathArrays = arrays;
+      String[] names = new String[pathDepth * 2];
+      System.arraycopy(pathNames, 0, names, 0, pathDepth);
+      pathNames = names;
+      int[] indices = new int[pathDepth * 2];
+      System.arraycopy(pathIndices, 0, indices, 0, pathDepth);
+      pathIndices = indices;
+    }
+    pathArrays[pathDepth] = array;
+    pathNames[pathDepth] = null;
+    pathIndices[pathDepth] = 0;
+    pathDepth++;
+  }
+
+  /**
+   * Moves the path past a value that has been read in full.
+   */
+  private void endValue() {
+    if (pathDepth > 0) {
+      pathIndices[pathDepth - 1]++;
+    }
+  }
+
+  private void readMagic() throws IOException {
+    for (byte b : BinaryJsonWriter.MAGIC) {
+      if (readTag() != b) {
+        throw syntaxError("Not a binary wave document");
+      }
+    }
+  }
+
+  /**
+   * Returns the next byte, or -1 at the end of the document.
+   */
+  private int readTag() throws IOException {
+    if (pos == limit && !fill()) {
+      return -1;
+    }
+    return buffer[pos++] & 0xff;
+  }
+
+  private long readVarint() throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = readTag();
+      if (b == -1) {
+        throw syntaxError("Unexpected end of document");
+      }
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw syntaxError("Malformed varint");
+  }
+
+  private String readString() throws IOException {
+    long reference = readVarint();
+    if (reference != 0) {
+      if (reference > strings.size()) {
+        throw syntaxError("Unknown string " + reference);
+      }
+      return strings.get((int) reference - 1);
+    }
+    long length = readVarint();
+    if (length > Integer.MAX_VALUE) {
+      throw syntaxError("String too long");
+    }
+    String text;
+    if (limit - pos >= length) {
+      text = new String(buffer, pos, (int) length, "UTF-8");
+      pos += length;
+    } else {
+      byte[] bytes = new byte[(int) length];
+      int copied = limit - pos;
+      System.arraycopy(buffer, pos, bytes, 0, copied);
+      pos = limit;
+      while (copied < bytes.length) {
+        if (!fill()) {
+          throw syntaxError("Unexpected end of document");
+        }
+        int n = Math.min(limit - pos, bytes.length - copied);
+        System.arraycopy(buffer, pos, bytes, copied, n);
+        pos += n;
+        copied += n;
+      }
+      text = new String(bytes, "UTF-8");
+    }
+    if (text.length() <= BinaryJsonWriter.MAX_INTERNED_LENGTH) {
+      strings.add(text);
+    }
+    return text;
+  }
+
+  private boolean fill() throws IOException {
+    if (in == null) {
+      return false;
+    }
+    consumed += limit;
+    pos = 0;
+    limit = 0;
+    int n = in.read(buffer, 0, buffer.length);
+    if (n <= 0) {
+      return false;
+    }
+    limit = n;
+    return true;
+  }
+}
@@ -0,0 +1,261 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the tokens of a JSON document in the compact binary form read by
+ * {@link BinaryJsonReader}, so that every codec written against
+ * {@link JsonWriter} can produce it.
+ *
+ * The document starts with {@link #MAGIC}. Each token is one tag byte;
+ * integers follow as zigzag varints, and names and strings as a varint
+ * reference into the table of strings seen so far, or, the first time, as a
+ * varint UTF-8 length and the bytes. Numbers that are not integers are kept
+ * as their JSON text, so a document reads back exactly as its JSON form does.
+ *
+ * Instances are not thread safe.
+ */
+public class BinaryJsonWriter extends JsonWriter {
+
+  /**
+   * The first bytes of every binary document: "WB" and the format version.
+   */
+  static final byte[] MAGIC = {'W', 'B', 1};
+
+  static final int BEGIN_OBJECT = 1;
+  static final int END_OBJECT = 2;
+  static final int BEGIN_ARRAY = 3;
+  static final int END_ARRAY = 4;
+  static final int NULL = 5;
+  static final int FALSE = 6;
+  static final int TRUE = 7;
+  static final int INTEGER = 8;
+  static final int NUMBER = 9;
+  static final int STRING = 10;
+  static final int NAME = 11;
+
+  /**
+   * Strings longer than this, blip content for instance, are written in full
+   * every time rather than added to the table.
+   */
+  static final int MAX_INTERNED_LENGTH = 64;
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final OutputStream out;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int count;
+  private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+  public BinaryJsonWriter(OutputStream out) throws IOException {
+    this.out = out;
+    write(MAGIC, 0, MAGIC.length);
+  }
+
+  @Override
+  public JsonWriter beginObject() throws IOException {
+    writeTag(BEGIN_OBJECT);
+    return this;
+  }
+
+  @Override
+  public JsonWriter endObject() throws IOException {
+    writeTag(END_OBJECT);
+    return this;
+  }
+
+  @Override
+  public JsonWriter beginArray() throws IOException {
+    writeTag(BEGIN_ARRAY);
+    return this;
+  }
+
+  @Override
+  public JsonWriter endArray() throws IOException {
+    writeTag(END_ARRAY);
+    return this;
+  }
+
+  @Override
+  public JsonWriter name(String name) throws IOException {
+    writeTag(NAME);
+    writeString(name);
+    return this;
+  }
+
+  @Override
+  public JsonWriter value(String value) throws IOException {
+    if (value == null) {
+      return nullValue();
+    }
+    writeTag(STRING);
+    writeString(value);
+    return this;
+  }
+
+  @Override
+  public <E extends Enum<E>> JsonWriter value(EnumTable<E> table, E constant)
+      throws IOException {
+    return value(constant == null ? null : table.getText(constant));
+  }
+
+  @Override
+  public JsonWriter value(long value) throws IOException {
+    writeTag(INTEGER);
+    writeVarint((value << 1) ^ (value >> 63));
+    return this;
+  }
+
+  @Override
+  public JsonWriter value(boolean value) throws IOException {
+    writeTag(value ? TRUE : FALSE);
+    return this;
+  }
+
+  /**
+   * Writes a number the way its JSON text reads back: as an integer if the
+   * text is one, and as the text otherwise.
+   */
+  @Override
+  public JsonWriter value(Number value) throws IOException {
+    if (value == null) {
+      return nullValue();
+    }
+    if (value instanceof Integer || value instanceof Long) {
+      return value(value.longValue());
+    }
+    String text;
+    try {
+      text = JSONObject.numberToString(value);
+    } catch (JSONException e) {
+      throw new IOException(e.getMessage());
+    }
+    if (text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+      try {
+        return value(Long.parseLong(text));
+      } catch (NumberFormatException e) {
+        // Too large for a long.
+      }
+    }
+    writeTag(NUMBER);
+    writeString(text);
+    return this;
+  }
+
+  /**
+   * Writes a number given as its JSON text. Only integers spelled the way
+   * {@link Long#toString(long)} spells them become varints, so that the text
+   * reads back unchanged.
+   */
+  @Override
+  public JsonWriter numberValue(String text) throws IOException {
+    if (text.length() < 20) {
+      try {
+        long value = Long.parseLong(text);
+        if (Long.toString(value).equals(text)) {
+          return value(value);
+        }
+      } catch (NumberFormatException e) {
+        // Not an integer.
+      }
+    }
+    writeTag(NUMBER);
+    writeString(text);
+    return this;
+  }
+
+  @Override
+  public JsonWriter nullValue() throws IOException {
+    writeTag(NULL);
+    return this;
+  }
+
+  /**
+   * Writes an already encoded JSON value, converting it token by token.
+   */
+  @Override
+  public JsonWriter rawValue(String json) throws IOException {
+    WaveBinaryCodec.copyValue(new JsonReader(new StringReader(json)), this);
+    return this;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.write(buffer, 0, count);
+    count = 0;
+    out.flush();
+  }
+
+  private void writeTag(int tag) throws IOException {
+    if (count == buffer.length) {
+      drain();
+    }
+    buffer[count++] = (byte) tag;
+  }
+
+  private void writeVarint(long value) throws IOException {
+    if (buffer.length - count < 10) {
+      drain();
+    }
+    while ((value & ~0x7fL) != 0) {
+      buffer[count++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    buffer[count++] = (byte) value;
+  }
+
+  private void writeString(String text) throws IOException {
+    boolean interned = text.length() <= MAX_INTERNED_LENGTH;
+    if (interned) {
+      Integer index = strings.get(text);
+      if (index != null) {
+        writeVarint(index + 1);
+        return;
+      }
+      strings.put(text, strings.size());
+    }
+    byte[] bytes = text.getBytes("UTF-8");
+    writeVarint(0);
+    writeVarint(bytes.length);
+    write(bytes, 0, bytes.length);
+  }
+
+  private void write(byte[] bytes, int offset, int length) throws IOException {
+    if (length > buffer.length - count) {
+      drain();
+      if (length > buffer.length) {
+        out.write(bytes, offset, length);
+        return;
+      }
+    }
+    System.arraycopy(bytes, offset, buffer, count, length);
+    count += length;
+  }
+
+  private void drain() throws IOException {
+    out.write(buffer, 0, count);
+    count = 0;
+  }
+}
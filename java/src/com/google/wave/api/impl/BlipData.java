@@ -19,6 +19,7 @@ import com.google.wave.api.Annotation;
 import com.google.wave.api.Element;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,6 +30,11 @@ import java.util.Map.Entry;
  * metadata, a text-only representation of the document content, and a list of
  * annotations.
  * 
+ * Collections start out as the shared immutable empty list or map, and are
+ * replaced by a mutable one the first time they are written to or handed out
+ * by a getter, so a blip with no elements, children or annotations costs no
+ * collection allocations.
+ * 
  * @author scovitz@google.com (Seth Covitz)
  * @author mprasetya@google.com (Marcel Prasetya)
  */
@@ -38,12 +44,24 @@ public class BlipData {
    * The list of annotations for the document content. 
    */
   private List<Annotation> annotations;
+
+  /**
+   * The index text views edit and query the annotations through, or null if
+   * {@link #annotations} is up to date.
+   */
+  private AnnotationIndex annotationIndex;
   
   /**
    * The list of elements embedded within the document.
    */
   private Map<String, Element> elements;
 
+  /**
+   * The index text views edit and query the elements through, or null if
+   * {@link #elements} is up to date.
+   */
+  private ElementIndex elementIndex;
+
   /**
    * The blip id for this blip.
    */
@@ -65,9 +83,9 @@ public class BlipData {
   private String creator;
 
   /**
-   * The text document content for this blip.
+   * The text document content for this blip, or null.
    */
-  private String content;
+  private ContentRope content;
 
   /**
    * The time this blip was last modified.
@@ -98,12 +116,12 @@ public class BlipData {
    * Constructs an empty BlipData object.
    */
   public BlipData() {
-    annotations = new ArrayList<Annotation>();
-    elements = new HashMap<String, Element>();
+    annotations = Collections.emptyList();
+    elements = Collections.emptyMap();
     creator = null;
-    childBlipIds = new ArrayList<String>();
-    content = "\n";
-    contributors = new ArrayList<String>();
+    childBlipIds = Collections.emptyList();
+    content = new ContentRope("\n");
+    contributors = Collections.emptyList();
     blipId = null;
     lastModifiedTime = -1L;
     version = -1L;
@@ -119,21 +137,31 @@ public class BlipData {
    */
   public BlipData(BlipData blip) {
     // Deep copy annotations.
-    annotations = new ArrayList<Annotation>();
-    for (Annotation annotation : blip.getAnnotations()) {
-      annotations.add(new Annotation(annotation.getName(), annotation.getValue(),
-          annotation.getRange()));
+    blip.flushAnnotationIndex();
+    if (isEmpty(blip.annotations)) {
+      annotations = Collections.emptyList();
+    } else {
+      annotations = new ArrayList<Annotation>(blip.annotations.size());
+      for (Annotation annotation : blip.annotations) {
+        annotations.add(new Annotation(annotation.getName(), annotation.getValue(),
+            annotation.getRange()));
+      }
     }
     
     // Deep copy form elements.
-    elements = new HashMap<String, Element>();
-    for (Entry<String, Element> entry : blip.getElements().entrySet()) {
-      elements.put(entry.getKey(), new Element(entry.getValue()));
+    blip.flushElementIndex();
+    if (blip.elements == null || blip.elements.isEmpty()) {
+      elements = Collections.emptyMap();
+    } else {
+      elements = new HashMap<String, Element>(blip.elements.size() * 4 / 3 + 1);
+      for (Entry<String, Element> entry : blip.elements.entrySet()) {
+        elements.put(entry.getKey(), new Element(entry.getValue()));
+      }
     }
     
     creator = blip.getCreator();
     childBlipIds = blip.getChildBlipIds();
-    content = blip.getContent();
+    content = blip.content == null ? null : new ContentRope(blip.content.toString());
     contributors = blip.getContributors();
     blipId = blip.getBlipId();
     lastModifiedTime = blip.getLastModifiedTime();
@@ -149,16 +177,63 @@ public class BlipData {
    * @param annotation the annotation to be added.
    */
   public void addAnnotation(Annotation annotation) {
-    annotations.add(annotation);
+    if (annotationIndex != null) {
+      annotationIndex.add(annotation);
+    } else {
+      getAnnotations().add(annotation);
+    }
   }
 
   /**
    * Returns the list of annotations modifying this document's content.
    * 
+   * The list is brought up to date with the edits made through text views
+   * since it was last returned, after which the caller may modify it.
+   * 
    * @return a list of annotations.
    */
   public List<Annotation> getAnnotations() {
-    return annotations == null ? new ArrayList<Annotation>() : annotations;
+    flushAnnotationIndex();
+    if (isShared(annotations)) {
+      annotations = new ArrayList<Annotation>();
+    }
+    return annotations;
+  }
+
+  /**
+   * Returns the index of the annotations, building it from the list the
+   * first time. The list is stale until the next call to
+   * {@link #getAnnotations()}, which drops the index again.
+   */
+  AnnotationIndex getAnnotationIndex() {
+    if (annotationIndex == null) {
+      annotationIndex = new AnnotationIndex(annotations == null
+          ? Collections.<Annotation>emptyList() : annotations);
+    }
+    return annotationIndex;
+  }
+
+  /**
+   * Returns the annotations, up to date, without replacing a shared empty
+   * list. For readers such as the codecs; the list must not be modified.
+   */
+  List<Annotation> peekAnnotations() {
+    flushAnnotationIndex();
+    return annotations == null ? Collections.<Annotation>emptyList() : annotations;
+  }
+
+  private void flushAnnotationIndex() {
+    if (annotationIndex != null) {
+      if (isShared(annotations)) {
+        if (annotationIndex.isEmpty()) {
+          annotationIndex = null;
+          return;
+        }
+        annotations = new ArrayList<Annotation>();
+      }
+      annotationIndex.writeTo(annotations);
+      annotationIndex = null;
+    }
   }
   
   /**
@@ -169,18 +244,65 @@ public class BlipData {
    * @param element The form element to be added.
    */
   public void addElement(int position, Element element) {
-    elements.put(Integer.toString(position), element);
+    if (elementIndex != null) {
+      elementIndex.put(position, element);
+    } else {
+      getElements().put(Integer.toString(position), element);
+    }
   }
   
   /**
    * Returns a map of the elements in the blip and the positions where
    * they have been inserted.
    * 
+   * The map is brought up to date with the edits made through text views
+   * since it was last returned, after which the caller may modify it.
+   * 
    * @return the map of form elements to document positions.
    */
   public Map<String, Element> getElements() {
+    flushElementIndex();
+    if (isShared(elements)) {
+      elements = new HashMap<String, Element>();
+    }
     return elements;
   }
+
+  /**
+   * Returns the elements, up to date, without replacing a shared empty map.
+   * For readers such as the codecs; the map must not be modified.
+   */
+  Map<String, Element> peekElements() {
+    flushElementIndex();
+    return elements == null ? Collections.<String, Element>emptyMap() : elements;
+  }
+
+  /**
+   * Returns the elements indexed by position, building the index from the
+   * map the first time. The map is stale until the next call to
+   * {@link #getElements()}, which drops the index again.
+   */
+  ElementIndex getElementIndex() {
+    if (elementIndex == null) {
+      elementIndex = new ElementIndex(elements == null
+          ? Collections.<String, Element>emptyMap() : elements);
+    }
+    return elementIndex;
+  }
+
+  private void flushElementIndex() {
+    if (elementIndex != null) {
+      if (isShared(elements)) {
+        if (elementIndex.isEmpty()) {
+          elementIndex = null;
+          return;
+        }
+        elements = new HashMap<String, Element>(elementIndex.size() * 4 / 3 + 1);
+      }
+      elementIndex.writeTo(elements);
+      elementIndex = null;
+    }
+  }
   
   /**
    * Returns the Blip ID for this blip.
@@ -197,9 +319,20 @@ public class BlipData {
    * @return a list of child Blip IDs.
    */
   public List<String> getChildBlipIds() {
+    if (isShared(childBlipIds)) {
+      childBlipIds = new ArrayList<String>();
+    }
     return childBlipIds;
   }
 
+  /**
+   * Returns the child blip ids without replacing a shared empty list. For
+   * readers such as the codecs; the list must not be modified.
+   */
+  List<String> peekChildBlipIds() {
+    return childBlipIds == null ? Collections.<String>emptyList() : childBlipIds;
+  }
+
   /**
    * Returns the list of email addresses corresponding to the contributors who
    * have modified this blip's content.
@@ -207,9 +340,20 @@ public class BlipData {
    * @return the list of contributors.
    */
   public List<String> getContributors() {
+    if (isShared(contributors)) {
+      contributors = new ArrayList<String>();
+    }
     return contributors;
   }
 
+  /**
+   * Returns the contributors without replacing a shared empty list. For
+   * readers such as the codecs; the list must not be modified.
+   */
+  List<String> peekContributors() {
+    return contributors == null ? Collections.<String>emptyList() : contributors;
+  }
+
   /**
    * Returns the email address corresponding to the creator of this blip.
    * 
@@ -225,7 +369,14 @@ public class BlipData {
    * @return the text document content for this blip.
    */
   public String getContent() {
-    return content;
+    return content == null ? null : content.toString();
+  }
+
+  /**
+   * Returns the length of the content, without materializing it.
+   */
+  int getContentLength() {
+    return content == null ? 0 : content.length();
   }
 
   /**
@@ -281,6 +432,7 @@ public class BlipData {
    */
   public void setAnnotations(List<Annotation> annotations) {
     this.annotations = annotations;
+    this.annotationIndex = null;
   }
 
   /**
@@ -290,6 +442,7 @@ public class BlipData {
    */
   public void setElements(Map<String, Element> elements) {
     this.elements = elements;
+    this.elementIndex = null;
   }
   
   /**
@@ -316,7 +469,7 @@ public class BlipData {
    * @param blipId the Blip ID to be added.
    */
   public void addChildBlipId(String blipId) {
-    this.childBlipIds.add(blipId);
+    getChildBlipIds().add(blipId);
   }
 
   /**
@@ -334,7 +487,7 @@ public class BlipData {
    * @param contributor a new contributor to the blip.
    */
   public void addContributor(String contributor) {
-    this.contributors.add(contributor);
+    getContributors().add(contributor);
   }
 
   /**
@@ -352,7 +505,31 @@ public class BlipData {
    * @param content the new text content for the blip.
    */
   public void setContent(String content) {
-    this.content = content;
+    this.content = content == null ? null : new ContentRope(content);
+  }
+
+  /**
+   * Inserts text into the content in place.
+   *
+   * @param index the position of the first inserted character.
+   * @param text the text to insert.
+   */
+  void insertContent(int index, String text) {
+    if (content == null) {
+      content = new ContentRope("");
+    }
+    content.insert(index, text);
+  }
+
+  /**
+   * Deletes the content from {@code start}, inclusive, to {@code end},
+   * exclusive, in place.
+   */
+  void deleteContent(int start, int end) {
+    if (content == null) {
+      content = new ContentRope("");
+    }
+    content.delete(start, end);
   }
 
   /**
@@ -402,6 +579,24 @@ public class BlipData {
   }
 
   public void removeChildBlipId(String blipId) {
-    childBlipIds.remove(blipId);
+    if (!isEmpty(childBlipIds)) {
+      childBlipIds.remove(blipId);
+    }
+  }
+
+  /**
+   * Returns whether {@code list} must be replaced before it can be written
+   * to: it is missing or the shared empty list.
+   */
+  private static boolean isShared(List<?> list) {
+    return list == null || list == Collections.EMPTY_LIST;
+  }
+
+  private static boolean isShared(Map<?, ?> map) {
+    return map == null || map == Collections.EMPTY_MAP;
+  }
+
+  private static boolean isEmpty(List<?> list) {
+    return list == null || list.isEmpty();
   }
 }
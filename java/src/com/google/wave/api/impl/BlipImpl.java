@@ -89,7 +89,7 @@ public class BlipImpl implements Blip {
   @Override
   public List<Blip> getChildren() {
     List<Blip> children = new ArrayList<Blip>();
-    for (String blipId : blipData.getChildBlipIds()) {
+    for (String blipId : blipData.peekChildBlipIds()) {
       children.add(createChildBlip(blipId));
     }
     return children;
@@ -102,12 +102,12 @@ public class BlipImpl implements Blip {
 
   @Override
   public boolean hasChildren() {
-    return !blipData.getChildBlipIds().isEmpty();
+    return !blipData.peekChildBlipIds().isEmpty();
   }
 
   @Override
   public Blip getChild(int index) {
-    return createChildBlip(blipData.getChildBlipIds().get(index));
+    return createChildBlip(blipData.peekChildBlipIds().get(index));
   }
 
   @Override
@@ -152,7 +152,7 @@ public class BlipImpl implements Blip {
 
   @Override
   public boolean isChildAvailable(int index) {
-    return events.getBlipData().containsKey(blipData.getChildBlipIds().get(index));
+    return events.getBlipData().containsKey(blipData.peekChildBlipIds().get(index));
   }
 
   @Override
@@ -0,0 +1,248 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+/**
+ * The text content of a blip, kept as a rope so that edits in the middle of
+ * a long blip do not copy the whole text.
+ *
+ * The rope is a treap of chunks ordered by position, each node knowing the
+ * length of its subtree, so that finding a position, splitting and joining
+ * take logarithmic time. Content that is only read is never split into
+ * chunks: the tree is built on the first edit. The text is materialized
+ * lazily and cached until the next edit.
+ *
+ * Instances are not thread-safe.
+ */
+final class ContentRope {
+
+  /**
+   * The largest chunk an edit grows in place. New chunks are cut at half
+   * this length, to leave room for typing.
+   */
+  static final int MAX_CHUNK = 1024;
+
+  private static final class Node {
+    final StringBuilder chunk;
+    final int priority;
+    int length;
+    Node left;
+    Node right;
+
+    Node(StringBuilder chunk, int priority) {
+      this.chunk = chunk;
+      this.priority = priority;
+      this.length = chunk.length();
+    }
+  }
+
+  private Node root;
+
+  /**
+   * The text, or null if it has changed since it was last materialized.
+   */
+  private String text;
+
+  private int seed = 0x2545f491;
+
+  /**
+   * The two halves of the last {@link #split}.
+   */
+  private Node splitLeft;
+  private Node splitRight;
+
+  ContentRope(String text) {
+    this.text = text;
+  }
+
+  public int length() {
+    return root == null ? text.length() : root.length;
+  }
+
+  /**
+   * Inserts {@code s} before the character at {@code index}.
+   */
+  public void insert(int index, String s) {
+    if (index < 0 || index > length()) {
+      throw new IndexOutOfBoundsException("Invalid index " + index);
+    }
+    if (s.length() == 0) {
+      return;
+    }
+    if (root == null) {
+      root = build(text, 0, text.length());
+    }
+    text = null;
+    if (root == null) {
+      root = build(s, 0, s.length());
+    } else if (s.length() > MAX_CHUNK / 2 || !insertInChunk(root, index, s)) {
+      split(root, index);
+      Node right = splitRight;
+      root = merge(merge(splitLeft, build(s, 0, s.length())), right);
+    }
+  }
+
+  /**
+   * Deletes the characters from {@code start}, inclusive, to {@code end},
+   * exclusive.
+   */
+  public void delete(int start, int end) {
+    if (start < 0 || end > length() || start > end) {
+      throw new IndexOutOfBoundsException("Invalid range " + start + " - " + end);
+    }
+    if (start == end) {
+      return;
+    }
+    if (root == null) {
+      root = build(text, 0, text.length());
+    }
+    text = null;
+    split(root, end);
+    Node right = splitRight;
+    split(splitLeft, start);
+    root = merge(splitLeft, right);
+    if (root == null) {
+      text = "";
+    }
+  }
+
+  @Override
+  public String toString() {
+    if (text == null) {
+      StringBuilder sb = new StringBuilder(root == null ? 0 : root.length);
+      appendTo(root, sb);
+      text = sb.toString();
+    }
+    return text;
+  }
+
+  /**
+   * Inserts {@code s} into the chunk that holds {@code index}, if it fits.
+   *
+   * @return false if the chunk is full, in which case nothing changed.
+   */
+  private static boolean insertInChunk(Node node, int index, String s) {
+    int leftLength = node.left == null ? 0 : node.left.length;
+    boolean inserted;
+    if (index < leftLength || (index == leftLength && node.left != null)) {
+      inserted = insertInChunk(node.left, index, s);
+    } else if (index <= leftLength + node.chunk.length()) {
+      inserted = node.chunk.length() + s.length() <= MAX_CHUNK;
+      if (inserted) {
+        node.chunk.insert(index - leftLength, s);
+      }
+    } else {
+      inserted = insertInChunk(node.right, index - leftLength - node.chunk.length(), s);
+    }
+    if (inserted) {
+      node.length += s.length();
+    }
+    return inserted;
+  }
+
+  /**
+   * Splits the tree under {@code node} at {@code index} into
+   * {@link #splitLeft} and {@link #splitRight}, cutting a chunk in two if
+   * the index falls inside it.
+   */
+  private void split(Node node, int index) {
+    if (node == null) {
+      splitLeft = null;
+      splitRight = null;
+      return;
+    }
+    int leftLength = node.left == null ? 0 : node.left.length;
+    int chunkEnd = leftLength + node.chunk.length();
+    if (index <= leftLength) {
+      split(node.left, index);
+      node.left = splitRight;
+      update(node);
+      splitRight = node;
+    } else if (index >= chunkEnd) {
+      split(node.right, index - chunkEnd);
+      node.right = splitLeft;
+      update(node);
+      splitLeft = node;
+    } else {
+      // The tail takes the priority of the node, which is at least that of
+      // the right subtree it inherits.
+      int offset = index - leftLength;
+      Node tail = new Node(new StringBuilder(node.chunk.substring(offset)), node.priority);
+      node.chunk.setLength(offset);
+      tail.right = node.right;
+      node.right = null;
+      update(tail);
+      update(node);
+      splitLeft = node;
+      splitRight = tail;
+    }
+  }
+
+  private static Node merge(Node left, Node right) {
+    if (left == null) {
+      return right;
+    }
+    if (right == null) {
+      return left;
+    }
+    if (left.priority > right.priority) {
+      left.right = merge(left.right, right);
+      update(left);
+      return left;
+    }
+    right.left = merge(left, right.left);
+    update(right);
+    return right;
+  }
+
+  /**
+   * Returns a tree of the characters of {@code s} from {@code start} to
+   * {@code end}.
+   */
+  private Node build(String s, int start, int end) {
+    Node node = null;
+    for (int i = start; i < end; i += MAX_CHUNK / 2) {
+      int chunkEnd = Math.min(end, i + MAX_CHUNK / 2);
+      StringBuilder chunk = new StringBuilder(chunkEnd - i + 16);
+      chunk.append(s, i, chunkEnd);
+      node = merge(node, new Node(chunk, nextPriority()));
+    }
+    return node;
+  }
+
+  private int nextPriority() {
+    // Xorshift, which is plenty random for balancing and cheaper than a
+    // Random per blip.
+    seed ^= seed << 13;
+    seed ^= seed >>> 17;
+    seed ^= seed << 5;
+    return seed;
+  }
+
+  private static void update(Node node) {
+    node.length = node.chunk.length()
+        + (node.left == null ? 0 : node.left.length)
+        + (node.right == null ? 0 : node.right.length);
+  }
+
+  private static void appendTo(Node node, StringBuilder sb) {
+    while (node != null) {
+      appendTo(node.left, sb);
+      sb.append(node.chunk);
+      node = node.right;
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.Element;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * The elements of a blip ordered by position, for a {@link TextViewImpl} to
+ * look up, scan and shift without going through the string keys of the
+ * wire format.
+ *
+ * Positions and elements are kept in parallel sorted arrays, so a lookup is
+ * a binary search and shifting the elements after an edit adds the offset
+ * to the tail of the array in place. Entries whose key is not a position
+ * are set aside and written back untouched.
+ *
+ * Instances are not thread-safe.
+ */
+final class ElementIndex {
+
+  private int[] positions;
+  private Element[] elements;
+  private int size;
+
+  /**
+   * Entries whose key is not a position, or null.
+   */
+  private List<Entry<String, Element>> unpositioned;
+
+  ElementIndex(Map<String, Element> map) {
+    positions = new int[Math.max(4, map.size())];
+    elements = new Element[positions.length];
+    for (Entry<String, Element> entry : map.entrySet()) {
+      int position = parsePosition(entry.getKey());
+      if (position >= 0) {
+        put(position, entry.getValue());
+      } else {
+        if (unpositioned == null) {
+          unpositioned = new ArrayList<Entry<String, Element>>(2);
+        }
+        unpositioned.add(new SimpleImmutableEntry<String, Element>(entry));
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns whether there are no elements, positioned or not.
+   */
+  public boolean isEmpty() {
+    return size == 0 && unpositioned == null;
+  }
+
+  /**
+   * Returns the position of the {@code i}th element in document order.
+   */
+  public int positionAt(int i) {
+    return positions[i];
+  }
+
+  /**
+   * Returns the {@code i}th element in document order.
+   */
+  public Element elementAt(int i) {
+    return elements[i];
+  }
+
+  /**
+   * Returns the element at {@code position}, or null if there is none.
+   */
+  public Element get(int position) {
+    int i = Arrays.binarySearch(positions, 0, size, position);
+    return i >= 0 ? elements[i] : null;
+  }
+
+  /**
+   * Returns the position of {@code element}, or -1 if it is not in the blip.
+   */
+  public int getPosition(Element element) {
+    for (int i = 0; i < size; i++) {
+      if (elements[i] == element) {
+        return positions[i];
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Places {@code element} at {@code position}, replacing any element there.
+   */
+  public void put(int position, Element element) {
+    int i = Arrays.binarySearch(positions, 0, size, position);
+    if (i >= 0) {
+      elements[i] = element;
+      return;
+    }
+    i = -i - 1;
+    if (size == positions.length) {
+      positions = Arrays.copyOf(positions, size * 2);
+      elements = Arrays.copyOf(elements, size * 2);
+    }
+    System.arraycopy(positions, i, positions, i + 1, size - i);
+    System.arraycopy(elements, i, elements, i + 1, size - i);
+    positions[i] = position;
+    elements[i] = element;
+    size++;
+  }
+
+  /**
+   * Removes the element at {@code position}, if any.
+   *
+   * @return the removed element, or null.
+   */
+  public Element remove(int position) {
+    int i = Arrays.binarySearch(positions, 0, size, position);
+    if (i < 0) {
+      return null;
+    }
+    Element element = elements[i];
+    System.arraycopy(positions, i + 1, positions, i, size - i - 1);
+    System.arraycopy(elements, i + 1, elements, i, size - i - 1);
+    size--;
+    elements[size] = null;
+    return element;
+  }
+
+  /**
+   * Adds {@code delta} to the positions of the elements at or after
+   * {@code start}. The caller makes sure that the shifted elements do not
+   * run into the ones before.
+   */
+  public void shift(int start, int delta) {
+    for (int i = indexOf(start); i < size; i++) {
+      positions[i] += delta;
+    }
+  }
+
+  /**
+   * Returns the index in document order of the first element at or after
+   * {@code position}.
+   */
+  public int indexOf(int position) {
+    int i = Arrays.binarySearch(positions, 0, size, position);
+    return i >= 0 ? i : -i - 1;
+  }
+
+  /**
+   * Replaces the contents of {@code map} with the elements, keyed by
+   * position.
+   */
+  public void writeTo(Map<String, Element> map) {
+    map.clear();
+    for (int i = 0; i < size; i++) {
+      map.put(Integer.toString(positions[i]), elements[i]);
+    }
+    if (unpositioned != null) {
+      for (Entry<String, Element> entry : unpositioned) {
+        map.put(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Returns the position {@code key} spells, or -1 if it is not a
+   * non-negative decimal integer in canonical form. A key with leading zeros
+   * is set aside, so that it is written back as it was.
+   */
+  private static int parsePosition(String key) {
+    int length = key.length();
+    if (length == 0 || length > 9 || (length > 1 && key.charAt(0) == '0')) {
+      return -1;
+    }
+    int position = 0;
+    for (int i = 0; i < length; i++) {
+      char c = key.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      position = position * 10 + (c - '0');
+    }
+    return position;
+  }
+}
@@ -90,16 +90,21 @@ public class ElementSerializer extends AbstractSerializer {
     try {
       String javaname = jsonObject.isNull("name") ? "" : jsonObject.getString("name");
       element = (Element) clazz.newInstance();
-      element.setType(ElementType.valueOf(jsonObject.getString("type")));
+      String typeName = jsonObject.getString("type");
+      ElementType type = EnumTable.ELEMENT_TYPES.fromText(typeName);
+      if (type == null) {
+        throw new UnmarshallException("Unknown element type " + typeName);
+      }
+      element.setType(type);
       element.setProperties((Map<String, Object>) ser.unmarshall(state, Map.class,
           jsonObject.getJSONObject("properties")));
  
     } catch (InstantiationException e) {
-      e.printStackTrace();
+      throw new UnmarshallException("Cannot instantiate " + clazz.getName());
     } catch (IllegalAccessException e) {
-      e.printStackTrace();
+      throw new UnmarshallException("Cannot instantiate " + clazz.getName());
     } catch (JSONException jsonx) {
-      jsonx.printStackTrace();
+      throw new UnmarshallException("Element could not be unmarshalled: " + jsonx.getMessage());
     }
     
     return element;
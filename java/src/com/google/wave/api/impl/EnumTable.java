@@ -0,0 +1,148 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.ElementType;
+import com.google.wave.api.EventType;
+
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Maps the wire names of the constants of an enum, as returned by their
+ * {@code toString()}, to the constants and back.
+ *
+ * Names are looked up in a perfect hash table: the hash code of the name,
+ * which the decoders' interned strings have cached, selects the only
+ * candidate slot, so a lookup is one multiplication and one comparison.
+ * Names that do not match exactly fall back to a case-insensitive scan, as
+ * {@code valueOfIgnoreCase} of the model enums allows. The JSON form of each
+ * name, quotes included, is encoded once for the writers.
+ *
+ * Instances are immutable and safe to share between threads.
+ */
+public final class EnumTable<E extends Enum<E>> {
+
+  public static final EnumTable<EventType> EVENT_TYPES =
+      new EnumTable<EventType>(EventType.class);
+  public static final EnumTable<ElementType> ELEMENT_TYPES =
+      new EnumTable<ElementType>(ElementType.class);
+  public static final EnumTable<OperationType> OPERATION_TYPES =
+      new EnumTable<OperationType>(OperationType.class);
+
+  private final E[] constants;
+  private final String[] names;
+  private final char[][] json;
+
+  /**
+   * For each slot, the ordinal of the constant whose name hashes to it, or
+   * -1.
+   */
+  private final int[] slots;
+  private final int multiplier;
+  private final int shift;
+
+  public EnumTable(Class<E> type) {
+    this.constants = type.getEnumConstants();
+    this.names = new String[constants.length];
+    this.json = new char[constants.length][];
+    for (E constant : constants) {
+      String name = constant.toString();
+      names[constant.ordinal()] = name;
+      json[constant.ordinal()] = JSONObject.quote(name).toCharArray();
+    }
+
+    // Look for a multiplier that spreads the names over distinct slots,
+    // growing the table until one is found.
+    int bits = 1;
+    while ((1 << bits) < 2 * constants.length) {
+      bits++;
+    }
+    int[] table = new int[1 << bits];
+    int m = 1;
+    while (!fill(table, m, 32 - bits)) {
+      m += 2;
+      if (m >= 1 << 16) {
+        bits++;
+        table = new int[1 << bits];
+        m = 1;
+      }
+    }
+    this.slots = table;
+    this.multiplier = m;
+    this.shift = 32 - bits;
+  }
+
+  /**
+   * Returns the constant with the given wire name, or {@code null} if there
+   * is none.
+   */
+  public E fromText(String text) {
+    if (text == null) {
+      return null;
+    }
+    int ordinal = slots[(text.hashCode() * multiplier) >>> shift];
+    if (ordinal >= 0 && names[ordinal].equals(text)) {
+      return constants[ordinal];
+    }
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].equalsIgnoreCase(text)) {
+        return constants[i];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the wire name of {@code constant}.
+   */
+  public String getText(E constant) {
+    return names[constant.ordinal()];
+  }
+
+  /**
+   * Returns the wire name of {@code constant} as a JSON string, quotes
+   * included. The array is shared and must not be modified.
+   */
+  char[] getJson(E constant) {
+    return json[constant.ordinal()];
+  }
+
+  /**
+   * Places every name in {@code table} with the given multiplier. A name
+   * with the same hash code as one placed before it cannot be given a slot of
+   * its own by any multiplier; it is left out and found by the scan instead.
+   *
+   * @return false if two names with different hash codes fall in the same
+   *     slot.
+   */
+  private boolean fill(int[] table, int m, int shift) {
+    Arrays.fill(table, -1);
+    for (int i = 0; i < names.length; i++) {
+      int hash = names[i].hashCode();
+      int slot = (hash * m) >>> shift;
+      if (table[slot] >= 0) {
+        if (names[table[slot]].hashCode() == hash) {
+          continue;
+        }
+        return false;
+      }
+      table[slot] = i;
+    }
+    return true;
+  }
+}
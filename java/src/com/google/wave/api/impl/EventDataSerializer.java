@@ -91,7 +91,11 @@ public class EventDataSerializer extends AbstractSerializer {
           state, String.class, jsonObject.get("modifiedBy"));
       Long timestamp = (Long) ser.unmarshall(
           state, Long.class, jsonObject.get("timestamp"));
-      EventType eventType = EventType.valueOf(jsonObject.getString("type"));
+      String typeName = jsonObject.getString("type");
+      EventType eventType = EnumTable.EVENT_TYPES.fromText(typeName);
+      if (eventType == null) {
+        throw new UnmarshallException("Unknown event type " + typeName);
+      }
       Map<String, Object> properties = (Map<String, Object>) ser.unmarshall(
           state, Map.class, jsonObject.getJSONObject("properties"));
       event = new EventData(eventType, modifiedBy, timestamp);
@@ -24,6 +24,7 @@ import com.metaparadigm.jsonrpc.UnmarshallException;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -59,7 +60,12 @@ public class EventMessageBundleSerializer extends AbstractSerializer {
     try {
       json.put("events", ser.marshall(state, bundle.getEvents()));
       json.put("wavelet", ser.marshall(state, bundle.getWaveletData()));
-      json.put("blips", ser.marshall(state, bundle.getBlipData()));
+      Map<String, BlipData> blips = bundle.getBlipData();
+      if (blips instanceof LazyBlipDataMap) {
+        // Tag the blips as a plain map, which is what the reader expects.
+        blips = new HashMap<String, BlipData>(blips);
+      }
+      json.put("blips", ser.marshall(state, blips));
     } catch (JSONException jsonx) {
       throw new MarshallException("Cannot marshall EventMessageBundle.");
     }
@@ -83,15 +89,22 @@ public class EventMessageBundleSerializer extends AbstractSerializer {
     
     JSONObject jsonObject = (JSONObject) json;
     EventMessageBundle bundle = new EventMessageBundle();
+    String field = "events";
     try {
       bundle.setEvents((List<EventData>) ser.unmarshall(
-          state, List.class, jsonObject.getJSONObject("events")));
+          state, List.class, jsonObject.getJSONObject(field)));
+      field = "wavelet";
       bundle.setWaveletData((WaveletData) ser.unmarshall(
-            state, WaveletData.class, jsonObject.getJSONObject("wavelet")));
+            state, WaveletData.class, jsonObject.getJSONObject(field)));
+      field = "blips";
       bundle.setBlipData((Map<String, BlipData>) ser.unmarshall(
-            state, Map.class, jsonObject.get("blips")));
+            state, Map.class, jsonObject.get(field)));
     } catch (JSONException jsonx) {
-      jsonx.printStackTrace();
+      throw new UnmarshallException("EventMessageBundle could not be unmarshalled at "
+          + field + ": " + jsonx.getMessage());
+    } catch (UnmarshallException e) {
+      throw new UnmarshallException("EventMessageBundle could not be unmarshalled at "
+          + field + ": " + e.getMessage());
     }
     
     return bundle;
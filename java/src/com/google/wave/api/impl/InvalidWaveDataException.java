@@ -0,0 +1,30 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+/**
+ * Thrown when a well-formed document is not a valid part of the wave model:
+ * a required field is missing, or a value is not one the model knows, such
+ * as an unknown event type.
+ */
+public class InvalidWaveDataException extends MalformedJsonException {
+
+  private static final long serialVersionUID = 1L;
+
+  public InvalidWaveDataException(String message, String path, String location) {
+    super(message, path, location);
+  }
+}
@@ -0,0 +1,670 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A pull parser that reads a JSON document token by token from a character
+ * stream, without building an intermediate tree.
+ *
+ * The reader keeps a small buffer and a stack of the containers it is in, so
+ * the cost of reading a value is proportional to its size. Names and short
+ * strings are decoded through a per-document {@link StringTable}, so the ids
+ * and addresses repeated throughout a bundle share one instance each.
+ * Instances are not thread safe.
+ */
+public class JsonReader {
+
+  /**
+   * The kinds of token a document is made of.
+   */
+  public enum Token {
+    BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER,
+    BOOLEAN, NULL, END_DOCUMENT
+  }
+
+  private static final int BUFFER_SIZE = 1024;
+
+  private static final int EMPTY_DOCUMENT = 0;
+  private static final int NONEMPTY_DOCUMENT = 1;
+  private static final int EMPTY_ARRAY = 2;
+  private static final int NONEMPTY_ARRAY = 3;
+  private static final int EMPTY_OBJECT = 4;
+  private static final int DANGLING_NAME = 5;
+  private static final int NONEMPTY_OBJECT = 6;
+
+  private final Reader in;
+  private final char[] buffer;
+  private int pos;
+  private int limit;
+
+  /**
+   * The number of characters read before the start of the buffer.
+   */
+  private int consumed;
+  private int line = 1;
+  private int lineStart;
+
+  private int[] stack = new int[32];
+  private int depth;
+
+  /**
+   * For each container on the stack, the name of the current member of an
+   * object or the index of the current element of an array. Kept up to date
+   * as the document is read, so errors can say where they happened.
+   */
+  private String[] pathNames = new String[32];
+  private int[] pathIndices = new int[32];
+
+  private Token peeked;
+  private String peekedText;
+  private boolean peekedBoolean;
+
+  private StringBuilder builder;
+
+  /**
+   * The table short strings are decoded through, shared with the readers of
+   * lazily decoded parts of the same document.
+   */
+  private final StringTable strings;
+
+  /**
+   * Whether string tokens are only scanned, not decoded, because the value
+   * they belong to is being skipped.
+   */
+  private boolean skipping;
+
+  public JsonReader(Reader in) {
+    this.in = in;
+    this.buffer = new char[BUFFER_SIZE];
+    this.strings = new StringTable();
+    stack[depth++] = EMPTY_DOCUMENT;
+  }
+
+  /**
+   * For subclasses that read another encoding of the same tokens and
+   * override every public method.
+   */
+  protected JsonReader() {
+    this.in = null;
+    this.buffer = null;
+    this.strings = null;
+  }
+
+  /**
+   * Creates a reader of a document held in memory. The characters are read
+   * in place and must not change while the reader is in use.
+   */
+  public JsonReader(char[] json, int offset, int length) {
+    this(json, offset, length, new StringTable());
+  }
+
+  /**
+   * Creates a reader of a document held in memory that decodes strings
+   * through {@code strings}.
+   */
+  JsonReader(char[] json, int offset, int length, StringTable strings) {
+    this.in = null;
+    this.strings = strings;
+    this.buffer = json;
+    this.pos = offset;
+    this.limit = offset + length;
+    this.lineStart = offset;
+    stack[depth++] = EMPTY_DOCUMENT;
+  }
+
+  /**
+   * Returns the kind of the next token without consuming it.
+   */
+  public Token peek() throws IOException {
+    if (peeked != null) {
+      return peeked;
+    }
+    int scope = stack[depth - 1];
+    switch (scope) {
+      case EMPTY_ARRAY:
+        stack[depth - 1] = NONEMPTY_ARRAY;
+        if (nextNonWhitespace() == ']') {
+          return peeked = Token.END_ARRAY;
+        }
+        pos--;
+        return peeked = readValueToken();
+      case NONEMPTY_ARRAY: {
+        int c = nextNonWhitespace();
+        if (c == ']') {
+          return peeked = Token.END_ARRAY;
+        } else if (c != ',') {
+          throw syntaxError("Expected ',' or ']'");
+        }
+        pathIndices[depth - 1]++;
+        return peeked = readValueToken();
+      }
+      case EMPTY_OBJECT:
+      case NONEMPTY_OBJECT: {
+        int c = nextNonWhitespace();
+        if (c == '}') {
+          return peeked = Token.END_OBJECT;
+        }
+        if (scope == NONEMPTY_OBJECT) {
+          if (c != ',') {
+            throw syntaxError("Expected ',' or '}'");
+          }
+          c = nextNonWhitespace();
+        }
+        if (c != '"') {
+          throw syntaxError("Expected a name");
+        }
+        stack[depth - 1] = DANGLING_NAME;
+        peekedText = readString();
+        pathNames[depth - 1] = peekedText;
+        return peeked = Token.NAME;
+      }
+      case DANGLING_NAME:
+        if (nextNonWhitespace() != ':') {
+          throw syntaxError("Expected ':'");
+        }
+        stack[depth - 1] = NONEMPTY_OBJECT;
+        return peeked = readValueToken();
+      case EMPTY_DOCUMENT:
+        stack[depth - 1] = NONEMPTY_DOCUMENT;
+        return peeked = readValueToken();
+      default:
+        if (nextNonWhitespaceOrEnd() != -1) {
+          throw syntaxError("Expected the end of the document");
+        }
+        return peeked = Token.END_DOCUMENT;
+    }
+  }
+
+  /**
+   * Returns whether the current object or array has another element.
+   */
+  public boolean hasNext() throws IOException {
+    Token token = peek();
+    return token != Token.END_OBJECT && token != Token.END_ARRAY
+        && token != Token.END_DOCUMENT;
+  }
+
+  public void beginObject() throws IOException {
+    expect(Token.BEGIN_OBJECT);
+    push(EMPTY_OBJECT);
+  }
+
+  public void endObject() throws IOException {
+    expect(Token.END_OBJECT);
+    depth--;
+  }
+
+  public void beginArray() throws IOException {
+    expect(Token.BEGIN_ARRAY);
+    push(EMPTY_ARRAY);
+  }
+
+  public void endArray() throws IOException {
+    expect(Token.END_ARRAY);
+    depth--;
+  }
+
+  public String nextName() throws IOException {
+    expect(Token.NAME);
+    return peekedText;
+  }
+
+  /**
+   * Returns the next string value, or {@code null} for a JSON null.
+   */
+  public String nextString() throws IOException {
+    if (peek() == Token.NULL) {
+      peeked = null;
+      return null;
+    }
+    expect(Token.STRING);
+    return peekedText;
+  }
+
+  public boolean nextBoolean() throws IOException {
+    expect(Token.BOOLEAN);
+    return peekedBoolean;
+  }
+
+  public void nextNull() throws IOException {
+    expect(Token.NULL);
+  }
+
+  /**
+   * Returns the text of the next number value.
+   */
+  public String nextNumber() throws IOException {
+    expect(Token.NUMBER);
+    return peekedText;
+  }
+
+  public long nextLong() throws IOException {
+    String text = nextNumber();
+    try {
+      return Long.parseLong(text);
+    } catch (NumberFormatException e) {
+      double value = Double.parseDouble(text);
+      if (value != (long) value) {
+        throw syntaxError("Expected an integer but was " + text);
+      }
+      return (long) value;
+    }
+  }
+
+  public int nextInt() throws IOException {
+    long value = nextLong();
+    if (value != (int) value) {
+      throw syntaxError("Expected an int but was " + value);
+    }
+    return (int) value;
+  }
+
+  public double nextDouble() throws IOException {
+    return Double.parseDouble(nextNumber());
+  }
+
+  /**
+   * Skips the next value, including everything nested in it.
+   */
+  public void skipValue() throws IOException {
+    boolean wasSkipping = skipping;
+    skipping = true;
+    try {
+      skip();
+    } finally {
+      skipping = wasSkipping;
+    }
+  }
+
+  /**
+   * Returns the number of characters consumed so far. For a reader of an
+   * in-memory document this is an index into the array it was created with.
+   */
+  int getPosition() {
+    return consumed + pos;
+  }
+
+  StringTable getStringTable() {
+    return strings;
+  }
+
+  private void skip() throws IOException {
+    int nesting = 0;
+    do {
+      switch (peek()) {
+        case BEGIN_OBJECT:
+          beginObject();
+          nesting++;
+          break;
+        case BEGIN_ARRAY:
+          beginArray();
+          nesting++;
+          break;
+        case END_OBJECT:
+          endObject();
+          nesting--;
+          break;
+        case END_ARRAY:
+          endArray();
+          nesting--;
+          break;
+        case END_DOCUMENT:
+          throw syntaxError("Unexpected end of document");
+        default:
+          peeked = null;
+      }
+    } while (nesting > 0);
+  }
+
+  /**
+   * Returns a description of the current position for error messages.
+   */
+  public String getLocation() {
+    return "line " + line + " column " + (pos - lineStart + 1);
+  }
+
+  /**
+   * Returns the path of the current value from the root of the document, as
+   * in {@code $.blips.map.b+0.elements} or {@code $.events.list[2].type}.
+   * Names inside a value that is being skipped are not decoded, so the path
+   * then ends at the skipped value.
+   */
+  public String getPath() {
+    StringBuilder path = new StringBuilder("$");
+    for (int i = 1; i < depth; i++) {
+      int scope = stack[i];
+      if (scope == EMPTY_ARRAY || scope == NONEMPTY_ARRAY) {
+        path.append('[').append(pathIndices[i]).append(']');
+      } else if (scope != EMPTY_OBJECT) {
+        if (pathNames[i] == null) {
+          break;
+        }
+        path.append('.').append(pathNames[i]);
+      }
+    }
+    return path.toString();
+  }
+
+  /**
+   * Creates an exception for malformed input at the current position.
+   */
+  public MalformedJsonException syntaxError(String message) {
+    return new MalformedJsonException(message, getPath(), getLocation());
+  }
+
+  private void expect(Token token) throws IOException {
+    if (peek() != token) {
+      throw syntaxError("Expected " + token + " but was " + peeked);
+    }
+    peeked = null;
+  }
+
+  private void push(int scope) {
+    if (depth == stack.length) {
+      int[] grown = new int[depth * 2];
+      System.arraycopy(stack, 0, grown, 0, depth);
+      stack = grown;
+      String[] names = new String[depth * 2];
+      System.arraycopy(pathNames, 0, names, 0, depth);
+      pathNames = names;
+      int[] indices = new int[depth * 2];
+      System.arraycopy(pathIndices, 0, indices, 0, depth);
+      pathIndices = indices;
+    }
+    pathNames[depth] = null;
+    pathIndices[depth] = 0;
+    stack[depth++] = scope;
+  }
+
+  private Token readValueToken() throws IOException {
+    int c = nextNonWhitespace();
+    switch (c) {
+      case '{':
+        return Token.BEGIN_OBJECT;
+      case '[':
+        return Token.BEGIN_ARRAY;
+      case '"':
+        peekedText = readString();
+        return Token.STRING;
+      case 't':
+        readLiteral("rue");
+        peekedBoolean = true;
+        return Token.BOOLEAN;
+      case 'f':
+        readLiteral("alse");
+        peekedBoolean = false;
+        return Token.BOOLEAN;
+      case 'n':
+        readLiteral("ull");
+        return Token.NULL;
+      default:
+        if (c == '-' || (c >= '0' && c <= '9')) {
+          pos--;
+          peekedText = readNumber();
+          return Token.NUMBER;
+        }
+        throw syntaxError("Expected a value");
+    }
+  }
+
+  private void readLiteral(String rest) throws IOException {
+    for (int i = 0; i < rest.length(); i++) {
+      if (pos == limit && !fill()) {
+        throw syntaxError("Unexpected end of document");
+      }
+      if (buffer[pos++] != rest.charAt(i)) {
+        throw syntaxError("Expected a value");
+      }
+    }
+  }
+
+  private String readNumber() throws IOException {
+    StringBuilder number = null;
+    int start = pos;
+    while (true) {
+      if (pos == limit) {
+        if (number == null) {
+          number = new StringBuilder();
+        }
+        number.append(buffer, start, pos - start);
+        if (!fill()) {
+          break;
+        }
+        start = pos;
+      }
+      char c = buffer[pos];
+      if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.'
+          || c == 'e' || c == 'E') {
+        pos++;
+      } else {
+        if (number != null) {
+          number.append(buffer, start, pos - start);
+        }
+        break;
+      }
+    }
+    String text = number == null ? new String(buffer, start, pos - start)
+        : number.toString();
+    if (!isNumber(text)) {
+      throw syntaxError("Malformed number " + text);
+    }
+    return text;
+  }
+
+  /**
+   * Returns whether {@code text} is a number as the JSON grammar defines it:
+   * an optional minus, an integer part without leading zeros, an optional
+   * fraction and an optional exponent.
+   */
+  static boolean isNumber(String text) {
+    int length = text.length();
+    int i = 0;
+    if (i < length && text.charAt(i) == '-') {
+      i++;
+    }
+    if (i < length && text.charAt(i) == '0') {
+      i++;
+    } else {
+      int digits = skipDigits(text, i);
+      if (digits == i) {
+        return false;
+      }
+      i = digits;
+    }
+    if (i < length && text.charAt(i) == '.') {
+      int digits = skipDigits(text, i + 1);
+      if (digits == i + 1) {
+        return false;
+      }
+      i = digits;
+    }
+    if (i < length && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+      i++;
+      if (i < length && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+        i++;
+      }
+      int digits = skipDigits(text, i);
+      if (digits == i) {
+        return false;
+      }
+      i = digits;
+    }
+    return i == length;
+  }
+
+  private static int skipDigits(String text, int i) {
+    while (i < text.length() && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * Reads a string whose opening quote has been consumed.
+   */
+  private String readString() throws IOException {
+    if (skipping) {
+      scanString();
+      return null;
+    }
+    StringBuilder text = null;
+    int start = pos;
+    // The hash of the characters so far, as String.hashCode() computes it.
+    int hash = 0;
+    while (true) {
+      if (pos == limit) {
+        if (text == null) {
+          text = reuseBuilder();
+        }
+        text.append(buffer, start, pos - start);
+        if (!fill()) {
+          throw syntaxError("Unterminated string");
+        }
+        start = pos;
+      }
+      char c = buffer[pos++];
+      if (c == '"') {
+        if (text == null) {
+          return strings.intern(buffer, start, pos - start - 1, hash);
+        }
+        text.append(buffer, start, pos - start - 1);
+        return strings.intern(text.toString());
+      } else if (c == '\\') {
+        if (text == null) {
+          text = reuseBuilder();
+        }
+        text.append(buffer, start, pos - start - 1);
+        text.append(readEscape());
+        start = pos;
+      } else if (c == '\n') {
+        line++;
+        lineStart = pos;
+      }
+      hash = 31 * hash + c;
+    }
+  }
+
+  /**
+   * Moves past a string whose opening quote has been consumed, without
+   * decoding it.
+   */
+  private void scanString() throws IOException {
+    while (true) {
+      if (pos == limit && !fill()) {
+        throw syntaxError("Unterminated string");
+      }
+      char c = buffer[pos++];
+      if (c == '"') {
+        return;
+      } else if (c == '\\') {
+        readEscape();
+      } else if (c == '\n') {
+        line++;
+        lineStart = pos;
+      }
+    }
+  }
+
+  private char readEscape() throws IOException {
+    if (pos == limit && !fill()) {
+      throw syntaxError("Unterminated escape");
+    }
+    char c = buffer[pos++];
+    switch (c) {
+      case 'b':
+        return '\b';
+      case 't':
+        return '\t';
+      case 'n':
+        return '\n';
+      case 'f':
+        return '\f';
+      case 'r':
+        return '\r';
+      case 'u':
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+          if (pos == limit && !fill()) {
+            throw syntaxError("Unterminated escape");
+          }
+          int digit = Character.digit(buffer[pos++], 16);
+          if (digit < 0) {
+            throw syntaxError("Malformed unicode escape");
+          }
+          value = (value << 4) | digit;
+        }
+        return (char) value;
+      default:
+        return c;
+    }
+  }
+
+  private StringBuilder reuseBuilder() {
+    if (builder == null) {
+      builder = new StringBuilder();
+    }
+    builder.setLength(0);
+    return builder;
+  }
+
+  private int nextNonWhitespace() throws IOException {
+    int c = nextNonWhitespaceOrEnd();
+    if (c == -1) {
+      throw syntaxError("Unexpected end of document");
+    }
+    return c;
+  }
+
+  private int nextNonWhitespaceOrEnd() throws IOException {
+    while (pos < limit || fill()) {
+      char c = buffer[pos++];
+      if (c == '\n') {
+        line++;
+        lineStart = pos;
+      } else if (c != ' ' && c != '\t' && c != '\r') {
+        return c;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Refills the buffer once it has been consumed.
+   *
+   * @return false at the end of the stream.
+   */
+  private boolean fill() throws IOException {
+    if (in == null) {
+      return false;
+    }
+    consumed += limit;
+    lineStart -= pos;
+    pos = 0;
+    limit = 0;
+    int n;
+    while ((n = in.read(buffer, 0, buffer.length)) == 0) {
+      // Keep reading.
+    }
+    if (n < 0) {
+      return false;
+    }
+    limit = n;
+    return true;
+  }
+}
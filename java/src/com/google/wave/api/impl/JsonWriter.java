@@ -0,0 +1,255 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Writes a JSON document token by token to a character stream, without
+ * building an intermediate tree. Strings are escaped the way
+ * {@link JSONObject#quote(String)} escapes them.
+ *
+ * Instances are not thread safe.
+ */
+public class JsonWriter {
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final Writer out;
+
+  /**
+   * For every open container, whether it already has an element.
+   */
+  private boolean[] nonEmpty = new boolean[32];
+  private int depth;
+  private boolean afterName;
+
+  public JsonWriter(Writer out) {
+    this.out = out;
+  }
+
+  /**
+   * For subclasses that write another encoding of the same tokens and
+   * override every public method.
+   */
+  protected JsonWriter() {
+    this.out = null;
+  }
+
+  public JsonWriter beginObject() throws IOException {
+    beforeValue();
+    out.write('{');
+    push();
+    return this;
+  }
+
+  public JsonWriter endObject() throws IOException {
+    depth--;
+    out.write('}');
+    return this;
+  }
+
+  public JsonWriter beginArray() throws IOException {
+    beforeValue();
+    out.write('[');
+    push();
+    return this;
+  }
+
+  public JsonWriter endArray() throws IOException {
+    depth--;
+    out.write(']');
+    return this;
+  }
+
+  public JsonWriter name(String name) throws IOException {
+    separate();
+    quote(name);
+    out.write(':');
+    afterName = true;
+    return this;
+  }
+
+  /**
+   * Writes a string, or null if {@code value} is {@code null}.
+   */
+  public JsonWriter value(String value) throws IOException {
+    if (value == null) {
+      return nullValue();
+    }
+    beforeValue();
+    quote(value);
+    return this;
+  }
+
+  /**
+   * Writes the wire name of an enum constant, or null if {@code constant} is
+   * {@code null}, from the form {@code table} has already encoded.
+   */
+  public <E extends Enum<E>> JsonWriter value(EnumTable<E> table, E constant)
+      throws IOException {
+    if (constant == null) {
+      return nullValue();
+    }
+    beforeValue();
+    out.write(table.getJson(constant));
+    return this;
+  }
+
+  public JsonWriter value(long value) throws IOException {
+    beforeValue();
+    out.write(Long.toString(value));
+    return this;
+  }
+
+  public JsonWriter value(boolean value) throws IOException {
+    beforeValue();
+    out.write(value ? "true" : "false");
+    return this;
+  }
+
+  /**
+   * Writes a number in the form {@link JSONObject} uses.
+   */
+  public JsonWriter value(Number value) throws IOException {
+    if (value == null) {
+      return nullValue();
+    }
+    beforeValue();
+    try {
+      out.write(JSONObject.numberToString(value));
+    } catch (JSONException e) {
+      throw new IOException(e.getMessage());
+    }
+    return this;
+  }
+
+  /**
+   * Writes a number given as its JSON text, as returned by
+   * {@link JsonReader#nextNumber()}.
+   */
+  public JsonWriter numberValue(String text) throws IOException {
+    beforeValue();
+    out.write(text);
+    return this;
+  }
+
+  public JsonWriter nullValue() throws IOException {
+    beforeValue();
+    out.write("null");
+    return this;
+  }
+
+  /**
+   * Writes an already encoded JSON value as is.
+   */
+  public JsonWriter rawValue(String json) throws IOException {
+    beforeValue();
+    out.write(json);
+    return this;
+  }
+
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  private void push() {
+    if (depth == nonEmpty.length) {
+      boolean[] grown = new boolean[depth * 2];
+      System.arraycopy(nonEmpty, 0, grown, 0, depth);
+      nonEmpty = grown;
+    }
+    nonEmpty[depth++] = false;
+  }
+
+  private void beforeValue() throws IOException {
+    if (afterName) {
+      afterName = false;
+    } else {
+      separate();
+    }
+  }
+
+  private void separate() throws IOException {
+    if (depth > 0) {
+      if (nonEmpty[depth - 1]) {
+        out.write(',');
+      }
+      nonEmpty[depth - 1] = true;
+    }
+  }
+
+  private void quote(String text) throws IOException {
+    out.write('"');
+    int start = 0;
+    int length = text.length();
+    char previous = 0;
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      String escape = null;
+      switch (c) {
+        case '"':
+          escape = "\\\"";
+          break;
+        case '\\':
+          escape = "\\\\";
+          break;
+        case '/':
+          if (previous == '<') {
+            escape = "\\/";
+          }
+          break;
+        case '\b':
+          escape = "\\b";
+          break;
+        case '\t':
+          escape = "\\t";
+          break;
+        case '\n':
+          escape = "\\n";
+          break;
+        case '\f':
+          escape = "\\f";
+          break;
+        case '\r':
+          escape = "\\r";
+          break;
+        default:
+          if (c < ' ' || (c >= '\u0080' && c < '\u00a0')
+              || (c >= '\u2000' && c < '\u2100')) {
+            escape = unicodeEscape(c);
+          }
+      }
+      previous = c;
+      if (escape != null) {
+        out.write(text, start, i - start);
+        out.write(escape);
+        start = i + 1;
+      }
+    }
+    out.write(text, start, length - start);
+    out.write('"');
+  }
+
+  private static String unicodeEscape(char c) {
+    return new String(new char[] {'\\', 'u', HEX[(c >> 12) & 0xf],
+        HEX[(c >> 8) & 0xf], HEX[(c >> 4) & 0xf], HEX[c & 0xf]});
+  }
+}
@@ -0,0 +1,123 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The blips of an event bundle, decoded on demand.
+ *
+ * When the bundle is read, each blip is only scanned and the range of
+ * characters it occupies in the raw document is recorded. A blip is decoded
+ * the first time it is looked up, so a robot that touches two blips of a
+ * bundle with hundreds of context blips pays for two. Iterating over the map
+ * decodes every blip that is left.
+ */
+class LazyBlipDataMap extends AbstractMap<String, BlipData> {
+
+  private final char[] json;
+  private final StringTable strings;
+
+  /**
+   * The range, as {start, end}, of every blip not decoded yet.
+   */
+  private final Map<String, int[]> ranges = new HashMap<String, int[]>();
+
+  private final Map<String, BlipData> blips = new HashMap<String, BlipData>();
+
+  /**
+   * @param json the raw document, which must not change afterwards.
+   * @param strings the string table the rest of the document was decoded
+   *     through.
+   */
+  LazyBlipDataMap(char[] json, StringTable strings) {
+    this.json = json;
+    this.strings = strings;
+  }
+
+  /**
+   * Records where the blip with the given id is in the document.
+   */
+  void index(String blipId, int start, int end) {
+    blips.remove(blipId);
+    ranges.put(blipId, new int[] {start, end});
+  }
+
+  @Override
+  public BlipData get(Object blipId) {
+    BlipData blip = blips.get(blipId);
+    if (blip == null && ranges.containsKey(blipId)) {
+      blip = decode((String) blipId);
+    }
+    return blip;
+  }
+
+  @Override
+  public boolean containsKey(Object blipId) {
+    return blips.containsKey(blipId) || ranges.containsKey(blipId);
+  }
+
+  @Override
+  public BlipData put(String blipId, BlipData blip) {
+    BlipData previous = get(blipId);
+    blips.put(blipId, blip);
+    return previous;
+  }
+
+  @Override
+  public BlipData remove(Object blipId) {
+    BlipData previous = get(blipId);
+    blips.remove(blipId);
+    return previous;
+  }
+
+  @Override
+  public int size() {
+    return blips.size() + ranges.size();
+  }
+
+  @Override
+  public void clear() {
+    ranges.clear();
+    blips.clear();
+  }
+
+  @Override
+  public Set<Map.Entry<String, BlipData>> entrySet() {
+    while (!ranges.isEmpty()) {
+      decode(ranges.keySet().iterator().next());
+    }
+    return blips.entrySet();
+  }
+
+  private BlipData decode(String blipId) {
+    int[] range = ranges.remove(blipId);
+    BlipData blip;
+    try {
+      blip = WaveJsonCodec.readBlipData(new JsonReader(json, range[0], range[1] - range[0],
+          strings));
+    } catch (IOException e) {
+      throw new IllegalStateException("Blip " + blipId + " cannot be decoded: "
+          + e.getMessage());
+    }
+    blips.put(blipId, blip);
+    return blip;
+  }
+}
@@ -0,0 +1,58 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a document cannot be read: it is not well-formed, or it does
+ * not have the shape the wave model expects. The message names the position
+ * and the path of the offending value, as in
+ * {@code Expected a name at $.blips.b+0.annotations[2] (line 1 column 815)}.
+ */
+public class MalformedJsonException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String path;
+  private final String location;
+
+  /**
+   * @param path the path of the offending value, as returned by
+   *     {@link JsonReader#getPath()}.
+   * @param location the position in the document, as returned by
+   *     {@link JsonReader#getLocation()}.
+   */
+  public MalformedJsonException(String message, String path, String location) {
+    super(message + " at " + path + " (" + location + ")");
+    this.path = path;
+    this.location = location;
+  }
+
+  /**
+   * Returns the path of the offending value from the root of the document.
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * Returns the position in the document where reading stopped.
+   */
+  public String getLocation() {
+    return location;
+  }
+}
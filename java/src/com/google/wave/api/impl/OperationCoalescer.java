@@ -0,0 +1,170 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.Annotation;
+import com.google.wave.api.Range;
+
+import java.util.List;
+
+/**
+ * Merges consecutive operations on the same blip into fewer ones with the
+ * same effect: appends with appends, inserts that land within or right next
+ * to the text just inserted, deletes that overlap or touch the range just
+ * deleted, deletes that only take back text just inserted, and annotation
+ * sets of the same name and value on overlapping or touching ranges.
+ *
+ * Only operations that follow each other in the list are merged, so
+ * operations on other blips in between keep every merge safe.
+ */
+final class OperationCoalescer {
+
+  private OperationCoalescer() {
+  }
+
+  /**
+   * Coalesces the operations of {@code operations} from index {@code from}
+   * on, in place.
+   */
+  static void coalesce(List<Operation> operations, int from) {
+    int last = from - 1;
+    for (int i = from; i < operations.size(); i++) {
+      Operation next = operations.get(i);
+      if (last >= from) {
+        Operation previous = operations.get(last);
+        if (sameBlip(previous, next)) {
+          Operation merged = merge(previous, next);
+          if (merged != null) {
+            operations.set(last, merged);
+            continue;
+          }
+          if (cancels(previous, next)) {
+            last--;
+            continue;
+          }
+        }
+      }
+      operations.set(++last, next);
+    }
+    operations.subList(last + 1, operations.size()).clear();
+  }
+
+  /**
+   * Returns a single operation with the effect of {@code previous} followed
+   * by {@code next}, or null if there is none.
+   */
+  private static Operation merge(Operation previous, Operation next) {
+    if (!hasValidProperty(previous) || !hasValidProperty(next)) {
+      return null;
+    }
+    OperationType type = previous.getType();
+    if (type == OperationType.DOCUMENT_APPEND && next.getType() == type) {
+      return withProperty(previous, previous.getIndex(),
+          (String) previous.getProperty() + (String) next.getProperty());
+
+    } else if (type == OperationType.DOCUMENT_INSERT && next.getType() == type) {
+      String inserted = (String) previous.getProperty();
+      int offset = next.getIndex() - previous.getIndex();
+      if (offset >= 0 && offset <= inserted.length()) {
+        return withProperty(previous, previous.getIndex(), inserted.substring(0, offset)
+            + (String) next.getProperty() + inserted.substring(offset));
+      }
+
+    } else if (type == OperationType.DOCUMENT_INSERT
+        && next.getType() == OperationType.DOCUMENT_DELETE) {
+      String inserted = (String) previous.getProperty();
+      Range range = (Range) next.getProperty();
+      int start = range.getStart() - previous.getIndex();
+      int end = range.getEnd() - previous.getIndex();
+      if (start >= 0 && end <= inserted.length() && end - start < inserted.length()) {
+        return withProperty(previous, previous.getIndex(),
+            inserted.substring(0, start) + inserted.substring(end));
+      }
+
+    } else if (type == OperationType.DOCUMENT_ANNOTATION_SET && next.getType() == type) {
+      Annotation first = (Annotation) previous.getProperty();
+      Annotation second = (Annotation) next.getProperty();
+      Range a = first.getRange();
+      Range b = second.getRange();
+      if (first.getName().equals(second.getName()) && first.getValue().equals(second.getValue())
+          && a.getStart() <= b.getEnd() && b.getStart() <= a.getEnd()) {
+        return withProperty(previous, previous.getIndex(), new Annotation(first.getName(),
+            first.getValue(), new Range(Math.min(a.getStart(), b.getStart()),
+                Math.max(a.getEnd(), b.getEnd()))));
+      }
+
+    } else if (type == OperationType.DOCUMENT_DELETE && next.getType() == type) {
+      // The second range is in the text left by the first, in which the
+      // first range collapsed to its start.
+      Range first = (Range) previous.getProperty();
+      Range second = (Range) next.getProperty();
+      if (second.getStart() <= first.getStart() && first.getStart() <= second.getEnd()) {
+        return withProperty(previous, previous.getIndex(), new Range(second.getStart(),
+            second.getEnd() + first.getEnd() - first.getStart()));
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns whether {@code next} deletes exactly the text {@code previous}
+   * inserted.
+   */
+  private static boolean cancels(Operation previous, Operation next) {
+    if (previous.getType() != OperationType.DOCUMENT_INSERT
+        || next.getType() != OperationType.DOCUMENT_DELETE
+        || !hasValidProperty(previous) || !hasValidProperty(next)) {
+      return false;
+    }
+    Range range = (Range) next.getProperty();
+    return range.getStart() == previous.getIndex()
+        && range.getEnd() == previous.getIndex() + ((String) previous.getProperty()).length();
+  }
+
+  private static boolean sameBlip(Operation a, Operation b) {
+    return equal(a.getBlipId(), b.getBlipId()) && equal(a.getWaveletId(), b.getWaveletId())
+        && equal(a.getWaveId(), b.getWaveId());
+  }
+
+  /**
+   * Returns whether the property of {@code operation} is what the merges
+   * expect: text for inserts and appends, a range for deletes, and a ranged
+   * annotation for annotation sets.
+   */
+  private static boolean hasValidProperty(Operation operation) {
+    switch (operation.getType()) {
+      case DOCUMENT_APPEND:
+      case DOCUMENT_INSERT:
+        return operation.getProperty() instanceof String;
+      case DOCUMENT_DELETE:
+        return operation.getProperty() instanceof Range;
+      case DOCUMENT_ANNOTATION_SET:
+        return operation.getProperty() instanceof Annotation
+            && ((Annotation) operation.getProperty()).getRange() != null;
+      default:
+        return true;
+    }
+  }
+
+  private static Operation withProperty(Operation operation, int index, Object property) {
+    return new OperationImpl(operation.getType(), operation.getWaveId(),
+        operation.getWaveletId(), operation.getBlipId(), index, property);
+  }
+
+  private static boolean equal(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+}
@@ -0,0 +1,193 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.Annotation;
+import com.google.wave.api.Range;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Shrinks a list of operations to one with the same effect once Wave has
+ * applied it, before it is sent.
+ *
+ * Operations whose effect a later one overwrites are dropped:
+ * <ul>
+ * <li>an annotation set whose name a later annotation delete removes from
+ * the blip, or whose range a later delete of annotations by range, or a
+ * later set of the same name, covers;
+ * <li>a data document set or append followed by a set of the same data
+ * document.
+ * </ul>
+ * This relies on Wave's annotation model, in which a name holds one value
+ * per character, so a set overwrites whatever the name held in its range.
+ * Ranges are only compared between operations with no other operation on
+ * the blip in between, since any of them may move the text. The remaining
+ * operations are then coalesced by {@link OperationCoalescer}.
+ */
+final class OperationCompactor {
+
+  /**
+   * What the operations after the current one do to the annotations of a
+   * blip.
+   */
+  private static final class BlipState {
+    /** The names a later operation deletes from the whole blip. */
+    final Set<String> deletedNames = new HashSet<String>();
+    /**
+     * For each name, the ranges later sets cover, up to the next operation
+     * that may move the text. A null range stands for the whole blip.
+     */
+    final Map<String, List<Range>> covered = new HashMap<String, List<Range>>();
+    /** The ranges later deletes clear of annotations, likewise. */
+    final List<Range> cleared = new ArrayList<Range>();
+  }
+
+  private OperationCompactor() {
+  }
+
+  /**
+   * Compacts {@code operations} in place.
+   */
+  static void compact(List<Operation> operations) {
+    removeOverwritten(operations);
+    OperationCoalescer.coalesce(operations, 0);
+  }
+
+  private static void removeOverwritten(List<Operation> operations) {
+    Map<String, BlipState> blips = new HashMap<String, BlipState>();
+    Set<String> dataDocuments = new HashSet<String>();
+    boolean[] dead = new boolean[operations.size()];
+    int deadCount = 0;
+
+    for (int i = operations.size() - 1; i >= 0; i--) {
+      Operation operation = operations.get(i);
+      String key = operation.getWaveId() + '\n' + operation.getWaveletId() + '\n'
+          + operation.getBlipId();
+      switch (operation.getType()) {
+        case WAVELET_DATADOC_SET:
+          // The blip id holds the name of the data document.
+          dead[i] = !dataDocuments.add(key);
+          break;
+        case WAVELET_DATADOC_APPEND:
+          dead[i] = dataDocuments.contains(key);
+          break;
+        case DOCUMENT_ANNOTATION_SET:
+        case DOCUMENT_ANNOTATION_SET_NORANGE:
+          if (operation.getProperty() instanceof Annotation
+              && (operation.getType() == OperationType.DOCUMENT_ANNOTATION_SET_NORANGE
+                  || ((Annotation) operation.getProperty()).getRange() != null)) {
+            dead[i] = isOverwritten(getState(blips, key), operation);
+          } else {
+            moved(blips, key);
+          }
+          break;
+        case DOCUMENT_ANNOTATION_DELETE:
+          if (operation.getProperty() instanceof String) {
+            getState(blips, key).deletedNames.add((String) operation.getProperty());
+          } else if (operation.getProperty() instanceof Range) {
+            getState(blips, key).cleared.add((Range) operation.getProperty());
+          } else {
+            moved(blips, key);
+          }
+          break;
+        default:
+          moved(blips, key);
+      }
+      if (dead[i]) {
+        deadCount++;
+      }
+    }
+
+    if (deadCount > 0) {
+      int last = 0;
+      for (int i = 0; i < dead.length; i++) {
+        if (!dead[i]) {
+          operations.set(last++, operations.get(i));
+        }
+      }
+      operations.subList(last, operations.size()).clear();
+    }
+  }
+
+  /**
+   * Returns whether the annotation set {@code operation} is overwritten by
+   * the operations after it, recording what it covers if it is not.
+   */
+  private static boolean isOverwritten(BlipState state, Operation operation) {
+    Annotation annotation = (Annotation) operation.getProperty();
+    String name = annotation.getName();
+    Range range = operation.getType() == OperationType.DOCUMENT_ANNOTATION_SET
+        ? annotation.getRange() : null;
+    if (state.deletedNames.contains(name)) {
+      return true;
+    }
+    List<Range> covered = state.covered.get(name);
+    if (covered != null) {
+      for (Range later : covered) {
+        if (later == null || contains(later, range)) {
+          return true;
+        }
+      }
+    }
+    for (Range later : state.cleared) {
+      if (contains(later, range)) {
+        return true;
+      }
+    }
+    if (covered == null) {
+      covered = new ArrayList<Range>(2);
+      state.covered.put(name, covered);
+    }
+    covered.add(range);
+    return false;
+  }
+
+  /**
+   * Records that an operation that may move the text of the blip comes
+   * before the ones seen so far, so their ranges no longer apply.
+   */
+  private static void moved(Map<String, BlipState> blips, String key) {
+    BlipState state = blips.get(key);
+    if (state != null) {
+      state.covered.clear();
+      state.cleared.clear();
+    }
+  }
+
+  private static BlipState getState(Map<String, BlipState> blips, String key) {
+    BlipState state = blips.get(key);
+    if (state == null) {
+      state = new BlipState();
+      blips.put(key, state);
+    }
+    return state;
+  }
+
+  /**
+   * Returns whether {@code outer} contains {@code inner}, a null range
+   * standing for the whole blip.
+   */
+  private static boolean contains(Range outer, Range inner) {
+    return inner != null && outer.getStart() <= inner.getStart()
+        && inner.getEnd() <= outer.getEnd();
+  }
+}
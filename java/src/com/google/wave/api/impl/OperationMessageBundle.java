@@ -41,6 +41,16 @@ public class OperationMessageBundle {
     operations.add(operation);
   }
 
+  /**
+   * Drops the operations whose effect later ones overwrite and merges the
+   * ones that can be merged, leaving a bundle with the same effect.
+   * 
+   * @see OperationCompactor
+   */
+  public void compact() {
+    OperationCompactor.compact(operations);
+  }
+
   public String getVersion() {
     return version;
   }
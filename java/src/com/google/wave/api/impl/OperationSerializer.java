@@ -97,7 +97,11 @@ public class OperationSerializer extends AbstractSerializer {
                                                  String.class,
                                                  jsonObject.get(FIELD_WAVELET_ID));
       String blipId = (String) ser.unmarshall(state, String.class, jsonObject.get(FIELD_BLIP_ID));
-      OperationType type = OperationType.valueOf(jsonObject.getString(FIELD_TYPE));
+      String typeName = jsonObject.getString(FIELD_TYPE);
+      OperationType type = EnumTable.OPERATION_TYPES.fromText(typeName);
+      if (type == null) {
+        throw new UnmarshallException("Unknown operation type " + typeName);
+      }
       int index = jsonObject.isNull(FIELD_INDEX)?-1:jsonObject.getInt(FIELD_INDEX);
       Object property = jsonObject.isNull(FIELD_PROPERTY)?null:jsonObject.get(FIELD_PROPERTY);
       operation = new OperationImpl(type, waveId, waveletId, blipId, index, property);
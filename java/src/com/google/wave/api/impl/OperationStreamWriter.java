@@ -0,0 +1,128 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes an {@link OperationMessageBundle} to a character stream one operation
+ * at a time, in the same form as
+ * {@link WaveJsonCodec#writeOperationMessageBundle(OperationMessageBundle, Writer)}.
+ *
+ * Nothing is buffered here beyond the operation being written: once at least
+ * {@code flushThreshold} characters have been written since the last flush,
+ * the stream is flushed after the current operation, so a bundle of thousands
+ * of operations goes out in chunks instead of being held whole.
+ *
+ * Instances are not thread safe.
+ */
+public class OperationStreamWriter {
+
+  private static final String ARRAY_LIST_CLASS = "java.util.ArrayList";
+
+  private final CountingWriter out;
+  private final JsonWriter json;
+  private final int flushThreshold;
+
+  /**
+   * @param out the stream to write to.
+   * @param flushThreshold the number of characters after which the stream is
+   *     flushed, or 0 to flush only at the end.
+   */
+  public OperationStreamWriter(Writer out, int flushThreshold) {
+    this.out = new CountingWriter(out);
+    this.json = new JsonWriter(this.out);
+    this.flushThreshold = flushThreshold;
+  }
+
+  /**
+   * Writes the bundle and flushes the stream. The stream is not closed.
+   */
+  public void write(OperationMessageBundle bundle) throws IOException {
+    json.beginObject();
+    json.name("javaClass").value(OperationMessageBundle.class.getName());
+    json.name("operations").beginObject();
+    json.name("javaClass").value(ARRAY_LIST_CLASS);
+    json.name("list").beginArray();
+    for (Operation operation : bundle.getOperations()) {
+      WaveJsonCodec.writeOperation(operation, json);
+      if (flushThreshold > 0 && out.getUnflushed() >= flushThreshold) {
+        out.flush();
+      }
+    }
+    json.endArray();
+    json.endObject();
+    json.name("version").value(bundle.getVersion());
+    json.endObject();
+    out.flush();
+  }
+
+  /**
+   * Returns the number of characters written so far.
+   */
+  public long getCharsWritten() {
+    return out.getCount();
+  }
+
+  private static class CountingWriter extends Writer {
+
+    private final Writer out;
+    private long count;
+    private long flushedAt;
+
+    CountingWriter(Writer out) {
+      this.out = out;
+    }
+
+    long getCount() {
+      return count;
+    }
+
+    long getUnflushed() {
+      return count - flushedAt;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+      out.write(c);
+      count++;
+    }
+
+    @Override
+    public void write(char[] buf, int off, int len) throws IOException {
+      out.write(buf, off, len);
+      count += len;
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+      out.write(str, off, len);
+      count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+      flushedAt = count;
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+}
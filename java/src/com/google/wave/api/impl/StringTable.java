@@ -0,0 +1,115 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+/**
+ * A bounded table of canonical strings, so that the wave ids, wavelet ids,
+ * participant addresses and annotation names that repeat throughout a bundle
+ * are decoded into shared instances. Strings are looked up by their
+ * characters, so one that is already in the table is not allocated again.
+ *
+ * Instances are not thread safe.
+ */
+final class StringTable {
+
+  /**
+   * Longer strings, such as blip content, rarely repeat and are not kept.
+   */
+  static final int MAX_LENGTH = 64;
+
+  private static final int MAX_SIZE = 4096;
+
+  private String[] table = new String[64];
+  private int size;
+
+  /**
+   * Returns the canonical string with the given characters.
+   *
+   * @param hash the hash of the characters, as {@link String#hashCode()}
+   *     computes it.
+   */
+  String intern(char[] chars, int offset, int length, int hash) {
+    if (length > MAX_LENGTH) {
+      return new String(chars, offset, length);
+    }
+    int mask = table.length - 1;
+    int index = spread(hash) & mask;
+    for (String s; (s = table[index]) != null; index = (index + 1) & mask) {
+      if (s.hashCode() == hash && matches(s, chars, offset, length)) {
+        return s;
+      }
+    }
+    String s = new String(chars, offset, length);
+    add(s, index);
+    return s;
+  }
+
+  /**
+   * Returns the canonical string equal to {@code s}.
+   */
+  String intern(String s) {
+    if (s.length() > MAX_LENGTH) {
+      return s;
+    }
+    int mask = table.length - 1;
+    int index = spread(s.hashCode()) & mask;
+    for (String t; (t = table[index]) != null; index = (index + 1) & mask) {
+      if (t.equals(s)) {
+        return t;
+      }
+    }
+    add(s, index);
+    return s;
+  }
+
+  private void add(String s, int index) {
+    if (size == MAX_SIZE) {
+      return;
+    }
+    table[index] = s;
+    size++;
+    if (size * 2 > table.length) {
+      String[] old = table;
+      table = new String[old.length * 2];
+      int mask = table.length - 1;
+      for (String t : old) {
+        if (t != null) {
+          int i = spread(t.hashCode()) & mask;
+          while (table[i] != null) {
+            i = (i + 1) & mask;
+          }
+          table[i] = t;
+        }
+      }
+    }
+  }
+
+  private static boolean matches(String s, char[] chars, int offset, int length) {
+    if (s.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (s.charAt(i) != chars[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int spread(int h) {
+    return h ^ (h >>> 16);
+  }
+}
@@ -28,11 +28,8 @@ import com.google.wave.api.StyledText;
 import com.google.wave.api.TextView;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
-import java.util.Set;
 import java.util.regex.Pattern;
 
 /**
@@ -43,38 +40,22 @@ import java.util.regex.Pattern;
  */
 public class TextViewImpl implements TextView {
 
-  static private abstract class AnnotationMatcher {
-    public boolean match(Annotation annotation) {
-      return matchRange(annotation) && matchContent(annotation);
-    }
-    
-    public boolean matchRange(Annotation annotation) {
-      return true;
-    }
-    
-    public abstract boolean matchContent(Annotation annotation);
-  }
-  
-  static private abstract class RangedAnnotationMatcher extends AnnotationMatcher {
-    private final Range range;
-
-    public RangedAnnotationMatcher(Range range) {
-      this.range = range;
-    }
-    
-    @Override
-    public boolean matchRange(Annotation ann) {
-      return ann.getRange().getStart() <= range.getStart() &&
-          range.getEnd() <= ann.getRange().getEnd();
-    }
-  }
-
   private static final Pattern htmlTagPattern = Pattern.compile("</?[a-zA-Z][^>]*>");
 
   private BlipData blipData;
 
   private RobotMessageBundleImpl events;
 
+  /**
+   * The number of batches begun and not yet committed.
+   */
+  private int batchDepth;
+
+  /**
+   * The number of operations in the bundle when the outermost batch began.
+   */
+  private int batchStart;
+
   @SuppressWarnings("unchecked")
   public TextViewImpl(BlipData blipData, RobotMessageBundleImpl events) {
     this.blipData = blipData;
@@ -84,12 +65,12 @@ public class TextViewImpl implements TextView {
   @Override
   public void insert(int start, String text) {
     // Validate the starting index.
-    if (start < 0 || start > blipData.getContent().length()) {
+    if (start < 0 || start > blipData.getContentLength()) {
       throw new IndexOutOfBoundsException("Invalid start index " + start);
     }
     
     // Ensure that insertion to the end of the content ends with "\n".
-    if (start == blipData.getContent().length() && !text.endsWith("\n")) {
+    if (start == blipData.getContentLength() && !text.endsWith("\n")) {
       text += "\n";
     }
 
@@ -101,9 +82,7 @@ public class TextViewImpl implements TextView {
     }
     
     // Insert the text to the underlying blip data.
-    StringBuilder sb = new StringBuilder(blipData.getContent());
-    sb.insert(start, text);
-    blipData.setContent(sb.toString());
+    blipData.insertContent(start, text);
     expandOrShiftAnnotations(start, text.length());
   }
 
@@ -115,7 +94,7 @@ public class TextViewImpl implements TextView {
           blipData.getWaveletId(), blipData.getBlipId(), 0, text);
       events.addOperation(operation);
     }
-    blipData.setContent(blipData.getContent().concat(text));
+    blipData.insertContent(blipData.getContentLength(), text);
   }
   
   @Override
@@ -127,7 +106,7 @@ public class TextViewImpl implements TextView {
     }
 
     String stripped = htmlTagPattern.matcher(content).replaceAll("");
-    blipData.setContent(blipData.getContent() + stripped);
+    blipData.insertContent(blipData.getContentLength(), stripped);
   }
   
   @Override
@@ -135,7 +114,7 @@ public class TextViewImpl implements TextView {
     int start = range.getStart();
     int end = range.getEnd();
     
-    if (start < 0 || end >= blipData.getContent().length() || start >= end) {
+    if (start < 0 || end >= blipData.getContentLength() || start >= end) {
       throw new IndexOutOfBoundsException("Invalid range " + start + " - " + end);
     }
     
@@ -147,9 +126,7 @@ public class TextViewImpl implements TextView {
     }
 
     // Delete the text from the underlying blip data.
-    StringBuilder sb = new StringBuilder(blipData.getContent());
-    sb.delete(range.getStart(), range.getEnd());
-    blipData.setContent(sb.toString());
+    blipData.deleteContent(range.getStart(), range.getEnd());
     shrinkOrShiftAnnotations(range.getStart(), range.getEnd() - range.getStart());
   }
 
@@ -171,7 +148,7 @@ public class TextViewImpl implements TextView {
   public String getText(Range range) {
     int start = range.getStart();
     int end = range.getEnd();
-    if (start < 0 || end > blipData.getContent().length()) {
+    if (start < 0 || end > blipData.getContentLength()) {
       throw new IndexOutOfBoundsException("Invalid range " + start + " - " + end);
     }
     return blipData.getContent().substring(start, end);
@@ -198,14 +175,14 @@ public class TextViewImpl implements TextView {
       events.addOperation(operation);
     }
     
-    int start = blipData.getContent().length();
+    int start = blipData.getContentLength();
     int end = start + styledText.getText().length();
 
     String text = styledText.getText();
     if (!text.endsWith("\n")) {
       text = text.concat("\n");
     }
-    blipData.setContent(blipData.getContent().concat(text));
+    blipData.insertContent(start, text);
     for (StyleType type : styledText.getStyles()) {
       blipData.addAnnotation(new Annotation("styled-text", type.toString(),
           new Range(start, end)));
@@ -241,12 +218,7 @@ public class TextViewImpl implements TextView {
 
   @Override
   public List<Annotation> getStyles() {
-    return getAnnotations(new AnnotationMatcher() {
-      @Override
-      public boolean matchContent(Annotation annotation) {
-        return annotation.getName().equals("styled-text");
-      } 
-    });
+    return blipData.getAnnotationIndex().getNamed("styled-text");
   }
 
   @Override
@@ -278,10 +250,13 @@ public class TextViewImpl implements TextView {
         0, blip.getBlipId()));
     blipData.getChildBlipIds().remove(blip.getBlipId());
     events.getBlipData().remove(blip.getBlipId());
-    for (String index : blipData.getElements().keySet()) {
-      Element element = getElement(Integer.parseInt(index));
-      if (element.isInlineBlip() && element.getProperty("blipId").equals(blip.getBlipId())) {
-        deleteElement(Integer.parseInt(index));
+    // Go backwards, so that deleting an element leaves the ones still to
+    // visit where they are.
+    ElementIndex elements = blipData.getElementIndex();
+    for (int i = elements.size() - 1; i >= 0; i--) {
+      Element element = elements.elementAt(i);
+      if (element.isInlineBlip() && blip.getBlipId().equals(element.getProperty("blipId"))) {
+        deleteElement(elements.positionAt(i));
       }
     }
   }
@@ -289,7 +264,9 @@ public class TextViewImpl implements TextView {
   @Override
   public List<Blip> getInlineBlips() {
     List<Blip> inlineBlips = new ArrayList<Blip>();
-    for (Element element : blipData.getElements().values()) {
+    ElementIndex elements = blipData.getElementIndex();
+    for (int i = 0; i < elements.size(); i++) {
+      Element element = elements.elementAt(i);
       if (element.isInlineBlip() &&
           element.getProperty("blipId") != null &&
           events.getBlipData().containsKey(element.getProperty("blipId"))) {
@@ -313,65 +290,34 @@ public class TextViewImpl implements TextView {
   }
 
   @Override
-  public List<Annotation> getAnnotations(final String name) {
-    return getAnnotations(new AnnotationMatcher() {
-      @Override
-      public boolean matchContent(Annotation annotation) {
-        return annotation.getName().equals(name);
-      } 
-    });
+  public List<Annotation> getAnnotations(String name) {
+    return blipData.getAnnotationIndex().getNamed(name);
   }
 
   @Override
-  public List<Annotation> getStyles(final StyleType style) {
-    return getAnnotations(new AnnotationMatcher() {
-      @Override
-      public boolean matchContent(Annotation annotation) {
-        return annotation.getName().equals("styled-text") &&
-            annotation.getValue().equals(style.toString());
-      } 
-    });
+  public List<Annotation> getStyles(StyleType style) {
+    return withValue(blipData.getAnnotationIndex().getNamed("styled-text"), style.toString());
   }
 
   @Override
   public List<Annotation> getAnnotations(Range range) {
-    return getAnnotations(new RangedAnnotationMatcher(range) {
-      @Override
-      public boolean matchContent(Annotation annotation) {
-        return true;
-      } 
-    });
+    return blipData.getAnnotationIndex().getCovering(range, null);
   }
 
   @Override
-  public List<Annotation> getAnnotations(Range range, final String name) {
-    return getAnnotations(new RangedAnnotationMatcher(range) {
-      @Override
-      public boolean matchContent(Annotation annotation) {
-        return annotation.getName().equals(name);
-      } 
-    });
+  public List<Annotation> getAnnotations(Range range, String name) {
+    return blipData.getAnnotationIndex().getCovering(range, name);
   }
 
   @Override
   public List<Annotation> getStyles(Range range) {
-    return getAnnotations(new RangedAnnotationMatcher(range) {
-      @Override
-      public boolean matchContent(Annotation annotation) {
-        return annotation.getName().equals("styled-text");
-      } 
-    });
+    return blipData.getAnnotationIndex().getCovering(range, "styled-text");
   }
 
   @Override
-  public List<Annotation> getStyles(Range range, final StyleType style) {
-    return getAnnotations(new RangedAnnotationMatcher(range) {
-      @Override
-      public boolean matchContent(Annotation annotation) {
-        return annotation.getName().equals("styled-text") &&
-            annotation.getValue().equals(style.toString());
-      } 
-    });
+  public List<Annotation> getStyles(Range range, StyleType style) {
+    return withValue(blipData.getAnnotationIndex().getCovering(range, "styled-text"),
+        style.toString());
   }
 
   @Override
@@ -380,13 +326,13 @@ public class TextViewImpl implements TextView {
       events.addOperation(new OperationImpl(OperationType.DOCUMENT_ANNOTATION_SET_NORANGE,
           blipData.getWaveId(), blipData.getWaveletId(), blipData.getBlipId(),
           0, new Annotation(name, value, range)));
-      range = new Range(0, blipData.getContent().length());
+      range = new Range(0, blipData.getContentLength());
     } else {
       events.addOperation(new OperationImpl(OperationType.DOCUMENT_ANNOTATION_SET,
           blipData.getWaveId(), blipData.getWaveletId(), blipData.getBlipId(),
           0, new Annotation(name, value, range)));
     }
-    blipData.getAnnotations().add(new Annotation(name, value, range));
+    blipData.addAnnotation(new Annotation(name, value, range));
   }
 
   @Override
@@ -396,25 +342,30 @@ public class TextViewImpl implements TextView {
 
   @Override
   public void appendElement(Element element) {
-    int length = blipData.getContent().length();
+    int length = blipData.getContentLength();
     events.addOperation(new OperationImpl(OperationType.DOCUMENT_ELEMENT_APPEND,
         blipData.getWaveId(), blipData.getWaveletId(), blipData.getBlipId(),
         length, element));
     
     blipData.addElement(length, element);
     if (element.getType().equals(ElementType.INPUT)) {
-      blipData.setContent(blipData.getContent().concat(" "));
+      blipData.insertContent(length, " ");
       expandOrShiftAnnotations(length - 1, 1);
     } else {
-      blipData.setContent(blipData.getContent().concat(" \n"));      
+      blipData.insertContent(length, " \n");
       expandOrShiftAnnotations(length - 1, 2);
     }
   }
 
   @Override
   public List<Element> getElements() {
-    if (blipData != null && blipData.getElements() != null) {
-      return new ArrayList<Element>(blipData.getElements().values());
+    if (blipData != null) {
+      ElementIndex index = blipData.getElementIndex();
+      List<Element> elements = new ArrayList<Element>(index.size());
+      for (int i = 0; i < index.size(); i++) {
+        elements.add(index.elementAt(i));
+      }
+      return elements;
     } else {
       return null;
     }
@@ -423,12 +374,10 @@ public class TextViewImpl implements TextView {
   @Override
   public List<Element> getElements(Range range) {
     List<Element> elements = new ArrayList<Element>();
-    for (Iterator<String> iterator = blipData.getElements().keySet().iterator();
-        iterator.hasNext(); ) {
-      Integer index = Integer.parseInt(iterator.next());
-      if (index >= range.getStart() && index < range.getEnd()) {
-        elements.add(blipData.getElements().get(index));
-      }
+    ElementIndex index = blipData.getElementIndex();
+    for (int i = index.indexOf(range.getStart());
+        i < index.size() && index.positionAt(i) < range.getEnd(); i++) {
+      elements.add(index.elementAt(i));
     }
     return elements;
   }
@@ -438,14 +387,18 @@ public class TextViewImpl implements TextView {
     return new FormViewImpl(this);
   }
 
-  private List<Annotation> getAnnotations(AnnotationMatcher matcher) {
-    List<Annotation> result = new ArrayList<Annotation>();
-    for (Annotation annotation : blipData.getAnnotations()) {
-      if (matcher.match(annotation)) {
-        result.add(annotation);
+  /**
+   * Removes the annotations whose value is not <code>value</code> from
+   * <code>annotations</code>.
+   */
+  private static List<Annotation> withValue(List<Annotation> annotations, String value) {
+    Iterator<Annotation> iterator = annotations.iterator();
+    while (iterator.hasNext()) {
+      if (!iterator.next().getValue().equals(value)) {
+        iterator.remove();
       }
     }
-    return result;
+    return annotations;
   }
 
   /**
@@ -458,19 +411,7 @@ public class TextViewImpl implements TextView {
    *     which determines the shift amount.
    */
   private void expandOrShiftAnnotations(int point, int length) {
-    for (Annotation annotation : blipData.getAnnotations()) {
-      // Shift the starting index of the annotation.
-      int start = annotation.getRange().getStart();
-      if (start >= point) {
-        annotation.getRange().setStart(start + length);
-      }
-
-      // Shift the end index of the annotation.
-      int end = annotation.getRange().getEnd();
-      if (end >= point) {
-        annotation.getRange().setEnd(end + length);
-      }
-    }
+    blipData.getAnnotationIndex().insert(point, length);
   }
   
   /**
@@ -482,52 +423,12 @@ public class TextViewImpl implements TextView {
    * @param length the length of the entity that is about to be deleted
    */
   private void shrinkOrShiftAnnotations(int point, int length) {
-    ListIterator<Annotation> iterator = blipData.getAnnotations().listIterator();
-    while (iterator.hasNext()) {
-      Range range = iterator.next().getRange();
-      int start = range.getStart();
-      int end = range.getEnd();
-      
-      // There are six cases to consider, since start and end can each be in three different
-      // states: before, in, or after the "deleted" range. However, we ignore the case where
-      // both start and end are before the "deleted" range. We also assume that start < end.
-      if (start < point) {
-        if (end >= point + length) {
-          // Case 1: Start is before, end is after the deleted range.
-          range.setEnd(end - length);
-        } else if (end >= point) {
-          // Case 2: Start is before, end is in the deleted range.
-          range.setEnd(point);
-        } else {
-          // Case 3: Start and end are before the deleted range. Do nothing.
-        }
-      } else if (start >= point + length) {
-        // Case 4: Start and end are after the deleted range.
-        range.setStart(start - length);
-        range.setEnd(end - length);
-      } else {
-        if (end > point + length) {
-          // Case 5: Start is inside, end is after the deleted range.
-          range.setStart(point);
-          range.setEnd(end - length);
-        } else {
-          // Case 6: Start is inside, end is inside the deleted range. Delete the annotation.
-          iterator.remove();
-        }
-      }
-    }
+    blipData.getAnnotationIndex().delete(point, length);
   }
 
   @Override
   public boolean hasAnnotation(String name) {
-    if (blipData != null && blipData.getAnnotations() != null) {
-      for (Annotation annotation : blipData.getAnnotations()) {
-        if (name.equals(annotation.getName())) {
-          return true;
-        }
-      }
-    }
-    return false;
+    return blipData.getAnnotationIndex().hasName(name);
   }
 
   @Override
@@ -548,14 +449,7 @@ public class TextViewImpl implements TextView {
     events.addOperation(new OperationImpl(OperationType.DOCUMENT_ANNOTATION_DELETE, 
         blipData.getWaveId(), blipData.getWaveletId(), blipData.getBlipId(),
         0, name));
-    
-    ListIterator<Annotation> iterator = blipData.getAnnotations().listIterator();
-    while (iterator.hasNext()) {
-      Annotation annotation = iterator.next();
-      if (annotation.getName().equals(name)) {
-        iterator.remove();
-      }
-    }
+    blipData.getAnnotationIndex().removeNamed(name);
   }
 
   @Override
@@ -563,15 +457,7 @@ public class TextViewImpl implements TextView {
     events.addOperation(new OperationImpl(OperationType.DOCUMENT_ANNOTATION_DELETE, 
         blipData.getWaveId(), blipData.getWaveletId(), blipData.getBlipId(),
         0, range));
-    
-    ListIterator<Annotation> iterator = blipData.getAnnotations().listIterator();
-    while (iterator.hasNext()) {
-      Annotation annotation = iterator.next();
-      if (range.getStart() <= annotation.getRange().getStart() &&
-          annotation.getRange().getEnd() <= range.getEnd()) {
-        iterator.remove();
-      }
-    }
+    blipData.getAnnotationIndex().removeWithin(range);
   }
 
   @Override
@@ -588,33 +474,32 @@ public class TextViewImpl implements TextView {
           index, null));
     }
     // adjust annotations and other element positions
-    blipData.getElements().remove(Integer.toString(index));
-    if (index >= 0 && index < blipData.getContent().length()) {
-      // Insert the text to the underlying blip data.
-      StringBuilder sb = new StringBuilder(blipData.getContent());
-      sb.deleteCharAt(index);
-      blipData.setContent(sb.toString());
+    blipData.getElementIndex().remove(index);
+    if (index >= 0 && index < blipData.getContentLength()) {
+      // Delete the text from the underlying blip data.
+      blipData.deleteContent(index, index + 1);
       shrinkOrShiftAnnotations(index, 1);
-      shiftElementsUp(index, 1);
+      blipData.getElementIndex().shift(index, -1);
     }
   }
 
   @Override
   public boolean elementExists(int index) {
-    return blipData.getElements().containsKey(index);
+    return blipData.getElementIndex().get(index) != null;
   }
 
   @Override
   public Element getElement(int index) {
-    return blipData.getElements().get(Integer.toString(index));
+    return blipData.getElementIndex().get(index);
   }
 
   @Override
   public List<Element> getElements(ElementType type) {
     List<Element> elements = new ArrayList<Element>();
-    for (Element element : blipData.getElements().values()) {
-      if (element.getType() == type) {
-        elements.add(element);
+    ElementIndex index = blipData.getElementIndex();
+    for (int i = 0; i < index.size(); i++) {
+      if (index.elementAt(i).getType() == type) {
+        elements.add(index.elementAt(i));
       }
     }
     return elements;
@@ -627,15 +512,7 @@ public class TextViewImpl implements TextView {
 
   @Override
   public int getPosition(Element element) {
-    if (!blipData.getElements().containsValue(element)) {
-      return -1;
-    }
-    for (String index : blipData.getElements().keySet()) {
-      if (blipData.getElements().get(index).equals(element)) {
-        return Integer.parseInt(index);
-      }
-    }
-    return -1;
+    return blipData.getElementIndex().getPosition(element);
   }
 
   @Override
@@ -644,44 +521,10 @@ public class TextViewImpl implements TextView {
         blipData.getWaveId(), blipData.getWaveletId(), blipData.getBlipId(),
         index, element));
     this.expandOrShiftAnnotations(index, 1);
-    shiftElementsDown(index, 1);
-    blipData.getElements().put(Integer.toString(index), element);
+    blipData.getElementIndex().shift(index, 1);
+    blipData.getElementIndex().put(index, element);
     // Insert the text to the underlying blip data.
-    StringBuilder sb = new StringBuilder(blipData.getContent());
-    sb.insert(index, " ");
-    blipData.setContent(sb.toString());
-  }
-
-  private void shiftElementsDown(int start, int length) {
-    Set<String> keys = new HashSet<String>();
-    for (String key : blipData.getElements().keySet()) {
-      if (Integer.parseInt(key) >= start) {
-        keys.add(key);
-      }
-    }
-    
-    for (String keyValue : keys) {
-      int key = Integer.parseInt(keyValue);
-      Element element = blipData.getElements().get(Integer.toString(key));
-      blipData.getElements().remove(Integer.toString(key));
-      blipData.getElements().put(Integer.toString(key + length), element);
-    }
-  }
-
-  private void shiftElementsUp(int start, int length) {
-    Set<String> keys = new HashSet<String>();
-    for (String key : blipData.getElements().keySet()) {
-      if (Integer.parseInt(key) >= start) {
-        keys.add(key);
-      }
-    }
-    
-    for (String keyValue : keys) {
-      int key = Integer.parseInt(keyValue);
-      Element element = blipData.getElements().get(Integer.toString(key));
-      blipData.getElements().remove(Integer.toString(key));
-      blipData.getElements().put(Integer.toString(key - length), element);
-    }
+    blipData.insertContent(index, " ");
   }
 
   @Override
@@ -689,7 +532,7 @@ public class TextViewImpl implements TextView {
     events.addOperation(new OperationImpl(OperationType.DOCUMENT_ELEMENT_REPLACE, 
         blipData.getWaveId(), blipData.getWaveletId(), blipData.getBlipId(),
         index, element));
-    blipData.getElements().put(Integer.toString(index), element);
+    blipData.getElementIndex().put(index, element);
   }
 
   @Override
@@ -714,4 +557,24 @@ public class TextViewImpl implements TextView {
         blipData.getWaveId(), blipData.getWaveletId(), blipData.getBlipId(),
         -1, creationTime));
   }
+
+  @Override
+  public void beginBatch() {
+    if (batchDepth++ == 0) {
+      batchStart = events.getOperations().getOperations().size();
+    }
+  }
+
+  @Override
+  public void commitBatch() {
+    if (batchDepth == 0) {
+      throw new IllegalStateException("No batch to commit");
+    }
+    if (--batchDepth == 0) {
+      // Operations are only ever appended, so those of the batch are still
+      // the tail of the list, possibly mixed with those of other blips.
+      List<Operation> operations = events.getOperations().getOperations();
+      OperationCoalescer.coalesce(operations, Math.min(batchStart, operations.size()));
+    }
+  }
 }
@@ -0,0 +1,149 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Codecs for the compact binary form of the robot wire model, written by
+ * {@link BinaryJsonWriter} and read by {@link BinaryJsonReader}.
+ *
+ * The binary form carries exactly the tokens of the JSON form, so the model
+ * is mapped by {@link WaveJsonCodec} in both cases, and a document converted
+ * from JSON to binary and back is the same document. Fields the model does
+ * not know about, such as {@code proxyingFor}, survive the conversion.
+ *
+ * All methods are stateless and safe to call from any thread.
+ */
+public final class WaveBinaryCodec {
+
+  /**
+   * The content type of binary documents on the relay hop.
+   */
+  public static final String CONTENT_TYPE = "application/x-wave-binary";
+
+  private WaveBinaryCodec() {
+  }
+
+  public static EventMessageBundle readEventMessageBundle(InputStream in) throws IOException {
+    BinaryJsonReader reader = new BinaryJsonReader(in);
+    EventMessageBundle bundle = WaveJsonCodec.readEventMessageBundle(reader);
+    expectEnd(reader);
+    return bundle;
+  }
+
+  public static void writeEventMessageBundle(EventMessageBundle bundle, OutputStream out)
+      throws IOException {
+    BinaryJsonWriter writer = new BinaryJsonWriter(out);
+    WaveJsonCodec.writeEventMessageBundle(bundle, writer);
+    writer.flush();
+  }
+
+  public static OperationMessageBundle readOperationMessageBundle(InputStream in)
+      throws IOException {
+    BinaryJsonReader reader = new BinaryJsonReader(in);
+    OperationMessageBundle bundle = WaveJsonCodec.readOperationMessageBundle(reader);
+    expectEnd(reader);
+    return bundle;
+  }
+
+  public static void writeOperationMessageBundle(OperationMessageBundle bundle,
+      OutputStream out) throws IOException {
+    BinaryJsonWriter writer = new BinaryJsonWriter(out);
+    WaveJsonCodec.writeOperationMessageBundle(bundle, writer);
+    writer.flush();
+  }
+
+  /**
+   * Converts a JSON document to the binary form.
+   */
+  public static void toBinary(JsonReader in, OutputStream out) throws IOException {
+    BinaryJsonWriter writer = new BinaryJsonWriter(out);
+    copyValue(in, writer);
+    expectEnd(in);
+    writer.flush();
+  }
+
+  /**
+   * Converts a binary document to JSON.
+   */
+  public static void toJson(InputStream in, Writer out) throws IOException {
+    BinaryJsonReader reader = new BinaryJsonReader(in);
+    JsonWriter writer = new JsonWriter(out);
+    copyValue(reader, writer);
+    expectEnd(reader);
+    writer.flush();
+  }
+
+  /**
+   * Copies the next value of {@code in}, including everything nested in it,
+   * to {@code out}.
+   */
+  public static void copyValue(JsonReader in, JsonWriter out) throws IOException {
+    int nesting = 0;
+    do {
+      switch (in.peek()) {
+        case BEGIN_OBJECT:
+          in.beginObject();
+          out.beginObject();
+          nesting++;
+          break;
+        case END_OBJECT:
+          in.endObject();
+          out.endObject();
+          nesting--;
+          break;
+        case BEGIN_ARRAY:
+          in.beginArray();
+          out.beginArray();
+          nesting++;
+          break;
+        case END_ARRAY:
+          in.endArray();
+          out.endArray();
+          nesting--;
+          break;
+        case NAME:
+          out.name(in.nextName());
+          break;
+        case STRING:
+          out.value(in.nextString());
+          break;
+        case NUMBER:
+          out.numberValue(in.nextNumber());
+          break;
+        case BOOLEAN:
+          out.value(in.nextBoolean());
+          break;
+        case NULL:
+          in.nextNull();
+          out.nullValue();
+          break;
+        default:
+          throw in.syntaxError("Unexpected end of document");
+      }
+    } while (nesting > 0);
+  }
+
+  private static void expectEnd(JsonReader in) throws IOException {
+    if (in.peek() != JsonReader.Token.END_DOCUMENT) {
+      throw in.syntaxError("Expected the end of the document");
+    }
+  }
+}
@@ -0,0 +1,1137 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.Annotation;
+import com.google.wave.api.Element;
+import com.google.wave.api.ElementType;
+import com.google.wave.api.EventType;
+import com.google.wave.api.FormElement;
+import com.google.wave.api.Gadget;
+import com.google.wave.api.Image;
+import com.google.wave.api.Range;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming JSON codecs for the robot wire model.
+ *
+ * Reads and writes the same documents as the reflective
+ * {@link com.metaparadigm.jsonrpc.JSONSerializer} with the wave serializers
+ * registered (lists and maps wrapped in {@code javaClass} objects, beans
+ * tagged with their {@code javaClass}), but goes straight between the
+ * character stream and the model objects: no {@link JSONObject} trees, no
+ * bean introspection and no reflective instantiation.
+ *
+ * Reading fails fast: the first token that is malformed, or that the model
+ * does not accept (an unknown event type, an element position that is not a
+ * number, a bundle without a wavelet), throws a {@link MalformedJsonException}
+ * or {@link InvalidWaveDataException} naming the path of the offending value,
+ * rather than leaving a half-built bundle to fail later.
+ *
+ * Fields may come in any order and unknown fields are skipped. A generic value
+ * (an event property or an operation property) is decoded as it streams by
+ * when its {@code javaClass} comes first, which is how this codec writes it;
+ * otherwise the value is buffered and decoded afterwards. Untyped objects and
+ * arrays are returned as {@link JSONObject} and {@link JSONArray}, as the
+ * reflective serializer does.
+ *
+ * All methods are stateless and safe to call from any thread.
+ */
+public final class WaveJsonCodec {
+
+  private static final String JAVA_CLASS = "javaClass";
+  private static final String LIST = "list";
+  private static final String MAP = "map";
+
+  private static final String ARRAY_LIST_CLASS = "java.util.ArrayList";
+  private static final String HASH_MAP_CLASS = "java.util.HashMap";
+
+  /**
+   * Initial capacities of the model collections, fitted to what Wave sends:
+   * a few participants or contributors per blip, a handful of elements. JSON
+   * gives no counts up front; collections are created at their first entry,
+   * and an empty one is decoded as the shared immutable empty.
+   */
+  private static final int STRING_LIST_CAPACITY = 4;
+  private static final int ANNOTATION_LIST_CAPACITY = 8;
+  private static final int MAP_CAPACITY = 4;
+
+  private WaveJsonCodec() {
+  }
+
+  // Reading.
+
+  /**
+   * Reads the bundle of events Wave sends to the robot.
+   */
+  public static EventMessageBundle readEventMessageBundle(Reader in) throws IOException {
+    JsonReader reader = new JsonReader(in);
+    EventMessageBundle bundle = readEventMessageBundle(reader);
+    reader.peek();
+    return bundle;
+  }
+
+  /**
+   * Reads the bundle of events Wave sends to the robot from a document held
+   * in memory.
+   *
+   * @param lazyBlips whether to decode each blip only when it is first looked
+   *     up in {@link EventMessageBundle#getBlipData()}, rather than up front.
+   *     The document must then not change for as long as the bundle is in use.
+   *     Blips are still checked to be well-formed up front, but a blip the
+   *     model does not accept only fails when it is looked up.
+   */
+  public static EventMessageBundle readEventMessageBundle(char[] json, int offset, int length,
+      boolean lazyBlips) throws IOException {
+    JsonReader reader = new JsonReader(json, offset, length);
+    EventMessageBundle bundle = readEventMessageBundle(reader, lazyBlips ? json : null);
+    reader.peek();
+    return bundle;
+  }
+
+  public static EventMessageBundle readEventMessageBundle(JsonReader in) throws IOException {
+    return readEventMessageBundle(in, null);
+  }
+
+  /**
+   * @param lazySource the document {@code in} reads in place, if blips are to
+   *     be decoded lazily.
+   */
+  private static EventMessageBundle readEventMessageBundle(JsonReader in, char[] lazySource)
+      throws IOException {
+    EventMessageBundle bundle = new EventMessageBundle();
+    List<EventData> events = null;
+    WaveletData wavelet = null;
+    Map<String, BlipData> blips = null;
+    in.beginObject();
+    while (in.hasNext()) {
+      String name = in.nextName();
+      if (name.equals("events")) {
+        events = readEventDataList(in);
+      } else if (name.equals("wavelet")) {
+        wavelet = readWaveletData(in);
+      } else if (name.equals("blips")) {
+        blips = lazySource == null ? readBlipDataMap(in) : indexBlipDataMap(in, lazySource);
+      } else {
+        in.skipValue();
+      }
+    }
+    in.endObject();
+    if (events == null) {
+      throw invalid(in, "Missing events");
+    } else if (wavelet == null) {
+      throw invalid(in, "Missing wavelet");
+    } else if (blips == null) {
+      throw invalid(in, "Missing blips");
+    }
+    bundle.setEvents(events);
+    bundle.setWaveletData(wavelet);
+    bundle.setBlipData(blips);
+    return bundle;
+  }
+
+  public static List<EventData> readEventDataList(JsonReader in) throws IOException {
+    if (in.peek() == JsonReader.Token.NULL) {
+      in.nextNull();
+      return null;
+    }
+    boolean wrapped = beginList(in);
+    List<EventData> events = new ArrayList<EventData>();
+    while (in.hasNext()) {
+      events.add(readEventData(in));
+    }
+    endList(in, wrapped);
+    return events;
+  }
+
+  public static Map<String, BlipData> readBlipDataMap(JsonReader in) throws IOException {
+    if (in.peek() == JsonReader.Token.NULL) {
+      in.nextNull();
+      return null;
+    }
+    beginMap(in);
+    Map<String, BlipData> blips = new HashMap<String, BlipData>();
+    while (in.hasNext()) {
+      String blipId = in.nextName();
+      blips.put(blipId, readBlipData(in));
+    }
+    endMap(in);
+    return blips;
+  }
+
+  /**
+   * Scans a map of blips, recording where each one is in {@code json} rather
+   * than decoding it.
+   */
+  private static Map<String, BlipData> indexBlipDataMap(JsonReader in, char[] json)
+      throws IOException {
+    if (in.peek() == JsonReader.Token.NULL) {
+      in.nextNull();
+      return null;
+    }
+    beginMap(in);
+    LazyBlipDataMap blips = new LazyBlipDataMap(json, in.getStringTable());
+    while (in.hasNext()) {
+      String blipId = in.nextName();
+      if (in.peek() == JsonReader.Token.BEGIN_OBJECT) {
+        // The opening brace has been consumed by peek().
+        int start = in.getPosition() - 1;
+        in.skipValue();
+        blips.index(blipId, start, in.getPosition());
+      } else {
+        blips.put(blipId, readBlipData(in));
+      }
+    }
+    endMap(in);
+    return blips;
+  }
+
+  public static EventData readEventData(JsonReader in) throws IOException {
+    if (in.peek() == JsonReader.Token.NULL) {
+      in.nextNull();
+      return null;
+    }
+    in.beginObject();
+    EventData event = readEventDataFields(in);
+    in.endObject();
+    return event;
+  }
+
+  private static EventData readEventDataFields(JsonReader in) throws IOException {
+    String modifiedBy = null;
+    long timestamp = 0;
+    EventType type = null;
+    Map<String, Object> properties = null;
+    while (in.hasNext()) {
+      String name = in.nextName();
+      if (name.equals("modifiedBy")) {
+        modifiedBy = in.nextString();
+      } else if (name.equals("timestamp")) {
+        timestamp = in.nextLong();
+      } else if (name.equals("type")) {
+        type = readEnum(in, EnumTable.EVENT_TYPES, "event type");
+      } else if (name.equals("properties")) {
+        properties = readProperties(in);
+      } else {
+        in.skipValue();
+      }
+    }
+    if (type == null) {
+      throw invalid(in, "Missing event type");
+    }
+    EventData event = new EventData(type, modifiedBy, timestamp);
+    event.setProperties(properties);
+    return event;
+  }
+
+  public static WaveletData readWaveletData(JsonReader in) throws IOException {
+    if (in.peek() == JsonReader.Token.NULL) {
+      in.nextNull();
+      return null;
+    }
+    in.beginObject();
+    WaveletData wavelet = readWaveletDataFields(in);
+    in.endObject();
+    return wavelet;
+  }
+
+  private static WaveletData readWaveletDataFields(JsonReader in) throws IOException {
+    WaveletData wavelet = new WaveletData();
+    while (in.hasNext()) {
+      String name = in.nextName();
+      if (name.equals("creationTime")) {
+        wavelet.setCreationTime(in.nextLong());
+      } else if (name.equals("creator")) {
+        wavelet.setCreator(in.nextString());
+      } else if (name.equals("lastModifiedTime")) {
+        wavelet.setLastModifiedTime(in.nextLong());
+      } else if (name.equals("participants")) {
+        wavelet.setParticipants(readStringList(in));
+      } else if (name.equals("rootBlipId")) {
+        wavelet.setRootBlipId(in.nextString());
+      } else if (name.equals("title")) {
+        wavelet.setTitle(in.nextString());
+      } else if (name.equals("version")) {
+        wavelet.setVersion(in.nextLong());
+      } else if (name.equals("waveId")) {
+        wavelet.setWaveId(in.nextString());
+      } else if (name.equals("waveletId")) {
+        wavelet.setWaveletId(in.nextString());
+      } else if (name.equals("dataDocuments")) {
+        wavelet.setDataDocuments(readStringMap(in));
+      } else {
+        in.skipValue();
+      }
+    }
+    return wavelet;
+  }
+
+  public static BlipData readBlipData(JsonReader in) throws IOException {
+    if (in.peek() == JsonReader.Token.NULL) {
+      in.nextNull();
+      return null;
+    }
+    in.beginObject();
+    BlipData blip = readBlipDataFields(in);
+    in.endObject();
+    return blip;
+  }
+
+  private static BlipData readBlipDataFields(JsonReader in) throws IOException {
+    BlipData blip = new BlipData();
+    while (in.hasNext()) {
+      String name = in.nextName();
+      if (name.equals("annotations")) {
+        blip.setAnnotations(readAnnotationList(in));
+      } else if (name.equals("elements")) {
+        blip.setElements(readElementMap(in));
+      } else if (name.equals("blipId")) {
+        blip.setBlipId(in.nextString());
+      } else if (name.equals("childBlipIds")) {
+        blip.setChildBlipIds(readStringList(in));
+      } else if (name.equals("contributors")) {
+        blip.setContributors(readStringList(in));
+      } else if (name.equals("creator")) {
+        blip.setCreator(in.nextString());
+      } else if (name.equals("content")) {
+        blip.setContent(in.nextString());
+      } else if (name.equals("lastModifiedTime")) {
+        blip.setLastModifiedTime(in.nextLong());
+      } else if (name.equals("parentBlipId")) {
+        blip.setParentBlipId(in.nextString());
+      } else if (name.equals("version")) {
+        blip.setVersion(in.nextLong());
+      } else if (name.equals("waveId")) {
+        blip.setWaveId(in.nextString());
+      } else if (name.equals("waveletId")) {
+        blip.setWaveletId(in.nextString());
+      } else {
+        in.skipValue();
+      }
+    }
+    return blip;
+  }
+
+  public static List<Annotation> readAnnotationList(JsonReader in) throws IOException {
+    if (in.peek() == JsonReader.Token.NULL) {
+      in.nextNull();
+      return null;
+    }
+    boolean wrapped = beginList(in);
+    List<Annotation> annotations = Collections.emptyList();
+    if (in.hasNext()) {
+      annotations = new ArrayList<Annotation>(ANNOTATION_LIST_CAPACITY);
+      do {
+        Annotation annotation = readAnnotation(in);
+        if (annotation == null) {
+          throw invalid(in, "Null annotation");
+        }
+        annotations.add(annotation);
+      } while (in.hasNext());
+    }
+    endList(in, wrapped);
+    return annotations;
+  }
+
+  public static Annotation readAnnotation(JsonReader in) throws IOException {
+    if (in.peek() == JsonReader.Token.NULL) {
+      in.nextNull();
+      return null;
+    }
+    in.beginObject();
+    Annotation annotation = readAnnotationFields(in);
+    in.endObject();
+    return annotation;
+  }
+
+  private static Annotation readAnnotationFields(JsonReader in) throws IOException {
+    String name = null;
+    String value = null;
+    Range range = null;
+    while (in.hasNext()) {
+      String field = in.nextName();
+      if (field.equals("name")) {
+        name = in.nextString();
+      } else if (field.equals("value")) {
+        value = in.nextString();
+      } else if (field.equals("range")) {
+        range = readRange(in);
+      } else {
+        in.skipValue();
+      }
+    }
+    try {
+      return new Annotation(name, value, range);
+    } catch (IllegalArgumentException e) {
+      throw invalid(in, e.getMessage());
+    }
+  }
+
+  public static Range readRange(JsonReader in) throws IOException {
+    if (in.peek() == JsonReader.Token.NULL) {
+      in.nextNull();
+      return null;
+    }
+    in.beginObject();
+    Range range = readRangeFields(in);
+    in.endObject();
+    return range;
+  }
+
+  private static Range readRangeFields(JsonReader in) throws IOException {
+    Range range = new Range();
+    while (in.hasNext()) {
+      String name = in.nextName();
+      if (name.equals("start")) {
+        range.setStart(in.nextInt());
+      } else if (name.equals("end")) {
+        range.setEnd(in.nextInt());
+      } else {
+        in.skipValue();
+      }
+    }
+    return range;
+  }
+
+  public static Map<String, Element> readElementMap(JsonReader in) throws IOException {
+    if (in.peek() == JsonReader.Token.NULL) {
+      in.nextNull();
+      return null;
+    }
+    beginMap(in);
+    Map<String, Element> elements = Collections.emptyMap();
+    while (in.hasNext()) {
+      if (elements.isEmpty()) {
+        elements = new HashMap<String, Element>(MAP_CAPACITY);
+      }
+      String position = in.nextName();
+      if (!isPosition(position)) {
+        throw invalid(in, "Element position is not a number: " + position);
+      }
+      elements.put(position, readElement(in));
+    }
+    endMap(in);
+    return elements;
+  }
+
+  public static Element readElement(JsonReader in) throws IOException {
+    if (in.peek() == JsonReader.Token.NULL) {
+      in.nextNull();
+      return null;
+    }
+    in.beginObject();
+    Element element = readElementFields(in, null);
+    in.endObject();
+    return element;
+  }
+
+  /**
+   * Reads the fields of an element. The element class is only known once its
+   * {@code javaClass} has been seen, so the element is created last.
+   */
+  private static Element readElementFields(JsonReader in, String javaClass) throws IOException {
+    ElementType type = null;
+    Map<String, Object> properties = null;
+    while (in.hasNext()) {
+      String name = in.nextName();
+      if (name.equals("type")) {
+        type = readEnum(in, EnumTable.ELEMENT_TYPES, "element type");
+      } else if (name.equals("properties")) {
+        properties = readProperties(in);
+      } else if (name.equals(JAVA_CLASS)) {
+        javaClass = in.nextString();
+      } else {
+        in.skipValue();
+      }
+    }
+    if (type == null) {
+      throw invalid(in, "Missing element type");
+    }
+    Element element = newElement(javaClass);
+    element.setType(type);
+    element.setProperties(properties);
+    return element;
+  }
+
+  private static Element newElement(String javaClass) {
+    if (Gadget.class.getName().equals(javaClass)) {
+      return new Gadget();
+    } else if (Image.class.getName().equals(javaClass)) {
+      return new Image();
+    } else if (FormElement.class.getName().equals(javaClass)) {
+      return new FormElement();
+    }
+    return new Element();
+  }
+
+  /**
+   * Reads the response of a robot.
+   */
+  public static OperationMessageBundle readOperationMessageBundle(Reader in) throws IOException {
+    JsonReader reader = new JsonReader(in);
+    OperationMessageBundle bundle = readOperationMessageBundle(reader);
+    reader.peek();
+    return bundle;
+  }
+
+  public static OperationMessageBundle readOperationMessageBundle(JsonReader in)
+      throws IOException {
+    OperationMessageBundle bundle = new OperationMessageBundle();
+    in.beginObject();
+    while (in.hasNext()) {
+      String name = in.nextName();
+      if (name.equals("operations")) {
+        bundle.setOperations(readOperationList(in));
+      } else if (name.equals("version")) {
+        bundle.setVersion(in.nextString());
+      } else {
+        in.skipValue();
+      }
+    }
+    in.endObject();
+    return bundle;
+  }
+
+  public static List<Operation> readOperationList(JsonReader in) throws IOException {
+    if (in.peek() == JsonReader.Token.NULL) {
+      in.nextNull();
+      return null;
+    }
+    boolean wrapped = beginList(in);
+    List<Operation> operations = new ArrayList<Operation>();
+    while (in.hasNext()) {
+      operations.add(readOperation(in));
+    }
+    endList(in, wrapped);
+    return operations;
+  }
+
+  public static OperationImpl readOperation(JsonReader in) throws IOException {
+    if (in.peek() == JsonReader.Token.NULL) {
+      in.nextNull();
+      return null;
+    }
+    in.beginObject();
+    OperationImpl operation = readOperationFields(in);
+    in.endObject();
+    return operation;
+  }
+
+  private static OperationImpl readOperationFields(JsonReader in) throws IOException {
+    String waveId = null;
+    String waveletId = null;
+    String blipId = null;
+    OperationType type = null;
+    int index = -1;
+    Object property = null;
+    while (in.hasNext()) {
+      String name = in.nextName();
+      if (name.equals("waveId")) {
+        waveId = in.nextString();
+      } else if (name.equals("waveletId")) {
+        waveletId = in.nextString();
+      } else if (name.equals("blipId")) {
+        blipId = in.nextString();
+      } else if (name.equals("type")) {
+        type = readEnum(in, EnumTable.OPERATION_TYPES, "operation type");
+      } else if (name.equals("index")) {
+        if (in.peek() == JsonReader.Token.NULL) {
+          in.nextNull();
+        } else {
+          index = in.nextInt();
+        }
+      } else if (name.equals("property")) {
+        property = readValue(in);
+      } else {
+        in.skipValue();
+      }
+    }
+    if (type == null) {
+      throw invalid(in, "Missing operation type");
+    }
+    return new OperationImpl(type, waveId, waveletId, blipId, index, property);
+  }
+
+  public static List<String> readStringList(JsonReader in) throws IOException {
+    if (in.peek() == JsonReader.Token.NULL) {
+      in.nextNull();
+      return null;
+    }
+    boolean wrapped = beginList(in);
+    List<String> strings = Collections.emptyList();
+    if (in.hasNext()) {
+      strings = new ArrayList<String>(STRING_LIST_CAPACITY);
+      do {
+        strings.add(in.nextString());
+      } while (in.hasNext());
+    }
+    endList(in, wrapped);
+    return strings;
+  }
+
+  public static Map<String, String> readStringMap(JsonReader in) throws IOException {
+    if (in.peek() == JsonReader.Token.NULL) {
+      in.nextNull();
+      return null;
+    }
+    beginMap(in);
+    Map<String, String> strings = Collections.emptyMap();
+    while (in.hasNext()) {
+      if (strings.isEmpty()) {
+        strings = new HashMap<String, String>(MAP_CAPACITY);
+      }
+      String name = in.nextName();
+      strings.put(name, in.nextString());
+    }
+    endMap(in);
+    return strings;
+  }
+
+  /**
+   * Reads a {@code java.util.HashMap} of generic values.
+   */
+  @SuppressWarnings("unchecked")
+  public static Map<String, Object> readProperties(JsonReader in) throws IOException {
+    Object value = readValue(in);
+    if (value != null && !(value instanceof Map)) {
+      throw in.syntaxError("Expected a map but was " + value.getClass().getName());
+    }
+    return (Map<String, Object>) value;
+  }
+
+  /**
+   * Reads a value of any type.
+   *
+   * @return a String, Boolean, Integer, Long or Double for JSON primitives, a
+   *     model object, List or Map for objects tagged with a known
+   *     {@code javaClass}, and a JSONObject or JSONArray otherwise.
+   */
+  public static Object readValue(JsonReader in) throws IOException {
+    switch (in.peek()) {
+      case NULL:
+        in.nextNull();
+        return null;
+      case STRING:
+        return in.nextString();
+      case BOOLEAN:
+        return in.nextBoolean();
+      case NUMBER:
+        return toNumber(in.nextNumber());
+      case BEGIN_ARRAY:
+        return readJSONArray(in);
+      default:
+        in.beginObject();
+        Object value;
+        if (in.hasNext()) {
+          String name = in.nextName();
+          if (name.equals(JAVA_CLASS) && in.peek() == JsonReader.Token.STRING) {
+            value = readTypedFields(in, in.nextString());
+          } else {
+            value = convert(readJSONObjectFields(in, name));
+          }
+        } else {
+          value = new JSONObject();
+        }
+        in.endObject();
+        return value;
+    }
+  }
+
+  /**
+   * Reads the rest of an object whose {@code javaClass} has just been read.
+   */
+  private static Object readTypedFields(JsonReader in, String javaClass) throws IOException {
+    if (isListClass(javaClass)) {
+      List<Object> list = null;
+      while (in.hasNext()) {
+        if (in.nextName().equals(LIST)) {
+          list = new ArrayList<Object>();
+          in.beginArray();
+          while (in.hasNext()) {
+            list.add(readValue(in));
+          }
+          in.endArray();
+        } else {
+          in.skipValue();
+        }
+      }
+      return list;
+    } else if (isMapClass(javaClass)) {
+      Map<String, Object> map = null;
+      while (in.hasNext()) {
+        if (in.nextName().equals(MAP)) {
+          map = new HashMap<String, Object>();
+          in.beginObject();
+          while (in.hasNext()) {
+            String key = in.nextName();
+            map.put(key, readValue(in));
+          }
+          in.endObject();
+        } else {
+          in.skipValue();
+        }
+      }
+      return map;
+    } else if (javaClass.equals(EventData.class.getName())) {
+      return readEventDataFields(in);
+    } else if (javaClass.equals(BlipData.class.getName())) {
+      return readBlipDataFields(in);
+    } else if (javaClass.equals(WaveletData.class.getName())) {
+      return readWaveletDataFields(in);
+    } else if (javaClass.equals(Annotation.class.getName())) {
+      return readAnnotationFields(in);
+    } else if (javaClass.equals(Range.class.getName())) {
+      return readRangeFields(in);
+    } else if (javaClass.equals(OperationImpl.class.getName())) {
+      return readOperationFields(in);
+    } else if (isElementClass(javaClass)) {
+      return readElementFields(in, javaClass);
+    }
+    JSONObject json = readJSONObjectFields(in, null);
+    try {
+      json.put(JAVA_CLASS, javaClass);
+    } catch (JSONException e) {
+      throw in.syntaxError(e.getMessage());
+    }
+    return json;
+  }
+
+  /**
+   * Decodes a buffered object whose {@code javaClass} did not come first.
+   */
+  private static Object convert(JSONObject json) throws IOException {
+    String javaClass = json.optString(JAVA_CLASS, null);
+    if (javaClass == null) {
+      return json;
+    }
+    JsonReader in = new JsonReader(new StringReader(json.toString()));
+    in.beginObject();
+    Object value = readTypedFields(in, javaClass);
+    in.endObject();
+    return value;
+  }
+
+  private static JSONObject readJSONObjectFields(JsonReader in, String firstName)
+      throws IOException {
+    JSONObject json = new JSONObject();
+    try {
+      if (firstName != null) {
+        json.put(firstName, readJSONValue(in));
+      }
+      while (in.hasNext()) {
+        String name = in.nextName();
+        json.put(name, readJSONValue(in));
+      }
+    } catch (JSONException e) {
+      throw in.syntaxError(e.getMessage());
+    }
+    return json;
+  }
+
+  private static JSONArray readJSONArray(JsonReader in) throws IOException {
+    JSONArray json = new JSONArray();
+    in.beginArray();
+    while (in.hasNext()) {
+      json.put(readJSONValue(in));
+    }
+    in.endArray();
+    return json;
+  }
+
+  /**
+   * Reads a value as {@link JSONObject} would hold it.
+   */
+  private static Object readJSONValue(JsonReader in) throws IOException {
+    switch (in.peek()) {
+      case BEGIN_OBJECT:
+        in.beginObject();
+        JSONObject json = readJSONObjectFields(in, null);
+        in.endObject();
+        return json;
+      case BEGIN_ARRAY:
+        return readJSONArray(in);
+      case NULL:
+        in.nextNull();
+        return JSONObject.NULL;
+      default:
+        return readValue(in);
+    }
+  }
+
+  /**
+   * Parses a number into the narrowest of Integer, Long and Double, as
+   * {@link JSONObject} does.
+   */
+  private static Number toNumber(String text) {
+    if (text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+      try {
+        long value = Long.parseLong(text);
+        if (value == (int) value) {
+          return Integer.valueOf((int) value);
+        }
+        return Long.valueOf(value);
+      } catch (NumberFormatException e) {
+        // Too large for a long.
+      }
+    }
+    return Double.valueOf(text);
+  }
+
+  /**
+   * Reads the wire name of a constant of {@code table}, or {@code null}.
+   *
+   * @param description what the constant is, for the error message.
+   */
+  private static <E extends Enum<E>> E readEnum(JsonReader in, EnumTable<E> table,
+      String description) throws IOException {
+    String text = in.nextString();
+    if (text == null) {
+      return null;
+    }
+    E constant = table.fromText(text);
+    if (constant == null) {
+      throw invalid(in, "Unknown " + description + " " + text);
+    }
+    return constant;
+  }
+
+  /**
+   * Returns whether {@code text} is an element position: a non-negative
+   * decimal int.
+   */
+  private static boolean isPosition(String text) {
+    int length = text.length();
+    if (length == 0 || length > 9) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Creates an exception for a value the model does not accept, at the
+   * current position of {@code in}.
+   */
+  private static InvalidWaveDataException invalid(JsonReader in, String message) {
+    return new InvalidWaveDataException(message, in.getPath(), in.getLocation());
+  }
+
+  private static boolean isListClass(String javaClass) {
+    return javaClass.equals(ARRAY_LIST_CLASS) || javaClass.equals("java.util.LinkedList")
+        || javaClass.equals("java.util.List") || javaClass.equals("java.util.Vector");
+  }
+
+  private static boolean isMapClass(String javaClass) {
+    return javaClass.equals(HASH_MAP_CLASS) || javaClass.equals("java.util.Map")
+        || javaClass.equals("java.util.TreeMap") || javaClass.equals("java.util.LinkedHashMap")
+        || javaClass.equals("java.util.Hashtable");
+  }
+
+  private static boolean isElementClass(String javaClass) {
+    return javaClass.equals(Element.class.getName())
+        || javaClass.equals(FormElement.class.getName())
+        || javaClass.equals(Gadget.class.getName())
+        || javaClass.equals(Image.class.getName());
+  }
+
+  /**
+   * Enters a list, either a bare array or a {@code javaClass} object wrapping
+   * one.
+   *
+   * @return whether the list was wrapped.
+   */
+  private static boolean beginList(JsonReader in) throws IOException {
+    if (in.peek() == JsonReader.Token.BEGIN_ARRAY) {
+      in.beginArray();
+      return false;
+    }
+    in.beginObject();
+    while (in.hasNext()) {
+      if (in.nextName().equals(LIST)) {
+        in.beginArray();
+        return true;
+      }
+      in.skipValue();
+    }
+    throw in.syntaxError("Expected a list");
+  }
+
+  private static void endList(JsonReader in, boolean wrapped) throws IOException {
+    in.endArray();
+    if (wrapped) {
+      skipRest(in);
+    }
+  }
+
+  /**
+   * Enters the entries of a {@code javaClass} object wrapping a map.
+   */
+  private static void beginMap(JsonReader in) throws IOException {
+    in.beginObject();
+    while (in.hasNext()) {
+      if (in.nextName().equals(MAP)) {
+        in.beginObject();
+        return;
+      }
+      in.skipValue();
+    }
+    throw in.syntaxError("Expected a map");
+  }
+
+  private static void endMap(JsonReader in) throws IOException {
+    in.endObject();
+    skipRest(in);
+  }
+
+  private static void skipRest(JsonReader in) throws IOException {
+    while (in.hasNext()) {
+      in.nextName();
+      in.skipValue();
+    }
+    in.endObject();
+  }
+
+  // Writing.
+
+  public static void writeEventMessageBundle(EventMessageBundle bundle, Writer out)
+      throws IOException {
+    writeEventMessageBundle(bundle, new JsonWriter(out));
+  }
+
+  public static void writeEventMessageBundle(EventMessageBundle bundle, JsonWriter out)
+      throws IOException {
+    out.beginObject();
+    out.name("events");
+    writeValue(bundle.getEvents(), out);
+    out.name("wavelet");
+    writeWaveletData(bundle.getWaveletData(), out);
+    out.name("blips");
+    writeValue(bundle.getBlipData(), out);
+    out.endObject();
+  }
+
+  public static void writeEventData(EventData event, JsonWriter out) throws IOException {
+    if (event == null) {
+      out.nullValue();
+      return;
+    }
+    out.beginObject();
+    out.name(JAVA_CLASS).value(EventData.class.getName());
+    out.name("modifiedBy").value(event.getModifiedBy());
+    out.name("timestamp").value(event.getTimestamp());
+    out.name("type").value(EnumTable.EVENT_TYPES, event.getType());
+    out.name("properties");
+    writeValue(event.getProperties(), out);
+    out.endObject();
+  }
+
+  public static void writeWaveletData(WaveletData wavelet, JsonWriter out) throws IOException {
+    if (wavelet == null) {
+      out.nullValue();
+      return;
+    }
+    out.beginObject();
+    out.name(JAVA_CLASS).value(WaveletData.class.getName());
+    out.name("creationTime").value(wavelet.getCreationTime());
+    out.name("creator").value(wavelet.getCreator());
+    out.name("dataDocuments");
+    writeValue(wavelet.getDataDocuments(), out);
+    out.name("lastModifiedTime").value(wavelet.getLastModifiedTime());
+    out.name("participants");
+    writeValue(wavelet.getParticipants(), out);
+    out.name("rootBlipId").value(wavelet.getRootBlipId());
+    out.name("title").value(wavelet.getTitle());
+    out.name("version").value(wavelet.getVersion());
+    out.name("waveId").value(wavelet.getWaveId());
+    out.name("waveletId").value(wavelet.getWaveletId());
+    out.endObject();
+  }
+
+  public static void writeBlipData(BlipData blip, JsonWriter out) throws IOException {
+    if (blip == null) {
+      out.nullValue();
+      return;
+    }
+    out.beginObject();
+    out.name(JAVA_CLASS).value(BlipData.class.getName());
+    out.name("annotations");
+    writeValue(blip.peekAnnotations(), out);
+    out.name("blipId").value(blip.getBlipId());
+    out.name("childBlipIds");
+    writeValue(blip.peekChildBlipIds(), out);
+    out.name("content").value(blip.getContent());
+    out.name("contributors");
+    writeValue(blip.peekContributors(), out);
+    out.name("creator").value(blip.getCreator());
+    out.name("elements");
+    writeValue(blip.peekElements(), out);
+    out.name("lastModifiedTime").value(blip.getLastModifiedTime());
+    out.name("parentBlipId").value(blip.getParentBlipId());
+    out.name("version").value(blip.getVersion());
+    out.name("waveId").value(blip.getWaveId());
+    out.name("waveletId").value(blip.getWaveletId());
+    out.endObject();
+  }
+
+  public static void writeAnnotation(Annotation annotation, JsonWriter out) throws IOException {
+    if (annotation == null) {
+      out.nullValue();
+      return;
+    }
+    out.beginObject();
+    out.name(JAVA_CLASS).value(Annotation.class.getName());
+    out.name("name").value(annotation.getName());
+    out.name("range");
+    writeRange(annotation.getRange(), out);
+    out.name("value").value(annotation.getValue());
+    out.endObject();
+  }
+
+  public static void writeRange(Range range, JsonWriter out) throws IOException {
+    if (range == null) {
+      out.nullValue();
+      return;
+    }
+    out.beginObject();
+    out.name(JAVA_CLASS).value(Range.class.getName());
+    out.name("end").value(range.getEnd());
+    out.name("start").value(range.getStart());
+    out.endObject();
+  }
+
+  public static void writeElement(Element element, JsonWriter out) throws IOException {
+    if (element == null) {
+      out.nullValue();
+      return;
+    }
+    out.beginObject();
+    out.name(JAVA_CLASS).value(element.getClass().getName());
+    out.name("type").value(EnumTable.ELEMENT_TYPES, element.getType());
+    out.name("properties");
+    writeValue(element.getProperties(), out);
+    out.endObject();
+  }
+
+  /**
+   * Writes the response of a robot.
+   */
+  public static void writeOperationMessageBundle(OperationMessageBundle bundle, Writer out)
+      throws IOException {
+    writeOperationMessageBundle(bundle, new JsonWriter(out));
+  }
+
+  public static void writeOperationMessageBundle(OperationMessageBundle bundle, JsonWriter out)
+      throws IOException {
+    out.beginObject();
+    out.name(JAVA_CLASS).value(OperationMessageBundle.class.getName());
+    out.name("operations");
+    writeValue(bundle.getOperations(), out);
+    out.name("version").value(bundle.getVersion());
+    out.endObject();
+  }
+
+  public static void writeOperation(Operation operation, JsonWriter out) throws IOException {
+    if (operation == null) {
+      out.nullValue();
+      return;
+    }
+    out.beginObject();
+    out.name(JAVA_CLASS).value(OperationImpl.class.getName());
+    out.name("waveId").value(operation.getWaveId());
+    out.name("waveletId").value(operation.getWaveletId());
+    out.name("blipId").value(operation.getBlipId());
+    out.name("type").value(EnumTable.OPERATION_TYPES, operation.getType());
+    out.name("index").value(operation.getIndex());
+    out.name("property");
+    writeValue(operation.getProperty(), out);
+    out.endObject();
+  }
+
+  /**
+   * Writes a value of any type the reader understands.
+   *
+   * @throws IOException if the value is of a type the codec does not know.
+   */
+  public static void writeValue(Object value, JsonWriter out) throws IOException {
+    if (value == null) {
+      out.nullValue();
+    } else if (value instanceof String) {
+      out.value((String) value);
+    } else if (value instanceof Number) {
+      out.value((Number) value);
+    } else if (value instanceof Boolean) {
+      out.value(((Boolean) value).booleanValue());
+    } else if (value instanceof Collection<?>) {
+      out.beginObject();
+      out.name(JAVA_CLASS).value(ARRAY_LIST_CLASS);
+      out.name(LIST).beginArray();
+      for (Object item : (Collection<?>) value) {
+        writeValue(item, out);
+      }
+      out.endArray();
+      out.endObject();
+    } else if (value instanceof Map<?, ?>) {
+      out.beginObject();
+      out.name(JAVA_CLASS).value(HASH_MAP_CLASS);
+      out.name(MAP).beginObject();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        out.name(String.valueOf(entry.getKey()));
+        writeValue(entry.getValue(), out);
+      }
+      out.endObject();
+      out.endObject();
+    } else if (value instanceof EventData) {
+      writeEventData((EventData) value, out);
+    } else if (value instanceof BlipData) {
+      writeBlipData((BlipData) value, out);
+    } else if (value instanceof WaveletData) {
+      writeWaveletData((WaveletData) value, out);
+    } else if (value instanceof Element) {
+      writeElement((Element) value, out);
+    } else if (value instanceof Annotation) {
+      writeAnnotation((Annotation) value, out);
+    } else if (value instanceof Range) {
+      writeRange((Range) value, out);
+    } else if (value instanceof Operation) {
+      writeOperation((Operation) value, out);
+    } else if (value instanceof JSONObject || value instanceof JSONArray) {
+      out.rawValue(value.toString());
+    } else if (value instanceof Enum<?>) {
+      out.value(value.toString());
+    } else {
+      throw new IOException("Cannot write " + value.getClass().getName() + " as JSON");
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.metaparadigm.jsonrpc.JSONSerializer;
+import com.metaparadigm.jsonrpc.MarshallException;
+import com.metaparadigm.jsonrpc.SerializerState;
+import com.metaparadigm.jsonrpc.UnmarshallException;
+
+/**
+ * The process-wide reflective serializer for the robot wire model: the
+ * default serializers plus the four wave serializers.
+ *
+ * Concurrency contract: the serializer is configured once, in the class
+ * initializer, and never changed afterwards, so it is safely published to
+ * every thread and can be shared without further locking. Callers must not
+ * register serializers on it. {@link SerializerState} is not thread safe, so
+ * each thread reuses its own; a state is discarded after a failed call,
+ * because the serializers leave their bookkeeping behind when they throw.
+ */
+public final class WaveSerializers {
+
+  private static final JSONSerializer SERIALIZER = createSerializer();
+
+  private static final ThreadLocal<SerializerState> STATE =
+      new ThreadLocal<SerializerState>() {
+        @Override
+        protected SerializerState initialValue() {
+          return new SerializerState();
+        }
+      };
+
+  private WaveSerializers() {
+  }
+
+  /**
+   * Returns the shared serializer. It is already configured and must not be
+   * modified.
+   */
+  public static JSONSerializer getSerializer() {
+    return SERIALIZER;
+  }
+
+  /**
+   * Marshalls an object into a JSON string.
+   */
+  public static String toJSON(Object o) throws MarshallException {
+    return marshall(o).toString();
+  }
+
+  /**
+   * Marshalls an object into a JSON value, using this thread's state.
+   */
+  public static Object marshall(Object o) throws MarshallException {
+    boolean done = false;
+    try {
+      Object json = SERIALIZER.marshall(STATE.get(), o);
+      done = true;
+      return json;
+    } finally {
+      if (!done) {
+        STATE.remove();
+      }
+    }
+  }
+
+  /**
+   * Unmarshalls a JSON value into an instance of {@code clazz}, using this
+   * thread's state.
+   */
+  public static Object unmarshall(Class<?> clazz, Object json)
+      throws UnmarshallException {
+    boolean done = false;
+    try {
+      Object o = SERIALIZER.unmarshall(STATE.get(), clazz, json);
+      done = true;
+      return o;
+    } finally {
+      if (!done) {
+        STATE.remove();
+      }
+    }
+  }
+
+  private static JSONSerializer createSerializer() {
+    JSONSerializer serializer = new JSONSerializer();
+    try {
+      serializer.registerDefaultSerializers();
+      serializer.registerSerializer(new EventMessageBundleSerializer());
+      serializer.registerSerializer(new EventDataSerializer());
+      serializer.registerSerializer(new ElementSerializer());
+      serializer.registerSerializer(new OperationSerializer());
+    } catch (Exception e) {
+      throw new IllegalStateException("Cannot register the wave serializers: "
+          + e.getMessage());
+    }
+    return serializer;
+  }
+}
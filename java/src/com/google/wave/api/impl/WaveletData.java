@@ -16,6 +16,7 @@
 package com.google.wave.api.impl;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -24,6 +25,10 @@ import java.util.Map;
  * The data representation of Wavelet metadata used to serialize and send to
  * the Robot.
  * 
+ * As in {@link BlipData}, the participants and data documents start out as
+ * shared immutable empties and are replaced by mutable collections on first
+ * use.
+ * 
  * @author scovitz@google.com (Seth Covitz)
  */
 public class WaveletData {
@@ -43,13 +48,13 @@ public class WaveletData {
     creationTime = -1L;
     creator = null;
     lastModifiedTime = -1L;
-    participants = new ArrayList<String>();
+    participants = Collections.emptyList();
     rootBlipId = null;
     title = null;
     version = -1L;
     waveId = null;
     waveletId = null;
-    dataDocuments = new HashMap<String, String>();
+    dataDocuments = Collections.emptyMap();
   }
   
   public WaveletData(WaveletData wavelet) {
@@ -78,6 +83,9 @@ public class WaveletData {
   }
 
   public List<String> getParticipants() {
+    if (participants == null || participants == Collections.EMPTY_LIST) {
+      participants = new ArrayList<String>();
+    }
     return participants;
   }
 
@@ -138,6 +146,9 @@ public class WaveletData {
   }
 
   public Map<String, String> getDataDocuments() {
+    if (dataDocuments == null || dataDocuments == Collections.EMPTY_MAP) {
+      dataDocuments = new HashMap<String, String>();
+    }
     return dataDocuments;
   }
 
@@ -146,7 +157,7 @@ public class WaveletData {
   }
 
   public void setDataDocument(String name, String data) {
-    dataDocuments.put(name, data);
+    getDataDocuments().put(name, data);
   }
   
   public String getDataDocument(String name) {
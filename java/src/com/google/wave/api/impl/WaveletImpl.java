@@ -138,8 +138,7 @@ public class WaveletImpl implements Wavelet {
 
   @Override
   public boolean hasDataDocument(String name) {
-    return waveletData.getDataDocuments() == null ? false :
-        waveletData.getDataDocuments().containsKey(name);
+    return waveletData.getDataDocument(name) != null;
   }
 
   @Override
@@ -0,0 +1,198 @@
+package net.thewe.relay;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.logging.Logger;
+
+import com.google.wave.api.impl.MalformedJsonException;
+
+/**
+ * One request to a backend endpoint, bounded by a deadline. Holds the
+ * endpoint's outstanding count and the pooled connection until
+ * {@link #finish(boolean)}, or until it is cancelled as the loser of a hedged
+ * request.
+ */
+public class BackendCall implements RequestHedger.Attempt {
+
+	private static final Logger log = Logger.getLogger(BackendCall.class
+			.getName());
+
+	private final RelayTransport transport;
+	private final BackendRouter router;
+	private final BackendEndpoint endpoint;
+	private final RelayBuffer events;
+	private final long deadline;
+
+	private RelayConnection connection;
+	private boolean started;
+	private boolean done;
+	private boolean cancelled;
+
+	/**
+	 * @param deadline the time, in milliseconds since the epoch, by which the
+	 *            backend must have answered.
+	 */
+	public BackendCall(RelayTransport transport, BackendRouter router,
+			BackendEndpoint endpoint, RelayBuffer events, long deadline) {
+		this.transport = transport;
+		this.router = router;
+		this.endpoint = endpoint;
+		this.events = events;
+		this.deadline = deadline;
+	}
+
+	public BackendEndpoint getEndpoint() {
+		return endpoint;
+	}
+
+	/**
+	 * Returns the connection, with the response ready to be read.
+	 */
+	public synchronized RelayConnection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * Posts the events to the endpoint in its wire format and waits for the
+	 * response headers. An endpoint that rejects a compressed request with 415
+	 * Unsupported Media Type is switched back to the form-encoded format, and
+	 * the request is sent again.
+	 */
+	public void run() throws IOException {
+		synchronized (this) {
+			if (cancelled) {
+				throw new InterruptedIOException("Cancelled");
+			}
+			started = true;
+			endpoint.begin();
+		}
+		boolean success = false;
+		boolean malformed = false;
+		try {
+			send();
+			success = true;
+		} catch (MalformedJsonException e) {
+			// The events could not be converted to the wire format of the
+			// endpoint; that is no fault of the endpoint.
+			malformed = true;
+			throw e;
+		} finally {
+			synchronized (this) {
+				done = true;
+				if (cancelled) {
+					release();
+				} else if (!success) {
+					endpoint.end();
+					if (!malformed) {
+						router.recordResult(endpoint, false);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Releases the connection and records the outcome of the call.
+	 */
+	public synchronized void finish(boolean success) {
+		if (connection != null) {
+			connection.release();
+			connection = null;
+		}
+		endpoint.end();
+		router.recordResult(endpoint, success);
+	}
+
+	public synchronized void cancel() {
+		if (cancelled) {
+			return;
+		}
+		cancelled = true;
+		if (done) {
+			release();
+		} else if (connection != null) {
+			// Unblocks the thread waiting for the response.
+			connection.getConnection().disconnect();
+		}
+	}
+
+	private void send() throws IOException {
+		while (true) {
+			int remaining = getRemainingMillis();
+			RelayWireFormat format = endpoint.getWireFormat();
+			RelayConnection conn = transport.open(endpoint.getUrl());
+			try {
+				synchronized (this) {
+					connection = conn;
+					if (cancelled) {
+						throw new InterruptedIOException("Cancelled");
+					}
+				}
+				HttpURLConnection http = conn.getConnection();
+				remaining = getRemainingMillis();
+				if (http.getConnectTimeout() == 0
+						|| http.getConnectTimeout() > remaining) {
+					http.setConnectTimeout(remaining);
+				}
+				if (http.getReadTimeout() == 0
+						|| http.getReadTimeout() > remaining) {
+					http.setReadTimeout(remaining);
+				}
+				http.setRequestProperty(DeadlinePolicy.DEADLINE_HEADER, String
+						.valueOf(remaining));
+				RelayWireFormat.acceptCompressedResponse(conn);
+				format.writeRequest(conn, events);
+				if (format != RelayWireFormat.FORM
+						&& http.getResponseCode()
+								== HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+					log.warning(endpoint + " does not accept " + format
+							+ " requests, falling back to "
+							+ RelayWireFormat.FORM);
+					endpoint.setWireFormat(RelayWireFormat.FORM);
+					releaseConnection();
+					continue;
+				}
+				// Wait for the response here, so that a hedged call has
+				// answered once it returns.
+				http.getResponseCode();
+				return;
+			} catch (IOException iox) {
+				releaseConnection();
+				throw iox;
+			} catch (RuntimeException e) {
+				releaseConnection();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Returns the milliseconds left before the deadline, at least one.
+	 * 
+	 * @throws SocketTimeoutException if the deadline has passed.
+	 */
+	private int getRemainingMillis() throws SocketTimeoutException {
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0) {
+			throw new SocketTimeoutException("Deadline passed before "
+					+ endpoint + " answered");
+		}
+		return (int) Math.min(remaining, Integer.MAX_VALUE);
+	}
+
+	private synchronized void releaseConnection() {
+		if (connection != null) {
+			connection.release();
+			connection = null;
+		}
+	}
+
+	private void release() {
+		releaseConnection();
+		if (started) {
+			endpoint.end();
+		}
+	}
+}
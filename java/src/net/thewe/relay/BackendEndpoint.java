@@ -0,0 +1,94 @@
+package net.thewe.relay;
+
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single backend node. Tracks the requests outstanding against it and its
+ * recent failures, so that a {@link BackendGroup} can balance load and eject
+ * nodes that keep failing (passive health checking), and the wire format it
+ * accepts.
+ */
+public class BackendEndpoint {
+
+	private final URL url;
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private final AtomicLong failureCount = new AtomicLong();
+	private volatile long ejectedUntil;
+	private volatile RelayWireFormat wireFormat;
+
+	public BackendEndpoint(URL url, RelayWireFormat wireFormat) {
+		this.url = url;
+		this.wireFormat = wireFormat;
+	}
+
+	public URL getUrl() {
+		return url;
+	}
+
+	public RelayWireFormat getWireFormat() {
+		return wireFormat;
+	}
+
+	/**
+	 * Changes the wire format used for this endpoint, for example after the
+	 * backend rejected a compressed request.
+	 */
+	public void setWireFormat(RelayWireFormat wireFormat) {
+		this.wireFormat = wireFormat;
+	}
+
+	/**
+	 * Marks the start of a request against this endpoint. Must be paired with
+	 * {@link #end()}.
+	 */
+	public void begin() {
+		outstanding.incrementAndGet();
+	}
+
+	public void end() {
+		outstanding.decrementAndGet();
+	}
+
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	/**
+	 * Returns whether the endpoint may receive traffic at time {@code now}.
+	 */
+	public boolean isAvailable(long now) {
+		return ejectedUntil <= now;
+	}
+
+	public void recordSuccess() {
+		consecutiveFailures.set(0);
+	}
+
+	/**
+	 * Records a failed request. After {@code ejectAfter} consecutive failures
+	 * the endpoint is taken out of rotation for {@code ejectMillis}.
+	 * 
+	 * @return true if this failure ejected the endpoint.
+	 */
+	public boolean recordFailure(long now, int ejectAfter, long ejectMillis) {
+		failureCount.incrementAndGet();
+		if (consecutiveFailures.incrementAndGet() >= ejectAfter) {
+			consecutiveFailures.set(0);
+			ejectedUntil = now + ejectMillis;
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return url.toExternalForm();
+	}
+}
@@ -0,0 +1,128 @@
+package net.thewe.relay;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The set of backend endpoints serving one logical backend (a port or an
+ * action).
+ */
+public class BackendGroup {
+
+	/**
+	 * Number of points each endpoint gets on the consistent hash ring.
+	 */
+	private static final int VIRTUAL_NODES = 64;
+
+	private final List<BackendEndpoint> endpoints;
+	private final LoadBalancingPolicy policy;
+	private final TreeMap<Integer, BackendEndpoint> ring =
+			new TreeMap<Integer, BackendEndpoint>();
+	private final AtomicInteger next = new AtomicInteger();
+
+	public BackendGroup(List<BackendEndpoint> endpoints,
+			LoadBalancingPolicy policy) {
+		if (endpoints.isEmpty()) {
+			throw new IllegalArgumentException("A backend group needs at least "
+					+ "one endpoint");
+		}
+		this.endpoints = Collections
+				.unmodifiableList(new ArrayList<BackendEndpoint>(endpoints));
+		this.policy = policy;
+		for (BackendEndpoint endpoint : endpoints) {
+			for (int i = 0; i < VIRTUAL_NODES; i++) {
+				ring.put(Hashing.mix((endpoint.getUrl().toExternalForm() + "#" + i)
+						.hashCode()), endpoint);
+			}
+		}
+	}
+
+	public List<BackendEndpoint> getEndpoints() {
+		return endpoints;
+	}
+
+	public LoadBalancingPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Chooses the endpoint for a request. Ejected endpoints are skipped; if
+	 * every endpoint is ejected, one is chosen anyway rather than failing the
+	 * request outright.
+	 * 
+	 * @param key the routing key of the request.
+	 * @return the chosen endpoint.
+	 */
+	public BackendEndpoint choose(RoutingKey key) {
+		if (endpoints.size() == 1) {
+			return endpoints.get(0);
+		}
+		long now = System.currentTimeMillis();
+		if (policy == LoadBalancingPolicy.WAVE_HASH && key.getWaveId() != null) {
+			return chooseByHash(key.getWaveId(), now);
+		}
+		return chooseLeastOutstanding(now);
+	}
+
+	/**
+	 * Chooses a second endpoint for a hedged request: the available endpoint
+	 * other than {@code exclude} with the fewest outstanding requests.
+	 * 
+	 * @return the endpoint, or {@code null} if there is no other available
+	 *         endpoint.
+	 */
+	public BackendEndpoint chooseAlternate(BackendEndpoint exclude) {
+		long now = System.currentTimeMillis();
+		BackendEndpoint best = null;
+		for (BackendEndpoint endpoint : endpoints) {
+			if (endpoint != exclude
+					&& endpoint.isAvailable(now)
+					&& (best == null || endpoint.getOutstanding() < best
+							.getOutstanding())) {
+				best = endpoint;
+			}
+		}
+		return best;
+	}
+
+	private BackendEndpoint chooseLeastOutstanding(long now) {
+		// Start at a rotating offset so that ties are spread evenly.
+		int size = endpoints.size();
+		int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+		BackendEndpoint best = null;
+		for (int i = 0; i < size; i++) {
+			BackendEndpoint endpoint = endpoints.get((start + i) % size);
+			if (endpoint.isAvailable(now)
+					&& (best == null || endpoint.getOutstanding() < best
+							.getOutstanding())) {
+				best = endpoint;
+			}
+		}
+		return best != null ? best : endpoints.get(start);
+	}
+
+	private BackendEndpoint chooseByHash(String waveId, long now) {
+		int hash = Hashing.mix(waveId.hashCode());
+		SortedMap<Integer, BackendEndpoint> tail = ring.tailMap(hash);
+		for (BackendEndpoint endpoint : tail.values()) {
+			if (endpoint.isAvailable(now)) {
+				return endpoint;
+			}
+		}
+		for (Map.Entry<Integer, BackendEndpoint> entry : ring.entrySet()) {
+			if (entry.getKey() >= hash) {
+				break;
+			}
+			if (entry.getValue().isAvailable(now)) {
+				return entry.getValue();
+			}
+		}
+		return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail
+				.firstKey());
+	}
+}
@@ -0,0 +1,187 @@
+package net.thewe.relay;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Maps the routing key of an events document to a backend endpoint.
+ * 
+ * Backend groups are configured with a string of the form
+ * 
+ * <pre>
+ * 31337 = http://a.thewe.net/31337/wave, gzip:http://b.thewe.net/31337/wave;
+ * action:mother-shit = http://c.thewe.net/wave
+ * </pre>
+ * 
+ * An endpoint URL may be prefixed with the name of a {@link RelayWireFormat}
+ * to override the default wire format for that endpoint.
+ * 
+ * A group keyed {@code action:<name>} serves every request for that action and
+ * takes precedence over a group keyed by port. Ports without a configured
+ * group are served by a single endpoint built from the default URL prefix and
+ * suffix, which is still health checked.
+ */
+public class BackendRouter {
+
+	private static final Logger log = Logger.getLogger(BackendRouter.class
+			.getName());
+
+	private static final String ACTION_PREFIX = "action:";
+
+	public static final int DEFAULT_EJECT_AFTER_FAILURES = 3;
+	public static final long DEFAULT_EJECT_MILLIS = 30000L;
+
+	private final Map<String, BackendGroup> configured;
+	private final ConcurrentMap<String, BackendGroup> defaults =
+			new ConcurrentHashMap<String, BackendGroup>();
+	private final String defaultPrefix;
+	private final String defaultSuffix;
+	private final LoadBalancingPolicy policy;
+	private final RelayWireFormat wireFormat;
+	private final int ejectAfterFailures;
+	private final long ejectMillis;
+
+	/**
+	 * @param config the backend groups, in the format described above; may be
+	 *            {@code null} or empty.
+	 * @param defaultPrefix URL prefix for ports without a configured group.
+	 * @param defaultSuffix URL suffix for ports without a configured group.
+	 * @param policy the load balancing policy of every group.
+	 * @param wireFormat the wire format of endpoints that do not specify one.
+	 * @param ejectAfterFailures consecutive failures that eject an endpoint.
+	 * @param ejectMillis how long an ejected endpoint stays out of rotation.
+	 * @throws IllegalArgumentException if {@code config} is malformed.
+	 */
+	public BackendRouter(String config, String defaultPrefix,
+			String defaultSuffix, LoadBalancingPolicy policy,
+			RelayWireFormat wireFormat, int ejectAfterFailures, long ejectMillis) {
+		this.defaultPrefix = defaultPrefix;
+		this.defaultSuffix = defaultSuffix;
+		this.policy = policy;
+		this.wireFormat = wireFormat;
+		this.ejectAfterFailures = ejectAfterFailures;
+		this.ejectMillis = ejectMillis;
+		this.configured = Collections.unmodifiableMap(parse(config));
+	}
+
+	/**
+	 * Chooses the endpoint that should serve a request.
+	 * 
+	 * @throws MalformedURLException if the default URL for the port is not
+	 *             valid.
+	 */
+	public BackendEndpoint route(RoutingKey key) throws MalformedURLException {
+		return getGroup(key).choose(key);
+	}
+
+	/**
+	 * Returns the group serving a request.
+	 */
+	public BackendGroup getGroup(RoutingKey key) throws MalformedURLException {
+		BackendGroup group = null;
+		if (key.getAction() != null) {
+			group = configured.get(ACTION_PREFIX + key.getAction());
+		}
+		if (group == null) {
+			group = configured.get(key.getPort());
+		}
+		if (group == null) {
+			group = getDefaultGroup(key.getPort());
+		}
+		return group;
+	}
+
+	/**
+	 * Records the outcome of a request against an endpoint.
+	 */
+	public void recordResult(BackendEndpoint endpoint, boolean success) {
+		if (success) {
+			endpoint.recordSuccess();
+		} else if (endpoint.recordFailure(System.currentTimeMillis(),
+				ejectAfterFailures, ejectMillis)) {
+			log.warning("Ejecting backend " + endpoint + " for " + ejectMillis
+					+ "ms");
+		}
+	}
+
+	/**
+	 * Returns every group known to the router, keyed as configured (ports of
+	 * default groups are keyed by the port).
+	 */
+	public Map<String, BackendGroup> getGroups() {
+		Map<String, BackendGroup> groups = new HashMap<String, BackendGroup>(
+				defaults);
+		groups.putAll(configured);
+		return groups;
+	}
+
+	private BackendGroup getDefaultGroup(String port)
+			throws MalformedURLException {
+		BackendGroup group = defaults.get(port);
+		if (group == null) {
+			List<BackendEndpoint> endpoints = new ArrayList<BackendEndpoint>(1);
+			endpoints.add(new BackendEndpoint(new URL(defaultPrefix + port
+					+ defaultSuffix), wireFormat));
+			group = new BackendGroup(endpoints, policy);
+			BackendGroup existing = defaults.putIfAbsent(port, group);
+			if (existing != null) {
+				group = existing;
+			}
+		}
+		return group;
+	}
+
+	private Map<String, BackendGroup> parse(String config) {
+		Map<String, BackendGroup> groups = new HashMap<String, BackendGroup>();
+		if (config == null) {
+			return groups;
+		}
+		for (String entry : config.split(";")) {
+			if (entry.trim().length() == 0) {
+				continue;
+			}
+			int eq = entry.indexOf('=');
+			if (eq <= 0) {
+				throw new IllegalArgumentException("Malformed backend entry: "
+						+ entry.trim());
+			}
+			String key = entry.substring(0, eq).trim();
+			List<BackendEndpoint> endpoints = new ArrayList<BackendEndpoint>();
+			for (String url : entry.substring(eq + 1).split(",")) {
+				if (url.trim().length() == 0) {
+					continue;
+				}
+				try {
+					endpoints.add(parseEndpoint(url.trim()));
+				} catch (MalformedURLException e) {
+					throw new IllegalArgumentException("Malformed backend URL "
+							+ url.trim() + " for " + key);
+				}
+			}
+			groups.put(key, new BackendGroup(endpoints, policy));
+		}
+		return groups;
+	}
+
+	private BackendEndpoint parseEndpoint(String spec)
+			throws MalformedURLException {
+		RelayWireFormat format = wireFormat;
+		for (RelayWireFormat candidate : RelayWireFormat.values()) {
+			String prefix = candidate + ":";
+			if (spec.startsWith(prefix)) {
+				format = candidate;
+				spec = spec.substring(prefix.length());
+				break;
+			}
+		}
+		return new BackendEndpoint(new URL(spec), format);
+	}
+}
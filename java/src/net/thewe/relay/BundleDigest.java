@@ -0,0 +1,105 @@
+package net.thewe.relay;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes a content hash of an events document that ignores the fields Wave
+ * changes between redeliveries of the same bundle (timestamps), so that
+ * duplicate bundles hash to the same key.
+ */
+public class BundleDigest {
+
+	private static final String[] IGNORED_KEYS = { "timestamp",
+			"lastModifiedTime" };
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private BundleDigest() {
+	}
+
+	/**
+	 * Returns the digest of a UTF-8 encoded events document and the action it
+	 * is proxied for.
+	 * 
+	 * @param bytes the document.
+	 * @param offset the offset of the document in {@code bytes}.
+	 * @param length the length of the document.
+	 * @param action the {@code proxyingFor} action, may be {@code null}.
+	 * @return the digest as a hex string, or {@code null} if the document is
+	 *         malformed.
+	 */
+	public static String digest(byte[] bytes, int offset, int length,
+			String action) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+
+		int end = offset + length;
+		int segment = offset;
+		int pos = offset;
+		try {
+			while (pos < end) {
+				if (bytes[pos] != '"') {
+					pos++;
+					continue;
+				}
+				int stringEnd = JsonBytes.skipString(bytes, pos, end);
+				int next = JsonBytes.skipWhitespace(bytes, stringEnd, end);
+				if (next < end && bytes[next] == ':'
+						&& isIgnoredKey(bytes, pos + 1, stringEnd - 1)) {
+					int valueStart = JsonBytes.skipWhitespace(bytes, next + 1,
+							end);
+					int valueEnd = JsonBytes.skipValue(bytes, valueStart, end);
+					md.update(bytes, segment, valueStart - segment);
+					segment = valueEnd;
+					pos = valueEnd;
+				} else {
+					pos = stringEnd;
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		md.update(bytes, segment, end - segment);
+
+		if (action != null) {
+			try {
+				md.update((byte) 0);
+				md.update(action.getBytes("UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				throw new AssertionError(e);
+			}
+		}
+		return toHex(md.digest());
+	}
+
+	private static boolean isIgnoredKey(byte[] b, int start, int end) {
+		for (String key : IGNORED_KEYS) {
+			if (end - start != key.length()) {
+				continue;
+			}
+			int i = 0;
+			while (i < key.length() && b[start + i] == key.charAt(i)) {
+				i++;
+			}
+			if (i == key.length()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String toHex(byte[] digest) {
+		char[] chars = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			chars[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+			chars[2 * i + 1] = HEX[digest[i] & 0xf];
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,58 @@
+package net.thewe.relay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that writes through to another stream and keeps a copy of
+ * the first bytes written to it, up to a limit.
+ */
+public class CapturingOutputStream extends FilterOutputStream {
+
+	private final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+	private final long limit;
+	private boolean truncated;
+
+	public CapturingOutputStream(OutputStream out, long limit) {
+		super(out);
+		this.limit = limit;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		if (copy.size() < limit) {
+			copy.write(b);
+		} else {
+			truncated = true;
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		int room = (int) Math.min(len, limit - copy.size());
+		if (room > 0) {
+			copy.write(b, off, room);
+		}
+		if (room < len) {
+			truncated = true;
+		}
+	}
+
+	/**
+	 * Returns whether more bytes were written than were kept.
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Returns the bytes kept so far.
+	 */
+	public byte[] toByteArray() {
+		return copy.toByteArray();
+	}
+}
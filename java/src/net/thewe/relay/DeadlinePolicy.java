@@ -0,0 +1,84 @@
+package net.thewe.relay;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The time a backend gets to answer a request, by {@code proxyingFor} action.
+ * 
+ * Deadlines are configured with a string of the form
+ * 
+ * <pre>
+ * eval = 60000, mother-shit = 5000
+ * </pre>
+ * 
+ * in milliseconds. Actions that are not listed get the default deadline.
+ */
+public class DeadlinePolicy {
+
+	/**
+	 * The header that tells the backend how many milliseconds it has left.
+	 */
+	public static final String DEADLINE_HEADER = "X-Relay-Deadline";
+
+	/**
+	 * App Engine aborts a request after 30 seconds; leave some room to answer
+	 * Wave.
+	 */
+	public static final long DEFAULT_DEADLINE_MILLIS = 25000L;
+
+	private final Map<String, Long> deadlines;
+	private final long defaultMillis;
+
+	/**
+	 * @param config the deadlines, in the format described above; may be
+	 *            {@code null} or empty.
+	 * @param defaultMillis the deadline of actions that are not listed.
+	 * @throws IllegalArgumentException if {@code config} is malformed.
+	 */
+	public DeadlinePolicy(String config, long defaultMillis) {
+		this.defaultMillis = defaultMillis;
+		this.deadlines = Collections.unmodifiableMap(parse(config));
+	}
+
+	/**
+	 * Returns the deadline of an action in milliseconds.
+	 * 
+	 * @param action the action, or {@code null} if the request has none.
+	 */
+	public long getDeadlineMillis(String action) {
+		Long millis = action == null ? null : deadlines.get(action);
+		return millis != null ? millis : defaultMillis;
+	}
+
+	public long getDefaultMillis() {
+		return defaultMillis;
+	}
+
+	private static Map<String, Long> parse(String config) {
+		Map<String, Long> deadlines = new HashMap<String, Long>();
+		if (config == null) {
+			return deadlines;
+		}
+		for (String entry : config.split(",")) {
+			if (entry.trim().length() == 0) {
+				continue;
+			}
+			int eq = entry.indexOf('=');
+			if (eq <= 0) {
+				throw new IllegalArgumentException("Malformed deadline entry: "
+						+ entry.trim());
+			}
+			String action = entry.substring(0, eq).trim();
+			try {
+				deadlines.put(action, Long.valueOf(entry.substring(eq + 1)
+						.trim()));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Malformed deadline for "
+						+ action + ": " + entry.substring(eq + 1).trim());
+			}
+		}
+		return deadlines;
+	}
+}
@@ -0,0 +1,76 @@
+package net.thewe.relay;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that writes its input as the value of an
+ * {@code application/x-www-form-urlencoded} field. Bytes are encoded the same
+ * way {@link java.net.URLEncoder} encodes the UTF-8 bytes of a string, but
+ * without building the encoded string in memory.
+ */
+public class FormEncodingOutputStream extends FilterOutputStream {
+
+	private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+	private static final boolean[] UNRESERVED = new boolean[128];
+	static {
+		for (int c = 'a'; c <= 'z'; c++) {
+			UNRESERVED[c] = true;
+		}
+		for (int c = 'A'; c <= 'Z'; c++) {
+			UNRESERVED[c] = true;
+		}
+		for (int c = '0'; c <= '9'; c++) {
+			UNRESERVED[c] = true;
+		}
+		UNRESERVED['.'] = true;
+		UNRESERVED['-'] = true;
+		UNRESERVED['*'] = true;
+		UNRESERVED['_'] = true;
+	}
+
+	private final byte[] buffer = new byte[4096];
+	private int count;
+
+	public FormEncodingOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count > buffer.length - 3) {
+			flushBuffer();
+		}
+		b &= 0xff;
+		if (b < 128 && UNRESERVED[b]) {
+			buffer[count++] = (byte) b;
+		} else if (b == ' ') {
+			buffer[count++] = '+';
+		} else {
+			buffer[count++] = '%';
+			buffer[count++] = HEX[b >> 4];
+			buffer[count++] = HEX[b & 0xf];
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		for (int i = off; i < off + len; i++) {
+			write(b[i]);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+}
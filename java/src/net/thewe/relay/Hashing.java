@@ -0,0 +1,23 @@
+package net.thewe.relay;
+
+/**
+ * Hash helpers shared by the classes that place waves by their id.
+ */
+final class Hashing {
+
+	private Hashing() {
+	}
+
+	/**
+	 * Spreads {@link String#hashCode()} values over all 32 bits, so that ids
+	 * differing only in their last characters land far apart.
+	 */
+	static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
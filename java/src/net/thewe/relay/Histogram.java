@@ -0,0 +1,94 @@
+package net.thewe.relay;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A lock-free histogram of non-negative values with power-of-two buckets.
+ * Recording a value is a handful of atomic increments; percentiles are
+ * reported as the upper bound of the bucket they fall in.
+ */
+public class Histogram {
+
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				break;
+			}
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0.0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Returns an upper bound of the given percentile.
+	 * 
+	 * @param percentile the percentile, between 0 and 100.
+	 */
+	public long getPercentile(double percentile) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Returns a summary of the histogram, dividing every value by
+	 * {@code scale} (for example to report nanoseconds as milliseconds).
+	 */
+	public JSONObject toJSON(double scale) throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put("count", getCount());
+		json.put("mean", getMean() / scale);
+		json.put("p50", getPercentile(50) / scale);
+		json.put("p90", getPercentile(90) / scale);
+		json.put("p99", getPercentile(99) / scale);
+		json.put("max", getMax() / scale);
+		return json;
+	}
+
+	private static int bucket(long value) {
+		return value == 0 ? 0 : 64 - Long.numberOfLeadingZeros(value) - 1;
+	}
+
+	private static long upperBound(int bucket) {
+		return bucket >= 62 ? Long.MAX_VALUE : (2L << bucket) - 1;
+	}
+}
@@ -0,0 +1,84 @@
+package net.thewe.relay;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps the number of relayed requests in flight per backend. Admission never
+ * blocks: a request over the cap is rejected immediately, so a stalled
+ * backend cannot hold on to more than its share of container threads.
+ */
+public class InFlightLimiter {
+
+	private final int maxInFlight;
+	private final ConcurrentMap<String, AtomicInteger> inFlight =
+			new ConcurrentHashMap<String, AtomicInteger>();
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	/**
+	 * @param maxInFlight maximum number of requests in flight per backend, or
+	 *            0 for no limit.
+	 */
+	public InFlightLimiter(int maxInFlight) {
+		if (maxInFlight < 0) {
+			throw new IllegalArgumentException(
+					"maxInFlight must not be negative: " + maxInFlight);
+		}
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Tries to admit a request for the given backend. Every successful call
+	 * must be paired with a call to {@link #release(String)}.
+	 * 
+	 * @param backend the backend key.
+	 * @return true if the request was admitted.
+	 */
+	public boolean tryAcquire(String backend) {
+		AtomicInteger counter = getCounter(backend);
+		while (true) {
+			int current = counter.get();
+			if (maxInFlight > 0 && current >= maxInFlight) {
+				rejectedCount.incrementAndGet();
+				return false;
+			}
+			if (counter.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	public void release(String backend) {
+		getCounter(backend).decrementAndGet();
+	}
+
+	/**
+	 * Returns the number of requests currently in flight for a backend.
+	 */
+	public int getInFlight(String backend) {
+		AtomicInteger counter = inFlight.get(backend);
+		return counter == null ? 0 : counter.get();
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	private AtomicInteger getCounter(String backend) {
+		AtomicInteger counter = inFlight.get(backend);
+		if (counter == null) {
+			counter = new AtomicInteger();
+			AtomicInteger existing = inFlight.putIfAbsent(backend, counter);
+			if (existing != null) {
+				counter = existing;
+			}
+		}
+		return counter;
+	}
+}
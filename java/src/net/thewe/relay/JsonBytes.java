@@ -0,0 +1,163 @@
+package net.thewe.relay;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Low-level helpers for scanning UTF-8 encoded JSON in place. Positions are
+ * indexes into the byte array; every method throws
+ * {@link IllegalArgumentException} on malformed input.
+ */
+class JsonBytes {
+
+	private JsonBytes() {
+	}
+
+	/**
+	 * Returns the position just after the value starting at {@code pos}.
+	 */
+	static int skipValue(byte[] b, int pos, int end) {
+		if (pos >= end) {
+			throw new IllegalArgumentException("Unexpected end of document");
+		}
+		switch (b[pos]) {
+		case '"':
+			return skipString(b, pos, end);
+		case '{':
+		case '[':
+			return skipContainer(b, pos, end);
+		default:
+			int start = pos;
+			while (pos < end) {
+				byte c = b[pos];
+				if (c == ',' || c == '}' || c == ']' || isWhitespace(c)) {
+					break;
+				}
+				pos++;
+			}
+			if (pos == start) {
+				throw new IllegalArgumentException("Unexpected '"
+						+ (char) b[pos] + "' at " + pos);
+			}
+			return pos;
+		}
+	}
+
+	static int skipContainer(byte[] b, int pos, int end) {
+		int depth = 0;
+		while (pos < end) {
+			byte c = b[pos];
+			if (c == '"') {
+				pos = skipString(b, pos, end);
+				continue;
+			}
+			if (c == '{' || c == '[') {
+				depth++;
+			} else if (c == '}' || c == ']') {
+				if (--depth == 0) {
+					return pos + 1;
+				}
+			}
+			pos++;
+		}
+		throw new IllegalArgumentException("Unterminated object or array");
+	}
+
+	/**
+	 * Returns the position just after the closing quote of the string
+	 * starting at {@code pos}.
+	 */
+	static int skipString(byte[] b, int pos, int end) {
+		pos++;
+		while (pos < end) {
+			byte c = b[pos];
+			if (c == '\\') {
+				pos += 2;
+			} else if (c == '"') {
+				return pos + 1;
+			} else {
+				pos++;
+			}
+		}
+		throw new IllegalArgumentException("Unterminated string");
+	}
+
+	static String unescape(byte[] b, int start, int end) {
+		StringBuilder sb = new StringBuilder(end - start);
+		try {
+			int segment = start;
+			int pos = start;
+			while (pos < end) {
+				if (b[pos] != '\\') {
+					pos++;
+					continue;
+				}
+				sb.append(new String(b, segment, pos - segment, "UTF-8"));
+				if (pos + 1 >= end) {
+					throw new IllegalArgumentException("Bad escape at " + pos);
+				}
+				char c = (char) b[pos + 1];
+				switch (c) {
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'u':
+					if (pos + 6 > end) {
+						throw new IllegalArgumentException("Bad escape at "
+								+ pos);
+					}
+					try {
+						sb.append((char) Integer.parseInt(new String(b,
+								pos + 2, 4, "US-ASCII"), 16));
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Bad escape at "
+								+ pos);
+					}
+					pos += 4;
+					break;
+				default:
+					sb.append(c);
+				}
+				pos += 2;
+				segment = pos;
+			}
+			sb.append(new String(b, segment, end - segment, "UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+		return sb.toString();
+	}
+
+	static int skipWhitespace(byte[] b, int pos, int end) {
+		while (pos < end && isWhitespace(b[pos])) {
+			pos++;
+		}
+		return pos;
+	}
+
+	static boolean isWhitespace(byte c) {
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+	}
+
+	static void expect(byte[] b, int pos, int end, char c) {
+		if (pos >= end) {
+			throw new IllegalArgumentException("Expected '" + c
+					+ "' but document ended");
+		}
+		if (b[pos] != c) {
+			throw new IllegalArgumentException("Expected '" + c + "' at "
+					+ pos + " but found '" + (char) b[pos] + "'");
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package net.thewe.relay;
+
+/**
+ * How a {@link BackendGroup} picks one of its endpoints.
+ */
+public enum LoadBalancingPolicy {
+
+	/**
+	 * Pick the available endpoint with the fewest requests outstanding.
+	 */
+	LEAST_OUTSTANDING("least-outstanding"),
+
+	/**
+	 * Pick an endpoint by consistent hashing of the wave id, so that all
+	 * events of a wave reach the same node while it is healthy.
+	 */
+	WAVE_HASH("wave-hash");
+
+	private final String text;
+
+	private LoadBalancingPolicy(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * Returns the policy with the given configuration name.
+	 * 
+	 * @throws IllegalArgumentException if there is no such policy.
+	 */
+	public static LoadBalancingPolicy fromText(String text) {
+		for (LoadBalancingPolicy policy : values()) {
+			if (policy.text.equals(text)) {
+				return policy;
+			}
+		}
+		throw new IllegalArgumentException("Unknown load balancing policy: "
+				+ text);
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+}
@@ -0,0 +1,204 @@
+package net.thewe.relay;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logs relayed payloads for a sample of waves.
+ * 
+ * Whether a wave is sampled is decided from its id, so either every request
+ * of a wave is logged or none is; waves can also be listed explicitly. For a
+ * request that is not sampled nothing is decoded, copied or concatenated.
+ * Sampled payloads are truncated and put on a fixed-size ring buffer, which is
+ * drained into the logger by a background thread, or by the request thread
+ * once its answer has been sent where the container does not allow threads
+ * (App Engine). When the ring is full the oldest message is dropped.
+ */
+public class PayloadLogger {
+
+	private final Logger logger;
+	private final double sampleRate;
+	private final Set<String> waves;
+	private final int maxChars;
+
+	private final String[] ring;
+	private int head;
+	private int size;
+	private long dropped;
+
+	private final Random random = new Random();
+	private final Thread drainer;
+	private volatile boolean running = true;
+
+	/**
+	 * @param logger the logger to write to, at {@link Level#INFO}.
+	 * @param sampleRate the fraction of waves to log, between 0 and 1.
+	 * @param waves ids of waves that are always logged.
+	 * @param maxChars the maximum number of characters logged per payload.
+	 * @param capacity the number of messages the ring buffer holds.
+	 */
+	public PayloadLogger(Logger logger, double sampleRate, Set<String> waves,
+			int maxChars, int capacity) {
+		this.logger = logger;
+		this.sampleRate = sampleRate;
+		this.waves = Collections.unmodifiableSet(new HashSet<String>(waves));
+		this.maxChars = maxChars;
+		this.ring = new String[Math.max(1, capacity)];
+		this.drainer = isEnabled() ? startDrainer() : null;
+	}
+
+	/**
+	 * Returns whether any request can be sampled at all.
+	 */
+	public boolean isEnabled() {
+		return sampleRate > 0 || !waves.isEmpty();
+	}
+
+	/**
+	 * Returns whether the payloads of a request should be logged.
+	 */
+	public boolean isSampled(RoutingKey key) {
+		if (!isEnabled() || !logger.isLoggable(Level.INFO)) {
+			return false;
+		}
+		String waveId = key.getWaveId();
+		if (waveId == null) {
+			synchronized (random) {
+				return random.nextDouble() < sampleRate;
+			}
+		}
+		if (waves.contains(waveId)) {
+			return true;
+		}
+		return (Hashing.mix(waveId.hashCode()) & 0xffffff) < sampleRate
+				* 0x1000000;
+	}
+
+	/**
+	 * Returns the number of payload bytes that is enough to fill a log
+	 * message; a UTF-8 character is at least one byte.
+	 */
+	public int getMaxBytes() {
+		return maxChars * 4;
+	}
+
+	/**
+	 * Queues a UTF-8 payload for logging. Only call this for sampled requests.
+	 */
+	public void log(String label, RoutingKey key, byte[] bytes, int offset,
+			int length) {
+		// Cut the bytes at the start of a character, so that the text does not
+		// end in a replacement character.
+		int decoded = Math.min(length, getMaxBytes());
+		while (decoded > 0 && decoded < length
+				&& (bytes[offset + decoded] & 0xC0) == 0x80) {
+			decoded--;
+		}
+		String text;
+		try {
+			text = new String(bytes, offset, decoded, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+		boolean truncated = decoded < length;
+		if (text.length() > maxChars) {
+			int end = maxChars;
+			if (Character.isHighSurrogate(text.charAt(end - 1))) {
+				end--;
+			}
+			text = text.substring(0, end);
+			truncated = true;
+		}
+		StringBuilder message = new StringBuilder(text.length() + 64);
+		message.append(label).append(' ').append(key).append(" (")
+				.append(length).append(" bytes): ").append(text);
+		if (truncated) {
+			message.append("...");
+		}
+		append(message.toString());
+	}
+
+	/**
+	 * Writes out any queued messages on the calling thread. Does nothing when a
+	 * background thread is draining the buffer.
+	 */
+	public void flush() {
+		if (drainer == null) {
+			drain();
+		}
+	}
+
+	public void shutdown() {
+		running = false;
+		if (drainer != null) {
+			drainer.interrupt();
+		}
+		drain();
+	}
+
+	public synchronized long getDroppedCount() {
+		return dropped;
+	}
+
+	private synchronized void append(String message) {
+		if (size == ring.length) {
+			head = (head + 1) % ring.length;
+			size--;
+			dropped++;
+		}
+		ring[(head + size) % ring.length] = message;
+		size++;
+		notifyAll();
+	}
+
+	private synchronized String poll() {
+		if (size == 0) {
+			return null;
+		}
+		String message = ring[head];
+		ring[head] = null;
+		head = (head + 1) % ring.length;
+		size--;
+		return message;
+	}
+
+	private void drain() {
+		String message;
+		while ((message = poll()) != null) {
+			logger.info(message);
+		}
+	}
+
+	private Thread startDrainer() {
+		Thread thread = new Thread("relay-payload-logger") {
+			@Override
+			public void run() {
+				while (running) {
+					synchronized (PayloadLogger.this) {
+						while (size == 0 && running) {
+							try {
+								PayloadLogger.this.wait();
+							} catch (InterruptedException e) {
+								return;
+							}
+						}
+					}
+					drain();
+				}
+			}
+		};
+		thread.setDaemon(true);
+		try {
+			thread.start();
+			return thread;
+		} catch (SecurityException e) {
+			// Threads are not allowed here; drain on the request thread.
+			return null;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package net.thewe.relay;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link RelayTransport} that keeps a bounded pool of persistent HTTP/1.1
+ * connections per backend.
+ * 
+ * Socket reuse itself is left to the JDK keep-alive cache (URLFetch on App
+ * Engine), which reuses a socket once its response has been fully read; this
+ * class makes sure that always happens, and bounds the number of connections
+ * leased to a single backend so that a stalled backend cannot pile up request
+ * threads. The JDK keeps connections alive by default; the
+ * {@code http.keepAlive} system property is left to the deployment.
+ */
+public class PooledRelayTransport implements RelayTransport {
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 20;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+	public static final int DEFAULT_READ_TIMEOUT = 0;
+	public static final int DEFAULT_ACQUIRE_TIMEOUT = 10000;
+
+	private final int maxConnections;
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final int acquireTimeout;
+	private final ConcurrentMap<String, BackendPool> pools =
+			new ConcurrentHashMap<String, BackendPool>();
+
+	/**
+	 * @param maxConnections maximum number of connections leased to a single
+	 *            backend at the same time.
+	 * @param connectTimeout connect timeout in milliseconds, 0 for none.
+	 * @param readTimeout read timeout in milliseconds, 0 for none.
+	 * @param acquireTimeout how long to wait for a free connection in
+	 *            milliseconds before giving up.
+	 */
+	public PooledRelayTransport(int maxConnections, int connectTimeout,
+			int readTimeout, int acquireTimeout) {
+		if (maxConnections <= 0) {
+			throw new IllegalArgumentException(
+					"maxConnections must be positive: " + maxConnections);
+		}
+		this.maxConnections = maxConnections;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.acquireTimeout = acquireTimeout;
+	}
+
+	public PooledRelayTransport() {
+		this(DEFAULT_MAX_CONNECTIONS, DEFAULT_CONNECT_TIMEOUT,
+				DEFAULT_READ_TIMEOUT, DEFAULT_ACQUIRE_TIMEOUT);
+	}
+
+	@Override
+	public RelayConnection open(URL url) throws IOException {
+		final BackendPool pool = getPool(url);
+		pool.acquire(acquireTimeout);
+
+		HttpURLConnection conn;
+		try {
+			conn = (HttpURLConnection) url.openConnection();
+			conn.setConnectTimeout(connectTimeout);
+			conn.setReadTimeout(readTimeout);
+			conn.setRequestProperty("Connection", "keep-alive");
+			conn.setDoOutput(true);
+		} catch (IOException iox) {
+			pool.release();
+			throw iox;
+		} catch (RuntimeException e) {
+			pool.release();
+			throw e;
+		}
+
+		return new RelayConnection(conn, new Runnable() {
+			@Override
+			public void run() {
+				pool.release();
+			}
+		});
+	}
+
+	@Override
+	public RelayPoolStats getStats(URL url) {
+		BackendPool pool = pools.get(key(url));
+		return pool == null ? null : pool.snapshot();
+	}
+
+	@Override
+	public void shutdown() {
+		pools.clear();
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	private BackendPool getPool(URL url) {
+		String key = key(url);
+		BackendPool pool = pools.get(key);
+		if (pool == null) {
+			pool = new BackendPool(key, maxConnections);
+			BackendPool existing = pools.putIfAbsent(key, pool);
+			if (existing != null) {
+				pool = existing;
+			}
+		}
+		return pool;
+	}
+
+	private static String key(URL url) {
+		return url.toExternalForm();
+	}
+
+	/**
+	 * Lease accounting for a single backend.
+	 */
+	private static class BackendPool {
+		private final String backend;
+		private final int maxSize;
+		private final Semaphore permits;
+		private final AtomicLong borrowCount = new AtomicLong();
+		private final AtomicLong timeoutCount = new AtomicLong();
+		private final AtomicLong totalWaitNanos = new AtomicLong();
+
+		BackendPool(String backend, int maxSize) {
+			this.backend = backend;
+			this.maxSize = maxSize;
+			this.permits = new Semaphore(maxSize, true);
+		}
+
+		void acquire(int timeoutMillis) throws IOException {
+			long start = System.nanoTime();
+			boolean acquired;
+			try {
+				acquired = permits.tryAcquire(timeoutMillis,
+						TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for a connection to "
+						+ backend);
+			}
+			totalWaitNanos.addAndGet(System.nanoTime() - start);
+			if (!acquired) {
+				timeoutCount.incrementAndGet();
+				throw new IOException("No free connection to " + backend
+						+ " after " + timeoutMillis + "ms");
+			}
+			borrowCount.incrementAndGet();
+		}
+
+		void release() {
+			permits.release();
+		}
+
+		RelayPoolStats snapshot() {
+			return new RelayPoolStats(backend, maxSize, maxSize
+					- permits.availablePermits(), borrowCount.get(),
+					timeoutCount.get(), totalWaitNanos.get());
+		}
+	}
+}
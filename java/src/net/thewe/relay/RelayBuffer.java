@@ -0,0 +1,131 @@
+package net.thewe.relay;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Per-thread, reusable byte buffers for the relay. A request body is read
+ * once, as raw bytes, into a buffer owned by the serving thread, so relaying
+ * an event bundle does not allocate new buffers on every request.
+ */
+public class RelayBuffer {
+
+	private static final int INITIAL_SIZE = 16 * 1024;
+	private static final int TRANSFER_SIZE = 8 * 1024;
+
+	/**
+	 * Buffers larger than this are dropped by {@link #releaseCurrentThread()}
+	 * at the end of the request instead of being kept around by an idle
+	 * thread.
+	 */
+	private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+	private static final ThreadLocal<RelayBuffer> BUFFERS = new ThreadLocal<RelayBuffer>() {
+		@Override
+		protected RelayBuffer initialValue() {
+			return new RelayBuffer();
+		}
+	};
+
+	private byte[] bytes;
+	private final byte[] transfer = new byte[TRANSFER_SIZE];
+	private int length;
+
+	private RelayBuffer() {
+		bytes = new byte[INITIAL_SIZE];
+	}
+
+	private RelayBuffer(byte[] bytes) {
+		this.bytes = bytes;
+		this.length = bytes.length;
+	}
+
+	/**
+	 * Returns the buffer owned by the current thread, emptied.
+	 */
+	public static RelayBuffer forCurrentThread() {
+		RelayBuffer buffer = BUFFERS.get();
+		buffer.reset();
+		return buffer;
+	}
+
+	/**
+	 * Empties the buffer owned by the current thread and drops its backing
+	 * array if a large request grew it past the retained size. Call once the
+	 * request no longer needs the buffer.
+	 */
+	public static void releaseCurrentThread() {
+		BUFFERS.get().reset();
+	}
+
+	/**
+	 * Returns a copy of the content that belongs to no thread. Attempts
+	 * running on other threads send the copy, since the buffer of the serving
+	 * thread is reused once its request ends, even if they are still writing.
+	 * The copy must not be refilled.
+	 */
+	public RelayBuffer snapshot() {
+		byte[] copy = new byte[length];
+		System.arraycopy(bytes, 0, copy, 0, length);
+		return new RelayBuffer(copy);
+	}
+
+	/**
+	 * Reads {@code in} to the end into this buffer, replacing its content.
+	 * 
+	 * @param in the stream to read.
+	 * @return the number of bytes read.
+	 */
+	public int readFrom(InputStream in) throws IOException {
+		length = 0;
+		int n;
+		while ((n = in.read(bytes, length, bytes.length - length)) != -1) {
+			length += n;
+			if (length == bytes.length) {
+				byte[] grown = new byte[bytes.length * 2];
+				System.arraycopy(bytes, 0, grown, 0, length);
+				bytes = grown;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Copies {@code in} to {@code out} through this thread's transfer buffer.
+	 * 
+	 * @return the number of bytes copied.
+	 */
+	public long copy(InputStream in, OutputStream out) throws IOException {
+		long total = 0;
+		int n;
+		while ((n = in.read(transfer)) != -1) {
+			out.write(transfer, 0, n);
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the backing array. Only the first {@link #length()} bytes are
+	 * valid.
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(bytes, 0, length);
+	}
+
+	private void reset() {
+		length = 0;
+		if (bytes.length > MAX_RETAINED_SIZE) {
+			bytes = new byte[INITIAL_SIZE];
+		}
+	}
+}
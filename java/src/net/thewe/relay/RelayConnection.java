@@ -0,0 +1,87 @@
+package net.thewe.relay;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+
+/**
+ * A connection borrowed from a {@link RelayTransport}. Wraps the underlying
+ * {@link HttpURLConnection} and hands it back to its pool on
+ * {@link #release()}.
+ */
+public class RelayConnection {
+
+	private static final int DRAIN_BUFFER_SIZE = 1024;
+
+	private final HttpURLConnection connection;
+	private final Runnable onRelease;
+	private InputStream input;
+	private boolean released;
+
+	public RelayConnection(HttpURLConnection connection, Runnable onRelease) {
+		this.connection = connection;
+		this.onRelease = onRelease;
+	}
+
+	public HttpURLConnection getConnection() {
+		return connection;
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		return connection.getOutputStream();
+	}
+
+	/**
+	 * Returns the response body stream. Reading the response through this
+	 * method (rather than through {@link #getConnection()}) lets
+	 * {@link #release()} drain it so the socket can be reused.
+	 */
+	public InputStream getInputStream() throws IOException {
+		if (input == null) {
+			try {
+				input = connection.getInputStream();
+			} catch (IOException iox) {
+				drain(connection.getErrorStream());
+				throw iox;
+			}
+		}
+		return input;
+	}
+
+	/**
+	 * Drains whatever is left of the response so the JDK can keep the socket
+	 * alive, and returns the lease to the pool. A connection whose response was
+	 * never read is disconnected instead. Safe to call more than once.
+	 */
+	public void release() {
+		if (released) {
+			return;
+		}
+		released = true;
+		try {
+			if (input != null) {
+				drain(input);
+			} else {
+				connection.disconnect();
+			}
+		} finally {
+			onRelease.run();
+		}
+	}
+
+	private static void drain(InputStream in) {
+		if (in == null) {
+			return;
+		}
+		try {
+			byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+			while (in.read(buffer) != -1) {
+				// Discard.
+			}
+			in.close();
+		} catch (IOException iox) {
+			// The socket will not be reused, nothing else to do.
+		}
+	}
+}
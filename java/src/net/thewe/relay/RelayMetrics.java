@@ -0,0 +1,152 @@
+package net.thewe.relay;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Metrics of the relay hot path: latency of each stage of a relayed request,
+ * payload sizes, errors per backend port and requests in flight.
+ * 
+ * A disabled registry records nothing; {@link #start()} does not even read
+ * the clock, so instrumentation costs a branch per call site.
+ */
+public class RelayMetrics {
+
+	private static final double NANOS_PER_MILLI = 1000000.0;
+
+	private final boolean enabled;
+
+	private final Histogram readTime = new Histogram();
+	private final Histogram routingTime = new Histogram();
+	private final Histogram backendTime = new Histogram();
+	private final Histogram writeTime = new Histogram();
+	private final Histogram requestSize = new Histogram();
+	private final Histogram responseSize = new Histogram();
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong requestCount = new AtomicLong();
+	private final ConcurrentMap<String, AtomicLong> errorsByPort =
+			new ConcurrentHashMap<String, AtomicLong>();
+
+	public RelayMetrics(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Returns a start time for one of the {@code record*Time} methods.
+	 */
+	public long start() {
+		return enabled ? System.nanoTime() : 0L;
+	}
+
+	public void recordReadTime(long start) {
+		if (enabled) {
+			readTime.record(System.nanoTime() - start);
+		}
+	}
+
+	public void recordRoutingTime(long start) {
+		if (enabled) {
+			routingTime.record(System.nanoTime() - start);
+		}
+	}
+
+	public void recordBackendTime(long start) {
+		if (enabled) {
+			backendTime.record(System.nanoTime() - start);
+		}
+	}
+
+	public void recordWriteTime(long start) {
+		if (enabled) {
+			writeTime.record(System.nanoTime() - start);
+		}
+	}
+
+	public void recordRequestSize(long bytes) {
+		if (enabled) {
+			requestSize.record(bytes);
+		}
+	}
+
+	public void recordResponseSize(long bytes) {
+		if (enabled) {
+			responseSize.record(bytes);
+		}
+	}
+
+	public void recordError(String port) {
+		if (!enabled) {
+			return;
+		}
+		AtomicLong counter = errorsByPort.get(port);
+		if (counter == null) {
+			counter = new AtomicLong();
+			AtomicLong existing = errorsByPort.putIfAbsent(port, counter);
+			if (existing != null) {
+				counter = existing;
+			}
+		}
+		counter.incrementAndGet();
+	}
+
+	/**
+	 * Marks the start of a request. Must be paired with {@link #endRequest()}.
+	 */
+	public void beginRequest() {
+		if (enabled) {
+			requestCount.incrementAndGet();
+			inFlight.incrementAndGet();
+		}
+	}
+
+	public void endRequest() {
+		if (enabled) {
+			inFlight.decrementAndGet();
+		}
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Returns the metrics as a JSON object. Latencies are in milliseconds,
+	 * sizes in bytes.
+	 */
+	public JSONObject toJSON() throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put("enabled", enabled);
+		json.put("requests", requestCount.get());
+		json.put("inFlight", inFlight.get());
+
+		JSONObject latency = new JSONObject();
+		latency.put("read", readTime.toJSON(NANOS_PER_MILLI));
+		latency.put("routing", routingTime.toJSON(NANOS_PER_MILLI));
+		latency.put("backend", backendTime.toJSON(NANOS_PER_MILLI));
+		latency.put("write", writeTime.toJSON(NANOS_PER_MILLI));
+		json.put("latencyMillis", latency);
+
+		JSONObject sizes = new JSONObject();
+		sizes.put("request", requestSize.toJSON(1.0));
+		sizes.put("response", responseSize.toJSON(1.0));
+		json.put("sizeBytes", sizes);
+
+		JSONObject errors = new JSONObject();
+		for (Map.Entry<String, AtomicLong> entry : errorsByPort.entrySet()) {
+			errors.put(entry.getKey(), entry.getValue().get());
+		}
+		json.put("errorsByPort", errors);
+		return json;
+	}
+}
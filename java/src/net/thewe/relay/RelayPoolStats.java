@@ -0,0 +1,68 @@
+package net.thewe.relay;
+
+/**
+ * Immutable snapshot of the connection pool of a single backend.
+ */
+public class RelayPoolStats {
+
+	private final String backend;
+	private final int maxSize;
+	private final int inUse;
+	private final long borrowCount;
+	private final long timeoutCount;
+	private final long totalWaitNanos;
+
+	public RelayPoolStats(String backend, int maxSize, int inUse,
+			long borrowCount, long timeoutCount, long totalWaitNanos) {
+		this.backend = backend;
+		this.maxSize = maxSize;
+		this.inUse = inUse;
+		this.borrowCount = borrowCount;
+		this.timeoutCount = timeoutCount;
+		this.totalWaitNanos = totalWaitNanos;
+	}
+
+	public String getBackend() {
+		return backend;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int getInUse() {
+		return inUse;
+	}
+
+	/**
+	 * Returns how many more connections may be leased to the backend before
+	 * callers have to wait. These are free lease slots, not idle sockets: the
+	 * JDK keep-alive cache does not say how many of those it holds.
+	 */
+	public int getAvailable() {
+		return maxSize - inUse;
+	}
+
+	public long getBorrowCount() {
+		return borrowCount;
+	}
+
+	public long getTimeoutCount() {
+		return timeoutCount;
+	}
+
+	public long getTotalWaitMillis() {
+		return totalWaitNanos / 1000000L;
+	}
+
+	public double getAverageWaitMillis() {
+		return borrowCount == 0 ? 0.0 : totalWaitNanos / 1000000.0 / borrowCount;
+	}
+
+	@Override
+	public String toString() {
+		return backend + " inUse=" + inUse + " available=" + getAvailable() + " max="
+				+ maxSize + " borrows=" + borrowCount + " timeouts="
+				+ timeoutCount + " avgWaitMs=" + getAverageWaitMillis();
+	}
+}
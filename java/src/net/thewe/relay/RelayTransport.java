@@ -0,0 +1,35 @@
+package net.thewe.relay;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Transport used by the robot servlet to forward event bundles to a Clojure
+ * backend. Implementations decide how connections are created, reused and
+ * bounded.
+ */
+public interface RelayTransport {
+
+	/**
+	 * Opens a connection to the given backend URL. The caller must call
+	 * {@link RelayConnection#release()} once it is done with the connection.
+	 * 
+	 * @param url the backend URL.
+	 * @return a connection ready for output.
+	 * @throws IOException if no connection could be obtained.
+	 */
+	RelayConnection open(URL url) throws IOException;
+
+	/**
+	 * Returns a snapshot of the pool statistics for the given backend URL.
+	 * 
+	 * @param url the backend URL.
+	 * @return the statistics, or {@code null} if the backend was never used.
+	 */
+	RelayPoolStats getStats(URL url);
+
+	/**
+	 * Releases any resources held by the transport.
+	 */
+	void shutdown();
+}
@@ -0,0 +1,157 @@
+package net.thewe.relay;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.wave.api.impl.JsonReader;
+import com.google.wave.api.impl.WaveBinaryCodec;
+
+/**
+ * How the relay sends an events document to a backend.
+ */
+public enum RelayWireFormat {
+
+	/**
+	 * The events document as the URL-encoded {@code events} form field. Every
+	 * backend understands this.
+	 */
+	FORM("form") {
+		@Override
+		public void writeRequest(RelayConnection conn, RelayBuffer events)
+				throws IOException {
+			conn.getConnection().setRequestProperty("Content-Type",
+					"application/x-www-form-urlencoded");
+			OutputStream out = conn.getOutputStream();
+			out.write(EVENTS_FORM_FIELD);
+			OutputStream encoder = new FormEncodingOutputStream(out);
+			events.writeTo(encoder);
+			encoder.close();
+		}
+	},
+
+	/**
+	 * The raw events document, gzip compressed.
+	 */
+	GZIP("gzip") {
+		@Override
+		public void writeRequest(RelayConnection conn, RelayBuffer events)
+				throws IOException {
+			HttpURLConnection http = conn.getConnection();
+			http.setRequestProperty("Content-Type",
+					"application/json; charset=utf-8");
+			http.setRequestProperty("Content-Encoding", "gzip");
+			OutputStream gzip = new GZIPOutputStream(conn.getOutputStream(),
+					GZIP_BUFFER_SIZE);
+			events.writeTo(gzip);
+			gzip.close();
+		}
+	},
+
+	/**
+	 * The events document converted to the compact binary form of
+	 * {@link WaveBinaryCodec}. The backend may answer in the same form.
+	 */
+	BINARY("binary") {
+		@Override
+		public void writeRequest(RelayConnection conn, RelayBuffer events)
+				throws IOException {
+			HttpURLConnection http = conn.getConnection();
+			http.setRequestProperty("Content-Type",
+					WaveBinaryCodec.CONTENT_TYPE);
+			http.setRequestProperty("Accept", WaveBinaryCodec.CONTENT_TYPE
+					+ ", application/json");
+			JsonReader json = new JsonReader(new InputStreamReader(
+					new ByteArrayInputStream(events.getBytes(), 0, events
+							.length()), "UTF-8"));
+			OutputStream out = conn.getOutputStream();
+			WaveBinaryCodec.toBinary(json, out);
+			out.close();
+		}
+	};
+
+	private static final byte[] EVENTS_FORM_FIELD = { 'e', 'v', 'e', 'n',
+			't', 's', '=' };
+	private static final int GZIP_BUFFER_SIZE = 8192;
+
+	private final String text;
+
+	private RelayWireFormat(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * Writes the events document as the request body of {@code conn}.
+	 */
+	public abstract void writeRequest(RelayConnection conn, RelayBuffer events)
+			throws IOException;
+
+	/**
+	 * Asks the backend for a compressed answer. Backends that do not support
+	 * compression simply ignore the header.
+	 */
+	public static void acceptCompressedResponse(RelayConnection conn) {
+		conn.getConnection().setRequestProperty("Accept-Encoding", "gzip");
+	}
+
+	/**
+	 * Returns the response body of {@code conn}, decompressed if the backend
+	 * compressed it.
+	 */
+	public static InputStream readResponse(RelayConnection conn)
+			throws IOException {
+		InputStream in = conn.getInputStream();
+		if ("gzip".equalsIgnoreCase(conn.getConnection().getContentEncoding())) {
+			return new GZIPInputStream(in);
+		}
+		return in;
+	}
+
+	/**
+	 * Copies the response body of {@code conn} to {@code out} as JSON,
+	 * converting it first if the backend answered in the binary form.
+	 * 
+	 * @param answer the response body, as returned by
+	 *            {@link #readResponse(RelayConnection)}.
+	 * @param buffer the buffer to copy a JSON answer through.
+	 * @return the number of bytes written to {@code out}.
+	 */
+	public static long copyResponse(RelayConnection conn, InputStream answer,
+			RelayBuffer buffer, OutputStream out) throws IOException {
+		String type = conn.getConnection().getContentType();
+		if (type == null || !type.startsWith(WaveBinaryCodec.CONTENT_TYPE)) {
+			return buffer.copy(answer, out);
+		}
+		CountingOutputStream counted = new CountingOutputStream(out);
+		Writer json = new OutputStreamWriter(counted, "UTF-8");
+		WaveBinaryCodec.toJson(answer, json);
+		json.flush();
+		return counted.getCount();
+	}
+
+	/**
+	 * Returns the wire format with the given configuration name.
+	 * 
+	 * @throws IllegalArgumentException if there is no such format.
+	 */
+	public static RelayWireFormat fromText(String text) {
+		for (RelayWireFormat format : values()) {
+			if (format.text.equals(text)) {
+				return format;
+			}
+		}
+		throw new IllegalArgumentException("Unknown relay wire format: " + text);
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+}
@@ -0,0 +1,264 @@
+package net.thewe.relay;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Sends a second, hedged request for slow idempotent actions.
+ * 
+ * The first attempt is sent right away. If it has not answered once the
+ * 95th percentile of the action's backend latency has passed, the same request
+ * goes to a second endpoint; whichever answers first is used and the other is
+ * cancelled. Actions are only hedged once enough latencies have been recorded
+ * to estimate the percentile.
+ * 
+ * Attempts run on a small pool of daemon threads. Where the container does not
+ * allow threads (App Engine), hedging turns itself off and every attempt runs
+ * on the request thread.
+ */
+public class RequestHedger {
+
+	/**
+	 * One attempt at a request.
+	 */
+	public interface Attempt {
+
+		/**
+		 * Sends the request and waits for the response headers.
+		 */
+		void run() throws IOException;
+
+		/**
+		 * Abandons the attempt. May be called from any thread, before, during
+		 * or after {@link #run()}; the attempt releases whatever it holds.
+		 */
+		void cancel();
+	}
+
+	private static final Logger log = Logger.getLogger(RequestHedger.class
+			.getName());
+
+	public static final long DEFAULT_MIN_DELAY_MILLIS = 50L;
+	public static final int DEFAULT_MAX_THREADS = 20;
+
+	/**
+	 * Latencies recorded before the percentile is trusted.
+	 */
+	private static final int MIN_SAMPLES = 20;
+	private static final double PERCENTILE = 95.0;
+
+	private final Set<String> actions;
+	private final long minDelayMillis;
+	private final ConcurrentMap<String, Histogram> latencies =
+			new ConcurrentHashMap<String, Histogram>();
+	private final ThreadPoolExecutor executor;
+	private volatile boolean enabled;
+
+	private final AtomicLong hedgeCount = new AtomicLong();
+	private final AtomicLong hedgeWinCount = new AtomicLong();
+
+	/**
+	 * @param actions the idempotent actions that may be hedged.
+	 * @param minDelayMillis the shortest delay before a hedged request.
+	 * @param maxThreads the maximum number of attempts running at once.
+	 */
+	public RequestHedger(Set<String> actions, long minDelayMillis,
+			int maxThreads) {
+		this.actions = Collections.unmodifiableSet(new HashSet<String>(actions));
+		this.minDelayMillis = minDelayMillis;
+		this.enabled = !actions.isEmpty();
+		this.executor = new ThreadPoolExecutor(0, Math.max(1, maxThreads), 60,
+				TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "relay-hedge");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Returns whether requests for an action may be hedged.
+	 */
+	public boolean isHedged(String action) {
+		return enabled && action != null && actions.contains(action);
+	}
+
+	/**
+	 * Records how long the backend took to answer a request for an action.
+	 */
+	public void recordLatency(String action, long millis) {
+		if (!isHedged(action)) {
+			return;
+		}
+		Histogram histogram = latencies.get(action);
+		if (histogram == null) {
+			histogram = new Histogram();
+			Histogram existing = latencies.putIfAbsent(action, histogram);
+			if (existing != null) {
+				histogram = existing;
+			}
+		}
+		histogram.record(millis);
+	}
+
+	/**
+	 * Returns how long to wait before hedging a request for an action, or -1
+	 * if too few latencies have been recorded yet.
+	 */
+	public long getDelayMillis(String action) {
+		Histogram histogram = latencies.get(action);
+		if (histogram == null || histogram.getCount() < MIN_SAMPLES) {
+			return -1;
+		}
+		return Math.max(minDelayMillis, histogram.getPercentile(PERCENTILE));
+	}
+
+	/**
+	 * Runs {@code primary}, and {@code hedge} as well if the primary has not
+	 * answered within {@code delayMillis}. The first attempt to succeed is
+	 * returned and the other is cancelled.
+	 * 
+	 * @param deadline the time, in milliseconds since the epoch, after which
+	 *            both attempts are cancelled.
+	 * @return the attempt that succeeded.
+	 * @throws IOException the failure of the first attempt if both failed, or
+	 *             a {@link SocketTimeoutException} if neither answered in time.
+	 */
+	public <A extends Attempt> A call(A primary, A hedge, long delayMillis,
+			long deadline) throws IOException {
+		BlockingQueue<Outcome<A>> outcomes = new LinkedBlockingQueue<Outcome<A>>();
+		if (!submit(primary, outcomes)) {
+			primary.run();
+			return primary;
+		}
+		List<A> started = new ArrayList<A>(2);
+		started.add(primary);
+		long hedgeAt = System.currentTimeMillis() + delayMillis;
+		boolean hedgeTried = false;
+		int pending = 1;
+		A winner = null;
+		IOException failure = null;
+		try {
+			while (winner == null && pending > 0) {
+				long now = System.currentTimeMillis();
+				// A primary that failed outright is not retried by the hedge.
+				boolean canHedge = !hedgeTried && failure == null;
+				long wait = (canHedge ? Math.min(hedgeAt, deadline) : deadline)
+						- now;
+				Outcome<A> outcome = outcomes.poll(Math.max(wait, 0),
+						TimeUnit.MILLISECONDS);
+				if (outcome == null) {
+					// Only hedge if the delay ran out before the deadline did.
+					if (canHedge && hedgeAt < deadline
+							&& System.currentTimeMillis() < deadline) {
+						hedgeTried = true;
+						if (submit(hedge, outcomes)) {
+							started.add(hedge);
+							pending++;
+							hedgeCount.incrementAndGet();
+						}
+						continue;
+					}
+					break;
+				}
+				pending--;
+				if (outcome.failure == null) {
+					winner = outcome.attempt;
+				} else if (failure == null) {
+					failure = outcome.failure;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failure = new InterruptedIOException("Interrupted waiting for "
+					+ "the backend");
+		} finally {
+			for (A attempt : started) {
+				if (attempt != winner) {
+					attempt.cancel();
+				}
+			}
+		}
+		if (winner != null) {
+			if (winner == hedge) {
+				hedgeWinCount.incrementAndGet();
+			}
+			return winner;
+		}
+		throw failure != null ? failure : new SocketTimeoutException(
+				"No answer from the backend before the deadline");
+	}
+
+	public long getHedgeCount() {
+		return hedgeCount.get();
+	}
+
+	public long getHedgeWinCount() {
+		return hedgeWinCount.get();
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private <A extends Attempt> boolean submit(final A attempt,
+			final BlockingQueue<Outcome<A>> outcomes) {
+		if (!enabled) {
+			return false;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					IOException failure = null;
+					try {
+						attempt.run();
+					} catch (IOException iox) {
+						failure = iox;
+					} catch (RuntimeException e) {
+						failure = new IOException(e.toString());
+						failure.initCause(e);
+					}
+					outcomes.add(new Outcome<A>(attempt, failure));
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		} catch (SecurityException e) {
+			log.warning("Threads are not allowed, disabling request hedging");
+			enabled = false;
+			return false;
+		}
+	}
+
+	private static class Outcome<A> {
+		final A attempt;
+		final IOException failure;
+
+		Outcome(A attempt, IOException failure) {
+			this.attempt = attempt;
+			this.failure = failure;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package net.thewe.relay;
+
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of backend answers, keyed by {@link BundleDigest}. Entries
+ * expire after a short time to live; the cache is bounded both by entry count
+ * and by the total size of the cached answers.
+ * 
+ * This class is thread-safe.
+ */
+public class ResponseCache {
+
+	private final int maxEntries;
+	private final long maxBytes;
+	private final long ttlMillis;
+
+	private final LinkedHashMap<String, Entry> entries =
+			new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long bytes;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * @param maxEntries maximum number of cached answers.
+	 * @param maxBytes maximum total size of the cached answers.
+	 * @param ttlMillis how long an answer stays valid.
+	 */
+	public ResponseCache(int maxEntries, long maxBytes, long ttlMillis) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Returns the cached answer for a key, or {@code null} if there is none or
+	 * it has expired.
+	 */
+	public byte[] get(String key) {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.expires > now) {
+				hitCount.incrementAndGet();
+				return entry.answer;
+			}
+			if (entry != null) {
+				remove(key);
+			}
+		}
+		missCount.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Caches an answer. Answers larger than the whole cache are ignored.
+	 */
+	public void put(String key, byte[] answer) {
+		if (answer.length > maxBytes) {
+			return;
+		}
+		Entry entry = new Entry(answer, System.currentTimeMillis() + ttlMillis);
+		synchronized (this) {
+			remove(key);
+			entries.put(key, entry);
+			bytes += answer.length;
+			Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet()
+					.iterator();
+			while (entries.size() > maxEntries || bytes > maxBytes) {
+				Map.Entry<String, Entry> evicted = eldest.next();
+				bytes -= evicted.getValue().answer.length;
+				eldest.remove();
+				evictionCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Returns a stream that writes through to {@code out} and records what was
+	 * written, up to the size of the largest answer this cache would keep.
+	 */
+	public CapturingOutputStream capture(OutputStream out) {
+		return new CapturingOutputStream(out, maxBytes);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	private void remove(String key) {
+		Entry old = entries.remove(key);
+		if (old != null) {
+			bytes -= old.answer.length;
+		}
+	}
+
+	private static class Entry {
+		final byte[] answer;
+		final long expires;
+
+		Entry(byte[] answer, long expires) {
+			this.answer = answer;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package net.thewe.relay;
+
+/**
+ * The routing fields of an events document: the backend port and the action
+ * the backend should run, both taken from the {@code proxyingFor} field, and
+ * the id of the wave the events belong to.
+ */
+public class RoutingKey {
+
+	private final String port;
+	private final String action;
+	private final String waveId;
+
+	public RoutingKey(String port, String action, String waveId) {
+		this.port = port;
+		this.action = action;
+		this.waveId = waveId;
+	}
+
+	/**
+	 * Returns the backend port, or {@code null} if it was not specified.
+	 */
+	public String getPort() {
+		return port;
+	}
+
+	/**
+	 * Returns the backend action, or {@code null} if it was not specified.
+	 */
+	public String getAction() {
+		return action;
+	}
+
+	/**
+	 * Returns the id of the wave the events belong to, or {@code null} if it
+	 * was not specified.
+	 */
+	public String getWaveId() {
+		return waveId;
+	}
+
+	/**
+	 * Returns {@code port} in canonical form if it is a number from 1 to
+	 * 65535, or {@code null} if it is not. The port comes from the request
+	 * and keys the per-backend state of the relay, so only real ports may be
+	 * let through: anything else would let a client add entries at will.
+	 */
+	public static String canonicalPort(String port) {
+		int length = port.length();
+		if (length == 0 || length > 5) {
+			return null;
+		}
+		int value = 0;
+		for (int i = 0; i < length; i++) {
+			char c = port.charAt(i);
+			if (c < '0' || c > '9') {
+				return null;
+			}
+			value = value * 10 + (c - '0');
+		}
+		if (value < 1 || value > 65535) {
+			return null;
+		}
+		return Integer.toString(value);
+	}
+
+	@Override
+	public String toString() {
+		return "{port=" + port + ", action=" + action + ", waveId=" + waveId
+				+ "}";
+	}
+}
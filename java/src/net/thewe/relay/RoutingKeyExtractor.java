@@ -0,0 +1,169 @@
+package net.thewe.relay;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ * Extracts the {@link RoutingKey} from a raw events document without parsing
+ * it into a tree.
+ * 
+ * The document is scanned once, as UTF-8 bytes. Only top-level keys are
+ * examined; nested objects, arrays and strings are skipped without allocating,
+ * so the cost does not depend on how many blips or elements the bundle holds.
+ * {@code proxyingFor} may be either a JSON object or a string containing one,
+ * which is how Wave sends it.
+ */
+public class RoutingKeyExtractor {
+
+	private static final String PROXYING_FOR = "proxyingFor";
+	private static final String WAVELET = "wavelet";
+	private static final String PORT = "port";
+	private static final String ACTION = "action";
+	private static final String WAVE_ID = "waveId";
+
+	private RoutingKeyExtractor() {
+	}
+
+	/**
+	 * Extracts the routing key from a UTF-8 encoded events document.
+	 * 
+	 * @param bytes the document.
+	 * @param offset the offset of the document in {@code bytes}.
+	 * @param length the length of the document.
+	 * @return the routing key, or {@code null} if the document has no
+	 *         {@code proxyingFor} field or is malformed.
+	 */
+	public static RoutingKey extract(byte[] bytes, int offset, int length) {
+		try {
+			int[] ranges = findTopLevelRanges(bytes, offset, offset + length,
+					PROXYING_FOR, WAVELET);
+			if (ranges[0] < 0) {
+				return null;
+			}
+			String proxyingFor = valueText(bytes, ranges[0], ranges[1]);
+			byte[] inner = proxyingFor.getBytes("UTF-8");
+			String[] values = findTopLevelValues(inner, 0, inner.length, PORT,
+					ACTION);
+
+			String waveId = null;
+			if (ranges[2] >= 0 && bytes[ranges[2]] == '{') {
+				waveId = findTopLevelValues(bytes, ranges[2], ranges[3],
+						WAVE_ID)[0];
+			}
+			return new RoutingKey(values[0], values[1], waveId);
+		} catch (IllegalArgumentException e) {
+			return null;
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Returns the values of the given top-level keys of a JSON object.
+	 * String values are unescaped, object and array values are returned as
+	 * raw JSON text, and other values as their literal text. The scan stops as
+	 * soon as all keys have been found.
+	 * 
+	 * @throws IllegalArgumentException if the document is malformed.
+	 */
+	static String[] findTopLevelValues(byte[] b, int pos, int end,
+			String... keys) {
+		int[] ranges = findTopLevelRanges(b, pos, end, keys);
+		String[] values = new String[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			if (ranges[2 * i] >= 0) {
+				values[i] = valueText(b, ranges[2 * i], ranges[2 * i + 1]);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Scans a JSON object and returns the positions of the values of the
+	 * given top-level keys, as {@code [start0, end0, start1, end1, ...]}.
+	 * Missing keys have a start of -1. The scan stops as soon as all keys have
+	 * been found.
+	 * 
+	 * @throws IllegalArgumentException if the document is malformed.
+	 */
+	static int[] findTopLevelRanges(byte[] b, int pos, int end,
+			String... keys) {
+		int[] ranges = new int[2 * keys.length];
+		Arrays.fill(ranges, -1);
+		int remaining = keys.length;
+
+		pos = JsonBytes.skipWhitespace(b, pos, end);
+		JsonBytes.expect(b, pos++, end, '{');
+		pos = JsonBytes.skipWhitespace(b, pos, end);
+		if (pos < end && b[pos] == '}') {
+			return ranges;
+		}
+
+		while (true) {
+			pos = JsonBytes.skipWhitespace(b, pos, end);
+			JsonBytes.expect(b, pos, end, '"');
+			int keyEnd = JsonBytes.skipString(b, pos, end);
+			int match = matchKey(b, pos + 1, keyEnd - 1, keys);
+			pos = JsonBytes.skipWhitespace(b, keyEnd, end);
+			JsonBytes.expect(b, pos++, end, ':');
+			pos = JsonBytes.skipWhitespace(b, pos, end);
+
+			int valueEnd = JsonBytes.skipValue(b, pos, end);
+			if (match >= 0 && ranges[2 * match] < 0) {
+				ranges[2 * match] = pos;
+				ranges[2 * match + 1] = valueEnd;
+				if (--remaining == 0) {
+					return ranges;
+				}
+			}
+
+			pos = JsonBytes.skipWhitespace(b, valueEnd, end);
+			if (pos < end && b[pos] == ',') {
+				pos++;
+			} else {
+				JsonBytes.expect(b, pos, end, '}');
+				return ranges;
+			}
+		}
+	}
+
+	private static int matchKey(byte[] b, int start, int end, String[] keys) {
+		for (int j = start; j < end; j++) {
+			if (b[j] == '\\') {
+				// Rare escaped key: fall back to a real comparison.
+				String unescaped = JsonBytes.unescape(b, start, end);
+				for (int i = 0; i < keys.length; i++) {
+					if (unescaped.equals(keys[i])) {
+						return i;
+					}
+				}
+				return -1;
+			}
+		}
+		for (int i = 0; i < keys.length; i++) {
+			String key = keys[i];
+			if (end - start != key.length()) {
+				continue;
+			}
+			int j = 0;
+			while (j < key.length() && b[start + j] == key.charAt(j)) {
+				j++;
+			}
+			if (j == key.length()) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static String valueText(byte[] b, int start, int end) {
+		if (b[start] == '"') {
+			return JsonBytes.unescape(b, start + 1, end - 1);
+		}
+		try {
+			return new String(b, start, end - start, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Checks which paths and methods {@link AbstractRobotServlet} serves.
+ */
+public class AbstractRobotServletTest extends TestCase {
+
+  /**
+   * A servlet that is never asked to process events.
+   */
+  private static class Robot extends AbstractRobotServlet {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void processEvents(RobotMessageBundle events) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Records the status and headers sent through a response.
+   */
+  private static class Response implements InvocationHandler {
+    int status;
+    final Map<String, String> headers = new HashMap<String, String>();
+
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      if (method.getName().equals("sendError")) {
+        status = (Integer) args[0];
+      } else if (method.getName().equals("setHeader")) {
+        headers.put((String) args[0], (String) args[1]);
+      }
+      return null;
+    }
+  }
+
+  public void testPostToStatsPathIsRefused() throws Exception {
+    Response response = new Response();
+    new Robot().doPost(newRequest("/_wave/robot/stats", "POST"), newResponse(response));
+    assertEquals(HttpServletResponse.SC_METHOD_NOT_ALLOWED, response.status);
+    assertEquals("GET", response.headers.get("Allow"));
+  }
+
+  public void testGetOutsideStatsPathIsRefused() throws Exception {
+    Response response = new Response();
+    new Robot().doGet(newRequest("/_wave/robot/jsonrpc", "GET"), newResponse(response));
+    assertEquals(HttpServletResponse.SC_METHOD_NOT_ALLOWED, response.status);
+  }
+
+  private static HttpServletRequest newRequest(final String servletPath, final String method) {
+    return (HttpServletRequest) Proxy.newProxyInstance(
+        AbstractRobotServletTest.class.getClassLoader(),
+        new Class<?>[] {HttpServletRequest.class}, new InvocationHandler() {
+          public Object invoke(Object proxy, Method m, Object[] args) {
+            if (m.getName().equals("getServletPath")) {
+              return servletPath;
+            } else if (m.getName().equals("getMethod")) {
+              return method;
+            } else if (m.getName().equals("getProtocol")) {
+              return "HTTP/1.1";
+            }
+            return null;
+          }
+        });
+  }
+
+  private static HttpServletResponse newResponse(Response response) {
+    return (HttpServletResponse) Proxy.newProxyInstance(
+        AbstractRobotServletTest.class.getClassLoader(),
+        new Class<?>[] {HttpServletResponse.class}, response);
+  }
+}
@@ -0,0 +1,296 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.Annotation;
+import com.google.wave.api.Range;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks {@link AnnotationIndex} against the list algorithms it replaced in
+ * {@link TextViewImpl}, and pins down when the ranges of the annotations are
+ * brought up to date.
+ */
+public class AnnotationIndexTest extends TestCase {
+
+  private static final String[] NAMES = {"a", "b", "styled-text"};
+
+  /**
+   * The annotations of a blip as a plain list, edited the way
+   * {@link TextViewImpl} did before the index.
+   */
+  private static class Reference {
+    final List<Annotation> annotations = new ArrayList<Annotation>();
+
+    void add(Annotation annotation) {
+      annotations.add(copy(annotation));
+    }
+
+    void expand(int point, int length) {
+      for (Annotation annotation : annotations) {
+        Range range = annotation.getRange();
+        if (range.getStart() >= point) {
+          range.setStart(range.getStart() + length);
+        }
+        if (range.getEnd() >= point) {
+          range.setEnd(range.getEnd() + length);
+        }
+      }
+    }
+
+    void shrink(int point, int length) {
+      for (Iterator<Annotation> it = annotations.iterator(); it.hasNext();) {
+        Range range = it.next().getRange();
+        int start = range.getStart();
+        int end = range.getEnd();
+        if (start < point) {
+          if (end >= point + length) {
+            range.setEnd(end - length);
+          } else if (end >= point) {
+            range.setEnd(point);
+          }
+        } else if (start >= point + length) {
+          range.setStart(start - length);
+          range.setEnd(end - length);
+        } else if (end > point + length) {
+          range.setStart(point);
+          range.setEnd(end - length);
+        } else {
+          it.remove();
+        }
+      }
+    }
+
+    List<Annotation> getCovering(Range range, String name) {
+      List<Annotation> found = new ArrayList<Annotation>();
+      for (Annotation annotation : annotations) {
+        if (annotation.getRange().getStart() <= range.getStart()
+            && range.getEnd() <= annotation.getRange().getEnd()
+            && (name == null || name.equals(annotation.getName()))) {
+          found.add(annotation);
+        }
+      }
+      return found;
+    }
+
+    List<Annotation> getNamed(String name) {
+      List<Annotation> found = new ArrayList<Annotation>();
+      for (Annotation annotation : annotations) {
+        if (name.equals(annotation.getName())) {
+          found.add(annotation);
+        }
+      }
+      return found;
+    }
+
+    void removeNamed(String name) {
+      for (Iterator<Annotation> it = annotations.iterator(); it.hasNext();) {
+        if (it.next().getName().equals(name)) {
+          it.remove();
+        }
+      }
+    }
+
+    void removeWithin(Range range) {
+      for (Iterator<Annotation> it = annotations.iterator(); it.hasNext();) {
+        Range annotation = it.next().getRange();
+        if (range.getStart() <= annotation.getStart() && annotation.getEnd() <= range.getEnd()) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  public void testInsertExpandsAndShifts() {
+    List<Annotation> annotations = new ArrayList<Annotation>();
+    annotations.add(new Annotation("a", "1", new Range(0, 5)));
+    annotations.add(new Annotation("b", "2", new Range(5, 8)));
+    annotations.add(new Annotation("c", "3", new Range(6, 9)));
+    AnnotationIndex index = new AnnotationIndex(annotations);
+    index.insert(5, 2);
+    index.writeTo(annotations);
+    assertEquals("a0-7 b7-10 c8-11 ", dump(annotations));
+  }
+
+  public void testDeleteCoversTheSixCases() {
+    List<Annotation> annotations = new ArrayList<Annotation>();
+    // Deleting [10, 20): before-after, before-inside, before-before,
+    // after-after, inside-after and inside-inside.
+    annotations.add(new Annotation("a", "1", new Range(5, 25)));
+    annotations.add(new Annotation("b", "2", new Range(5, 15)));
+    annotations.add(new Annotation("c", "3", new Range(2, 8)));
+    annotations.add(new Annotation("d", "4", new Range(20, 30)));
+    annotations.add(new Annotation("e", "5", new Range(12, 28)));
+    annotations.add(new Annotation("f", "6", new Range(12, 18)));
+    AnnotationIndex index = new AnnotationIndex(annotations);
+    index.delete(10, 10);
+    index.writeTo(annotations);
+    assertEquals("a5-15 b5-10 c2-8 d10-20 e10-18 ", dump(annotations));
+  }
+
+  public void testQueriesKeepListOrder() {
+    List<Annotation> annotations = new ArrayList<Annotation>();
+    annotations.add(new Annotation("b", "1", new Range(4, 10)));
+    annotations.add(new Annotation("a", "2", new Range(0, 10)));
+    annotations.add(new Annotation("b", "3", new Range(2, 6)));
+    AnnotationIndex index = new AnnotationIndex(annotations);
+    assertEquals("b4-10 a0-10 b2-6 ", dump(index.getCovering(new Range(4, 6), null)));
+    assertEquals("b4-10 b2-6 ", dump(index.getCovering(new Range(4, 6), "b")));
+    assertEquals("b4-10 b2-6 ", dump(index.getNamed("b")));
+    assertTrue(index.hasName("a"));
+    index.removeNamed("a");
+    assertFalse(index.hasName("a"));
+    index.removeWithin(new Range(2, 6));
+    index.writeTo(annotations);
+    assertEquals("b4-10 ", dump(annotations));
+  }
+
+  public void testAnnotationsWithoutRangeAreOnlyFoundByName() {
+    List<Annotation> annotations = new ArrayList<Annotation>();
+    annotations.add(new Annotation("a", "1", null));
+    annotations.add(new Annotation("a", "2", new Range(0, 3)));
+    AnnotationIndex index = new AnnotationIndex(annotations);
+    index.insert(0, 1);
+    assertEquals(1, index.getCovering(new Range(1, 2), null).size());
+    assertEquals(2, index.getNamed("a").size());
+    index.writeTo(annotations);
+    assertEquals(2, annotations.size());
+    assertNull(annotations.get(0).getRange());
+  }
+
+  public void testRandomEditsMatchListAlgorithms() {
+    Random random = new Random(7);
+    for (int round = 0; round < 300; round++) {
+      int length = 20 + random.nextInt(300);
+      List<Annotation> initial = new ArrayList<Annotation>();
+      Reference reference = new Reference();
+      for (int i = random.nextInt(400); i > 0; i--) {
+        Annotation annotation = randomAnnotation(random, length);
+        initial.add(annotation);
+        reference.add(annotation);
+      }
+      AnnotationIndex index = new AnnotationIndex(initial);
+
+      for (int i = 0; i < 200; i++) {
+        int op = random.nextInt(9);
+        if (op <= 2) {
+          int point = random.nextInt(length);
+          int inserted = 1 + random.nextInt(4);
+          index.insert(point, inserted);
+          reference.expand(point, inserted);
+          length += inserted;
+        } else if (op <= 4 && length > 3) {
+          int point = random.nextInt(length - 2);
+          int deleted = 1 + random.nextInt(Math.min(120, length - 2 - point));
+          index.delete(point, deleted);
+          reference.shrink(point, deleted);
+          length -= deleted;
+        } else if (op == 5) {
+          Annotation annotation = randomAnnotation(random, length);
+          index.add(copy(annotation));
+          reference.add(annotation);
+        } else if (op == 6 && random.nextInt(5) == 0) {
+          String name = NAMES[random.nextInt(NAMES.length)];
+          index.removeNamed(name);
+          reference.removeNamed(name);
+        } else if (op == 7 && random.nextInt(3) == 0) {
+          Range range = randomRange(random, length);
+          index.removeWithin(range);
+          reference.removeWithin(range);
+        }
+
+        Range range = randomRange(random, length);
+        String name = NAMES[random.nextInt(NAMES.length)];
+        assertEquals(dump(reference.getCovering(range, null)),
+            dump(index.getCovering(range, null)));
+        assertEquals(dump(reference.getCovering(range, name)),
+            dump(index.getCovering(range, name)));
+        assertEquals(dump(reference.getNamed(name)), dump(index.getNamed(name)));
+        assertEquals(!reference.getNamed(name).isEmpty(), index.hasName(name));
+        if (random.nextInt(20) == 0) {
+          List<Annotation> written = new ArrayList<Annotation>();
+          index.writeTo(written);
+          assertEquals(dump(reference.annotations), dump(written));
+        }
+      }
+      List<Annotation> written = new ArrayList<Annotation>();
+      index.writeTo(written);
+      assertEquals(dump(reference.annotations), dump(written));
+    }
+  }
+
+  public void testHeldRangesAreUpdatedWhenQueriedOrWrittenBack() {
+    BlipData blip = new BlipData();
+    blip.setContent("\nhello world");
+    Annotation held = new Annotation("a", "1", new Range(6, 11));
+    blip.addAnnotation(held);
+    TextViewImpl view = new TextViewImpl(blip,
+        new RobotMessageBundleImpl(new EventMessageBundle(), "robot@example.com"));
+
+    view.insert(1, ">>");
+    // While the index owns the positions, a range held by the caller is not
+    // updated by edits.
+    assertEquals(6, held.getRange().getStart());
+
+    // A query brings the ranges it returns up to date, in place.
+    List<Annotation> found = view.getAnnotations("a");
+    assertSame(held, found.get(0));
+    assertEquals(8, held.getRange().getStart());
+    assertEquals(13, held.getRange().getEnd());
+
+    view.delete(new Range(0, 3));
+    assertEquals(8, held.getRange().getStart());
+    // So does reading the list back from the blip, which drops the index.
+    assertEquals(1, blip.getAnnotations().size());
+    assertEquals(5, held.getRange().getStart());
+    assertEquals(10, held.getRange().getEnd());
+
+    // Edits to the list itself are seen by the next query.
+    blip.getAnnotations().clear();
+    assertFalse(view.hasAnnotation("a"));
+  }
+
+  private static Annotation randomAnnotation(Random random, int length) {
+    return new Annotation(NAMES[random.nextInt(NAMES.length)], "v",
+        randomRange(random, length));
+  }
+
+  private static Range randomRange(Random random, int length) {
+    int start = random.nextInt(length);
+    return new Range(start, start + random.nextInt(length - start + 1));
+  }
+
+  private static Annotation copy(Annotation annotation) {
+    Range range = annotation.getRange();
+    return new Annotation(annotation.getName(), annotation.getValue(),
+        new Range(range.getStart(), range.getEnd()));
+  }
+
+  private static String dump(List<Annotation> annotations) {
+    StringBuilder text = new StringBuilder();
+    for (Annotation annotation : annotations) {
+      text.append(annotation.getName()).append(annotation.getRange().getStart()).append('-')
+          .append(annotation.getRange().getEnd()).append(' ');
+    }
+    return text.toString();
+  }
+}
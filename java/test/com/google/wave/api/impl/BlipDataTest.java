@@ -0,0 +1,90 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.Annotation;
+import com.google.wave.api.Element;
+import com.google.wave.api.ElementType;
+import com.google.wave.api.Range;
+
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collections;
+
+/**
+ * Checks that the collections of {@link BlipData} stay the shared empty ones
+ * until they are written to or handed out by a getter.
+ */
+public class BlipDataTest extends TestCase {
+
+  public void testNewBlipSharesEmptyCollections() {
+    assertShared(new BlipData());
+  }
+
+  public void testWritingEmptyBlipKeepsEmptyCollectionsShared() throws Exception {
+    BlipData blip = new BlipData();
+    blip.setBlipId("b1");
+    StringWriter out = new StringWriter();
+    WaveJsonCodec.writeBlipData(blip, new JsonWriter(out));
+    assertShared(blip);
+  }
+
+  public void testReadingEmptyBlipSharesEmptyCollections() throws Exception {
+    StringWriter out = new StringWriter();
+    WaveJsonCodec.writeBlipData(new BlipData(), new JsonWriter(out));
+    assertShared(WaveJsonCodec.readBlipData(new JsonReader(new StringReader(out.toString()))));
+  }
+
+  public void testQueriesWithoutEditsKeepEmptyCollectionsShared() {
+    BlipData blip = new BlipData();
+    TextViewImpl view = new TextViewImpl(blip,
+        new RobotMessageBundleImpl(new EventMessageBundle(), "robot@example.com"));
+    assertFalse(view.hasAnnotation("a"));
+    assertTrue(view.getElements().isEmpty());
+    assertShared(blip);
+  }
+
+  public void testGettersHandOutMutableCollections() {
+    BlipData blip = new BlipData();
+    blip.getAnnotations().add(new Annotation("a", "1", new Range(0, 1)));
+    blip.getElements().put("0", new Element(ElementType.BUTTON));
+    blip.getChildBlipIds().add("b2");
+    blip.getContributors().add("a@example.com");
+    assertEquals(1, blip.peekAnnotations().size());
+    assertEquals(1, blip.peekElements().size());
+    assertEquals(1, blip.peekChildBlipIds().size());
+    assertEquals(1, blip.peekContributors().size());
+  }
+
+  public void testSetToNullReadsAsEmpty() {
+    BlipData blip = new BlipData();
+    blip.setAnnotations(null);
+    blip.setElements(null);
+    blip.setChildBlipIds(null);
+    blip.setContributors(null);
+    assertShared(blip);
+    assertTrue(blip.getElements().isEmpty());
+  }
+
+  private static void assertShared(BlipData blip) {
+    assertSame(Collections.EMPTY_LIST, blip.peekAnnotations());
+    assertSame(Collections.EMPTY_MAP, blip.peekElements());
+    assertSame(Collections.EMPTY_LIST, blip.peekChildBlipIds());
+    assertSame(Collections.EMPTY_LIST, blip.peekContributors());
+  }
+}
@@ -0,0 +1,168 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Checks {@link ContentRope} against a {@link StringBuilder} receiving the
+ * same edits.
+ */
+public class ContentRopeTest extends TestCase {
+
+  public void testReadOnlyContent() {
+    ContentRope rope = new ContentRope("hello");
+    assertEquals(5, rope.length());
+    assertEquals("hello", rope.toString());
+  }
+
+  public void testInsertAndDelete() {
+    ContentRope rope = new ContentRope("\nhello");
+    rope.insert(6, " world");
+    rope.insert(1, ">");
+    assertEquals("\n>hello world", rope.toString());
+    rope.delete(1, 2);
+    rope.delete(6, 12);
+    assertEquals("\nhello", rope.toString());
+    assertEquals(6, rope.length());
+  }
+
+  public void testLongInsertsAreSplitIntoChunks() {
+    String longText = randomText(new Random(1), ContentRope.MAX_CHUNK * 5 + 7);
+    ContentRope rope = new ContentRope("ab");
+    rope.insert(1, longText);
+    assertEquals("a" + longText + "b", rope.toString());
+    rope.insert(ContentRope.MAX_CHUNK, longText);
+    StringBuilder expected = new StringBuilder("a" + longText + "b");
+    expected.insert(ContentRope.MAX_CHUNK, longText);
+    assertEquals(expected.toString(), rope.toString());
+  }
+
+  public void testInsertJustOverHalfAChunk() {
+    String text = randomText(new Random(2), ContentRope.MAX_CHUNK / 2 + 1);
+    ContentRope rope = new ContentRope("xy");
+    rope.insert(1, "-");
+    rope.insert(1, text);
+    assertEquals("x" + text + "-y", rope.toString());
+  }
+
+  public void testTypingFillsChunks() {
+    ContentRope rope = new ContentRope("");
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < ContentRope.MAX_CHUNK * 3; i++) {
+      char c = (char) ('a' + i % 26);
+      rope.insert(i / 2, String.valueOf(c));
+      expected.insert(i / 2, c);
+    }
+    assertEquals(expected.toString(), rope.toString());
+  }
+
+  public void testDeleteToEmpty() {
+    ContentRope rope = new ContentRope(randomText(new Random(3), ContentRope.MAX_CHUNK * 3));
+    rope.insert(10, "edit");
+    rope.delete(0, rope.length());
+    assertEquals(0, rope.length());
+    assertEquals("", rope.toString());
+
+    rope.insert(0, "again");
+    assertEquals("again", rope.toString());
+    rope.delete(0, 5);
+    assertEquals("", rope.toString());
+  }
+
+  public void testEmptyEditsKeepContent() {
+    ContentRope rope = new ContentRope("abc");
+    rope.insert(1, "");
+    rope.delete(2, 2);
+    assertEquals("abc", rope.toString());
+  }
+
+  public void testRejectsInvalidPositions() {
+    ContentRope rope = new ContentRope("abc");
+    try {
+      rope.insert(4, "x");
+      fail("Expected IndexOutOfBoundsException");
+    } catch (IndexOutOfBoundsException e) {
+      // Expected.
+    }
+    try {
+      rope.delete(2, 4);
+      fail("Expected IndexOutOfBoundsException");
+    } catch (IndexOutOfBoundsException e) {
+      // Expected.
+    }
+    try {
+      rope.delete(2, 1);
+      fail("Expected IndexOutOfBoundsException");
+    } catch (IndexOutOfBoundsException e) {
+      // Expected.
+    }
+    assertEquals("abc", rope.toString());
+  }
+
+  public void testRandomEditsMatchStringBuilder() {
+    Random random = new Random(42);
+    for (int round = 0; round < 200; round++) {
+      String initial = randomText(random, random.nextInt(5000));
+      ContentRope rope = new ContentRope(initial);
+      StringBuilder expected = new StringBuilder(initial);
+      for (int i = 0; i < 400; i++) {
+        if (expected.length() == 0 || random.nextBoolean()) {
+          int index = random.nextInt(expected.length() + 1);
+          int length = random.nextInt(5) == 0
+              ? random.nextInt(ContentRope.MAX_CHUNK * 2) : random.nextInt(4);
+          String text = randomText(random, length);
+          rope.insert(index, text);
+          expected.insert(index, text);
+        } else {
+          int a = random.nextInt(expected.length() + 1);
+          int b = random.nextInt(expected.length() + 1);
+          rope.delete(Math.min(a, b), Math.max(a, b));
+          expected.delete(Math.min(a, b), Math.max(a, b));
+        }
+        assertEquals(expected.length(), rope.length());
+        if (random.nextInt(10) == 0) {
+          assertEquals(expected.toString(), rope.toString());
+        }
+      }
+      assertEquals(expected.toString(), rope.toString());
+    }
+  }
+
+  public void testBlipDataEditsContentInPlace() {
+    BlipData blip = new BlipData();
+    blip.setContent("\nhello");
+    blip.insertContent(6, " world");
+    blip.deleteContent(1, 2);
+    assertEquals("\nello world", blip.getContent());
+    assertEquals(11, blip.getContentLength());
+
+    BlipData copy = new BlipData(blip);
+    copy.insertContent(0, "x");
+    assertEquals("\nello world", blip.getContent());
+    assertEquals("x\nello world", copy.getContent());
+  }
+
+  private static String randomText(Random random, int length) {
+    StringBuilder text = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      text.append((char) ('a' + random.nextInt(26)));
+    }
+    return text.toString();
+  }
+}
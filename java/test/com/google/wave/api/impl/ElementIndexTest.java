@@ -0,0 +1,240 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.Element;
+import com.google.wave.api.ElementType;
+import com.google.wave.api.Range;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Checks {@link ElementIndex}, its round trip through the wire map of
+ * {@link BlipData}, and the element queries of {@link TextViewImpl} against
+ * a sorted map.
+ */
+public class ElementIndexTest extends TestCase {
+
+  public void testOrdersByPosition() {
+    Map<String, Element> map = new HashMap<String, Element>();
+    Element a = new Element(ElementType.BUTTON);
+    Element b = new Element(ElementType.INPUT);
+    Element c = new Element(ElementType.LABEL);
+    map.put("12", c);
+    map.put("3", a);
+    map.put("7", b);
+    ElementIndex index = new ElementIndex(map);
+    assertEquals(3, index.size());
+    assertSame(a, index.elementAt(0));
+    assertEquals(7, index.positionAt(1));
+    assertSame(c, index.get(12));
+    assertNull(index.get(4));
+    assertEquals(7, index.getPosition(b));
+    assertEquals(-1, index.getPosition(new Element(ElementType.BUTTON)));
+    assertEquals(1, index.indexOf(4));
+    assertEquals(1, index.indexOf(7));
+    assertEquals(3, index.indexOf(13));
+  }
+
+  public void testPutRemoveAndShift() {
+    ElementIndex index = new ElementIndex(new HashMap<String, Element>());
+    Element a = new Element(ElementType.BUTTON);
+    Element b = new Element(ElementType.INPUT);
+    for (int i = 0; i < 20; i++) {
+      index.put(i * 2, new Element(ElementType.LABEL));
+    }
+    index.put(4, a);
+    assertEquals(20, index.size());
+    assertSame(a, index.get(4));
+    assertSame(a, index.remove(4));
+    assertNull(index.remove(4));
+    assertEquals(19, index.size());
+
+    index.shift(10, 5);
+    assertNull(index.get(10));
+    assertNotNull(index.get(15));
+    assertNotNull(index.get(8));
+    index.put(10, b);
+    assertEquals(10, index.getPosition(b));
+  }
+
+  public void testUnpositionedKeysRoundTrip() {
+    Map<String, Element> map = new HashMap<String, Element>();
+    Element positioned = new Element(ElementType.BUTTON);
+    Element named = new Element(ElementType.INPUT);
+    Element negative = new Element(ElementType.LABEL);
+    Element padded = new Element(ElementType.CHECK);
+    Element huge = new Element(ElementType.RADIO_BUTTON);
+    map.put("5", positioned);
+    map.put("name", named);
+    map.put("-1", negative);
+    map.put("007", padded);
+    map.put("12345678901", huge);
+    ElementIndex index = new ElementIndex(map);
+    assertEquals(1, index.size());
+
+    index.shift(0, 2);
+    Map<String, Element> written = new HashMap<String, Element>();
+    written.put("stale", positioned);
+    index.writeTo(written);
+    assertEquals(5, written.size());
+    assertSame(positioned, written.get("7"));
+    assertSame(named, written.get("name"));
+    assertSame(negative, written.get("-1"));
+    assertSame(padded, written.get("007"));
+    assertSame(huge, written.get("12345678901"));
+  }
+
+  public void testBlipDataWritesIndexBackToMap() {
+    BlipData blip = newBlip(20);
+    Element button = new Element(ElementType.BUTTON);
+    Element named = new Element(ElementType.INPUT);
+    blip.addElement(4, button);
+    blip.getElements().put("name", named);
+
+    TextViewImpl view = newView(blip);
+    Element inserted = new Element(ElementType.LABEL);
+    view.insertElement(1, inserted);
+    assertSame(button, view.getElement(5));
+
+    Map<String, Element> elements = blip.getElements();
+    assertEquals(3, elements.size());
+    assertSame(inserted, elements.get("1"));
+    assertSame(button, elements.get("5"));
+    assertSame(named, elements.get("name"));
+
+    // Edits to the map are seen by the next query.
+    elements.remove("5");
+    elements.put("2", button);
+    assertSame(button, view.getElement(2));
+    assertFalse(view.elementExists(5));
+  }
+
+  public void testElementExists() {
+    BlipData blip = newBlip(10);
+    blip.addElement(3, new Element(ElementType.BUTTON));
+    TextViewImpl view = newView(blip);
+    // Used to be false for every position, as it looked up an Integer in a
+    // map keyed by String.
+    assertTrue(view.elementExists(3));
+    assertFalse(view.elementExists(4));
+  }
+
+  public void testElementsAfterSetElementsNull() {
+    BlipData blip = newBlip(10);
+    blip.setElements(null);
+    // Used to return null.
+    Map<String, Element> elements = blip.getElements();
+    assertNotNull(elements);
+    assertTrue(elements.isEmpty());
+    elements.put("1", new Element(ElementType.BUTTON));
+    assertEquals(1, blip.getElements().size());
+
+    blip.setElements(null);
+    assertTrue(newView(blip).getElements().isEmpty());
+  }
+
+  public void testRandomEditsMatchSortedMap() {
+    Random random = new Random(3);
+    for (int round = 0; round < 300; round++) {
+      BlipData blip = newBlip(200);
+      TreeMap<Integer, Element> expected = new TreeMap<Integer, Element>();
+      for (int i = random.nextInt(10); i > 0; i--) {
+        int position = random.nextInt(200);
+        Element element = new Element(ElementType.BUTTON);
+        blip.addElement(position, element);
+        expected.put(position, element);
+      }
+      TextViewImpl view = newView(blip);
+
+      for (int i = 0; i < 100; i++) {
+        int length = blip.getContentLength();
+        int op = random.nextInt(4);
+        if (op == 0) {
+          int position = random.nextInt(length);
+          Element element = new Element(ElementType.INPUT);
+          view.insertElement(position, element);
+          expected = shifted(expected, position, 1);
+          expected.put(position, element);
+        } else if (op == 1) {
+          int position = random.nextBoolean() && !expected.isEmpty()
+              ? new ArrayList<Integer>(expected.keySet()).get(random.nextInt(expected.size()))
+              : random.nextInt(length);
+          view.deleteElement(position);
+          expected.remove(position);
+          expected = shifted(expected, position, -1);
+        } else if (op == 2) {
+          int position = random.nextInt(length);
+          Element element = new Element(ElementType.LABEL);
+          view.replaceElement(position, element);
+          expected.put(position, element);
+        }
+
+        int start = random.nextInt(length);
+        int end = start + random.nextInt(length - start);
+        assertEquals(new ArrayList<Element>(expected.subMap(start, end).values()),
+            view.getElements(new Range(start, end)));
+        assertEquals(new ArrayList<Element>(expected.values()), view.getElements());
+        for (Map.Entry<Integer, Element> entry : expected.entrySet()) {
+          assertEquals(entry.getKey().intValue(), view.getPosition(entry.getValue()));
+          assertSame(entry.getValue(), view.getElement(entry.getKey()));
+          assertTrue(view.elementExists(entry.getKey()));
+        }
+        if (random.nextInt(10) == 0) {
+          Map<String, Element> map = blip.getElements();
+          assertEquals(expected.size(), map.size());
+          for (Map.Entry<Integer, Element> entry : expected.entrySet()) {
+            assertSame(entry.getValue(), map.get(entry.getKey().toString()));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns {@code elements} with the ones at or after {@code position}
+   * moved by {@code delta}.
+   */
+  private static TreeMap<Integer, Element> shifted(TreeMap<Integer, Element> elements,
+      int position, int delta) {
+    TreeMap<Integer, Element> result = new TreeMap<Integer, Element>(elements.headMap(position));
+    for (Map.Entry<Integer, Element> entry : elements.tailMap(position).entrySet()) {
+      result.put(entry.getKey() + delta, entry.getValue());
+    }
+    return result;
+  }
+
+  private static BlipData newBlip(int length) {
+    BlipData blip = new BlipData();
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      content.append('x');
+    }
+    blip.setContent(content.append('\n').toString());
+    return blip;
+  }
+
+  private static TextViewImpl newView(BlipData blip) {
+    return new TextViewImpl(blip,
+        new RobotMessageBundleImpl(new EventMessageBundle(), "robot@example.com"));
+  }
+}
@@ -0,0 +1,90 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.ElementType;
+import com.google.wave.api.EventType;
+
+import junit.framework.TestCase;
+
+import org.json.JSONObject;
+
+import java.io.StringReader;
+
+/**
+ * Checks the lookups of {@link EnumTable} in both directions.
+ */
+public class EnumTableTest extends TestCase {
+
+  /**
+   * Names that share their hash codes, which no multiplier can tell apart.
+   */
+  private enum Colliding {
+    Aa, BB, AaAa, BBBB, AaBB, BBAa, other
+  }
+
+  public void testEveryNameResolves() {
+    assertResolves(EnumTable.EVENT_TYPES, EventType.class);
+    assertResolves(EnumTable.ELEMENT_TYPES, ElementType.class);
+    assertResolves(EnumTable.OPERATION_TYPES, OperationType.class);
+  }
+
+  public void testCaseVariantsResolve() {
+    assertSame(EventType.BLIP_SUBMITTED, EnumTable.EVENT_TYPES.fromText("blip_submitted"));
+    assertSame(EventType.BLIP_SUBMITTED, EnumTable.EVENT_TYPES.fromText("Blip_Submitted"));
+    assertSame(ElementType.GADGET, EnumTable.ELEMENT_TYPES.fromText("gadget"));
+    assertSame(OperationType.DOCUMENT_INSERT,
+        EnumTable.OPERATION_TYPES.fromText("document_INSERT"));
+  }
+
+  public void testUnknownNames() {
+    assertNull(EnumTable.EVENT_TYPES.fromText(null));
+    assertNull(EnumTable.EVENT_TYPES.fromText(""));
+    assertNull(EnumTable.EVENT_TYPES.fromText("NO_SUCH_EVENT"));
+    assertNull(EnumTable.EVENT_TYPES.fromText("BLIP_SUBMITTED "));
+    assertNull(EnumTable.ELEMENT_TYPES.fromText("BLIP_SUBMITTED"));
+    assertNull(EnumTable.OPERATION_TYPES.fromText("GADGET"));
+  }
+
+  public void testNamesWithEqualHashCodes() {
+    assertEquals("Aa".hashCode(), "BB".hashCode());
+    assertEquals("AaAa".hashCode(), "BBBB".hashCode());
+    EnumTable<Colliding> table = new EnumTable<Colliding>(Colliding.class);
+    assertResolves(table, Colliding.class);
+    assertNull(table.fromText("AB"));
+  }
+
+  public void testUnknownTypeIsInvalidData() throws Exception {
+    String json = WaveJsonCodecTest.write(WaveJsonCodecTest.newEventMessageBundle(1))
+        .replace("\"type\":\"BLIP_SUBMITTED\"", "\"type\":\"NO_SUCH_EVENT\"");
+    try {
+      WaveJsonCodec.readEventMessageBundle(new StringReader(json));
+      fail("Expected InvalidWaveDataException");
+    } catch (InvalidWaveDataException e) {
+      assertEquals("$.events.list[0].type", e.getPath());
+    }
+  }
+
+  private static <E extends Enum<E>> void assertResolves(EnumTable<E> table, Class<E> type) {
+    for (E constant : type.getEnumConstants()) {
+      String text = constant.toString();
+      assertSame(text, constant, table.fromText(text));
+      assertSame(text, constant, table.fromText(new String(text)));
+      assertEquals(text, table.getText(constant));
+      assertEquals(JSONObject.quote(text), new String(table.getJson(constant)));
+    }
+  }
+}
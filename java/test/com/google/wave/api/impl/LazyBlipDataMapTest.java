@@ -0,0 +1,119 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Checks that blips decoded by {@link LazyBlipDataMap} match the ones decoded
+ * up front, and that a blip is only decoded once it is looked up.
+ */
+public class LazyBlipDataMapTest extends TestCase {
+
+  public void testLazyAndEagerBlipsAgree() throws Exception {
+    String json = WaveJsonCodecTest.write(WaveJsonCodecTest.newEventMessageBundle(5));
+    Map<String, BlipData> eager = readBlips(json, false);
+    Map<String, BlipData> lazy = readBlips(json, true);
+    assertTrue(lazy instanceof LazyBlipDataMap);
+    assertEquals(eager.keySet(), lazy.keySet());
+    for (String blipId : eager.keySet()) {
+      assertEquals(blipId, write(eager.get(blipId)), write(lazy.get(blipId)));
+      assertSame(lazy.get(blipId), lazy.get(blipId));
+    }
+  }
+
+  public void testUntouchedBlipIsNotDecoded() throws Exception {
+    String json = WaveJsonCodecTest.write(WaveJsonCodecTest.newEventMessageBundle(3));
+    // Well-formed JSON that the model does not accept, in b2 only.
+    String broken = json.replace("\"version\":2,", "\"version\":[],");
+    assertFalse(json.equals(broken));
+
+    Map<String, BlipData> lazy = readBlips(broken, true);
+    assertEquals(3, lazy.size());
+    assertTrue(lazy.containsKey("b2"));
+    assertFalse(lazy.containsKey("b3"));
+    assertNull(lazy.get("b3"));
+    assertEquals(write(readBlips(json, false).get("b1")), write(lazy.get("b1")));
+    try {
+      lazy.get("b2");
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("Blip b2 "));
+    }
+  }
+
+  public void testIterationDecodesEveryBlip() throws Exception {
+    String json = WaveJsonCodecTest.write(WaveJsonCodecTest.newEventMessageBundle(4));
+    Map<String, BlipData> lazy = readBlips(json, true);
+    lazy.get("b1");
+    Map<String, Object> written = new TreeMap<String, Object>();
+    for (Map.Entry<String, BlipData> entry : lazy.entrySet()) {
+      written.put(entry.getKey(), write(entry.getValue()));
+    }
+    Map<String, Object> expected = new TreeMap<String, Object>();
+    for (Map.Entry<String, BlipData> entry : readBlips(json, false).entrySet()) {
+      expected.put(entry.getKey(), write(entry.getValue()));
+    }
+    assertEquals(expected, written);
+  }
+
+  public void testUpdates() throws Exception {
+    String json = WaveJsonCodecTest.write(WaveJsonCodecTest.newEventMessageBundle(3));
+    Map<String, BlipData> lazy = readBlips(json, true);
+    BlipData added = new BlipData();
+    assertNull(lazy.put("b9", added));
+    assertSame(added, lazy.get("b9"));
+
+    BlipData replaced = new BlipData();
+    assertEquals("b1", lazy.put("b1", replaced).getBlipId());
+    assertSame(replaced, lazy.get("b1"));
+
+    assertEquals("b2", lazy.remove("b2").getBlipId());
+    assertFalse(lazy.containsKey("b2"));
+    assertEquals(3, lazy.size());
+    assertEquals(new HashMap<String, BlipData>(lazy).keySet(), lazy.keySet());
+
+    lazy.clear();
+    assertTrue(lazy.isEmpty());
+    assertNull(lazy.get("b0"));
+  }
+
+  public void testBlipsShareTheDocumentStrings() throws Exception {
+    String json = WaveJsonCodecTest.write(WaveJsonCodecTest.newEventMessageBundle(3));
+    char[] chars = json.toCharArray();
+    EventMessageBundle bundle =
+        WaveJsonCodec.readEventMessageBundle(chars, 0, chars.length, true);
+    String waveId = bundle.getWaveletData().getWaveId();
+    assertSame(waveId, bundle.getBlipData().get("b1").getWaveId());
+    assertSame(waveId, bundle.getBlipData().get("b2").getWaveId());
+  }
+
+  private static Map<String, BlipData> readBlips(String json, boolean lazy) throws Exception {
+    char[] chars = json.toCharArray();
+    return WaveJsonCodec.readEventMessageBundle(chars, 0, chars.length, lazy).getBlipData();
+  }
+
+  private static Object write(BlipData blip) throws Exception {
+    StringWriter out = new StringWriter();
+    WaveJsonCodec.writeBlipData(blip, new JsonWriter(out));
+    return WaveJsonCodecTest.canonical(out.toString());
+  }
+}
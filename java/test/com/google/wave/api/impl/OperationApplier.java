@@ -0,0 +1,189 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.Annotation;
+import com.google.wave.api.Range;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Applies operations the way Wave does, as a reference for the tests of the
+ * passes that rewrite them.
+ *
+ * Each blip holds its text and, for each character, the value of every
+ * annotation name on it; inserted text carries no annotations. Data
+ * documents and titles are kept per wavelet. Operations of any other type
+ * are ignored.
+ */
+final class OperationApplier {
+
+  /** The text of a blip and the annotations of each of its characters. */
+  private static final class Document {
+    final StringBuilder text = new StringBuilder();
+    final List<Map<String, String>> annotations = new ArrayList<Map<String, String>>();
+
+    void insert(int index, String inserted) {
+      if (index < 0 || index > text.length()) {
+        throw new IndexOutOfBoundsException("Invalid insert index " + index);
+      }
+      text.insert(index, inserted);
+      for (int i = 0; i < inserted.length(); i++) {
+        annotations.add(index, new TreeMap<String, String>());
+      }
+    }
+
+    void delete(Range range) {
+      check(range);
+      text.delete(range.getStart(), range.getEnd());
+      annotations.subList(range.getStart(), range.getEnd()).clear();
+    }
+
+    void check(Range range) {
+      if (range.getStart() < 0 || range.getEnd() > text.length()
+          || range.getStart() > range.getEnd()) {
+        throw new IndexOutOfBoundsException("Invalid range " + range.getStart() + " - "
+            + range.getEnd() + " in " + text.length());
+      }
+    }
+
+    @Override
+    public String toString() {
+      return text + " " + annotations;
+    }
+  }
+
+  private final Map<String, Document> documents = new TreeMap<String, Document>();
+  private final Map<String, String> dataDocuments = new TreeMap<String, String>();
+  private final Map<String, String> titles = new TreeMap<String, String>();
+
+  /**
+   * Sets the text of a blip, without annotations.
+   */
+  void setContent(String waveId, String waveletId, String blipId, String content) {
+    Document document = new Document();
+    document.insert(0, content);
+    documents.put(key(waveId, waveletId, blipId), document);
+  }
+
+  /**
+   * Returns the text of a blip.
+   */
+  String getContent(String waveId, String waveletId, String blipId) {
+    return getDocument(waveId, waveletId, blipId).text.toString();
+  }
+
+  void apply(List<Operation> operations) {
+    for (Operation operation : operations) {
+      apply(operation);
+    }
+  }
+
+  void apply(Operation operation) {
+    Object property = operation.getProperty();
+    switch (operation.getType()) {
+      case DOCUMENT_INSERT:
+        getDocument(operation).insert(operation.getIndex(), (String) property);
+        break;
+      case DOCUMENT_APPEND: {
+        Document document = getDocument(operation);
+        document.insert(document.text.length(), (String) property);
+        break;
+      }
+      case DOCUMENT_DELETE:
+        getDocument(operation).delete((Range) property);
+        break;
+      case DOCUMENT_ANNOTATION_SET: {
+        Document document = getDocument(operation);
+        Annotation annotation = (Annotation) property;
+        document.check(annotation.getRange());
+        for (int i = annotation.getRange().getStart(); i < annotation.getRange().getEnd(); i++) {
+          document.annotations.get(i).put(annotation.getName(), annotation.getValue());
+        }
+        break;
+      }
+      case DOCUMENT_ANNOTATION_SET_NORANGE: {
+        Annotation annotation = (Annotation) property;
+        for (Map<String, String> values : getDocument(operation).annotations) {
+          values.put(annotation.getName(), annotation.getValue());
+        }
+        break;
+      }
+      case DOCUMENT_ANNOTATION_DELETE: {
+        Document document = getDocument(operation);
+        if (property instanceof String) {
+          for (Map<String, String> values : document.annotations) {
+            values.remove(property);
+          }
+        } else {
+          Range range = (Range) property;
+          document.check(range);
+          for (int i = range.getStart(); i < range.getEnd(); i++) {
+            document.annotations.get(i).clear();
+          }
+        }
+        break;
+      }
+      case WAVELET_DATADOC_SET:
+        // The blip id holds the name of the data document.
+        dataDocuments.put(key(operation), (String) property);
+        break;
+      case WAVELET_DATADOC_APPEND: {
+        String previous = dataDocuments.get(key(operation));
+        dataDocuments.put(key(operation),
+            previous == null ? (String) property : previous + (String) property);
+        break;
+      }
+      case WAVELET_SET_TITLE:
+        titles.put(operation.getWaveId() + '\n' + operation.getWaveletId(), (String) property);
+        break;
+      default:
+    }
+  }
+
+  /**
+   * Returns the whole state, so that two appliers can be compared.
+   */
+  @Override
+  public String toString() {
+    return documents + "\n" + dataDocuments + "\n" + titles;
+  }
+
+  private Document getDocument(Operation operation) {
+    return getDocument(operation.getWaveId(), operation.getWaveletId(), operation.getBlipId());
+  }
+
+  private Document getDocument(String waveId, String waveletId, String blipId) {
+    String key = key(waveId, waveletId, blipId);
+    Document document = documents.get(key);
+    if (document == null) {
+      document = new Document();
+      documents.put(key, document);
+    }
+    return document;
+  }
+
+  private static String key(Operation operation) {
+    return key(operation.getWaveId(), operation.getWaveletId(), operation.getBlipId());
+  }
+
+  private static String key(String waveId, String waveletId, String blipId) {
+    return waveId + '\n' + waveletId + '\n' + blipId;
+  }
+}
@@ -0,0 +1,435 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.Annotation;
+import com.google.wave.api.Range;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that {@link OperationCoalescer} and the batches of
+ * {@link TextViewImpl} that use it leave operations with the same effect, as
+ * applied by {@link OperationApplier}.
+ */
+public class OperationCoalescerTest extends TestCase {
+
+  private static final String CONTENT = "\nhello world, this is a blip";
+  private static final String[] BLIPS = {"b1", "b2"};
+  private static final String[] NAMES = {"a", "b"};
+  private static final String[] VALUES = {"1", "2"};
+
+  public void testInsertIntoInsert() {
+    List<Operation> operations = new ArrayList<Operation>();
+    operations.add(insert("b1", 5, "abc"));
+    operations.add(insert("b1", 7, "X"));
+    operations.add(insert("b1", 5, "<"));
+    operations.add(insert("b1", 10, ">"));
+    assertCoalescesTo("insert b1 5 <abXc> ", operations);
+  }
+
+  public void testInsertOutsideInsertIsKept() {
+    List<Operation> operations = new ArrayList<Operation>();
+    operations.add(insert("b1", 5, "abc"));
+    operations.add(insert("b1", 9, "X"));
+    operations.add(insert("b1", 4, "Y"));
+    assertCoalescesTo("insert b1 5 abc insert b1 9 X insert b1 4 Y ", operations);
+  }
+
+  public void testPartialDeleteOfInsert() {
+    List<Operation> operations = new ArrayList<Operation>();
+    operations.add(insert("b1", 5, "abcd"));
+    operations.add(delete("b1", 6, 8));
+    assertCoalescesTo("insert b1 5 ad ", operations);
+  }
+
+  public void testDeletePastInsertIsKept() {
+    List<Operation> operations = new ArrayList<Operation>();
+    operations.add(insert("b1", 5, "abcd"));
+    operations.add(delete("b1", 7, 10));
+    assertCoalescesTo("insert b1 5 abcd delete b1 7-10 ", operations);
+  }
+
+  public void testDeleteOfWholeInsertCancels() {
+    List<Operation> operations = new ArrayList<Operation>();
+    operations.add(delete("b1", 1, 2));
+    operations.add(insert("b1", 5, "ab"));
+    operations.add(delete("b1", 5, 7));
+    // The deletes around the pair that cancels do not touch, so both stay.
+    operations.add(delete("b1", 3, 4));
+    assertCoalescesTo("delete b1 1-2 delete b1 3-4 ", operations);
+  }
+
+  public void testBackspaceMerges() {
+    List<Operation> operations = new ArrayList<Operation>();
+    operations.add(delete("b1", 9, 10));
+    operations.add(delete("b1", 8, 9));
+    operations.add(delete("b1", 6, 8));
+    assertCoalescesTo("delete b1 6-10 ", operations);
+  }
+
+  public void testForwardDeleteMerges() {
+    List<Operation> operations = new ArrayList<Operation>();
+    operations.add(delete("b1", 3, 4));
+    operations.add(delete("b1", 3, 4));
+    operations.add(delete("b1", 3, 5));
+    assertCoalescesTo("delete b1 3-7 ", operations);
+  }
+
+  public void testDisjointDeletesAreKept() {
+    List<Operation> operations = new ArrayList<Operation>();
+    operations.add(delete("b1", 3, 4));
+    operations.add(delete("b1", 5, 6));
+    assertCoalescesTo("delete b1 3-4 delete b1 5-6 ", operations);
+  }
+
+  public void testAppendsMerge() {
+    List<Operation> operations = new ArrayList<Operation>();
+    operations.add(append("b1", "ab"));
+    operations.add(append("b1", "cd"));
+    assertCoalescesTo("append b1 abcd ", operations);
+  }
+
+  public void testAnnotationSetUnion() {
+    List<Operation> operations = new ArrayList<Operation>();
+    operations.add(setAnnotation("b1", "a", "1", 2, 5));
+    operations.add(setAnnotation("b1", "a", "1", 5, 8));
+    operations.add(setAnnotation("b1", "a", "1", 0, 3));
+    assertCoalescesTo("set b1 a=1 0-8 ", operations);
+  }
+
+  public void testAnnotationSetsThatDifferAreKept() {
+    List<Operation> operations = new ArrayList<Operation>();
+    operations.add(setAnnotation("b1", "a", "1", 2, 5));
+    operations.add(setAnnotation("b1", "a", "2", 5, 8));
+    operations.add(setAnnotation("b1", "b", "2", 5, 8));
+    operations.add(setAnnotation("b1", "b", "2", 9, 10));
+    assertCoalescesTo("set b1 a=1 2-5 set b1 a=2 5-8 set b1 b=2 5-8 set b1 b=2 9-10 ",
+        operations);
+  }
+
+  public void testOperationsOnOtherBlipsAreNotMerged() {
+    List<Operation> operations = new ArrayList<Operation>();
+    operations.add(insert("b1", 5, "ab"));
+    operations.add(insert("b2", 5, "cd"));
+    operations.add(insert("b1", 6, "X"));
+    assertCoalescesTo("insert b1 5 ab insert b2 5 cd insert b1 6 X ", operations);
+  }
+
+  public void testOperationsBeforeFromAreKept() {
+    List<Operation> operations = new ArrayList<Operation>();
+    operations.add(insert("b1", 5, "ab"));
+    operations.add(insert("b1", 6, "X"));
+    operations.add(insert("b1", 6, "Y"));
+    operations.add(delete("b1", 6, 7));
+    OperationCoalescer.coalesce(operations, 2);
+    assertEquals("insert b1 5 ab insert b1 6 X ", dump(operations));
+  }
+
+  public void testRandomOperationsKeepTheirEffect() {
+    Random random = new Random(11);
+    int before = 0;
+    int after = 0;
+    for (int round = 0; round < 2000; round++) {
+      List<Operation> operations = randomOperations(random, 1 + random.nextInt(40));
+      OperationApplier expected = newApplier();
+      expected.apply(operations);
+
+      List<Operation> coalesced = new ArrayList<Operation>(operations);
+      OperationCoalescer.coalesce(coalesced, 0);
+      OperationApplier actual = newApplier();
+      actual.apply(coalesced);
+      assertEquals(expected.toString(), actual.toString());
+      assertTrue(coalesced.size() <= operations.size());
+      before += operations.size();
+      after += coalesced.size();
+    }
+    // Makes sure the generator exercises the merges at all.
+    assertTrue(after < before * 3 / 4);
+  }
+
+  public void testCommitWithoutBeginThrows() {
+    TextViewImpl view = newView(newBlip("b1"), newEvents());
+    try {
+      view.commitBatch();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+
+    view.beginBatch();
+    view.commitBatch();
+    try {
+      view.commitBatch();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+  }
+
+  public void testNestedBatchesCoalesceOnOutermostCommit() {
+    BlipData blip = newBlip("b1");
+    RobotMessageBundleImpl events = newEvents();
+    TextViewImpl view = newView(blip, events);
+    List<Operation> operations = events.getOperations().getOperations();
+
+    view.insert(1, "ab");
+    view.beginBatch();
+    view.insert(3, "cd");
+    view.beginBatch();
+    view.insert(5, "ef");
+    view.commitBatch();
+    assertEquals(3, operations.size());
+    view.insert(7, "gh");
+    view.commitBatch();
+    // The insert made before the batch is left alone.
+    assertEquals("insert b1 1 ab insert b1 3 cdefgh ", dump(operations));
+    assertEquals("\nabcdefghhello world, this is a blip", blip.getContent());
+  }
+
+  public void testRandomBatchesKeepTheirEffect() {
+    for (int round = 0; round < 500; round++) {
+      OperationApplier[] results = new OperationApplier[2];
+      int[] sizes = new int[2];
+      for (int pass = 0; pass < 2; pass++) {
+        // The same edits, made without and with batches.
+        Random random = new Random(round);
+        BlipData blip = newBlip("b1");
+        RobotMessageBundleImpl events = newEvents();
+        TextViewImpl view = newView(blip, events);
+        int depth = 0;
+        for (int i = 0; i < 40; i++) {
+          int choice = random.nextInt(10);
+          if (choice == 0) {
+            if (pass == 1) {
+              view.beginBatch();
+            }
+            depth++;
+          } else if (choice == 1 && depth > 0) {
+            if (pass == 1) {
+              view.commitBatch();
+            }
+            depth--;
+          } else {
+            edit(random, view, blip);
+          }
+        }
+        for (; depth > 0; depth--) {
+          if (pass == 1) {
+            view.commitBatch();
+          }
+        }
+
+        List<Operation> operations = events.getOperations().getOperations();
+        results[pass] = newApplier();
+        results[pass].apply(operations);
+        assertEquals(blip.getContent(), results[pass].getContent("w", "wl", "b1"));
+        sizes[pass] = operations.size();
+      }
+      assertEquals(results[0].toString(), results[1].toString());
+      assertTrue(sizes[1] <= sizes[0]);
+    }
+  }
+
+  /**
+   * Makes a random edit through {@code view}, mostly next to the previous
+   * one, as typing and deleting do.
+   */
+  private static void edit(Random random, TextViewImpl view, BlipData blip) {
+    int length = blip.getContentLength();
+    int position = random.nextInt(4) == 0
+        ? random.nextInt(length) : Math.max(1, length - 2 - random.nextInt(3));
+    int choice = random.nextInt(6);
+    if (choice <= 1) {
+      view.insert(position, "abc".substring(random.nextInt(3)));
+    } else if (choice == 2) {
+      view.append("xy");
+    } else if (choice <= 4 && length > 4) {
+      int start = Math.min(position, length - 2);
+      int end = Math.min(start + 1 + random.nextInt(3), length - 1);
+      if (start < end) {
+        view.delete(new Range(start, end));
+      }
+    } else {
+      int start = random.nextInt(length);
+      view.setAnnotation(new Range(start, start + random.nextInt(length - start + 1)),
+          NAMES[random.nextInt(NAMES.length)], VALUES[0]);
+    }
+  }
+
+  /**
+   * Returns operations on a few blips, biased towards the patterns the
+   * coalescer merges: typing, backspace and forward delete, deletes of text
+   * just inserted, and annotation sets next to each other.
+   */
+  private static List<Operation> randomOperations(Random random, int count) {
+    OperationApplier state = newApplier();
+    List<Operation> operations = new ArrayList<Operation>();
+    Operation last = null;
+    for (int i = 0; i < count; i++) {
+      String blipId = last != null && random.nextInt(5) != 0
+          ? last.getBlipId() : BLIPS[random.nextInt(BLIPS.length)];
+      boolean follows = last != null && last.getBlipId().equals(blipId);
+      int length = state.getContent("w", "wl", blipId).length();
+      Operation operation;
+      int choice = random.nextInt(10);
+      if (choice == 0 || length < 4) {
+        operation = insert(blipId, random.nextInt(length + 1), text(random));
+      } else if (choice == 1) {
+        operation = append(blipId, text(random));
+      } else if (choice <= 3 && follows && last.getType() == OperationType.DOCUMENT_INSERT) {
+        // Typing within or next to the text just inserted.
+        String inserted = (String) last.getProperty();
+        operation = insert(blipId, last.getIndex() + random.nextInt(inserted.length() + 1),
+            text(random));
+      } else if (choice <= 5 && follows && last.getType() == OperationType.DOCUMENT_INSERT) {
+        // Taking back some or all of the text just inserted, or a bit more.
+        int inserted = ((String) last.getProperty()).length();
+        int start = last.getIndex() + random.nextInt(inserted + 1);
+        int end = Math.min(length, start + random.nextInt(inserted + 2));
+        operation = delete(blipId, start, end);
+      } else if (choice <= 6 && follows && last.getType() == OperationType.DOCUMENT_DELETE) {
+        int start = ((Range) last.getProperty()).getStart();
+        if (random.nextBoolean() && start > 0) {
+          // Backspace.
+          int deleted = 1 + random.nextInt(Math.min(start, 3));
+          operation = delete(blipId, start - deleted, start);
+        } else {
+          // Forward delete.
+          operation = delete(blipId, Math.min(start, length - 1),
+              Math.min(length, start + 1 + random.nextInt(3)));
+        }
+      } else if (choice <= 6) {
+        int start = random.nextInt(length);
+        operation = delete(blipId, start, Math.min(length, start + 1 + random.nextInt(4)));
+      } else if (choice <= 8 && follows
+          && last.getType() == OperationType.DOCUMENT_ANNOTATION_SET) {
+        // A set touching, overlapping or near the one just made.
+        Annotation previous = (Annotation) last.getProperty();
+        int start = Math.max(0, Math.min(length,
+            previous.getRange().getEnd() - 2 + random.nextInt(5)));
+        String value = random.nextInt(4) == 0 ? VALUES[1] : previous.getValue();
+        operation = setAnnotation(blipId, previous.getName(), value, start,
+            Math.min(length, start + random.nextInt(5)));
+      } else {
+        int start = random.nextInt(length + 1);
+        operation = setAnnotation(blipId, NAMES[random.nextInt(NAMES.length)],
+            VALUES[random.nextInt(VALUES.length)], start,
+            start + random.nextInt(length - start + 1));
+      }
+      state.apply(operation);
+      operations.add(operation);
+      last = operation;
+    }
+    return operations;
+  }
+
+  private static void assertCoalescesTo(String expected, List<Operation> operations) {
+    OperationApplier raw = newApplier();
+    raw.apply(operations);
+    OperationCoalescer.coalesce(operations, 0);
+    assertEquals(expected, dump(operations));
+    OperationApplier coalesced = newApplier();
+    coalesced.apply(operations);
+    assertEquals(raw.toString(), coalesced.toString());
+  }
+
+  private static OperationApplier newApplier() {
+    OperationApplier applier = new OperationApplier();
+    for (String blipId : BLIPS) {
+      applier.setContent("w", "wl", blipId, CONTENT);
+    }
+    return applier;
+  }
+
+  private static BlipData newBlip(String blipId) {
+    BlipData blip = new BlipData();
+    blip.setWaveId("w");
+    blip.setWaveletId("wl");
+    blip.setBlipId(blipId);
+    blip.setContent(CONTENT);
+    return blip;
+  }
+
+  private static RobotMessageBundleImpl newEvents() {
+    return new RobotMessageBundleImpl(new EventMessageBundle(), "robot@example.com");
+  }
+
+  private static TextViewImpl newView(BlipData blip, RobotMessageBundleImpl events) {
+    return new TextViewImpl(blip, events);
+  }
+
+  private static String text(Random random) {
+    return "abcd".substring(random.nextInt(4));
+  }
+
+  private static Operation insert(String blipId, int index, String text) {
+    return new OperationImpl(OperationType.DOCUMENT_INSERT, "w", "wl", blipId, index, text);
+  }
+
+  private static Operation append(String blipId, String text) {
+    return new OperationImpl(OperationType.DOCUMENT_APPEND, "w", "wl", blipId, 0, text);
+  }
+
+  private static Operation delete(String blipId, int start, int end) {
+    return new OperationImpl(OperationType.DOCUMENT_DELETE, "w", "wl", blipId, -1,
+        new Range(start, end));
+  }
+
+  private static Operation setAnnotation(String blipId, String name, String value, int start,
+      int end) {
+    return new OperationImpl(OperationType.DOCUMENT_ANNOTATION_SET, "w", "wl", blipId, 0,
+        new Annotation(name, value, new Range(start, end)));
+  }
+
+  private static String dump(List<Operation> operations) {
+    StringBuilder text = new StringBuilder();
+    for (Operation operation : operations) {
+      Object property = operation.getProperty();
+      switch (operation.getType()) {
+        case DOCUMENT_INSERT:
+          text.append("insert ").append(operation.getBlipId()).append(' ')
+              .append(operation.getIndex()).append(' ').append(property);
+          break;
+        case DOCUMENT_APPEND:
+          text.append("append ").append(operation.getBlipId()).append(' ').append(property);
+          break;
+        case DOCUMENT_DELETE: {
+          Range range = (Range) property;
+          text.append("delete ").append(operation.getBlipId()).append(' ')
+              .append(range.getStart()).append('-').append(range.getEnd());
+          break;
+        }
+        case DOCUMENT_ANNOTATION_SET: {
+          Annotation annotation = (Annotation) property;
+          text.append("set ").append(operation.getBlipId()).append(' ')
+              .append(annotation.getName()).append('=').append(annotation.getValue())
+              .append(' ').append(annotation.getRange().getStart()).append('-')
+              .append(annotation.getRange().getEnd());
+          break;
+        }
+        default:
+          text.append(operation.getType());
+      }
+      text.append(' ');
+    }
+    return text.toString();
+  }
+}
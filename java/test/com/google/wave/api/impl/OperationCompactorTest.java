@@ -0,0 +1,307 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.Annotation;
+import com.google.wave.api.Range;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that {@link OperationCompactor} leaves operations with the same
+ * effect, as applied by {@link OperationApplier}.
+ */
+public class OperationCompactorTest extends TestCase {
+
+  private static final String CONTENT = "\n0123456789abcdef";
+  private static final String[] WAVES = {"w1", "w2"};
+  private static final String[] WAVELETS = {"conv+root", "conv+other"};
+  private static final String[] BLIPS = {"b1", "b2"};
+  private static final String[] NAMES = {"a", "b"};
+  private static final String[] VALUES = {"1", "2"};
+  private static final String[] DATA_DOCUMENTS = {"d1", "d2"};
+
+  public void testLaterSetOfSameNameOverwrites() {
+    List<Operation> operations = new ArrayList<Operation>();
+    operations.add(setAnnotation("w1", "b1", "a", "1", 2, 5));
+    operations.add(setAnnotation("w1", "b1", "b", "1", 2, 5));
+    operations.add(setAnnotation("w1", "b1", "a", "2", 1, 6));
+    assertCompactsTo("set b1 b=1 2-5 set b1 a=2 1-6 ", operations);
+  }
+
+  public void testNoRangeSetOverwritesEverySetOfItsName() {
+    List<Operation> operations = new ArrayList<Operation>();
+    operations.add(setAnnotation("w1", "b1", "a", "1", 2, 5));
+    operations.add(insert("w1", "b1", 1, "xy"));
+    operations.add(setAnnotation("w1", "b1", "a", "1", 0, 3));
+    operations.add(setAnnotationNoRange("w1", "b1", "a", "2"));
+    // The insert moves the text, so only the set after it is dropped.
+    assertCompactsTo("set b1 a=1 2-5 insert b1 1 xy norange b1 a=2 ", operations);
+  }
+
+  public void testDeleteByNameOverwritesEarlierSets() {
+    List<Operation> operations = new ArrayList<Operation>();
+    operations.add(setAnnotation("w1", "b1", "a", "1", 2, 5));
+    operations.add(insert("w1", "b1", 1, "xy"));
+    operations.add(setAnnotationNoRange("w1", "b1", "a", "2"));
+    operations.add(setAnnotation("w1", "b1", "b", "1", 2, 5));
+    operations.add(deleteAnnotations("w1", "b1", "a"));
+    assertCompactsTo("insert b1 1 xy set b1 b=1 2-5 delete-name b1 a ", operations);
+  }
+
+  public void testDeleteByRangeOverwritesSetsWithin() {
+    List<Operation> operations = new ArrayList<Operation>();
+    operations.add(setAnnotation("w1", "b1", "a", "1", 2, 5));
+    operations.add(setAnnotation("w1", "b1", "b", "1", 4, 9));
+    operations.add(deleteAnnotations("w1", "b1", 1, 6));
+    assertCompactsTo("set b1 b=1 4-9 delete-range b1 1-6 ", operations);
+  }
+
+  public void testSetsOnOtherBlipsAreKept() {
+    List<Operation> operations = new ArrayList<Operation>();
+    operations.add(setAnnotation("w1", "b1", "a", "1", 2, 5));
+    operations.add(setAnnotation("w2", "b1", "a", "1", 2, 5));
+    operations.add(deleteAnnotations("w1", "b2", "a"));
+    operations.add(setAnnotationNoRange("w1", "b2", "a", "2"));
+    assertCompactsTo("set b1 a=1 2-5 set b1 a=1 2-5 delete-name b2 a norange b2 a=2 ",
+        operations);
+  }
+
+  public void testDataDocumentSetOverwrites() {
+    List<Operation> operations = new ArrayList<Operation>();
+    operations.add(dataDocument(OperationType.WAVELET_DATADOC_SET, "w1", "conv+root", "d1", "x"));
+    operations.add(dataDocument(OperationType.WAVELET_DATADOC_APPEND, "w1", "conv+root", "d1",
+        "y"));
+    operations.add(dataDocument(OperationType.WAVELET_DATADOC_SET, "w1", "conv+other", "d1",
+        "z"));
+    operations.add(dataDocument(OperationType.WAVELET_DATADOC_SET, "w1", "conv+root", "d1",
+        "u"));
+    operations.add(dataDocument(OperationType.WAVELET_DATADOC_APPEND, "w1", "conv+root", "d1",
+        "v"));
+    assertCompactsTo("set-doc conv+other d1 z set-doc conv+root d1 u append-doc conv+root d1 v ",
+        operations);
+  }
+
+  public void testRemainingOperationsAreCoalesced() {
+    List<Operation> operations = new ArrayList<Operation>();
+    operations.add(insert("w1", "b1", 3, "ab"));
+    operations.add(setAnnotation("w1", "b1", "a", "1", 0, 2));
+    operations.add(setAnnotation("w1", "b1", "a", "2", 0, 2));
+    operations.add(insert("w1", "b1", 4, "X"));
+    operations.add(deleteAnnotations("w1", "b1", "a"));
+    assertCompactsTo("insert b1 3 aXb delete-name b1 a ", operations);
+  }
+
+  public void testBundleCompactsItsOperations() {
+    OperationMessageBundle bundle = new OperationMessageBundle();
+    bundle.add(setAnnotation("w1", "b1", "a", "1", 2, 5));
+    bundle.add(setAnnotation("w1", "b1", "a", "2", 2, 5));
+    bundle.compact();
+    assertEquals("set b1 a=2 2-5 ", dump(bundle.getOperations()));
+  }
+
+  public void testRandomOperationsKeepTheirEffect() {
+    Random random = new Random(17);
+    int before = 0;
+    int after = 0;
+    for (int round = 0; round < 3000; round++) {
+      List<Operation> operations = randomOperations(random, 1 + random.nextInt(40));
+      OperationApplier expected = newApplier();
+      expected.apply(operations);
+
+      List<Operation> compacted = new ArrayList<Operation>(operations);
+      OperationCompactor.compact(compacted);
+      OperationApplier actual = newApplier();
+      actual.apply(compacted);
+      assertEquals(expected.toString(), actual.toString());
+      before += operations.size();
+      after += compacted.size();
+    }
+    // Makes sure the generator gives the compactor something to drop.
+    assertTrue(before + " -> " + after, after < before * 9 / 10);
+  }
+
+  /**
+   * Returns operations on the blips and data documents of a few wavelets,
+   * mostly on the same blip in a row so that ranges get compared.
+   */
+  private static List<Operation> randomOperations(Random random, int count) {
+    OperationApplier state = newApplier();
+    List<Operation> operations = new ArrayList<Operation>();
+    String waveId = WAVES[0];
+    String waveletId = WAVELETS[0];
+    String blipId = BLIPS[0];
+    for (int i = 0; i < count; i++) {
+      if (random.nextInt(4) == 0) {
+        waveId = WAVES[random.nextInt(WAVES.length)];
+        waveletId = WAVELETS[random.nextInt(WAVELETS.length)];
+        blipId = BLIPS[random.nextInt(BLIPS.length)];
+      }
+      int length = state.getContent(waveId, waveletId, blipId).length();
+      int start = random.nextInt(length + 1);
+      int end = start + random.nextInt(Math.min(8, length - start) + 1);
+      String name = NAMES[random.nextInt(NAMES.length)];
+      String value = VALUES[random.nextInt(VALUES.length)];
+      String text = "xyz".substring(random.nextInt(3));
+
+      Operation operation;
+      int choice = random.nextInt(14);
+      if (choice == 0) {
+        operation = new OperationImpl(OperationType.DOCUMENT_INSERT, waveId, waveletId, blipId,
+            Math.max(0, length - random.nextInt(4)), text);
+      } else if (choice == 1) {
+        operation = new OperationImpl(OperationType.DOCUMENT_APPEND, waveId, waveletId, blipId,
+            0, text);
+      } else if (choice == 2 && length > 8 && start < end) {
+        operation = new OperationImpl(OperationType.DOCUMENT_DELETE, waveId, waveletId, blipId,
+            -1, new Range(start, end));
+      } else if (choice <= 6) {
+        operation = new OperationImpl(OperationType.DOCUMENT_ANNOTATION_SET, waveId, waveletId,
+            blipId, 0, new Annotation(name, value, new Range(start, end)));
+      } else if (choice == 7) {
+        operation = new OperationImpl(OperationType.DOCUMENT_ANNOTATION_SET_NORANGE, waveId,
+            waveletId, blipId, 0, new Annotation(name, value, null));
+      } else if (choice == 8) {
+        operation = new OperationImpl(OperationType.DOCUMENT_ANNOTATION_DELETE, waveId,
+            waveletId, blipId, 0, name);
+      } else if (choice == 9) {
+        operation = new OperationImpl(OperationType.DOCUMENT_ANNOTATION_DELETE, waveId,
+            waveletId, blipId, 0, new Range(start, end));
+      } else if (choice <= 11) {
+        operation = dataDocument(random.nextBoolean() ? OperationType.WAVELET_DATADOC_SET
+            : OperationType.WAVELET_DATADOC_APPEND, waveId, waveletId,
+            DATA_DOCUMENTS[random.nextInt(DATA_DOCUMENTS.length)], "v" + i);
+      } else if (choice == 12) {
+        operation = new OperationImpl(OperationType.WAVELET_SET_TITLE, waveId, waveletId, null,
+            -1, "title " + i);
+      } else {
+        // Annotations next to or over the text just inserted.
+        operation = new OperationImpl(OperationType.DOCUMENT_ANNOTATION_SET, waveId, waveletId,
+            blipId, 0, new Annotation(name, value, new Range(Math.max(0, length - 4), length)));
+      }
+      state.apply(operation);
+      operations.add(operation);
+    }
+    return operations;
+  }
+
+  private static void assertCompactsTo(String expected, List<Operation> operations) {
+    OperationApplier raw = newApplier();
+    raw.apply(operations);
+    OperationCompactor.compact(operations);
+    assertEquals(expected, dump(operations));
+    OperationApplier compacted = newApplier();
+    compacted.apply(operations);
+    assertEquals(raw.toString(), compacted.toString());
+  }
+
+  private static OperationApplier newApplier() {
+    OperationApplier applier = new OperationApplier();
+    for (String waveId : WAVES) {
+      for (String waveletId : WAVELETS) {
+        for (String blipId : BLIPS) {
+          applier.setContent(waveId, waveletId, blipId, CONTENT);
+        }
+      }
+    }
+    return applier;
+  }
+
+  private static Operation insert(String waveId, String blipId, int index, String text) {
+    return new OperationImpl(OperationType.DOCUMENT_INSERT, waveId, WAVELETS[0], blipId, index,
+        text);
+  }
+
+  private static Operation setAnnotation(String waveId, String blipId, String name,
+      String value, int start, int end) {
+    return new OperationImpl(OperationType.DOCUMENT_ANNOTATION_SET, waveId, WAVELETS[0], blipId,
+        0, new Annotation(name, value, new Range(start, end)));
+  }
+
+  private static Operation setAnnotationNoRange(String waveId, String blipId, String name,
+      String value) {
+    return new OperationImpl(OperationType.DOCUMENT_ANNOTATION_SET_NORANGE, waveId,
+        WAVELETS[0], blipId, 0, new Annotation(name, value, null));
+  }
+
+  private static Operation deleteAnnotations(String waveId, String blipId, String name) {
+    return new OperationImpl(OperationType.DOCUMENT_ANNOTATION_DELETE, waveId, WAVELETS[0],
+        blipId, 0, name);
+  }
+
+  private static Operation deleteAnnotations(String waveId, String blipId, int start, int end) {
+    return new OperationImpl(OperationType.DOCUMENT_ANNOTATION_DELETE, waveId, WAVELETS[0],
+        blipId, 0, new Range(start, end));
+  }
+
+  private static Operation dataDocument(OperationType type, String waveId, String waveletId,
+      String name, String data) {
+    return new OperationImpl(type, waveId, waveletId, name, -1, data);
+  }
+
+  private static String dump(List<Operation> operations) {
+    StringBuilder text = new StringBuilder();
+    for (Operation operation : operations) {
+      Object property = operation.getProperty();
+      switch (operation.getType()) {
+        case DOCUMENT_INSERT:
+          text.append("insert ").append(operation.getBlipId()).append(' ')
+              .append(operation.getIndex()).append(' ').append(property);
+          break;
+        case DOCUMENT_ANNOTATION_SET: {
+          Annotation annotation = (Annotation) property;
+          text.append("set ").append(operation.getBlipId()).append(' ')
+              .append(annotation.getName()).append('=').append(annotation.getValue())
+              .append(' ').append(annotation.getRange().getStart()).append('-')
+              .append(annotation.getRange().getEnd());
+          break;
+        }
+        case DOCUMENT_ANNOTATION_SET_NORANGE: {
+          Annotation annotation = (Annotation) property;
+          text.append("norange ").append(operation.getBlipId()).append(' ')
+              .append(annotation.getName()).append('=').append(annotation.getValue());
+          break;
+        }
+        case DOCUMENT_ANNOTATION_DELETE:
+          if (property instanceof String) {
+            text.append("delete-name ").append(operation.getBlipId()).append(' ')
+                .append(property);
+          } else {
+            Range range = (Range) property;
+            text.append("delete-range ").append(operation.getBlipId()).append(' ')
+                .append(range.getStart()).append('-').append(range.getEnd());
+          }
+          break;
+        case WAVELET_DATADOC_SET:
+          text.append("set-doc ").append(operation.getWaveletId()).append(' ')
+              .append(operation.getBlipId()).append(' ').append(property);
+          break;
+        case WAVELET_DATADOC_APPEND:
+          text.append("append-doc ").append(operation.getWaveletId()).append(' ')
+              .append(operation.getBlipId()).append(' ').append(property);
+          break;
+        default:
+          text.append(operation.getType());
+      }
+      text.append(' ');
+    }
+    return text.toString();
+  }
+}
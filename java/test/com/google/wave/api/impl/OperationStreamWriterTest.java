@@ -0,0 +1,133 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.Annotation;
+import com.google.wave.api.Range;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Checks that {@link OperationStreamWriter} writes what
+ * {@link WaveJsonCodec} does, in chunks, and through gzip.
+ */
+public class OperationStreamWriterTest extends TestCase {
+
+  /**
+   * Counts the flushes of the stream it writes to.
+   */
+  private static class FlushCountingWriter extends StringWriter {
+    int flushes;
+
+    @Override
+    public void flush() {
+      super.flush();
+      flushes++;
+    }
+  }
+
+  public void testWritesLikeCodec() throws Exception {
+    OperationMessageBundle bundle = newBundle(50);
+    StringWriter out = new StringWriter();
+    new OperationStreamWriter(out, 0).write(bundle);
+    assertEquals(writeWithCodec(bundle), out.toString());
+  }
+
+  public void testWritesEmptyBundle() throws Exception {
+    OperationMessageBundle bundle = new OperationMessageBundle();
+    StringWriter out = new StringWriter();
+    new OperationStreamWriter(out, 0).write(bundle);
+    assertEquals(writeWithCodec(bundle), out.toString());
+    assertEquals(0, WaveJsonCodec.readOperationMessageBundle(
+        new StringReader(out.toString())).getOperations().size());
+  }
+
+  public void testFlushesOnlyAtEndWithoutThreshold() throws Exception {
+    FlushCountingWriter out = new FlushCountingWriter();
+    new OperationStreamWriter(out, 0).write(newBundle(200));
+    assertEquals(1, out.flushes);
+  }
+
+  public void testFlushesInChunks() throws Exception {
+    FlushCountingWriter out = new FlushCountingWriter();
+    OperationStreamWriter writer = new OperationStreamWriter(out, 1024);
+    writer.write(newBundle(200));
+    assertEquals(out.toString().length(), writer.getCharsWritten());
+    // One flush per full chunk, plus the one at the end.
+    assertTrue(out.flushes > 1);
+    assertTrue(out.flushes <= writer.getCharsWritten() / 1024 + 1);
+  }
+
+  public void testGzipRoundTrip() throws Exception {
+    OperationMessageBundle bundle = newBundle(500);
+
+    // As the servlet writes it: the stream is flushed, then the gzip
+    // trailer is written by finish().
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+    Writer writer = new OutputStreamWriter(gzip, "utf-8");
+    new OperationStreamWriter(writer, 256).write(bundle);
+    gzip.finish();
+
+    Reader in = new InputStreamReader(new GZIPInputStream(
+        new ByteArrayInputStream(bytes.toByteArray())), "utf-8");
+    assertEquals(writeWithCodec(bundle), readAll(in));
+  }
+
+  private static OperationMessageBundle newBundle(int size) {
+    OperationMessageBundle bundle = new OperationMessageBundle();
+    bundle.setVersion("7");
+    for (int i = 0; i < size; i++) {
+      if (i % 2 == 0) {
+        bundle.add(new OperationImpl(OperationType.DOCUMENT_INSERT, "wave!1", "conv+root",
+            "b" + i % 5, i, "text \u00e9 \u2603 \"" + i + "\""));
+      } else {
+        bundle.add(new OperationImpl(OperationType.DOCUMENT_ANNOTATION_SET, "wave!1",
+            "conv+root", "b" + i % 5, 0, new Annotation("style/color", "red",
+                new Range(i, i + 3))));
+      }
+    }
+    return bundle;
+  }
+
+  private static String writeWithCodec(OperationMessageBundle bundle) throws IOException {
+    StringWriter out = new StringWriter();
+    WaveJsonCodec.writeOperationMessageBundle(bundle, out);
+    return out.toString();
+  }
+
+  private static String readAll(Reader in) throws IOException {
+    StringBuilder text = new StringBuilder();
+    char[] buffer = new char[4096];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      text.append(buffer, 0, n);
+    }
+    return text.toString();
+  }
+}
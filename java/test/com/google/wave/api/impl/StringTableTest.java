@@ -0,0 +1,93 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Checks that {@link StringTable} hands out one instance per string, within
+ * its bounds.
+ */
+public class StringTableTest extends TestCase {
+
+  public void testInternByCharacters() {
+    StringTable table = new StringTable();
+    char[] chars = "xxwave!1yy".toCharArray();
+    String first = intern(table, chars, 2, 6);
+    assertEquals("wave!1", first);
+    assertSame(first, intern(table, "wave!1".toCharArray(), 0, 6));
+    assertSame(first, table.intern(new String("wave!1")));
+  }
+
+  public void testInternByString() {
+    StringTable table = new StringTable();
+    String first = new String("a@example.com");
+    assertSame(first, table.intern(first));
+    assertSame(first, table.intern(new String("a@example.com")));
+    assertSame(first, intern(table, "a@example.com".toCharArray(), 0, 13));
+  }
+
+  public void testEqualHashesAreToldApart() {
+    StringTable table = new StringTable();
+    assertEquals("Aa".hashCode(), "BB".hashCode());
+    String aa = table.intern(new String("Aa"));
+    String bb = table.intern(new String("BB"));
+    assertEquals("Aa", aa);
+    assertEquals("BB", bb);
+    assertSame(aa, intern(table, "Aa".toCharArray(), 0, 2));
+    assertSame(bb, intern(table, "BB".toCharArray(), 0, 2));
+    assertEquals("", intern(table, new char[0], 0, 0));
+  }
+
+  public void testLongStringsAreNotKept() {
+    StringTable table = new StringTable();
+    char[] chars = new char[StringTable.MAX_LENGTH + 1];
+    Arrays.fill(chars, 'x');
+    String first = intern(table, chars, 0, chars.length);
+    assertNotSame(first, intern(table, chars, 0, chars.length));
+    assertEquals(first, intern(table, chars, 0, chars.length));
+    assertSame(intern(table, chars, 0, StringTable.MAX_LENGTH),
+        intern(table, chars, 0, StringTable.MAX_LENGTH));
+  }
+
+  public void testGrowingKeepsEveryString() {
+    StringTable table = new StringTable();
+    String[] strings = new String[1000];
+    for (int i = 0; i < strings.length; i++) {
+      strings[i] = table.intern(new String("id" + i));
+    }
+    for (int i = 0; i < strings.length; i++) {
+      assertSame(strings[i], intern(table, ("id" + i).toCharArray(), 0, ("id" + i).length()));
+    }
+  }
+
+  public void testFullTableStillReturnsEqualStrings() {
+    StringTable table = new StringTable();
+    for (int i = 0; i < 5000; i++) {
+      table.intern("id" + i);
+    }
+    String late = intern(table, "late".toCharArray(), 0, 4);
+    assertEquals("late", late);
+    assertNotSame(late, intern(table, "late".toCharArray(), 0, 4));
+    assertEquals("id0", table.intern(new String("id0")));
+  }
+
+  private static String intern(StringTable table, char[] chars, int offset, int length) {
+    return table.intern(chars, offset, length, new String(chars, offset, length).hashCode());
+  }
+}
@@ -0,0 +1,173 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+/**
+ * Checks that {@link WaveBinaryCodec} carries bundles and arbitrary JSON
+ * through the binary form unchanged.
+ */
+public class WaveBinaryCodecTest extends TestCase {
+
+  public void testEventsRoundTripLikeJson() throws Exception {
+    EventMessageBundle bundle = WaveJsonCodecTest.newEventMessageBundle(10);
+    String json = WaveJsonCodecTest.write(bundle);
+    byte[] binary = writeBinary(bundle);
+    assertTrue(binary.length < json.length());
+
+    EventMessageBundle back =
+        WaveBinaryCodec.readEventMessageBundle(new ByteArrayInputStream(binary));
+    assertEquals(WaveJsonCodecTest.canonical(json),
+        WaveJsonCodecTest.canonical(WaveJsonCodecTest.write(back)));
+  }
+
+  public void testOperationsRoundTripLikeJson() throws Exception {
+    OperationMessageBundle bundle = WaveJsonCodecTest.newOperationMessageBundle();
+    StringWriter json = new StringWriter();
+    WaveJsonCodec.writeOperationMessageBundle(bundle, json);
+    ByteArrayOutputStream binary = new ByteArrayOutputStream();
+    WaveBinaryCodec.writeOperationMessageBundle(bundle, binary);
+
+    OperationMessageBundle back = WaveBinaryCodec.readOperationMessageBundle(
+        new ByteArrayInputStream(binary.toByteArray()));
+    StringWriter backJson = new StringWriter();
+    WaveJsonCodec.writeOperationMessageBundle(back, backJson);
+    assertEquals(WaveJsonCodecTest.canonical(json.toString()),
+        WaveJsonCodecTest.canonical(backJson.toString()));
+  }
+
+  public void testConversionKeepsUnknownFields() throws Exception {
+    String json = WaveJsonCodecTest.write(WaveJsonCodecTest.newEventMessageBundle(3));
+    json = json.substring(0, json.length() - 1)
+        + ",\"proxyingFor\":\"{\\\"port\\\":\\\"8080\\\"}\",\"extra\":[true,false,null,{}]}";
+    String back = toJson(toBinary(json));
+    assertEquals(WaveJsonCodecTest.canonical(json), WaveJsonCodecTest.canonical(back));
+
+    // Reading the bundle back from either form gives the same bundle.
+    EventMessageBundle viaJson = WaveJsonCodec.readEventMessageBundle(new StringReader(json));
+    EventMessageBundle viaBinary =
+        WaveBinaryCodec.readEventMessageBundle(new ByteArrayInputStream(toBinary(json)));
+    assertEquals(WaveJsonCodecTest.canonical(WaveJsonCodecTest.write(viaJson)),
+        WaveJsonCodecTest.canonical(WaveJsonCodecTest.write(viaBinary)));
+  }
+
+  public void testNumbersKeepTheirValue() throws Exception {
+    String json = "{\"a\":0,\"b\":-1,\"c\":9223372036854775807,\"d\":-9223372036854775808,"
+        + "\"e\":1.5e3,\"f\":-0.25,\"g\":[1,2,300000]}";
+    assertEquals(WaveJsonCodecTest.canonical(json),
+        WaveJsonCodecTest.canonical(toJson(toBinary(json))));
+    String longs = toJson(toBinary("[9223372036854775807,-9223372036854775808]"));
+    assertEquals("[9223372036854775807,-9223372036854775808]", longs);
+  }
+
+  public void testRepeatedStringsAreShared() throws Exception {
+    byte[] binary = writeBinary(WaveJsonCodecTest.newEventMessageBundle(3));
+    EventMessageBundle bundle =
+        WaveBinaryCodec.readEventMessageBundle(new ByteArrayInputStream(binary));
+    String waveId = bundle.getWaveletData().getWaveId();
+    assertSame(waveId, bundle.getBlipData().get("b1").getWaveId());
+    assertSame(waveId, bundle.getBlipData().get("b2").getWaveId());
+  }
+
+  public void testNotABinaryDocument() throws Exception {
+    try {
+      WaveBinaryCodec.toJson(new ByteArrayInputStream("{}".getBytes("UTF-8")),
+          new StringWriter());
+      fail("Expected MalformedJsonException");
+    } catch (MalformedJsonException e) {
+      assertEquals("$", e.getPath());
+    }
+  }
+
+  public void testTruncatedDocumentNamesPath() throws Exception {
+    byte[] binary = writeBinary(WaveJsonCodecTest.newEventMessageBundle(5));
+    // The blips are written last.
+    byte[] truncated = Arrays.copyOf(binary, binary.length * 3 / 4);
+    try {
+      WaveBinaryCodec.readEventMessageBundle(new ByteArrayInputStream(truncated));
+      fail("Expected MalformedJsonException");
+    } catch (MalformedJsonException e) {
+      assertTrue(e.getPath(), e.getPath().startsWith("$.blips.map."));
+    }
+  }
+
+  public void testTrailingDataIsRejected() throws Exception {
+    byte[] binary = writeBinary(WaveJsonCodecTest.newEventMessageBundle(1));
+    byte[] trailing = Arrays.copyOf(binary, binary.length + 1);
+    trailing[binary.length] = BinaryJsonWriter.NULL;
+    try {
+      WaveBinaryCodec.readEventMessageBundle(new ByteArrayInputStream(trailing));
+      fail("Expected MalformedJsonException");
+    } catch (MalformedJsonException e) {
+      assertEquals("$", e.getPath());
+    }
+  }
+
+  public void testMalformedTagsAreRejected() throws Exception {
+    byte[] magic = BinaryJsonWriter.MAGIC;
+    byte[][] documents = {
+        // An unknown tag.
+        concat(magic, new byte[] {BinaryJsonWriter.BEGIN_ARRAY, 99}),
+        // A reference to a string that was never written.
+        concat(magic, new byte[] {BinaryJsonWriter.BEGIN_ARRAY, BinaryJsonWriter.STRING, 1}),
+        // A number that is not a JSON number.
+        concat(magic, new byte[] {BinaryJsonWriter.BEGIN_ARRAY, BinaryJsonWriter.NUMBER, 0, 3,
+            '1', '-', '2'}),
+        // A string longer than the document.
+        concat(magic, new byte[] {BinaryJsonWriter.BEGIN_ARRAY, BinaryJsonWriter.STRING, 0, 9,
+            'a'}),
+    };
+    for (int i = 0; i < documents.length; i++) {
+      try {
+        WaveBinaryCodec.toJson(new ByteArrayInputStream(documents[i]), new StringWriter());
+        fail("Expected MalformedJsonException for document " + i);
+      } catch (MalformedJsonException e) {
+        assertEquals("$[0]", e.getPath());
+      }
+    }
+  }
+
+  private static byte[] writeBinary(EventMessageBundle bundle) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    WaveBinaryCodec.writeEventMessageBundle(bundle, out);
+    return out.toByteArray();
+  }
+
+  private static byte[] toBinary(String json) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    WaveBinaryCodec.toBinary(new JsonReader(new StringReader(json)), out);
+    return out.toByteArray();
+  }
+
+  private static String toJson(byte[] binary) throws Exception {
+    StringWriter out = new StringWriter();
+    WaveBinaryCodec.toJson(new ByteArrayInputStream(binary), out);
+    return out.toString();
+  }
+
+  private static byte[] concat(byte[] a, byte[] b) {
+    byte[] bytes = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, bytes, a.length, b.length);
+    return bytes;
+  }
+}
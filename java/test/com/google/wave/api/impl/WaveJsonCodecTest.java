@@ -0,0 +1,272 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.wave.api.impl;
+
+import com.google.wave.api.Annotation;
+import com.google.wave.api.ElementType;
+import com.google.wave.api.EventType;
+import com.google.wave.api.FormElement;
+import com.google.wave.api.Gadget;
+import com.google.wave.api.Image;
+import com.google.wave.api.Range;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Checks {@link WaveJsonCodec} against the reflective serializers it stands in
+ * for.
+ */
+public class WaveJsonCodecTest extends TestCase {
+
+  public void testWritesEventsLikeSerializer() throws Exception {
+    EventMessageBundle bundle = newEventMessageBundle(5);
+    assertEquals(canonical(WaveSerializers.toJSON(bundle)), canonical(write(bundle)));
+  }
+
+  public void testReadsEventsLikeSerializer() throws Exception {
+    String json = WaveSerializers.toJSON(newEventMessageBundle(5));
+    EventMessageBundle viaCodec = WaveJsonCodec.readEventMessageBundle(new StringReader(json));
+    EventMessageBundle viaSerializer = (EventMessageBundle) WaveSerializers.unmarshall(
+        EventMessageBundle.class, new JSONObject(json));
+    assertEquals(canonical(WaveSerializers.toJSON(viaSerializer)),
+        canonical(WaveSerializers.toJSON(viaCodec)));
+  }
+
+  public void testEventsRoundTrip() throws Exception {
+    String json = write(newEventMessageBundle(20));
+    assertEquals(canonical(json),
+        canonical(write(WaveJsonCodec.readEventMessageBundle(new StringReader(json)))));
+  }
+
+  public void testLazyBlipsRoundTrip() throws Exception {
+    String json = write(newEventMessageBundle(20));
+    char[] chars = json.toCharArray();
+    EventMessageBundle bundle =
+        WaveJsonCodec.readEventMessageBundle(chars, 0, chars.length, true);
+    assertEquals(canonical(json), canonical(write(bundle)));
+  }
+
+  public void testOperationsRoundTrip() throws Exception {
+    OperationMessageBundle bundle = newOperationMessageBundle();
+    StringWriter out = new StringWriter();
+    WaveJsonCodec.writeOperationMessageBundle(bundle, out);
+    String json = out.toString();
+    assertEquals(canonical(WaveSerializers.toJSON(bundle)), canonical(json));
+
+    OperationMessageBundle back =
+        WaveJsonCodec.readOperationMessageBundle(new StringReader(json));
+    assertEquals(canonical(json), canonical(WaveSerializers.toJSON(back)));
+  }
+
+  public void testMalformedDocumentNamesPath() throws Exception {
+    String json = write(newEventMessageBundle(1)).replace("\"content\":", "\"content\"");
+    try {
+      WaveJsonCodec.readEventMessageBundle(new StringReader(json));
+      fail("Expected MalformedJsonException");
+    } catch (MalformedJsonException e) {
+      assertTrue(e.getPath(), e.getPath().startsWith("$.blips."));
+    }
+  }
+
+  public void testMalformedDocumentsNamePaths() throws Exception {
+    String json = write(newEventMessageBundle(2));
+    String[][] cases = {
+        // Replaced text, replacement, expected path.
+        {"\"creator\":\"a@example.com\",\"dataDocuments\"",
+            "\"creator\":\"a@example.com\" \"dataDocuments\"", "$.wavelet.creator"},
+        {"\"list\":[\"a@example.com\",\"c@example.com\"]",
+            "\"list\":[\"a@example.com\" \"c@example.com\"]", "$.wavelet.participants.list[0]"},
+        {"\"timestamp\":1250000000124", "\"timestamp\":tru", "$.events.list[1].timestamp"},
+        {"\"rootBlipId\":\"b0\"", "\"rootBlipId\":\"b0\\u00zz\"", "$.wavelet.rootBlipId"},
+    };
+    for (String[] c : cases) {
+      assertTrue(c[0], json.contains(c[0]));
+      try {
+        WaveJsonCodec.readEventMessageBundle(new StringReader(json.replace(c[0], c[1])));
+        fail("Expected MalformedJsonException for " + c[1]);
+      } catch (MalformedJsonException e) {
+        assertEquals(c[1], c[2], e.getPath());
+      }
+    }
+  }
+
+  public void testTruncatedDocumentNamesPath() throws Exception {
+    String json = write(newEventMessageBundle(2));
+    String truncated = json.substring(0, json.indexOf("Hello world 1"));
+    try {
+      WaveJsonCodec.readEventMessageBundle(new StringReader(truncated));
+      fail("Expected MalformedJsonException");
+    } catch (MalformedJsonException e) {
+      assertEquals("$.blips.map.b1.content", e.getPath());
+    }
+  }
+
+  public void testMissingFieldsAreInvalid() throws Exception {
+    try {
+      WaveJsonCodec.readEventMessageBundle(new StringReader("{\"events\":[]}"));
+      fail("Expected InvalidWaveDataException");
+    } catch (InvalidWaveDataException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("Missing wavelet"));
+      assertEquals("$", e.getPath());
+    }
+  }
+
+  public void testMalformedNumbersPath() throws Exception {
+    String json = write(newEventMessageBundle(1));
+    for (String number : new String[] {"1-2", "-", "01", "1.", ".5", "1e", "+1", "1e+-2"}) {
+      String malformed = json.replace("\"version\":7,", "\"version\":" + number + ",");
+      try {
+        WaveJsonCodec.readEventMessageBundle(new StringReader(malformed));
+        fail("Expected MalformedJsonException for " + number);
+      } catch (MalformedJsonException e) {
+        assertEquals(number, "$.wavelet.version", e.getPath());
+      }
+    }
+  }
+
+  public void testNumbersOfTheGrammarAreAccepted() {
+    for (String number : new String[] {"0", "-0", "7", "-12", "1.5", "0.25", "1e3", "1E+3",
+        "-2.5e-3"}) {
+      assertTrue(number, JsonReader.isNumber(number));
+    }
+  }
+
+  public void testNullAnnotationIsRejected() throws Exception {
+    String list = "\"annotations\":{\"javaClass\":\"java.util.ArrayList\",\"list\":[";
+    String json = write(newEventMessageBundle(1));
+    assertTrue(json.contains(list));
+    try {
+      WaveJsonCodec.readEventMessageBundle(new StringReader(json.replace(list, list + "null,")));
+      fail("Expected InvalidWaveDataException");
+    } catch (InvalidWaveDataException e) {
+      assertTrue(e.getPath(), e.getPath().startsWith("$.blips.map.b0.annotations"));
+    }
+  }
+
+  static EventMessageBundle newEventMessageBundle(int blipCount) {
+    EventMessageBundle bundle = new EventMessageBundle();
+    WaveletData wavelet = new WaveletData();
+    wavelet.setWaveId("wave!1");
+    wavelet.setWaveletId("conv+root");
+    wavelet.setTitle("Title \"quoted\" \u00e9 </x>");
+    wavelet.setCreator("a@example.com");
+    wavelet.setRootBlipId("b0");
+    wavelet.getParticipants().add("a@example.com");
+    wavelet.getParticipants().add("c@example.com");
+    wavelet.setDataDocument("key", "value");
+    wavelet.setCreationTime(1250000000000L);
+    wavelet.setVersion(7);
+    bundle.setWaveletData(wavelet);
+
+    for (int i = 0; i < blipCount; i++) {
+      BlipData blip = new BlipData();
+      blip.setBlipId("b" + i);
+      blip.setWaveId("wave!1");
+      blip.setWaveletId("conv+root");
+      blip.setContent("\nHello world " + i + "\ttab");
+      blip.setCreator("a@example.com");
+      blip.getContributors().add("a@example.com");
+      blip.setLastModifiedTime(1250000000000L + i);
+      blip.setVersion(i);
+      blip.setParentBlipId(i == 0 ? null : "b0");
+      if (i == 0) {
+        for (int j = 1; j < blipCount; j++) {
+          blip.getChildBlipIds().add("b" + j);
+        }
+      }
+      blip.addAnnotation(new Annotation("style/fontWeight", "bold", new Range(1, 5)));
+      blip.addAnnotation(new Annotation("lang", "en", new Range(0, 12)));
+      blip.addElement(3, new Gadget("http://example.com/gadget.xml"));
+      blip.addElement(7, new FormElement(ElementType.BUTTON, "button", "Click"));
+      blip.addElement(9, new Image("attachment", "caption"));
+      bundle.addBlip(blip.getBlipId(), blip);
+    }
+
+    EventData submitted = new EventData(EventType.BLIP_SUBMITTED, "a@example.com",
+        1250000000123L);
+    submitted.put("blipId", "b0");
+    bundle.addEvent(submitted);
+    EventData changed = new EventData(EventType.WAVELET_PARTICIPANTS_CHANGED, "a@example.com",
+        1250000000124L);
+    changed.put("participantsAdded", new ArrayList<String>(Arrays.asList("x@example.com")));
+    bundle.addEvent(changed);
+    return bundle;
+  }
+
+  static OperationMessageBundle newOperationMessageBundle() {
+    OperationMessageBundle bundle = new OperationMessageBundle();
+    bundle.setVersion("3");
+    bundle.add(new OperationImpl(OperationType.DOCUMENT_INSERT, "w", "wl", "b", 3, "text"));
+    bundle.add(new OperationImpl(OperationType.DOCUMENT_ANNOTATION_SET, "w", "wl", "b", 0,
+        new Annotation("name", "value", new Range(1, 2))));
+    bundle.add(new OperationImpl(OperationType.DOCUMENT_ELEMENT_INSERT, "w", "wl", "b", 4,
+        new Gadget("http://example.com/gadget.xml")));
+    bundle.add(new OperationImpl(OperationType.BLIP_SET_CREATION_TIME, "w", "wl", "b", -1,
+        1234567890123L));
+    bundle.add(new OperationImpl(OperationType.DOCUMENT_DELETE, "w", "wl", "b", -1,
+        new Range(0, 2)));
+    return bundle;
+  }
+
+  static String write(EventMessageBundle bundle) throws Exception {
+    StringWriter out = new StringWriter();
+    WaveJsonCodec.writeEventMessageBundle(bundle, out);
+    return out.toString();
+  }
+
+  /**
+   * Returns the document as nested sorted maps and lists, so that documents
+   * that differ only in the order of their keys compare equal. Numbers are
+   * compared as doubles, since the serializers do not agree on their type.
+   */
+  static Object canonical(String json) throws Exception {
+    return canonical(new JSONObject(json));
+  }
+
+  private static Object canonical(Object value) throws Exception {
+    if (value instanceof JSONObject) {
+      JSONObject object = (JSONObject) value;
+      Map<String, Object> map = new TreeMap<String, Object>();
+      for (Iterator<?> it = object.keys(); it.hasNext();) {
+        String key = (String) it.next();
+        map.put(key, canonical(object.get(key)));
+      }
+      return map;
+    } else if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      List<Object> list = new ArrayList<Object>();
+      for (int i = 0; i < array.length(); i++) {
+        list.add(canonical(array.get(i)));
+      }
+      return list;
+    } else if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    }
+    return value;
+  }
+}
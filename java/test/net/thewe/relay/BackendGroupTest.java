@@ -0,0 +1,139 @@
+package net.thewe.relay;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks how {@link BackendGroup} spreads requests over its endpoints and
+ * routes around ejected ones.
+ */
+public class BackendGroupTest extends TestCase {
+
+	private static final int WAVES = 1000;
+
+	public void testHashRingIsStable() throws Exception {
+		List<BackendEndpoint> endpoints = endpoints(3);
+		BackendGroup group = new BackendGroup(endpoints,
+				LoadBalancingPolicy.WAVE_HASH);
+		BackendGroup rebuilt = new BackendGroup(endpoints(3),
+				LoadBalancingPolicy.WAVE_HASH);
+		Set<BackendEndpoint> used = new HashSet<BackendEndpoint>();
+		for (int i = 0; i < WAVES; i++) {
+			BackendEndpoint chosen = group.choose(key(i));
+			used.add(chosen);
+			assertSame(chosen, group.choose(key(i)));
+			assertEquals(chosen.getUrl(), rebuilt.choose(key(i)).getUrl());
+		}
+		assertEquals(3, used.size());
+	}
+
+	public void testAddingEndpointMovesFewWaves() throws Exception {
+		BackendGroup three = new BackendGroup(endpoints(3),
+				LoadBalancingPolicy.WAVE_HASH);
+		BackendGroup four = new BackendGroup(endpoints(4),
+				LoadBalancingPolicy.WAVE_HASH);
+		int moved = 0;
+		for (int i = 0; i < WAVES; i++) {
+			URL before = three.choose(key(i)).getUrl();
+			URL after = four.choose(key(i)).getUrl();
+			if (!before.equals(after)) {
+				// Only the new endpoint takes waves over.
+				assertEquals(endpoints(4).get(3).getUrl(), after);
+				moved++;
+			}
+		}
+		assertTrue(String.valueOf(moved), moved > 0 && moved < WAVES / 2);
+	}
+
+	public void testEjectionAndReadmission() throws Exception {
+		List<BackendEndpoint> endpoints = endpoints(3);
+		BackendGroup group = new BackendGroup(endpoints,
+				LoadBalancingPolicy.WAVE_HASH);
+		BackendEndpoint failing = group.choose(key(0));
+		List<Integer> waves = new ArrayList<Integer>();
+		for (int i = 0; i < WAVES; i++) {
+			if (group.choose(key(i)) == failing) {
+				waves.add(i);
+			}
+		}
+
+		long now = System.currentTimeMillis();
+		assertFalse(failing.recordFailure(now, 2, 200));
+		failing.recordSuccess();
+		assertFalse(failing.recordFailure(now, 2, 200));
+		assertTrue(failing.recordFailure(now, 2, 200));
+		assertFalse(failing.isAvailable(now));
+		for (int i = 0; i < WAVES; i++) {
+			assertNotSame(failing, group.choose(key(i)));
+		}
+		assertNotSame(failing, group.chooseAlternate(null));
+
+		Thread.sleep(250);
+		assertTrue(failing.isAvailable(System.currentTimeMillis()));
+		for (int i : waves) {
+			assertSame(failing, group.choose(key(i)));
+		}
+	}
+
+	public void testAllEjectedStillChoosesOne() throws Exception {
+		List<BackendEndpoint> endpoints = endpoints(2);
+		long now = System.currentTimeMillis();
+		for (BackendEndpoint endpoint : endpoints) {
+			endpoint.recordFailure(now, 1, 60000);
+		}
+		for (LoadBalancingPolicy policy : LoadBalancingPolicy.values()) {
+			BackendGroup group = new BackendGroup(endpoints, policy);
+			assertNotNull(group.choose(key(0)));
+			assertNull(group.chooseAlternate(endpoints.get(0)));
+		}
+	}
+
+	public void testLeastOutstanding() throws Exception {
+		List<BackendEndpoint> endpoints = endpoints(3);
+		BackendGroup group = new BackendGroup(endpoints,
+				LoadBalancingPolicy.LEAST_OUTSTANDING);
+		endpoints.get(0).begin();
+		endpoints.get(2).begin();
+		endpoints.get(2).begin();
+		for (int i = 0; i < 10; i++) {
+			assertSame(endpoints.get(1), group.choose(key(i)));
+		}
+		assertSame(endpoints.get(0), group.chooseAlternate(endpoints.get(1)));
+
+		// A wave id does not matter to this policy, nor does a missing one.
+		endpoints.get(1).begin();
+		endpoints.get(1).begin();
+		assertSame(endpoints.get(0), group.choose(new RoutingKey(null, null,
+				null)));
+	}
+
+	public void testEmptyGroupIsRejected() {
+		try {
+			new BackendGroup(new ArrayList<BackendEndpoint>(),
+					LoadBalancingPolicy.WAVE_HASH);
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+	private static List<BackendEndpoint> endpoints(int count)
+			throws Exception {
+		BackendEndpoint[] endpoints = new BackendEndpoint[count];
+		for (int i = 0; i < count; i++) {
+			endpoints[i] = new BackendEndpoint(new URL("http://backend" + i
+					+ ".example.com/robot"), RelayWireFormat.FORM);
+		}
+		return new ArrayList<BackendEndpoint>(Arrays.asList(endpoints));
+	}
+
+	private static RoutingKey key(int wave) {
+		return new RoutingKey("8080", "get", "example.com!w+" + wave);
+	}
+}
@@ -0,0 +1,62 @@
+package net.thewe.relay;
+
+import java.io.UnsupportedEncodingException;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link BundleDigest} tells bundles apart by their content but
+ * not by their timestamps.
+ */
+public class BundleDigestTest extends TestCase {
+
+	private static final String BUNDLE = "{\"events\":[{\"type\":\"BLIP_SUBMITTED\","
+			+ "\"timestamp\":1250000000000,\"modifiedBy\":\"a@example.com\"}],"
+			+ "\"wavelet\":{\"waveId\":\"w1\",\"lastModifiedTime\":1250000000001,"
+			+ "\"title\":\"t\"}}";
+
+	public void testTimestampsAreIgnored() throws Exception {
+		String redelivered = BUNDLE.replace("1250000000000", "1250000009999")
+				.replace("1250000000001", "1250000010000");
+		assertEquals(digest(BUNDLE, "get"), digest(redelivered, "get"));
+	}
+
+	public void testIgnoredValuesMayBeAnyJson() throws Exception {
+		assertEquals(digest("{\"timestamp\":1,\"a\":1}", null),
+				digest("{\"timestamp\":{\"x\":[1,\"}\"]},\"a\":1}", null));
+	}
+
+	public void testContentIsNotIgnored() throws Exception {
+		String digest = digest(BUNDLE, "get");
+		assertFalse(digest.equals(digest(BUNDLE.replace("\"t\"", "\"u\""), "get")));
+		assertFalse(digest.equals(digest(BUNDLE.replace("w1", "w2"), "get")));
+		assertFalse(digest.equals(digest(BUNDLE, "list")));
+		assertFalse(digest.equals(digest(BUNDLE, null)));
+	}
+
+	public void testOnlyKeysNamedTimestampAreIgnored() throws Exception {
+		// A string value that reads "timestamp" is content, not a key.
+		assertFalse(digest("{\"a\":\"timestamp\",\"b\":1}", null).equals(
+				digest("{\"a\":\"timestamp\",\"b\":2}", null)));
+		assertFalse(digest("{\"timestamps\":1}", null).equals(
+				digest("{\"timestamps\":2}", null)));
+	}
+
+	public void testOffsetAndLength() throws Exception {
+		byte[] bytes = ("xx" + BUNDLE + "yy").getBytes("UTF-8");
+		assertEquals(digest(BUNDLE, "get"), BundleDigest.digest(bytes, 2,
+				bytes.length - 4, "get"));
+	}
+
+	public void testMalformedDocuments() throws Exception {
+		assertNull(digest("{\"a\":\"unterminated}", null));
+		assertNull(digest("{\"timestamp\":", null));
+		assertEquals(40, digest(BUNDLE, null).length());
+	}
+
+	private static String digest(String document, String action)
+			throws UnsupportedEncodingException {
+		byte[] bytes = document.getBytes("UTF-8");
+		return BundleDigest.digest(bytes, 0, bytes.length, action);
+	}
+}
@@ -0,0 +1,89 @@
+package net.thewe.relay;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link InFlightLimiter} admits up to its cap per backend and
+ * rejects the rest without blocking.
+ */
+public class InFlightLimiterTest extends TestCase {
+
+	public void testAcquireAndRelease() {
+		InFlightLimiter limiter = new InFlightLimiter(2);
+		assertTrue(limiter.tryAcquire("8080"));
+		assertTrue(limiter.tryAcquire("8080"));
+		assertEquals(2, limiter.getInFlight("8080"));
+		assertFalse(limiter.tryAcquire("8080"));
+		assertEquals(1, limiter.getRejectedCount());
+
+		limiter.release("8080");
+		assertEquals(1, limiter.getInFlight("8080"));
+		assertTrue(limiter.tryAcquire("8080"));
+		assertEquals(1, limiter.getRejectedCount());
+	}
+
+	public void testBackendsAreCappedSeparately() {
+		InFlightLimiter limiter = new InFlightLimiter(1);
+		assertTrue(limiter.tryAcquire("8080"));
+		assertFalse(limiter.tryAcquire("8080"));
+		assertTrue(limiter.tryAcquire("8081"));
+		assertEquals(0, limiter.getInFlight("8082"));
+	}
+
+	public void testZeroMeansNoLimit() {
+		InFlightLimiter limiter = new InFlightLimiter(0);
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(limiter.tryAcquire("8080"));
+		}
+		assertEquals(0, limiter.getRejectedCount());
+	}
+
+	public void testNegativeCapIsRejected() {
+		try {
+			new InFlightLimiter(-1);
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+	public void testConcurrentAcquireNeverOverflows() throws Exception {
+		final InFlightLimiter limiter = new InFlightLimiter(5);
+		final AtomicInteger admitted = new AtomicInteger();
+		final AtomicInteger peak = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < 10000; i++) {
+						if (limiter.tryAcquire("8080")) {
+							int now = admitted.incrementAndGet();
+							if (now > peak.get()) {
+								peak.set(now);
+							}
+							admitted.decrementAndGet();
+							limiter.release("8080");
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(String.valueOf(peak.get()), peak.get() <= 5);
+		assertEquals(0, limiter.getInFlight("8080"));
+	}
+}
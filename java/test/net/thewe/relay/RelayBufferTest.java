@@ -0,0 +1,45 @@
+package net.thewe.relay;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the per-thread {@link RelayBuffer} and the snapshots taken of it.
+ */
+public class RelayBufferTest extends TestCase {
+
+	public void testReadsAndGrows() throws Exception {
+		byte[] large = new byte[100 * 1024];
+		for (int i = 0; i < large.length; i++) {
+			large[i] = (byte) i;
+		}
+		RelayBuffer buffer = RelayBuffer.forCurrentThread();
+		assertEquals(large.length, buffer.readFrom(new ByteArrayInputStream(large)));
+		assertEquals(large.length, buffer.length());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		buffer.writeTo(out);
+		assertTrue(Arrays.equals(large, out.toByteArray()));
+		RelayBuffer.releaseCurrentThread();
+		assertEquals(0, RelayBuffer.forCurrentThread().length());
+	}
+
+	public void testSnapshotOutlivesTheThreadBuffer() throws Exception {
+		RelayBuffer events = RelayBuffer.forCurrentThread();
+		events.readFrom(new ByteArrayInputStream("{\"a\":1}".getBytes("UTF-8")));
+		RelayBuffer payload = events.snapshot();
+
+		// The next request on this thread reuses the buffer.
+		RelayBuffer.releaseCurrentThread();
+		RelayBuffer.forCurrentThread().readFrom(
+				new ByteArrayInputStream("other request".getBytes("UTF-8")));
+
+		assertEquals(7, payload.length());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		payload.writeTo(out);
+		assertEquals("{\"a\":1}", out.toString("UTF-8"));
+		RelayBuffer.releaseCurrentThread();
+	}
+}
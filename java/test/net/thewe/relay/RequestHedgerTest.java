@@ -0,0 +1,179 @@
+package net.thewe.relay;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks when {@link RequestHedger} sends a hedged attempt, which attempt it
+ * returns, and that it cancels the others.
+ */
+public class RequestHedgerTest extends TestCase {
+
+	/**
+	 * An attempt that answers after a delay, fails, or waits until it is
+	 * cancelled.
+	 */
+	private static class FakeAttempt implements RequestHedger.Attempt {
+		private final long answerAfterMillis;
+		private final IOException failure;
+		private final CountDownLatch ran = new CountDownLatch(1);
+		private final CountDownLatch cancelled = new CountDownLatch(1);
+
+		/**
+		 * @param answerAfterMillis how long to take, or -1 to wait until
+		 *            cancelled.
+		 */
+		FakeAttempt(long answerAfterMillis, IOException failure) {
+			this.answerAfterMillis = answerAfterMillis;
+			this.failure = failure;
+		}
+
+		public void run() throws IOException {
+			ran.countDown();
+			if (failure != null) {
+				throw failure;
+			}
+			try {
+				if (answerAfterMillis < 0) {
+					cancelled.await(10, TimeUnit.SECONDS);
+					throw new InterruptedIOException("Cancelled");
+				}
+				Thread.sleep(answerAfterMillis);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+
+		public void cancel() {
+			cancelled.countDown();
+		}
+
+		boolean hasRun() {
+			return ran.getCount() == 0;
+		}
+
+		boolean isCancelled() {
+			return cancelled.getCount() == 0;
+		}
+	}
+
+	private RequestHedger hedger;
+
+	@Override
+	protected void setUp() {
+		hedger = new RequestHedger(new HashSet<String>(Arrays.asList("get",
+				"list")), 10, 4);
+	}
+
+	@Override
+	protected void tearDown() {
+		hedger.shutdown();
+	}
+
+	public void testOnlyConfiguredActionsAreHedged() {
+		assertTrue(hedger.isHedged("get"));
+		assertFalse(hedger.isHedged("put"));
+		assertFalse(hedger.isHedged(null));
+		RequestHedger none = new RequestHedger(Collections.<String> emptySet(),
+				10, 4);
+		assertFalse(none.isHedged("get"));
+		none.shutdown();
+	}
+
+	public void testDelayNeedsEnoughSamples() {
+		for (int i = 0; i < 19; i++) {
+			hedger.recordLatency("get", 100);
+		}
+		assertEquals(-1, hedger.getDelayMillis("get"));
+		hedger.recordLatency("get", 100);
+		long delay = hedger.getDelayMillis("get");
+		assertTrue(String.valueOf(delay), delay >= 100 && delay <= 127);
+
+		// Never shorter than the minimum delay.
+		for (int i = 0; i < 20; i++) {
+			hedger.recordLatency("list", 1);
+		}
+		assertEquals(10, hedger.getDelayMillis("list"));
+
+		// Latencies of actions that are not hedged are not kept.
+		for (int i = 0; i < 20; i++) {
+			hedger.recordLatency("put", 100);
+		}
+		assertEquals(-1, hedger.getDelayMillis("put"));
+	}
+
+	public void testFastPrimaryIsNotHedged() throws Exception {
+		FakeAttempt primary = new FakeAttempt(0, null);
+		FakeAttempt hedge = new FakeAttempt(0, null);
+		long deadline = System.currentTimeMillis() + 5000;
+		assertSame(primary, hedger.call(primary, hedge, 2000, deadline));
+		assertFalse(hedge.hasRun());
+		assertFalse(primary.isCancelled());
+		assertEquals(0, hedger.getHedgeCount());
+	}
+
+	public void testSlowPrimaryIsHedgedAndCancelled() throws Exception {
+		FakeAttempt primary = new FakeAttempt(-1, null);
+		FakeAttempt hedge = new FakeAttempt(0, null);
+		long deadline = System.currentTimeMillis() + 5000;
+		assertSame(hedge, hedger.call(primary, hedge, 20, deadline));
+		assertTrue(primary.isCancelled());
+		assertFalse(hedge.isCancelled());
+		assertEquals(1, hedger.getHedgeCount());
+		assertEquals(1, hedger.getHedgeWinCount());
+	}
+
+	public void testFailedPrimaryIsNotRetried() throws Exception {
+		IOException failure = new IOException("refused");
+		FakeAttempt primary = new FakeAttempt(0, failure);
+		FakeAttempt hedge = new FakeAttempt(0, null);
+		try {
+			hedger.call(primary, hedge, 200, System.currentTimeMillis() + 5000);
+			fail("Expected IOException");
+		} catch (IOException e) {
+			assertSame(failure, e);
+		}
+		assertFalse(hedge.hasRun());
+		assertEquals(0, hedger.getHedgeCount());
+	}
+
+	public void testNoHedgeWhenDelayReachesDeadline() throws Exception {
+		FakeAttempt primary = new FakeAttempt(-1, null);
+		FakeAttempt hedge = new FakeAttempt(0, null);
+		long start = System.currentTimeMillis();
+		try {
+			hedger.call(primary, hedge, 100, start + 100);
+			fail("Expected SocketTimeoutException");
+		} catch (SocketTimeoutException e) {
+			// Expected.
+		}
+		assertTrue(System.currentTimeMillis() - start >= 100);
+		assertFalse(hedge.hasRun());
+		assertTrue(primary.isCancelled());
+		assertEquals(0, hedger.getHedgeCount());
+	}
+
+	public void testBothAttemptsAreCancelledAtDeadline() throws Exception {
+		FakeAttempt primary = new FakeAttempt(-1, null);
+		FakeAttempt hedge = new FakeAttempt(-1, null);
+		try {
+			hedger.call(primary, hedge, 20, System.currentTimeMillis() + 150);
+			fail("Expected SocketTimeoutException");
+		} catch (SocketTimeoutException e) {
+			// Expected.
+		}
+		assertTrue(hedge.hasRun());
+		assertTrue(primary.isCancelled());
+		assertTrue(hedge.isCancelled());
+		assertEquals(1, hedger.getHedgeCount());
+		assertEquals(0, hedger.getHedgeWinCount());
+	}
+}
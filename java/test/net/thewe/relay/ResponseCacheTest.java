@@ -0,0 +1,80 @@
+package net.thewe.relay;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the hits, expiry and bounds of {@link ResponseCache}.
+ */
+public class ResponseCacheTest extends TestCase {
+
+	public void testHitAndMiss() {
+		ResponseCache cache = new ResponseCache(10, 1000, 60000);
+		byte[] answer = { 1, 2, 3 };
+		assertNull(cache.get("a"));
+		cache.put("a", answer);
+		assertSame(answer, cache.get("a"));
+		assertNull(cache.get("b"));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(2, cache.getMissCount());
+		assertEquals(3, cache.getBytes());
+	}
+
+	public void testReplacingKeepsSizeRight() {
+		ResponseCache cache = new ResponseCache(10, 1000, 60000);
+		cache.put("a", new byte[10]);
+		cache.put("a", new byte[4]);
+		assertEquals(1, cache.size());
+		assertEquals(4, cache.getBytes());
+	}
+
+	public void testExpiry() throws Exception {
+		ResponseCache cache = new ResponseCache(10, 1000, 20);
+		cache.put("a", new byte[5]);
+		assertNotNull(cache.get("a"));
+		Thread.sleep(50);
+		assertNull(cache.get("a"));
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getBytes());
+	}
+
+	public void testEntryBoundEvictsLeastRecentlyUsed() {
+		ResponseCache cache = new ResponseCache(2, 1000, 60000);
+		cache.put("a", new byte[1]);
+		cache.put("b", new byte[1]);
+		cache.get("a");
+		cache.put("c", new byte[1]);
+		assertNotNull(cache.get("a"));
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("c"));
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	public void testByteBound() {
+		ResponseCache cache = new ResponseCache(10, 10, 60000);
+		cache.put("a", new byte[6]);
+		cache.put("b", new byte[6]);
+		assertNull(cache.get("a"));
+		assertNotNull(cache.get("b"));
+		assertEquals(6, cache.getBytes());
+
+		// Larger than the whole cache: not kept, and nothing is evicted.
+		cache.put("c", new byte[11]);
+		assertNull(cache.get("c"));
+		assertNotNull(cache.get("b"));
+	}
+
+	public void testCaptureIsLimitedToMaxBytes() throws Exception {
+		ResponseCache cache = new ResponseCache(10, 4, 60000);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CapturingOutputStream capture = cache.capture(out);
+		capture.write(new byte[] { 1, 2, 3 });
+		assertFalse(capture.isTruncated());
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, capture.toByteArray()));
+		capture.write(new byte[] { 4, 5 });
+		assertTrue(capture.isTruncated());
+		assertEquals(5, out.size());
+	}
+}
@@ -0,0 +1,102 @@
+package net.thewe.relay;
+
+import java.io.UnsupportedEncodingException;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link RoutingKeyExtractor} finds the routing fields wherever
+ * Wave puts them, and only at the top level.
+ */
+public class RoutingKeyExtractorTest extends TestCase {
+
+	public void testProxyingForAsString() throws Exception {
+		RoutingKey key = extract("{\"events\":[],"
+				+ "\"proxyingFor\":\"{\\\"port\\\":\\\"8080\\\",\\\"action\\\":\\\"get\\\"}\","
+				+ "\"wavelet\":{\"waveId\":\"w+1\"}}");
+		assertEquals("8080", key.getPort());
+		assertEquals("get", key.getAction());
+		assertEquals("w+1", key.getWaveId());
+	}
+
+	public void testProxyingForAsObject() throws Exception {
+		RoutingKey key = extract(" { \"proxyingFor\" : { \"port\" : 80 ,"
+				+ " \"action\" : \"list\" } } ");
+		assertEquals("80", key.getPort());
+		assertEquals("list", key.getAction());
+		assertNull(key.getWaveId());
+	}
+
+	public void testEscapedKeysAndValues() throws Exception {
+		RoutingKey key = extract("{\"proxying\\u0046or\":{\"p\\u006frt\":\"80\","
+				+ "\"action\":\"a\\\"b\\\\c\\u00e9\"},"
+				+ "\"wave\\u006cet\":{\"wave\\u0049d\":\"w\\/1\"}}");
+		assertEquals("80", key.getPort());
+		assertEquals("a\"b\\c\u00e9", key.getAction());
+		assertEquals("w/1", key.getWaveId());
+	}
+
+	public void testNestedKeysAreIgnored() throws Exception {
+		RoutingKey key = extract("{\"blips\":{\"proxyingFor\":{\"port\":\"1\"},"
+				+ "\"waveId\":\"nested\"},"
+				+ "\"list\":[{\"proxyingFor\":\"{}\"}, \"proxyingFor\"],"
+				+ "\"text\":\"\\\"proxyingFor\\\":{}\","
+				+ "\"proxyingFor\":{\"action\":\"get\",\"x\":{\"port\":\"2\"}},"
+				+ "\"wavelet\":{\"data\":{\"waveId\":\"nested\"},\"waveId\":\"w1\"}}");
+		assertNull(key.getPort());
+		assertEquals("get", key.getAction());
+		assertEquals("w1", key.getWaveId());
+	}
+
+	public void testFirstOccurrenceWins() throws Exception {
+		RoutingKey key = extract("{\"proxyingFor\":{\"port\":\"1\",\"port\":\"2\"},"
+				+ "\"proxyingFor\":{\"port\":\"3\"}}");
+		assertEquals("1", key.getPort());
+	}
+
+	public void testMissingKeys() throws Exception {
+		assertNull(extract("{}"));
+		assertNull(extract("{\"events\":[],\"wavelet\":{\"waveId\":\"w1\"}}"));
+
+		RoutingKey key = extract("{\"proxyingFor\":\"{}\",\"wavelet\":null}");
+		assertNull(key.getPort());
+		assertNull(key.getAction());
+		assertNull(key.getWaveId());
+	}
+
+	public void testMalformedDocuments() throws Exception {
+		assertNull(extract(""));
+		assertNull(extract("[]"));
+		assertNull(extract("{\"proxyingFor\":{\"port\":\"80\"}"));
+		assertNull(extract("{\"proxyingFor\" {\"port\":\"80\"}}"));
+		assertNull(extract("{\"proxyingFor\":\"{\\\"port\\\":\"}"));
+		assertNull(extract("{\"proxyingFor\":\"unterminated}"));
+	}
+
+	public void testOffsetAndLength() throws Exception {
+		byte[] document = "xx{\"proxyingFor\":{\"port\":\"80\"}}yy"
+				.getBytes("UTF-8");
+		RoutingKey key = RoutingKeyExtractor.extract(document, 2,
+				document.length - 4);
+		assertEquals("80", key.getPort());
+		assertNull(RoutingKeyExtractor.extract(document, 2, 10));
+	}
+
+	public void testCanonicalPort() {
+		assertEquals("80", RoutingKey.canonicalPort("80"));
+		assertEquals("8080", RoutingKey.canonicalPort("08080"));
+		assertEquals("65535", RoutingKey.canonicalPort("65535"));
+		assertNull(RoutingKey.canonicalPort(""));
+		assertNull(RoutingKey.canonicalPort("0"));
+		assertNull(RoutingKey.canonicalPort("65536"));
+		assertNull(RoutingKey.canonicalPort("000080"));
+		assertNull(RoutingKey.canonicalPort("-1"));
+		assertNull(RoutingKey.canonicalPort("8o"));
+	}
+
+	private static RoutingKey extract(String document)
+			throws UnsupportedEncodingException {
+		byte[] bytes = document.getBytes("UTF-8");
+		return RoutingKeyExtractor.extract(bytes, 0, bytes.length);
+	}
+}